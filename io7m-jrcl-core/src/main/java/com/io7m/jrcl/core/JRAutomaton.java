@@ -0,0 +1,578 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * A nondeterministic finite automaton over code points, accepting exactly
+ * the names that a pattern matches in its entirety.
+ * </p>
+ * <p>
+ * Only patterns built from regular constructs can be converted: character
+ * classes whose sets are known exactly, sequences, alternations, plain
+ * groups, greedy and reluctant quantifiers, and anchors at the very start
+ * or end of the pattern. Back references, lookaround, atomic groups and
+ * possessive quantifiers either are not regular or change the language in
+ * ways that depend on the order of backtracking, and are rejected.
+ * </p>
+ * <p>
+ * Questions about languages are answered by determinizing the product of
+ * two automata on the fly, and give up with {@link Answer#UNKNOWN} after a
+ * fixed number of product states.
+ * </p>
+ */
+
+final class JRAutomaton
+{
+  /**
+   * The answer to a question about languages.
+   */
+
+  enum Answer
+  {
+    NO,
+    UNKNOWN,
+    YES
+  }
+
+  /**
+   * Raised when a pattern cannot be converted.
+   */
+
+  private static final class Unsupported extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported(
+      final String message)
+    {
+      super(message, null, false, false);
+    }
+  }
+
+  /**
+   * A mutable automaton under construction.
+   */
+
+  private static final class Builder
+  {
+    final List<int[]>     epsilon;
+    final List<JRCharSet> sets;
+    final List<Integer>   targets;
+
+    Builder()
+    {
+      this.epsilon = new ArrayList<int[]>();
+      this.sets = new ArrayList<JRCharSet>();
+      this.targets = new ArrayList<Integer>();
+    }
+
+    void addEpsilon(
+      final int from,
+      final int to)
+    {
+      final int[] old = NullCheck.notNull(this.epsilon.get(from));
+      final int[] next = Arrays.copyOf(old, old.length + 1);
+      next[old.length] = to;
+      this.epsilon.set(from, next);
+    }
+
+    int addState()
+      throws Unsupported
+    {
+      if (this.sets.size() >= JRAutomaton.MAXIMUM_STATES) {
+        throw new Unsupported("Too many states");
+      }
+      this.epsilon.add(new int[0]);
+      this.sets.add(JRCharSet.empty());
+      this.targets.add(Integer.valueOf(-1));
+      return this.sets.size() - 1;
+    }
+
+    void addTransition(
+      final int from,
+      final JRCharSet set,
+      final int to)
+    {
+      this.sets.set(from, set);
+      this.targets.set(from, Integer.valueOf(to));
+    }
+  }
+
+  /**
+   * The maximum number of states in an automaton.
+   */
+
+  static final int MAXIMUM_STATES = 4096;
+
+  /**
+   * The maximum number of product states examined by a single question.
+   */
+
+  static final int MAXIMUM_PRODUCT_STATES = 20000;
+
+  private static int build(
+    final Builder b,
+    final JRRegexNode node,
+    final int start)
+    throws Unsupported
+  {
+    switch (node.kind()) {
+      case ANCHOR:
+      case BACK_REFERENCE:
+      case OPAQUE:
+      {
+        throw new Unsupported(node.source());
+      }
+      case FLAGS:
+      {
+        return start;
+      }
+      case CHARS:
+      {
+        final JRRegexNode.Chars c = (JRRegexNode.Chars) node;
+        if (!c.exact) {
+          throw new Unsupported(node.source());
+        }
+        final int end = b.addState();
+        b.addTransition(start, c.set, end);
+        return end;
+      }
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        switch (g.group_kind) {
+          case CAPTURING:
+          case NON_CAPTURING:
+            return JRAutomaton.build(b, g.child, start);
+          case ATOMIC:
+          case LOOKAHEAD:
+          case LOOKBEHIND:
+          case NEGATIVE_LOOKAHEAD:
+          case NEGATIVE_LOOKBEHIND:
+            throw new Unsupported(node.source());
+        }
+        throw new UnreachableCodeException();
+      }
+      case SEQUENCE:
+      {
+        int current = start;
+        for (final JRRegexNode item : ((JRRegexNode.Sequence) node).items) {
+          current = JRAutomaton.build(b, NullCheck.notNull(item), current);
+        }
+        return current;
+      }
+      case ALTERNATION:
+      {
+        final JRRegexNode.Alternation alt = (JRRegexNode.Alternation) node;
+        final int end = b.addState();
+        for (final JRRegexNode a : alt.alternatives) {
+          final int a_start = b.addState();
+          b.addEpsilon(start, a_start);
+          final int a_end = JRAutomaton.build(b, NullCheck.notNull(a), a_start);
+          b.addEpsilon(a_end, end);
+        }
+        return end;
+      }
+      case REPEAT:
+      {
+        return JRAutomaton.buildRepeat(b, (JRRegexNode.Repeat) node, start);
+      }
+    }
+    throw new UnreachableCodeException();
+  }
+
+  private static int buildRepeat(
+    final Builder b,
+    final JRRegexNode.Repeat r,
+    final int start)
+    throws Unsupported
+  {
+    if (r.mode == JRRegexNode.Mode.POSSESSIVE) {
+      throw new Unsupported(r.source());
+    }
+
+    /**
+     * The required copies.
+     */
+
+    int current = start;
+    for (int index = 0; index < r.min; ++index) {
+      final int next = b.addState();
+      b.addEpsilon(JRAutomaton.build(b, r.child, current), next);
+      current = next;
+    }
+
+    if (r.isUnbounded()) {
+      final int loop = b.addState();
+      final int end = b.addState();
+      b.addEpsilon(current, loop);
+      b.addEpsilon(loop, end);
+      b.addEpsilon(JRAutomaton.build(b, r.child, loop), loop);
+      return end;
+    }
+
+    /**
+     * The optional copies, each of which may be skipped to the end.
+     */
+
+    final int end = b.addState();
+    for (int index = r.min; index < r.max; ++index) {
+      b.addEpsilon(current, end);
+      final int next = b.addState();
+      b.addEpsilon(JRAutomaton.build(b, r.child, current), next);
+      current = next;
+    }
+    b.addEpsilon(current, end);
+    return end;
+  }
+
+  private static BitSet closure(
+    final JRAutomaton a,
+    final BitSet states)
+  {
+    final BitSet out = (BitSet) states.clone();
+    final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+    for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+      pending.add(Integer.valueOf(s));
+    }
+
+    while (!pending.isEmpty()) {
+      final int s = pending.remove().intValue();
+      for (final int t : a.epsilon[s]) {
+        if (!out.get(t)) {
+          out.set(t);
+          pending.add(Integer.valueOf(t));
+        }
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Convert a pattern to an automaton.
+   *
+   * @param p
+   *          The pattern
+   * @return An automaton, or <tt>null</tt> if the pattern uses constructs
+   *         that cannot be converted
+   */
+
+  static @Nullable JRAutomaton fromPattern(
+    final Pattern p)
+  {
+    try {
+      if ((p.flags() & Pattern.CANON_EQ) != 0) {
+        return null;
+      }
+
+      final List<JRRegexNode> items = new ArrayList<JRRegexNode>();
+      final JRRegexNode root = JRRegexParser.parse(p);
+      if (root.kind() == JRRegexNode.Kind.SEQUENCE) {
+        items.addAll(((JRRegexNode.Sequence) root).items);
+      } else {
+        items.add(root);
+      }
+
+      /**
+       * Anchors at the start and end of the pattern always hold when the
+       * pattern must match the entire name.
+       */
+
+      while (!items.isEmpty() && JRAutomaton.isStartAnchor(items.get(0))) {
+        items.remove(0);
+      }
+      while (!items.isEmpty()
+        && JRAutomaton.isEndAnchor(items.get(items.size() - 1))) {
+        items.remove(items.size() - 1);
+      }
+
+      final Builder b = new Builder();
+      final int start = b.addState();
+      final int end =
+        JRAutomaton.build(b, new JRRegexNode.Sequence(items), start);
+      final BitSet accepting = new BitSet();
+      accepting.set(end);
+      return new JRAutomaton(b, start, accepting);
+    } catch (final Unsupported | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Determine whether the languages of two automata share any name.
+   *
+   * @param a
+   *          The first automaton
+   * @param b
+   *          The second automaton
+   * @return {@link Answer#YES} if some name is accepted by both automata
+   */
+
+  static Answer intersects(
+    final JRAutomaton a,
+    final JRAutomaton b)
+  {
+    return JRAutomaton.search(a, b, true);
+  }
+
+  static boolean isEndAnchor(
+    final @Nullable JRRegexNode node)
+  {
+    if ((node != null) && (node.kind() == JRRegexNode.Kind.ANCHOR)) {
+      final String text = ((JRRegexNode.Anchor) node).text;
+      return "$".equals(text) || "\\z".equals(text) || "\\Z".equals(text);
+    }
+    return false;
+  }
+
+  static boolean isStartAnchor(
+    final @Nullable JRRegexNode node)
+  {
+    if ((node != null) && (node.kind() == JRRegexNode.Kind.ANCHOR)) {
+      final String text = ((JRRegexNode.Anchor) node).text;
+      return "^".equals(text) || "\\A".equals(text) || "\\G".equals(text);
+    }
+    return false;
+  }
+
+  /**
+   * Determine whether every name accepted by <tt>a</tt> is accepted by
+   * <tt>b</tt>.
+   *
+   * @param a
+   *          The first automaton
+   * @param b
+   *          The second automaton
+   * @return {@link Answer#YES} if the language of <tt>a</tt> is a subset of
+   *         the language of <tt>b</tt>
+   */
+
+  static Answer isSubset(
+    final JRAutomaton a,
+    final JRAutomaton b)
+  {
+    switch (JRAutomaton.search(a, b, false)) {
+      case NO:
+        return Answer.YES;
+      case UNKNOWN:
+        return Answer.UNKNOWN;
+      case YES:
+        return Answer.NO;
+    }
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Search the product of two automata for a name accepted by <tt>a</tt>
+   * and, if <tt>both</tt> is <tt>true</tt>, accepted by <tt>b</tt>, or if
+   * <tt>both</tt> is <tt>false</tt>, rejected by <tt>b</tt>.
+   */
+
+  private static Answer search(
+    final JRAutomaton a,
+    final JRAutomaton b,
+    final boolean both)
+  {
+    final BitSet a_start = new BitSet();
+    a_start.set(a.start);
+    final BitSet b_start = new BitSet();
+    b_start.set(b.start);
+
+    final Set<List<BitSet>> seen = new HashSet<List<BitSet>>();
+    final ArrayDeque<List<BitSet>> pending = new ArrayDeque<List<BitSet>>();
+    final List<BitSet> initial =
+      Arrays.asList(
+        JRAutomaton.closure(a, a_start),
+        JRAutomaton.closure(b, b_start));
+    seen.add(initial);
+    pending.add(initial);
+
+    while (!pending.isEmpty()) {
+      final List<BitSet> current = pending.remove();
+      final BitSet sa = NullCheck.notNull(current.get(0));
+      final BitSet sb = NullCheck.notNull(current.get(1));
+
+      final boolean a_accepts = sa.intersects(a.accepting);
+      final boolean b_accepts = sb.intersects(b.accepting);
+      if (a_accepts && (both == b_accepts)) {
+        return Answer.YES;
+      }
+
+      /**
+       * Split the code points into intervals on which every transition out
+       * of the current states behaves uniformly, and follow one
+       * representative of each.
+       */
+
+      final TreeSet<Integer> bounds = new TreeSet<Integer>();
+      JRAutomaton.addBounds(a, sa, bounds);
+      JRAutomaton.addBounds(b, sb, bounds);
+
+      for (final Integer bound : bounds) {
+        final int c = bound.intValue();
+        final BitSet na = JRAutomaton.step(a, sa, c);
+        if (na.isEmpty()) {
+          continue;
+        }
+        final BitSet nb = JRAutomaton.step(b, sb, c);
+        if (both && nb.isEmpty()) {
+          continue;
+        }
+
+        final List<BitSet> next = Arrays.asList(na, nb);
+        if (seen.add(next)) {
+          if (seen.size() > JRAutomaton.MAXIMUM_PRODUCT_STATES) {
+            return Answer.UNKNOWN;
+          }
+          pending.add(next);
+        }
+      }
+    }
+
+    return Answer.NO;
+  }
+
+  private static void addBounds(
+    final JRAutomaton a,
+    final BitSet states,
+    final TreeSet<Integer> bounds)
+  {
+    for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+      final JRCharSet set = a.sets[s];
+      for (int index = 0; index < set.rangeCount(); ++index) {
+        bounds.add(Integer.valueOf(set.rangeLower(index)));
+        final int upper = set.rangeUpper(index);
+        if (upper < Character.MAX_CODE_POINT) {
+          bounds.add(Integer.valueOf(upper + 1));
+        }
+      }
+    }
+  }
+
+  private static BitSet step(
+    final JRAutomaton a,
+    final BitSet states,
+    final int c)
+  {
+    final BitSet next = new BitSet();
+    for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+      if (a.sets[s].contains(c)) {
+        next.set(a.targets[s]);
+      }
+    }
+    return JRAutomaton.closure(a, next);
+  }
+
+  /**
+   * @param automata
+   *          A non-empty list of automata
+   * @return An automaton accepting the union of the languages of the given
+   *         automata
+   */
+
+  static JRAutomaton union(
+    final List<JRAutomaton> automata)
+  {
+    int total = 1;
+    for (final JRAutomaton a : automata) {
+      total += a.sets.length;
+    }
+
+    final int[][] epsilon = new int[total][];
+    final JRCharSet[] sets = new JRCharSet[total];
+    final int[] targets = new int[total];
+    final BitSet accepting = new BitSet();
+
+    final int[] starts = new int[automata.size()];
+    int base = 1;
+    for (int index = 0; index < automata.size(); ++index) {
+      final JRAutomaton a = NullCheck.notNull(automata.get(index));
+      starts[index] = base + a.start;
+      for (int s = 0; s < a.sets.length; ++s) {
+        final int[] e = a.epsilon[s];
+        final int[] shifted = new int[e.length];
+        for (int k = 0; k < e.length; ++k) {
+          shifted[k] = e[k] + base;
+        }
+        epsilon[base + s] = shifted;
+        sets[base + s] = a.sets[s];
+        targets[base + s] = (a.targets[s] >= 0) ? a.targets[s] + base : -1;
+      }
+      for (int s = a.accepting.nextSetBit(0); s >= 0; s =
+        a.accepting.nextSetBit(s + 1)) {
+        accepting.set(base + s);
+      }
+      base += a.sets.length;
+    }
+
+    epsilon[0] = starts;
+    sets[0] = JRCharSet.empty();
+    targets[0] = -1;
+    return new JRAutomaton(0, epsilon, sets, targets, accepting);
+  }
+
+  private final BitSet      accepting;
+  private final int[][]     epsilon;
+  private final JRCharSet[] sets;
+  private final int         start;
+  private final int[]       targets;
+
+  private JRAutomaton(
+    final Builder b,
+    final int in_start,
+    final BitSet in_accepting)
+  {
+    final int count = b.sets.size();
+    this.start = in_start;
+    this.accepting = in_accepting;
+    this.epsilon = b.epsilon.toArray(new int[count][]);
+    this.sets = b.sets.toArray(new JRCharSet[count]);
+    this.targets = new int[count];
+    for (int index = 0; index < count; ++index) {
+      this.targets[index] = NullCheck.notNull(b.targets.get(index)).intValue();
+    }
+  }
+
+  private JRAutomaton(
+    final int in_start,
+    final int[][] in_epsilon,
+    final JRCharSet[] in_sets,
+    final int[] in_targets,
+    final BitSet in_accepting)
+  {
+    this.start = in_start;
+    this.epsilon = in_epsilon;
+    this.sets = in_sets;
+    this.targets = in_targets;
+    this.accepting = in_accepting;
+  }
+}
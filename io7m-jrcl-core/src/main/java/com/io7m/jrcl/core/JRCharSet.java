@@ -0,0 +1,334 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Arrays;
+
+import com.io7m.jnull.Nullable;
+
+/**
+ * An immutable set of code points, represented as a sorted array of
+ * disjoint, non-adjacent, inclusive ranges.
+ */
+
+final class JRCharSet
+{
+  private static final JRCharSet ALL;
+  private static final JRCharSet EMPTY;
+
+  static {
+    EMPTY = new JRCharSet(new int[0]);
+    ALL = new JRCharSet(new int[] { 0, Character.MAX_CODE_POINT });
+  }
+
+  static JRCharSet all()
+  {
+    return JRCharSet.ALL;
+  }
+
+  static JRCharSet empty()
+  {
+    return JRCharSet.EMPTY;
+  }
+
+  static JRCharSet of(
+    final int c)
+  {
+    return new JRCharSet(new int[] { c, c });
+  }
+
+  static JRCharSet range(
+    final int lo,
+    final int hi)
+  {
+    if (lo > hi) {
+      return JRCharSet.EMPTY;
+    }
+    return new JRCharSet(new int[] { lo, hi });
+  }
+
+  /**
+   * @param chars
+   *          A string of characters
+   * @return The set of characters in <tt>chars</tt>
+   */
+
+  static JRCharSet ofChars(
+    final String chars)
+  {
+    JRCharSet r = JRCharSet.EMPTY;
+    for (int index = 0; index < chars.length(); ++index) {
+      r = r.union(JRCharSet.of(chars.charAt(index)));
+    }
+    return r;
+  }
+
+  private final int[] ranges;
+
+  private JRCharSet(
+    final int[] in_ranges)
+  {
+    this.ranges = in_ranges;
+  }
+
+  int rangeCount()
+  {
+    return this.ranges.length / 2;
+  }
+
+  int rangeLower(
+    final int index)
+  {
+    return this.ranges[index * 2];
+  }
+
+  int rangeUpper(
+    final int index)
+  {
+    return this.ranges[(index * 2) + 1];
+  }
+
+  boolean isEmpty()
+  {
+    return this.ranges.length == 0;
+  }
+
+  boolean isSingleton()
+  {
+    return (this.ranges.length == 2) && (this.ranges[0] == this.ranges[1]);
+  }
+
+  /**
+   * @return The number of code points in the set
+   */
+
+  long size()
+  {
+    long count = 0;
+    for (int index = 0; index < this.ranges.length; index += 2) {
+      count += (this.ranges[index + 1] - this.ranges[index]) + 1;
+    }
+    return count;
+  }
+
+  /**
+   * @return The lowest code point in the set
+   */
+
+  int first()
+  {
+    return this.ranges[0];
+  }
+
+  boolean contains(
+    final int c)
+  {
+    int lo = 0;
+    int hi = (this.ranges.length / 2) - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (c < this.ranges[mid * 2]) {
+        hi = mid - 1;
+      } else if (c > this.ranges[(mid * 2) + 1]) {
+        lo = mid + 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean overlaps(
+    final JRCharSet other)
+  {
+    int i = 0;
+    int j = 0;
+    while ((i < this.ranges.length) && (j < other.ranges.length)) {
+      final int a_lo = this.ranges[i];
+      final int a_hi = this.ranges[i + 1];
+      final int b_lo = other.ranges[j];
+      final int b_hi = other.ranges[j + 1];
+      if ((a_lo <= b_hi) && (b_lo <= a_hi)) {
+        return true;
+      }
+      if (a_hi < b_hi) {
+        i += 2;
+      } else {
+        j += 2;
+      }
+    }
+    return false;
+  }
+
+  boolean containsAll(
+    final JRCharSet other)
+  {
+    return other.intersect(this).equals(other);
+  }
+
+  JRCharSet union(
+    final JRCharSet other)
+  {
+    if (other.isEmpty()) {
+      return this;
+    }
+    if (this.isEmpty()) {
+      return other;
+    }
+
+    final int[] out = new int[this.ranges.length + other.ranges.length];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while ((i < this.ranges.length) || (j < other.ranges.length)) {
+      final int lo;
+      final int hi;
+      if ((j >= other.ranges.length)
+        || ((i < this.ranges.length) && (this.ranges[i] <= other.ranges[j]))) {
+        lo = this.ranges[i];
+        hi = this.ranges[i + 1];
+        i += 2;
+      } else {
+        lo = other.ranges[j];
+        hi = other.ranges[j + 1];
+        j += 2;
+      }
+
+      if ((count > 0) && (lo <= (out[count - 1] + 1))) {
+        out[count - 1] = Math.max(out[count - 1], hi);
+      } else {
+        out[count] = lo;
+        out[count + 1] = hi;
+        count += 2;
+      }
+    }
+    return new JRCharSet(Arrays.copyOf(out, count));
+  }
+
+  JRCharSet intersect(
+    final JRCharSet other)
+  {
+    final int[] out = new int[this.ranges.length + other.ranges.length];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while ((i < this.ranges.length) && (j < other.ranges.length)) {
+      final int lo = Math.max(this.ranges[i], other.ranges[j]);
+      final int hi = Math.min(this.ranges[i + 1], other.ranges[j + 1]);
+      if (lo <= hi) {
+        out[count] = lo;
+        out[count + 1] = hi;
+        count += 2;
+      }
+      if (this.ranges[i + 1] < other.ranges[j + 1]) {
+        i += 2;
+      } else {
+        j += 2;
+      }
+    }
+    return new JRCharSet(Arrays.copyOf(out, count));
+  }
+
+  JRCharSet complement()
+  {
+    final int[] out = new int[this.ranges.length + 2];
+    int count = 0;
+    int next = 0;
+    for (int index = 0; index < this.ranges.length; index += 2) {
+      if (this.ranges[index] > next) {
+        out[count] = next;
+        out[count + 1] = this.ranges[index] - 1;
+        count += 2;
+      }
+      next = this.ranges[index + 1] + 1;
+    }
+    if (next <= Character.MAX_CODE_POINT) {
+      out[count] = next;
+      out[count + 1] = Character.MAX_CODE_POINT;
+      count += 2;
+    }
+    return new JRCharSet(Arrays.copyOf(out, count));
+  }
+
+  JRCharSet minus(
+    final JRCharSet other)
+  {
+    return this.intersect(other.complement());
+  }
+
+  /**
+   * @return The set extended with the opposite case of every ASCII letter
+   *         that it contains
+   */
+
+  JRCharSet foldAsciiCase()
+  {
+    final JRCharSet upper = this.intersect(JRCharSet.range('A', 'Z'));
+    final JRCharSet lower = this.intersect(JRCharSet.range('a', 'z'));
+    return this.union(upper.shift('a' - 'A')).union(lower.shift('A' - 'a'));
+  }
+
+  private JRCharSet shift(
+    final int offset)
+  {
+    final int[] out = new int[this.ranges.length];
+    for (int index = 0; index < this.ranges.length; ++index) {
+      out[index] = this.ranges[index] + offset;
+    }
+    return new JRCharSet(out);
+  }
+
+  @Override public boolean equals(
+    final @Nullable Object obj)
+  {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (this.getClass() != obj.getClass()) {
+      return false;
+    }
+    final JRCharSet other = (JRCharSet) obj;
+    return Arrays.equals(this.ranges, other.ranges);
+  }
+
+  @Override public int hashCode()
+  {
+    return Arrays.hashCode(this.ranges);
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("[");
+    for (int index = 0; index < this.ranges.length; index += 2) {
+      sb.append(String.format("%x", Integer.valueOf(this.ranges[index])));
+      if (this.ranges[index] != this.ranges[index + 1]) {
+        sb.append("-");
+        sb.append(
+          String.format("%x", Integer.valueOf(this.ranges[index + 1])));
+      }
+      if ((index + 2) < this.ranges.length) {
+        sb.append(" ");
+      }
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+}
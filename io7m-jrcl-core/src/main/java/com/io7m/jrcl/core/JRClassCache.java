@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * A cache from class names to the classes that a {@link JRClassLoader}
+ * resolved for them.
+ * </p>
+ * <p>
+ * Classes are held through weak references, so caching a class does not
+ * prevent it (or its defining loader) from being unloaded. Entries whose
+ * classes have been collected are removed the next time a class is added.
+ * </p>
+ * <p>
+ * The entries belong to a <i>generation</i> tagged with the version of the
+ * policy that allowed them. A lookup with a different policy version
+ * replaces the generation with an empty one, and an addition with a version
+ * other than that of the current generation is discarded, so no class is
+ * returned from the cache unless it was allowed by the current version of
+ * the policy.
+ * </p>
+ * <p>
+ * The cache is registered with the {@link JRMemoryGovernor}, which may
+ * evict entries to keep the total memory of all caches within its budget.
+ * Each entry has a <i>used</i> flag that is set when the entry answers a
+ * lookup, and eviction gives each used entry a second chance by clearing
+ * its flag instead of removing it.
+ * </p>
+ */
+
+final class JRClassCache implements JRMemoryEvictableType
+{
+  private static final class Entry extends WeakReference<Class<?>>
+  {
+    final String name;
+    boolean      used;
+
+    Entry(
+      final String in_name,
+      final Class<?> in_class,
+      final ReferenceQueue<Class<?>> in_queue)
+    {
+      super(in_class, in_queue);
+      this.name = in_name;
+    }
+  }
+
+  private static final class Generation
+  {
+    final AtomicLong                       bytes;
+    final ConcurrentHashMap<String, Entry> entries;
+    final ReferenceQueue<Class<?>>         queue;
+    final long                             version;
+
+    Generation(
+      final long in_version)
+    {
+      this.version = in_version;
+      this.entries = new ConcurrentHashMap<String, Entry>();
+      this.queue = new ReferenceQueue<Class<?>>();
+      this.bytes = new AtomicLong();
+    }
+
+    /**
+     * Add <tt>delta</tt> to the size of the generation, unless the
+     * generation has been replaced.
+     *
+     * @return <tt>true</tt> iff the size was changed
+     */
+
+    boolean charge(
+      final long delta)
+    {
+      for (;;) {
+        final long b = this.bytes.get();
+        if (b == JRClassCache.CLOSED) {
+          return false;
+        }
+        if (this.bytes.compareAndSet(b, b + delta)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Mark the generation as replaced.
+     *
+     * @return The size of the generation
+     */
+
+    long close()
+    {
+      return this.bytes.getAndSet(JRClassCache.CLOSED);
+    }
+  }
+
+  /**
+   * The size of a generation that has been replaced, after which additions
+   * and removals are no longer charged to the governor.
+   */
+
+  private static final long      CLOSED = Long.MIN_VALUE;
+
+  private static final VarHandle GENERATION;
+
+  static {
+    try {
+      GENERATION =
+        MethodHandles.lookup().findVarHandle(
+          JRClassCache.class,
+          "generation",
+          Generation.class);
+    } catch (final NoSuchFieldException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * @return The estimated number of bytes retained by an entry for
+   *         <tt>name</tt>, including its slot in the map
+   */
+
+  private static long entryBytes(
+    final String name)
+  {
+    return (3L * JRMemorySizes.OBJECT) + JRMemorySizes.string(name);
+  }
+
+  private final LongAdder                     evictions;
+  private volatile Generation                 generation;
+  private final LongAdder                     hits;
+  private final LongAdder                     invalidations;
+  private volatile long                       last_hits;
+  private final LongAdder                     misses;
+  private final JRMemoryGovernor.Registration registration;
+
+  JRClassCache(
+    final long in_version,
+    final String in_owner)
+  {
+    this.generation = new Generation(in_version);
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    this.invalidations = new LongAdder();
+    this.registration =
+      JRMemoryGovernor.get().register(
+        this,
+        JRMemoryConsumerKind.CLASS_CACHE,
+        in_owner,
+        JRMemorySizes.OBJECT,
+        0L);
+  }
+
+  @Override public long benefit()
+  {
+    final long current = this.hits.sum();
+    final long delta = current - this.last_hits;
+    this.last_hits = current;
+    return delta;
+  }
+
+  @Override public long evict(
+    final long bytes)
+  {
+    final Generation g = this.generation;
+
+    long released = 0L;
+    for (int pass = 0; (pass < 2) && (released < bytes); ++pass) {
+      final Iterator<Entry> iter = g.entries.values().iterator();
+      while (iter.hasNext() && (released < bytes)) {
+        final Entry e = iter.next();
+        if (e.used) {
+          e.used = false;
+          continue;
+        }
+        if (g.entries.remove(e.name, e)) {
+          this.evictions.increment();
+          released += this.release(g, e.name);
+        }
+      }
+    }
+    return released;
+  }
+
+  /**
+   * @param name
+   *          The class name
+   * @param version
+   *          The current version of the policy
+   * @return The cached class, if any
+   */
+
+  @Nullable Class<?> get(
+    final String name,
+    final long version)
+  {
+    Generation g = this.generation;
+    while (g.version != version) {
+      final Generation next = new Generation(version);
+      if (JRClassCache.GENERATION.compareAndSet(this, g, next)) {
+        this.invalidations.increment();
+        this.registration.charge(-g.close(), 0L);
+      }
+      g = this.generation;
+    }
+
+    final Entry e = g.entries.get(name);
+    if (e != null) {
+      final Class<?> c = e.get();
+      if (c != null) {
+        if (!e.used) {
+          e.used = true;
+        }
+        this.hits.increment();
+        return c;
+      }
+    }
+
+    this.misses.increment();
+    return null;
+  }
+
+  /**
+   * Add a class to the cache.
+   *
+   * @param name
+   *          The class name
+   * @param version
+   *          The version of the policy that allowed the class
+   * @param c
+   *          The class
+   */
+
+  void put(
+    final String name,
+    final long version,
+    final Class<?> c)
+  {
+    final Generation g = this.generation;
+    if (g.version != version) {
+      return;
+    }
+
+    for (;;) {
+      final Entry stale = (Entry) g.queue.poll();
+      if (stale == null) {
+        break;
+      }
+      if (g.entries.remove(stale.name, stale)) {
+        this.evictions.increment();
+        this.release(g, stale.name);
+      }
+    }
+
+    final Entry previous =
+      g.entries.put(name, new Entry(name, NullCheck.notNull(c), g.queue));
+    if (previous == null) {
+      final long bytes = JRClassCache.entryBytes(name);
+      if (g.charge(bytes)) {
+        this.registration.charge(bytes, 0L);
+      }
+    }
+  }
+
+  private long release(
+    final Generation g,
+    final String name)
+  {
+    final long bytes = JRClassCache.entryBytes(name);
+    if (g.charge(-bytes)) {
+      this.registration.charge(-bytes, 0L);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return The current statistics of the cache
+   */
+
+  JRClassCacheStatistics getStatistics()
+  {
+    return new JRClassCacheStatistics(
+      this.hits.sum(),
+      this.misses.sum(),
+      this.evictions.sum(),
+      this.invalidations.sum(),
+      this.generation.entries.size());
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * The statistics of the class cache of a {@link JRClassLoader}.
+ *
+ * @see JRClassLoaderBuilderType#setClassCache(boolean)
+ */
+
+public final class JRClassCacheStatistics
+{
+  private final long evictions;
+  private final long hits;
+  private final long invalidations;
+  private final long misses;
+  private final int  size;
+
+  JRClassCacheStatistics(
+    final long in_hits,
+    final long in_misses,
+    final long in_evictions,
+    final long in_invalidations,
+    final int in_size)
+  {
+    this.hits = in_hits;
+    this.misses = in_misses;
+    this.evictions = in_evictions;
+    this.invalidations = in_invalidations;
+    this.size = in_size;
+  }
+
+  /**
+   * @return The number of cached classes removed because they were
+   *         garbage collected, or evicted by the {@link JRMemoryGovernor}
+   */
+
+  public long getEvictions()
+  {
+    return this.evictions;
+  }
+
+  /**
+   * @return The number of lookups answered by the cache
+   */
+
+  public long getHits()
+  {
+    return this.hits;
+  }
+
+  /**
+   * @return The number of times that the cache was emptied because the
+   *         version of the policy changed
+   */
+
+  public long getInvalidations()
+  {
+    return this.invalidations;
+  }
+
+  /**
+   * @return The number of lookups not answered by the cache
+   */
+
+  public long getMisses()
+  {
+    return this.misses;
+  }
+
+  /**
+   * @return The number of entries in the cache
+   */
+
+  public int getSize()
+  {
+    return this.size;
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRClassCacheStatistics hits=");
+    b.append(this.hits);
+    b.append(" misses=");
+    b.append(this.misses);
+    b.append(" evictions=");
+    b.append(this.evictions);
+    b.append(" invalidations=");
+    b.append(this.invalidations);
+    b.append(" size=");
+    b.append(this.size);
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
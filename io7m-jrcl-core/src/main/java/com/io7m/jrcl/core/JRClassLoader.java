@@ -22,6 +22,8 @@ import java.net.URL;
 import java.security.SecureClassLoader;
 import java.util.Enumeration;
 
+import jdk.jfr.EventType;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,14 +40,113 @@ import com.io7m.jnull.Nullable;
  * the request is passed to the <i>delegate</i>. Otherwise, the classloader
  * raises {@link SecurityException} with an appropriate message.
  * </p>
+ * <p>
+ * Requests passed to the delegate are published to the Java Flight Recorder
+ * as <tt>com.io7m.jrcl.DelegateLoad</tt> events, and denied requests are
+ * published as <tt>com.io7m.jrcl.Denial</tt> events. Each event type has its
+ * own threshold and stack trace settings, and nothing is allocated for an
+ * event unless a recording has enabled it.
+ * </p>
+ * <p>
+ * Classloaders created with a builder may enable a fast path for classes of
+ * the Java platform: allowed classes in the packages of platform modules
+ * are loaded directly from the platform classloader, bypassing the
+ * delegate entirely. A delegate that would refuse or substitute a platform
+ * class is therefore not consulted for it. See
+ * {@link JRClassLoaderBuilderType#setPlatformFastPath(boolean)}.
+ * </p>
+ * <p>
+ * A classloader is never the defining loader of the classes it returns, and
+ * so cannot use {@link ClassLoader#findLoadedClass(String)}. Classloaders
+ * created with a builder may instead cache the classes they return, keyed
+ * by name and by the version of the policy, so that repeated loads of the
+ * same class cost a single map lookup. See
+ * {@link JRClassLoaderBuilderType#setClassCache(boolean)}.
+ * </p>
+ * <p>
+ * Classloaders created with a builder may also be given a
+ * {@link JRDecisionTable} of decisions evaluated in advance, for example by
+ * scanning the classes of a plugin with {@link JRJarScanner}, so that the
+ * policy is not evaluated at run time for the names in the table.
+ * </p>
+ * <p>
+ * A classloader whose delegate is itself a {@link JRClassLoader} fuses the
+ * policies of the two: it evaluates the policies (and decision tables) of
+ * both loaders in a single pass, allowing a name only if both allow it, and
+ * passes allowed requests directly to the delegate of the inner loader.
+ * Chains of any length are fused in the same way, and the decisions are
+ * exactly those of passing each request along the chain, including the
+ * {@link SecurityException} raised when any loader denies a request. In
+ * particular, if a loader in the chain has the platform fast path enabled,
+ * the loaders after it are not consulted for the platform classes that it
+ * loads directly. A class cache of the outer loader is emptied whenever the
+ * policy of any loader in the chain changes its version. See
+ * {@link #getPolicyLayerCount()}.
+ * </p>
+ * <p>
+ * Delegates that search many jar files may be replaced by a
+ * {@link JRJarIndexClassLoader}, which finds any class or resource in a
+ * single lookup of an index of all of the jars.
+ * </p>
  */
 
 public final class JRClassLoader extends SecureClassLoader
 {
-  private static final Logger LOG;
+  private static final class Builder implements JRClassLoaderBuilderType
+  {
+    private boolean                       class_cache;
+    private @Nullable JRDecisionTable     decisions;
+    private final ClassLoader             delegate;
+    private boolean                       platform_fast;
+    private final JRClassLoaderPolicyType policy;
+
+    Builder(
+      final ClassLoader in_delegate,
+      final JRClassLoaderPolicyType in_policy)
+    {
+      this.delegate = NullCheck.notNull(in_delegate);
+      this.policy = NullCheck.notNull(in_policy);
+    }
+
+    @Override public void setPlatformFastPath(
+      final boolean enabled)
+    {
+      this.platform_fast = enabled;
+    }
+
+    @Override public void setClassCache(
+      final boolean enabled)
+    {
+      this.class_cache = enabled;
+    }
+
+    @Override public void setDecisionTable(
+      final JRDecisionTable table)
+    {
+      this.decisions = NullCheck.notNull(table);
+    }
+
+    @Override public JRClassLoader build()
+    {
+      return new JRClassLoader(
+        this.delegate,
+        this.policy,
+        this.platform_fast,
+        this.class_cache,
+        this.decisions);
+    }
+  }
+
+  private static final EventType DELEGATE_EVENT;
+  private static final EventType DENIAL_EVENT;
+  private static final Logger    LOG;
 
   static {
     LOG = NullCheck.notNull(LoggerFactory.getLogger(JRClassLoader.class));
+    DELEGATE_EVENT =
+      NullCheck.notNull(EventType.getEventType(JRDelegateLoadEvent.class));
+    DENIAL_EVENT =
+      NullCheck.notNull(EventType.getEventType(JRDenialEvent.class));
   }
 
   /**
@@ -64,19 +165,199 @@ public final class JRClassLoader extends SecureClassLoader
     final ClassLoader in_delegate,
     final JRClassLoaderPolicyType in_policy)
   {
-    return new JRClassLoader(in_delegate, in_policy);
+    return new JRClassLoader(in_delegate, in_policy, false, false, null);
   }
 
-  private final ClassLoader             delegate;
-  private final JRClassLoaderPolicyType policy;
+  /**
+   * Create a new builder for restricted classloaders that will forward all
+   * allowed requests to the given <tt>in_delegate</tt> based on the policy
+   * given by <tt>in_policy</tt>.
+   *
+   * @param in_delegate
+   *          The delegate classloader
+   * @param in_policy
+   *          The policy
+   * @return A new classloader builder
+   */
 
-  private JRClassLoader(
+  public static JRClassLoaderBuilderType newBuilder(
     final ClassLoader in_delegate,
     final JRClassLoaderPolicyType in_policy)
+  {
+    return new Builder(in_delegate, in_policy);
+  }
+
+  private final @Nullable JRClassCache      cache;
+  private final ClassLoader                 delegate;
+  private final @Nullable JRFusedPolicy     fused;
+  private final JRClassLoaderPolicyType[]   layer_policies;
+  private final @Nullable JRDecisionTable[] layer_tables;
+  private final int                         platform_layers;
+  private final JRClassLoaderPolicyType     policy;
+
+  private JRClassLoader(
+    final ClassLoader in_delegate,
+    final JRClassLoaderPolicyType in_policy,
+    final boolean in_platform_fast,
+    final boolean in_class_cache,
+    final @Nullable JRDecisionTable in_decisions)
   {
     super(null);
-    this.delegate = NullCheck.notNull(in_delegate);
-    this.policy = NullCheck.notNull(in_policy);
+    NullCheck.notNull(in_delegate);
+    NullCheck.notNull(in_policy);
+
+    /**
+     * A restricted delegate is replaced by its own delegate, and its
+     * layers are evaluated after those of this loader. A platform class
+     * would be loaded directly by the first loader in the chain with the
+     * fast path enabled, without being passed to the loaders after it, so
+     * only the layers up to and including that loader are evaluated for
+     * platform classes.
+     */
+
+    if (in_delegate instanceof JRClassLoader) {
+      final JRClassLoader inner = (JRClassLoader) in_delegate;
+      final int count = inner.layer_policies.length + 1;
+      this.layer_policies = new JRClassLoaderPolicyType[count];
+      this.layer_tables = new JRDecisionTable[count];
+      System.arraycopy(
+        inner.layer_policies,
+        0,
+        this.layer_policies,
+        1,
+        count - 1);
+      System.arraycopy(inner.layer_tables, 0, this.layer_tables, 1, count - 1);
+      this.delegate = inner.delegate;
+      if (in_platform_fast) {
+        this.platform_layers = 1;
+      } else if (inner.platform_layers > 0) {
+        this.platform_layers = inner.platform_layers + 1;
+      } else {
+        this.platform_layers = 0;
+      }
+      JRClassLoader.LOG.debug(
+        "fused {} policies, delegating to {}",
+        Integer.valueOf(count),
+        this.delegate);
+    } else {
+      this.layer_policies = new JRClassLoaderPolicyType[1];
+      this.layer_tables = new JRDecisionTable[1];
+      this.delegate = in_delegate;
+      this.platform_layers = in_platform_fast ? 1 : 0;
+    }
+    this.layer_policies[0] = in_policy;
+    this.layer_tables[0] = in_decisions;
+
+    if ((this.layer_policies.length == 1) && (in_decisions == null)) {
+      this.fused = null;
+      this.policy = in_policy;
+    } else {
+      final JRFusedPolicy f =
+        new JRFusedPolicy(this.layer_policies, this.layer_tables);
+      this.fused = f;
+      this.policy = f;
+    }
+
+    if (in_class_cache) {
+      this.cache =
+        new JRClassCache(
+          this.policy.policyVersion(),
+          JRMemoryGovernor.describe(this));
+    } else {
+      this.cache = null;
+    }
+  }
+
+  /**
+   * @return The number of policies evaluated for each request: one, plus
+   *         the number of policies of the restricted delegate, if the
+   *         delegate is a {@link JRClassLoader}
+   */
+
+  public int getPolicyLayerCount()
+  {
+    return this.layer_policies.length;
+  }
+
+  /**
+   * @return The statistics of the class cache, which are all zero if the
+   *         cache is not enabled
+   *
+   * @see JRClassLoaderBuilderType#setClassCache(boolean)
+   */
+
+  public JRClassCacheStatistics getClassCacheStatistics()
+  {
+    final JRClassCache c = this.cache;
+    if (c != null) {
+      return c.getStatistics();
+    }
+    return new JRClassCacheStatistics(0L, 0L, 0L, 0L, 0);
+  }
+
+  private static @Nullable JRDelegateLoadEvent delegateBegin()
+  {
+    if (JRClassLoader.DELEGATE_EVENT.isEnabled()) {
+      final JRDelegateLoadEvent event = new JRDelegateLoadEvent();
+      event.begin();
+      return event;
+    }
+    return null;
+  }
+
+  private void delegateEnd(
+    final @Nullable JRDelegateLoadEvent event,
+    final String kind,
+    final String name)
+  {
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.name = name;
+        event.kind = kind;
+        event.delegate = this.delegate.toString();
+        event.commit();
+      }
+    }
+  }
+
+  private boolean classAllowed(
+    final String name)
+  {
+    return this.policy.policyAllowsClass(name);
+  }
+
+  private boolean classAllowedInLayers(
+    final String name,
+    final int from,
+    final int to)
+  {
+    if (from == to) {
+      return true;
+    }
+    final JRFusedPolicy f = this.fused;
+    if (f != null) {
+      return f.policyAllowsClassInLayers(name, from, to);
+    }
+    return this.policy.policyAllowsClass(name);
+  }
+
+  private static SecurityException denied(
+    final String kind,
+    final String name)
+  {
+    JRClassLoader.LOG.info("{} DENY {}", kind, name);
+
+    if (JRClassLoader.DENIAL_EVENT.isEnabled()) {
+      final JRDenialEvent event = new JRDenialEvent();
+      if (event.shouldCommit()) {
+        event.name = name;
+        event.kind = kind;
+        event.commit();
+      }
+    }
+
+    return new SecurityException("Access denied: " + name);
   }
 
   @Override public @Nullable URL getResource(
@@ -87,12 +368,17 @@ public final class JRClassLoader extends SecureClassLoader
     JRClassLoader.LOG.debug("getResource: {}", name);
 
     if (this.policy.policyAllowsResource(name)) {
-      JRClassLoader.LOG.info("resource ALLOW {}", name);
-      return this.delegate.getResource(name);
+      JRClassLoader.LOG.debug("resource ALLOW {}", name);
+      final @Nullable JRDelegateLoadEvent event =
+        JRClassLoader.delegateBegin();
+      try {
+        return this.delegate.getResource(name);
+      } finally {
+        this.delegateEnd(event, "resource", name);
+      }
     }
 
-    JRClassLoader.LOG.info("resource DENY {}", name);
-    throw new SecurityException("Access denied: " + name);
+    throw JRClassLoader.denied("resource", name);
   }
 
   @Override public @Nullable InputStream getResourceAsStream(
@@ -103,12 +389,17 @@ public final class JRClassLoader extends SecureClassLoader
     JRClassLoader.LOG.debug("getResourceAsStream: {}", name);
 
     if (this.policy.policyAllowsResource(name)) {
-      JRClassLoader.LOG.info("resource ALLOW {}", name);
-      return this.delegate.getResourceAsStream(name);
+      JRClassLoader.LOG.debug("resource ALLOW {}", name);
+      final @Nullable JRDelegateLoadEvent event =
+        JRClassLoader.delegateBegin();
+      try {
+        return this.delegate.getResourceAsStream(name);
+      } finally {
+        this.delegateEnd(event, "resource", name);
+      }
     }
 
-    JRClassLoader.LOG.info("resource DENY {}", name);
-    throw new SecurityException("Access denied: " + name);
+    throw JRClassLoader.denied("resource", name);
   }
 
   @Override public @Nullable Enumeration<URL> getResources(
@@ -120,12 +411,17 @@ public final class JRClassLoader extends SecureClassLoader
     JRClassLoader.LOG.debug("getResources: {}", name);
 
     if (this.policy.policyAllowsResource(name)) {
-      JRClassLoader.LOG.info("resource ALLOW {}", name);
-      return this.delegate.getResources(name);
+      JRClassLoader.LOG.debug("resource ALLOW {}", name);
+      final @Nullable JRDelegateLoadEvent event =
+        JRClassLoader.delegateBegin();
+      try {
+        return this.delegate.getResources(name);
+      } finally {
+        this.delegateEnd(event, "resource", name);
+      }
     }
 
-    JRClassLoader.LOG.info("resource DENY {}", name);
-    throw new SecurityException("Access denied: " + name);
+    throw JRClassLoader.denied("resource", name);
   }
 
   @Override public Class<?> loadClass(
@@ -136,13 +432,73 @@ public final class JRClassLoader extends SecureClassLoader
 
     JRClassLoader.LOG.debug("loadClass: {}", name);
 
-    if (this.policy.policyAllowsClass(name)) {
-      JRClassLoader.LOG.info("class ALLOW {}", name);
-      return NullCheck.notNull(this.delegate.loadClass(name));
+    final JRClassCache c_cache = this.cache;
+    final long version;
+    if (c_cache != null) {
+      version = this.policy.policyVersion();
+      final Class<?> cached = c_cache.get(name, version);
+      if (cached != null) {
+        return cached;
+      }
+    } else {
+      version = 0L;
     }
 
-    JRClassLoader.LOG.info("class DENY {}", name);
-    throw new SecurityException("Access denied: " + name);
+    final Class<?> c;
+    if ((this.platform_layers > 0) && JRPlatformClasses.isPlatformClass(name)) {
+      c = this.loadPlatformClass(name);
+    } else if (this.classAllowed(name)) {
+      JRClassLoader.LOG.debug("class ALLOW {}", name);
+      c = this.loadDelegateClass(name);
+    } else {
+      throw JRClassLoader.denied("class", name);
+    }
+
+    if (c_cache != null) {
+      c_cache.put(name, version, c);
+    }
+    return c;
+  }
+
+  private Class<?> loadPlatformClass(
+    final String name)
+    throws ClassNotFoundException
+  {
+    /**
+     * The layers after the first loader with the fast path enabled are
+     * only consulted if the platform classloader cannot find the class,
+     * exactly as that loader would only then pass the request on to its
+     * delegate.
+     */
+
+    final int fast = this.platform_layers;
+    if (!this.classAllowedInLayers(name, 0, fast)) {
+      throw JRClassLoader.denied("class", name);
+    }
+
+    final Class<?> c = JRPlatformClasses.load(name);
+    if (c != null) {
+      JRClassLoader.LOG.debug("class ALLOW {}", name);
+      return c;
+    }
+
+    if (!this.classAllowedInLayers(name, fast, this.layer_policies.length)) {
+      throw JRClassLoader.denied("class", name);
+    }
+    JRClassLoader.LOG.debug("class ALLOW {}", name);
+    return this.loadDelegateClass(name);
+  }
+
+  private Class<?> loadDelegateClass(
+    final String name)
+    throws ClassNotFoundException
+  {
+    final @Nullable JRDelegateLoadEvent event = JRClassLoader.delegateBegin();
+    try {
+      return NullCheck.notNull(this.delegate.loadClass(name));
+    } finally {
+      this.delegateEnd(event, "class", name);
+    }
   }
 
   @Override public void setClassAssertionStatus(
@@ -153,13 +509,12 @@ public final class JRClassLoader extends SecureClassLoader
 
     JRClassLoader.LOG.debug("setClassAssertionStatus: {}", name);
 
-    if (this.policy.policyAllowsClass(name)) {
-      JRClassLoader.LOG.info("class ALLOW {}", name);
+    if (this.classAllowed(name)) {
+      JRClassLoader.LOG.debug("class ALLOW {}", name);
       this.delegate.setClassAssertionStatus(name, enabled);
       return;
     }
 
-    JRClassLoader.LOG.info("class DENY {}", name);
-    throw new SecurityException("Access denied: " + name);
+    throw JRClassLoader.denied("class", name);
   }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * A restricted classloader builder.
+ */
+
+public interface JRClassLoaderBuilderType
+{
+  /**
+   * <p>
+   * Enable or disable the platform fast path. When enabled, a class that
+   * the policy allows and that belongs to a package of a Java platform
+   * module (such as <tt>java.lang</tt>) is loaded directly from the platform
+   * classloader instead of from the delegate, and the result is cached.
+   * </p>
+   * <p>
+   * <b>The fast path bypasses the delegate entirely</b> for the classes that
+   * the platform classloader can load. This is equivalent to loading from
+   * the delegate only if the delegate follows the standard parent-first
+   * delegation model, as the application classloader does. A delegate that
+   * refuses, hides, or substitutes platform classes is not consulted for
+   * them, and so cannot restrict them: only the policy of this classloader
+   * can. Classes that the platform classloader cannot find are still
+   * requested from the delegate. The fast path is disabled by default.
+   * </p>
+   * <p>
+   * If the delegate is itself a {@link JRClassLoader}, its policy is not
+   * consulted for the platform classes that this classloader loads
+   * directly, exactly as if the request had never reached it.
+   * </p>
+   *
+   * @param enabled
+   *          <tt>true</tt> iff the fast path should be enabled
+   */
+
+  void setPlatformFastPath(
+    boolean enabled);
+
+  /**
+   * <p>
+   * Enable or disable the class cache. When enabled, the classloader
+   * remembers the class returned for each allowed class name, and answers
+   * later requests for the same name from the cache without consulting the
+   * policy or the delegate. Classes are held through weak references and so
+   * can still be unloaded. The cache is emptied whenever the
+   * {@link JRClassLoaderPolicyType#policyVersion()} of the policy changes.
+   * </p>
+   * <p>
+   * The effectiveness of the cache can be observed with
+   * {@link JRClassLoader#getClassCacheStatistics()}. The cache is disabled
+   * by default.
+   * </p>
+   *
+   * @param enabled
+   *          <tt>true</tt> iff the cache should be enabled
+   */
+
+  void setClassCache(
+    boolean enabled);
+
+  /**
+   * <p>
+   * Set a table of decisions evaluated in advance, such as one produced by
+   * {@link JRJarScanner}. Class names in the table are allowed or denied
+   * according to the table without evaluating the policy, for as long as
+   * the {@link JRClassLoaderPolicyType#policyVersion()} of the policy is
+   * the version at which the table was evaluated. Other names, and all
+   * names once the version has changed, are evaluated by the policy as
+   * usual.
+   * </p>
+   * <p>
+   * There is no table by default.
+   * </p>
+   *
+   * @param table
+   *          The decision table
+   */
+
+  void setDecisionTable(
+    JRDecisionTable table);
+
+  /**
+   * @return A classloader based on the parameters given so far
+   */
+
+  JRClassLoader build();
+}
@@ -39,4 +39,24 @@ public interface JRClassLoaderPolicyType
 
   boolean policyAllowsResource(
     String name);
+
+  /**
+   * <p>
+   * The version of the policy. Classloaders may cache the decisions of a
+   * policy for as long as its version stays the same. A policy whose
+   * decisions can change must return a new version after each change has
+   * taken effect; versions must never be reused.
+   * </p>
+   * <p>
+   * The default implementation returns <tt>0</tt>, which is correct for
+   * immutable policies.
+   * </p>
+   *
+   * @return The current version of the policy
+   */
+
+  default long policyVersion()
+  {
+    return 0L;
+  }
 }
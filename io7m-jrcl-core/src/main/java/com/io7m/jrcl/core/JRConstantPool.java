@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * A reader for the constant pools of class files.
+ * </p>
+ * <p>
+ * The classes that a class refers to are named by the <tt>CONSTANT_Class</tt>
+ * entries of its constant pool, and by the descriptors of the fields,
+ * methods and method types that it uses. Reading them does not require
+ * loading or defining the class.
+ * </p>
+ *
+ * @see <a
+ *      href="https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-4.html">JVMS
+ *      chapter 4</a>
+ */
+
+final class JRConstantPool
+{
+  private static final int CONSTANT_CLASS               = 7;
+  private static final int CONSTANT_DOUBLE              = 6;
+  private static final int CONSTANT_DYNAMIC             = 17;
+  private static final int CONSTANT_FIELDREF            = 9;
+  private static final int CONSTANT_FLOAT               = 4;
+  private static final int CONSTANT_INTEGER             = 3;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_INVOKE_DYNAMIC      = 18;
+  private static final int CONSTANT_LONG                = 5;
+  private static final int CONSTANT_METHOD_HANDLE       = 15;
+  private static final int CONSTANT_METHOD_TYPE         = 16;
+  private static final int CONSTANT_METHODREF           = 10;
+  private static final int CONSTANT_MODULE              = 19;
+  private static final int CONSTANT_NAME_AND_TYPE       = 12;
+  private static final int CONSTANT_PACKAGE             = 20;
+  private static final int CONSTANT_STRING              = 8;
+  private static final int CONSTANT_UTF8                = 1;
+  private static final int MAGIC                        = 0xCAFEBABE;
+
+  /**
+   * Add the binary names of the classes named by a field or method
+   * descriptor, or by an array class name, to <tt>out</tt>.
+   */
+
+  private static void addDescriptor(
+    final String descriptor,
+    final Set<String> out)
+  {
+    int index = 0;
+    while (index < descriptor.length()) {
+      if (descriptor.charAt(index) == 'L') {
+        final int end = descriptor.indexOf(';', index);
+        if (end < 0) {
+          return;
+        }
+        out.add(descriptor.substring(index + 1, end).replace('/', '.'));
+        index = end + 1;
+      } else {
+        ++index;
+      }
+    }
+  }
+
+  /**
+   * @param data
+   *          The contents of a class file
+   * @return The binary names of the classes referred to by the class,
+   *         excluding the class itself
+   *
+   * @throws IOException
+   *           If the data is not a class file
+   */
+
+  static Set<String> referencedClasses(
+    final byte[] data)
+    throws IOException
+  {
+    final DataInputStream in =
+      new DataInputStream(new ByteArrayInputStream(data));
+
+    if (in.readInt() != JRConstantPool.MAGIC) {
+      throw new IOException("Not a class file");
+    }
+    in.readUnsignedShort();
+    in.readUnsignedShort();
+
+    final int count = in.readUnsignedShort();
+    final int[] tags = new int[count];
+    final int[] refs = new int[count];
+    final String[] utf8 = new String[count];
+
+    for (int index = 1; index < count; ++index) {
+      final int tag = in.readUnsignedByte();
+      tags[index] = tag;
+      switch (tag) {
+        case CONSTANT_UTF8:
+          utf8[index] = in.readUTF();
+          break;
+        case CONSTANT_CLASS:
+        case CONSTANT_METHOD_TYPE:
+          refs[index] = in.readUnsignedShort();
+          break;
+        case CONSTANT_NAME_AND_TYPE:
+          in.readUnsignedShort();
+          refs[index] = in.readUnsignedShort();
+          break;
+        case CONSTANT_STRING:
+        case CONSTANT_MODULE:
+        case CONSTANT_PACKAGE:
+          in.readUnsignedShort();
+          break;
+        case CONSTANT_METHOD_HANDLE:
+          in.readUnsignedByte();
+          in.readUnsignedShort();
+          break;
+        case CONSTANT_INTEGER:
+        case CONSTANT_FLOAT:
+        case CONSTANT_FIELDREF:
+        case CONSTANT_METHODREF:
+        case CONSTANT_INTERFACE_METHODREF:
+        case CONSTANT_DYNAMIC:
+        case CONSTANT_INVOKE_DYNAMIC:
+          in.readInt();
+          break;
+        case CONSTANT_LONG:
+        case CONSTANT_DOUBLE:
+          in.readLong();
+          ++index;
+          break;
+        default:
+          throw new IOException(String.format(
+            "Unrecognized constant pool tag %d at index %d",
+            Integer.valueOf(tag),
+            Integer.valueOf(index)));
+      }
+    }
+
+    in.readUnsignedShort();
+    final int this_class = in.readUnsignedShort();
+    if ((this_class <= 0)
+      || (this_class >= count)
+      || (tags[this_class] != JRConstantPool.CONSTANT_CLASS)) {
+      throw new IOException(String.format(
+        "Constant pool index %d is not a class constant",
+        Integer.valueOf(this_class)));
+    }
+
+    final Set<String> out = new TreeSet<String>();
+    for (int index = 1; index < count; ++index) {
+      switch (tags[index]) {
+        case CONSTANT_CLASS:
+        {
+          if (index != this_class) {
+            final String name = JRConstantPool.utf8(utf8, refs[index]);
+            if (name.startsWith("[")) {
+              JRConstantPool.addDescriptor(name, out);
+            } else {
+              out.add(name.replace('/', '.'));
+            }
+          }
+          break;
+        }
+        case CONSTANT_NAME_AND_TYPE:
+        case CONSTANT_METHOD_TYPE:
+        {
+          JRConstantPool.addDescriptor(
+            JRConstantPool.utf8(utf8, refs[index]),
+            out);
+          break;
+        }
+        default:
+          break;
+      }
+    }
+
+    final String self = JRConstantPool.utf8(utf8, refs[this_class]);
+    out.remove(self.replace('/', '.'));
+    return out;
+  }
+
+  private static String utf8(
+    final String[] utf8,
+    final int index)
+    throws IOException
+  {
+    if ((index <= 0) || (index >= utf8.length) || (utf8[index] == null)) {
+      throw new IOException(String.format(
+        "Constant pool index %d is not a UTF-8 constant",
+        Integer.valueOf(index)));
+    }
+    return NullCheck.notNull(utf8[index]);
+  }
+
+  private JRConstantPool()
+  {
+    throw new UnreachableCodeException();
+  }
+}
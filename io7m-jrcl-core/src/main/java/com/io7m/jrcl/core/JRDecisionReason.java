@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * The reason for the conclusion of an evaluation.
+ *
+ * @see JRDecisionTrace
+ */
+
+public enum JRDecisionReason
+{
+  /**
+   * No rule matched the name, so the conclusion is the default conclusion
+   * of the policy.
+   */
+
+  DEFAULT,
+
+  /**
+   * The conclusion is that of the last rule that matched the name, and no
+   * matching rule was quick.
+   */
+
+  LAST_MATCHING_RULE,
+
+  /**
+   * A quick rule matched the name, so evaluation stopped at that rule and
+   * the conclusion is that of the rule.
+   */
+
+  QUICK_RULE,
+
+  /**
+   * A rule exceeded its step budget while matching the name, so evaluation
+   * stopped and the name was denied.
+   */
+
+  STEP_BUDGET_EXCEEDED
+}
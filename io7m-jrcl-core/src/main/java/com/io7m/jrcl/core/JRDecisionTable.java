@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * <p>
+ * An immutable table of the decisions of a policy for a fixed set of class
+ * names, evaluated in advance.
+ * </p>
+ * <p>
+ * The names are stored in a {@link JRNameSet}, and the decisions in a bit
+ * set indexed by the position of each name in the set, so looking up a
+ * decision costs a single hash lookup and does not allocate. A table
+ * records the {@link JRClassLoaderPolicyType#policyVersion()} of the policy
+ * at the time of evaluation, and a {@link JRClassLoader} given the table
+ * ignores it once the version of its policy has changed.
+ * </p>
+ *
+ * @see JRClassLoaderBuilderType#setDecisionTable(JRDecisionTable)
+ * @see JRJarScanner
+ */
+
+public final class JRDecisionTable
+{
+  static final int ALLOWED = 1;
+  static final int DENIED  = 0;
+  static final int UNKNOWN = -1;
+
+  /**
+   * Evaluate the policy for each of the given class names.
+   *
+   * @param policy
+   *          The policy
+   * @param names
+   *          The class names
+   * @return A table of the decisions of the policy
+   */
+
+  public static JRDecisionTable evaluate(
+    final JRClassLoaderPolicyType policy,
+    final Collection<String> names)
+  {
+    NullCheck.notNull(policy);
+
+    final long version = policy.policyVersion();
+    final JRNameSet set = JRNameSet.create(names, JRNameSetStorage.HEAP);
+    final List<String> ordered = set.names();
+    final long[] allowed = new long[(ordered.size() + 63) / 64];
+    for (int slot = 0; slot < ordered.size(); ++slot) {
+      if (policy.policyAllowsClass(NullCheck.notNull(ordered.get(slot)))) {
+        allowed[slot / 64] |= 1L << slot;
+      }
+    }
+    return new JRDecisionTable(set, allowed, version);
+  }
+
+  private final long[]    allowed;
+  private final JRNameSet names;
+  private final long      version;
+
+  private JRDecisionTable(
+    final JRNameSet in_names,
+    final long[] in_allowed,
+    final long in_version)
+  {
+    this.names = NullCheck.notNull(in_names);
+    this.allowed = NullCheck.notNull(in_allowed);
+    this.version = in_version;
+
+    JRMemoryGovernor.get().register(
+      this,
+      JRMemoryConsumerKind.DECISION_TABLE,
+      JRMemoryGovernor.describe(this),
+      JRMemorySizes.OBJECT + JRMemorySizes.array(in_allowed.length, 8L),
+      0L);
+  }
+
+  /**
+   * @param name
+   *          A class name
+   * @return <tt>true</tt> iff the table contains a decision for the name
+   */
+
+  public boolean contains(
+    final String name)
+  {
+    return this.lookup(NullCheck.notNull(name)) != JRDecisionTable.UNKNOWN;
+  }
+
+  /**
+   * @return The version of the policy when the table was evaluated
+   */
+
+  public long getPolicyVersion()
+  {
+    return this.version;
+  }
+
+  /**
+   * @param name
+   *          A class name
+   * @return <tt>true</tt> iff the table contains the name and the policy
+   *         allowed it
+   */
+
+  public boolean isAllowed(
+    final String name)
+  {
+    return this.lookup(NullCheck.notNull(name)) == JRDecisionTable.ALLOWED;
+  }
+
+  /**
+   * @return <tt>ALLOWED</tt>, <tt>DENIED</tt>, or <tt>UNKNOWN</tt> if the
+   *         table does not contain the name
+   */
+
+  int lookup(
+    final String name)
+  {
+    final int slot = this.names.indexOfPrefix(name, name.length());
+    if (slot < 0) {
+      return JRDecisionTable.UNKNOWN;
+    }
+    if ((this.allowed[slot / 64] & (1L << slot)) != 0) {
+      return JRDecisionTable.ALLOWED;
+    }
+    return JRDecisionTable.DENIED;
+  }
+
+  /**
+   * @return The number of names in the table
+   */
+
+  public int size()
+  {
+    return this.names.size();
+  }
+
+  @Override public String toString()
+  {
+    return String.format(
+      "[JRDecisionTable size=%d version=%d]",
+      Integer.valueOf(this.names.size()),
+      Long.valueOf(this.version));
+  }
+}
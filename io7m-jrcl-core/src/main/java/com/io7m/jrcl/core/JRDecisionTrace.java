@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * <p>
+ * A trace of the evaluation of a policy for a single name: each rule that
+ * was tested, in order, whether it matched, and the rule and reason that
+ * decided the conclusion.
+ * </p>
+ * <p>
+ * Rules removed by minimization are never tested, and so do not appear in
+ * a trace. Rule indices always refer to the order in which the rules were
+ * given to the builder.
+ * </p>
+ *
+ * @see JRSequentialPolicy#explainClass(String)
+ */
+
+public final class JRDecisionTrace
+{
+  private final JRRuleConclusion          conclusion;
+  private final int                       index;
+  private final String                    kind;
+  private final String                    name;
+  private final JRDecisionReason          reason;
+  private final List<JRDecisionTraceStep> steps;
+
+  JRDecisionTrace(
+    final String in_kind,
+    final String in_name,
+    final JRRuleConclusion in_conclusion,
+    final JRDecisionReason in_reason,
+    final int in_index,
+    final List<JRDecisionTraceStep> in_steps)
+  {
+    this.kind = NullCheck.notNull(in_kind);
+    this.name = NullCheck.notNull(in_name);
+    this.conclusion = NullCheck.notNull(in_conclusion);
+    this.reason = NullCheck.notNull(in_reason);
+    this.index = in_index;
+    this.steps =
+      NullCheck.notNull(Collections.unmodifiableList(NullCheck
+        .notNull(in_steps)));
+  }
+
+  /**
+   * @return The conclusion of the evaluation
+   */
+
+  public JRRuleConclusion getConclusion()
+  {
+    return this.conclusion;
+  }
+
+  /**
+   * @return The index of the rule that decided the conclusion, or
+   *         <tt>-1</tt> if the conclusion is the default conclusion
+   */
+
+  public int getDecidingRuleIndex()
+  {
+    return this.index;
+  }
+
+  /**
+   * @return The kind of name: <tt>class</tt> or <tt>resource</tt>
+   */
+
+  public String getKind()
+  {
+    return this.kind;
+  }
+
+  /**
+   * @return The evaluated name
+   */
+
+  public String getName()
+  {
+    return this.name;
+  }
+
+  /**
+   * @return The reason for the conclusion
+   */
+
+  public JRDecisionReason getReason()
+  {
+    return this.reason;
+  }
+
+  /**
+   * @return The rules tested, in the order in which they were tested
+   */
+
+  public List<JRDecisionTraceStep> getSteps()
+  {
+    return this.steps;
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRDecisionTrace ");
+    b.append(this.kind);
+    b.append(" ");
+    b.append(this.name);
+    b.append(" ");
+    b.append(this.conclusion);
+    b.append(" ");
+    b.append(this.reason);
+    if (this.index >= 0) {
+      b.append(" rule [");
+      b.append(this.index);
+      b.append("]");
+    }
+    for (final JRDecisionTraceStep s : this.steps) {
+      b.append(" (");
+      b.append(s);
+      b.append(")");
+    }
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * The test of a single rule during a traced evaluation.
+ *
+ * @see JRDecisionTrace
+ */
+
+public final class JRDecisionTraceStep
+{
+  private final JRRuleConclusion conclusion;
+  private final boolean          exceeded;
+  private final int              index;
+  private final boolean          matched;
+  private final boolean          quick;
+  private final String           rule;
+
+  JRDecisionTraceStep(
+    final int in_index,
+    final String in_rule,
+    final JRRuleConclusion in_conclusion,
+    final boolean in_quick,
+    final boolean in_matched,
+    final boolean in_exceeded)
+  {
+    this.index = in_index;
+    this.rule = NullCheck.notNull(in_rule);
+    this.conclusion = NullCheck.notNull(in_conclusion);
+    this.quick = in_quick;
+    this.matched = in_matched;
+    this.exceeded = in_exceeded;
+  }
+
+  /**
+   * @return The conclusion of the rule
+   */
+
+  public JRRuleConclusion getConclusion()
+  {
+    return this.conclusion;
+  }
+
+  /**
+   * @return A human-readable description of the rule
+   */
+
+  public String getRule()
+  {
+    return this.rule;
+  }
+
+  /**
+   * @return The index of the rule in the order in which rules of its kind
+   *         were given to the builder
+   */
+
+  public int getRuleIndex()
+  {
+    return this.index;
+  }
+
+  /**
+   * @return <tt>true</tt> if the rule exceeded its step budget
+   */
+
+  public boolean isBudgetExceeded()
+  {
+    return this.exceeded;
+  }
+
+  /**
+   * @return <tt>true</tt> if the rule matched the name
+   */
+
+  public boolean isMatched()
+  {
+    return this.matched;
+  }
+
+  /**
+   * @return <tt>true</tt> if the rule is quick
+   */
+
+  public boolean isQuick()
+  {
+    return this.quick;
+  }
+
+  @Override public String toString()
+  {
+    return NullCheck.notNull(String.format(
+      "rule [%d]: quick:%s %s match:%s conclusion:%s%s",
+      Integer.valueOf(this.index),
+      Boolean.valueOf(this.quick),
+      this.rule,
+      Boolean.valueOf(this.matched),
+      this.conclusion,
+      this.exceeded ? " budget exceeded" : ""));
+  }
+}
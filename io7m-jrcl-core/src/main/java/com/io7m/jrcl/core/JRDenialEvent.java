@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A flight recorder event recorded each time a {@link JRClassLoader} denies
+ * access to a class or resource.
+ */
+
+@Name("com.io7m.jrcl.Denial")
+@Label("Denial")
+@Category({ "io7m", "jrcl" })
+@Description("A restricted class loader denied access to a class or resource")
+@Threshold("0 ms")
+@StackTrace(true) final class JRDenialEvent extends jdk.jfr.Event
+{
+  @Label("Name")
+  @Description("The class or resource name")
+  String name;
+
+  @Label("Kind")
+  @Description("The kind of name (class or resource)")
+  String kind;
+
+  JRDenialEvent()
+  {
+    // Fields are assigned by the class loader
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * The engine chosen to evaluate one kind of rule of a
+ * {@link JRSequentialPolicy}.
+ *
+ * @see JRSequentialPolicy#getEngineChoices()
+ */
+
+public final class JREngineChoice
+{
+  private final Map<JRPolicyEngine, Double> costs;
+  private final JRPolicyEngine              engine;
+  private final String                      kind;
+  private final int                         rules;
+
+  JREngineChoice(
+    final String in_kind,
+    final int in_rules,
+    final JRPolicyEngine in_engine,
+    final Map<JRPolicyEngine, Double> in_costs)
+  {
+    this.kind = NullCheck.notNull(in_kind);
+    this.rules = in_rules;
+    this.engine = NullCheck.notNull(in_engine);
+    this.costs =
+      NullCheck.notNull(Collections.unmodifiableMap(NullCheck
+        .notNull(in_costs)));
+  }
+
+  /**
+   * @return The engine that evaluates the rules
+   */
+
+  public JRPolicyEngine getEngine()
+  {
+    return this.engine;
+  }
+
+  /**
+   * @return The estimated time in nanoseconds taken by each candidate
+   *         engine to evaluate the rules, which is empty unless the engine
+   *         was chosen adaptively
+   *
+   * @see JRPolicyEngine#ADAPTIVE
+   */
+
+  public Map<JRPolicyEngine, Double> getEstimatedCosts()
+  {
+    return this.costs;
+  }
+
+  /**
+   * @return The number of rules evaluated by the engine
+   */
+
+  public int getRuleCount()
+  {
+    return this.rules;
+  }
+
+  /**
+   * @return The kind of rule: <tt>class</tt> or <tt>resource</tt>
+   */
+
+  public String getRuleKind()
+  {
+    return this.kind;
+  }
+
+  @Override public String toString()
+  {
+    return NullCheck.notNull(String.format(
+      "%s rules (%d): %s %s",
+      this.kind,
+      Integer.valueOf(this.rules),
+      this.engine,
+      this.costs));
+  }
+}
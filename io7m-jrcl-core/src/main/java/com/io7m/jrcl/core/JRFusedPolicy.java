@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * The policy of a chain of {@link JRClassLoader}s, each the delegate of
+ * the previous, evaluated by the outermost loader in a single pass.
+ * </p>
+ * <p>
+ * A name is allowed iff every layer of the chain allows it, where each
+ * layer consults its own {@link JRDecisionTable}, if any, before its
+ * policy, exactly as the loader of the layer would. Layers are evaluated
+ * from the outermost inwards, and evaluation stops at the first layer that
+ * denies the name.
+ * </p>
+ * <p>
+ * The version of the fused policy is a counter that is advanced whenever
+ * the version of any layer is seen to have changed, so that caches keyed
+ * on the fused version are rebuilt when any layer changes, and versions
+ * are never reused.
+ * </p>
+ */
+
+final class JRFusedPolicy implements JRClassLoaderPolicyType
+{
+  /**
+   * The versions of the layers at the time that the fused version was last
+   * advanced.
+   */
+
+  private static final class Snapshot
+  {
+    final long   version;
+    final long[] versions;
+
+    Snapshot(
+      final long in_version,
+      final long[] in_versions)
+    {
+      this.version = in_version;
+      this.versions = in_versions;
+    }
+  }
+
+  private static final VarHandle SNAPSHOT;
+
+  static {
+    try {
+      SNAPSHOT =
+        MethodHandles.lookup().findVarHandle(
+          JRFusedPolicy.class,
+          "snapshot",
+          Snapshot.class);
+    } catch (final NoSuchFieldException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final JRClassLoaderPolicyType[]   policies;
+  private volatile Snapshot                 snapshot;
+  private final @Nullable JRDecisionTable[] tables;
+
+  JRFusedPolicy(
+    final JRClassLoaderPolicyType[] in_policies,
+    final @Nullable JRDecisionTable[] in_tables)
+  {
+    this.policies = NullCheck.notNull(in_policies);
+    this.tables = NullCheck.notNull(in_tables);
+    this.snapshot = new Snapshot(0L, this.versions());
+  }
+
+  private long[] versions()
+  {
+    final long[] v = new long[this.policies.length];
+    for (int index = 0; index < v.length; ++index) {
+      v[index] = this.policies[index].policyVersion();
+    }
+    return v;
+  }
+
+  /**
+   * @return The number of layers
+   */
+
+  int getLayerCount()
+  {
+    return this.policies.length;
+  }
+
+  @Override public boolean policyAllowsClass(
+    final String name)
+  {
+    return this.policyAllowsClassInLayers(name, 0, this.policies.length);
+  }
+
+  /**
+   * @param name
+   *          The class name
+   * @param from
+   *          The first layer to evaluate
+   * @param to
+   *          The layer after the last layer to evaluate
+   *
+   * @return <tt>true</tt> iff every layer in <tt>[from, to)</tt> allows the
+   *         class
+   */
+
+  boolean policyAllowsClassInLayers(
+    final String name,
+    final int from,
+    final int to)
+  {
+    for (int index = from; index < to; ++index) {
+      final JRClassLoaderPolicyType p = this.policies[index];
+      final JRDecisionTable table = this.tables[index];
+      if ((table != null)
+        && (table.getPolicyVersion() == p.policyVersion())) {
+        final int decision = table.lookup(name);
+        if (decision != JRDecisionTable.UNKNOWN) {
+          if (decision == JRDecisionTable.ALLOWED) {
+            continue;
+          }
+          return false;
+        }
+      }
+      if (!p.policyAllowsClass(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override public boolean policyAllowsResource(
+    final String name)
+  {
+    for (final JRClassLoaderPolicyType p : this.policies) {
+      if (!p.policyAllowsResource(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override public long policyVersion()
+  {
+    Snapshot s = this.snapshot;
+    for (;;) {
+      if (!this.changed(s)) {
+        return s.version;
+      }
+      final Snapshot next = new Snapshot(s.version + 1L, this.versions());
+      if (JRFusedPolicy.SNAPSHOT.compareAndSet(this, s, next)) {
+        return next.version;
+      }
+      s = this.snapshot;
+    }
+  }
+
+  private boolean changed(
+    final Snapshot s)
+  {
+    for (int index = 0; index < this.policies.length; ++index) {
+      if (this.policies[index].policyVersion() != s.versions[index]) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
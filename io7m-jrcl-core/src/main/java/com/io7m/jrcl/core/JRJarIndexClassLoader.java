@@ -0,0 +1,1165 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.SecureClassLoader;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * A classloader that loads classes and resources from a list of jar files
+ * through a single index, intended as the delegate of a
+ * {@link JRClassLoader}.
+ * </p>
+ * <p>
+ * Each jar file is mapped into memory and its central directory is read,
+ * in parallel across jars, into one open-addressed table from entry names
+ * to the jar and offset of the entry. Finding a class or resource therefore
+ * costs a single probe of the table rather than a search of each jar in
+ * turn, and nothing is held on the heap per entry other than the table
+ * itself. The contents of entries are read directly from the mapped files.
+ * As with {@link java.net.URLClassLoader}, requests are first delegated to
+ * the parent classloader, and an entry that appears in several jars is
+ * found in the first of them.
+ * </p>
+ * <p>
+ * The classloader does not verify the signatures of signed jars, and does
+ * not select the versioned entries of multi-release jars. Jars larger than
+ * 2GiB cannot be mapped and are rejected, as are jars whose mapping would
+ * exceed the off-heap budget of the {@link JRMemoryGovernor}.
+ * </p>
+ * <p>
+ * Closing the classloader drops the index and the references to the mapped
+ * files, after which classes that it has already defined remain usable but
+ * nothing further is found in the jar files.
+ * </p>
+ */
+
+public final class JRJarIndexClassLoader extends SecureClassLoader implements
+  Closeable
+{
+  /**
+   * A mapped jar file.
+   */
+
+  private static final class Jar
+  {
+    final ByteBuffer data;
+    final CodeSource source;
+    final URL        url;
+
+    Jar(
+      final URL in_url,
+      final ByteBuffer in_data)
+    {
+      this.url = NullCheck.notNull(in_url);
+      this.data = NullCheck.notNull(in_data);
+      this.source = new CodeSource(in_url, (Certificate[]) null);
+    }
+  }
+
+  /**
+   * The central directory of a jar file, as the offsets of its records.
+   */
+
+  private static final class Directory
+  {
+    final int[] hashes;
+    final Jar   jar;
+    final int[] records;
+
+    Directory(
+      final Jar in_jar,
+      final int[] in_records,
+      final int[] in_hashes)
+    {
+      this.jar = NullCheck.notNull(in_jar);
+      this.records = NullCheck.notNull(in_records);
+      this.hashes = NullCheck.notNull(in_hashes);
+    }
+  }
+
+  /**
+   * The location of the data of an entry.
+   */
+
+  private static final class Location
+  {
+    final int compressed;
+    final int method;
+    final int offset;
+    final int size;
+
+    Location(
+      final int in_method,
+      final int in_offset,
+      final int in_compressed,
+      final int in_size)
+    {
+      this.method = in_method;
+      this.offset = in_offset;
+      this.compressed = in_compressed;
+      this.size = in_size;
+    }
+  }
+
+  /**
+   * A stream over a region of a mapped jar.
+   */
+
+  private static final class BufferInputStream extends InputStream
+  {
+    private final ByteBuffer buffer;
+
+    BufferInputStream(
+      final ByteBuffer in_buffer)
+    {
+      this.buffer = NullCheck.notNull(in_buffer);
+    }
+
+    @Override public int available()
+    {
+      return this.buffer.remaining();
+    }
+
+    @Override public int read()
+    {
+      if (this.buffer.hasRemaining()) {
+        return this.buffer.get() & 0xff;
+      }
+      return -1;
+    }
+
+    @Override public int read(
+      final @Nullable byte[] b,
+      final int off,
+      final int len)
+    {
+      final byte[] out = NullCheck.notNull(b);
+      if (len == 0) {
+        return 0;
+      }
+      final int count = Math.min(len, this.buffer.remaining());
+      if (count == 0) {
+        return -1;
+      }
+      this.buffer.get(out, off, count);
+      return count;
+    }
+
+    @Override public long skip(
+      final long n)
+    {
+      final int count = (int) Math.max(0L, Math.min(n, this.available()));
+      this.buffer.position(this.buffer.position() + count);
+      return count;
+    }
+  }
+
+  /**
+   * The handler for the URLs of the resources of a classloader, which
+   * opens streams directly on the mapped data of the entry that a URL
+   * names. One handler is shared by every URL of a classloader.
+   */
+
+  private static final class Handler extends URLStreamHandler
+  {
+    private final JRJarIndexClassLoader loader;
+
+    Handler(
+      final JRJarIndexClassLoader in_loader)
+    {
+      this.loader = NullCheck.notNull(in_loader);
+    }
+
+    @Override protected URLConnection openConnection(
+      final @Nullable URL u)
+    {
+      final URL url = NullCheck.notNull(u);
+      return new URLConnection(url) {
+        @Override public void connect()
+        {
+          this.connected = true;
+        }
+
+        @Override public InputStream getInputStream()
+          throws IOException
+        {
+          return Handler.this.loader.open(url);
+        }
+      };
+    }
+  }
+
+  /**
+   * The index of the entries of the jar files, which holds the only
+   * references to the mapped files.
+   */
+
+  private static final class Index
+  {
+    final int           entry_count;
+    private final int[] entry_hash;
+    final int[]         entry_jar;
+    final int[]         entry_next;
+    private final int[] entry_record;
+    final Jar[]         jars;
+    private final int   mask;
+    private final int[] slots;
+
+    Index(
+      final List<Directory> directories,
+      final String owner)
+    {
+      int count = 0;
+      for (final Directory d : directories) {
+        count += d.records.length;
+      }
+
+      this.jars = new Jar[directories.size()];
+      this.entry_hash = new int[count];
+      this.entry_jar = new int[count];
+      this.entry_next = new int[count];
+      this.entry_record = new int[count];
+
+      int capacity = 16;
+      while (capacity < (count * 2)) {
+        capacity <<= 1;
+      }
+      this.slots = new int[capacity];
+      this.mask = capacity - 1;
+
+      /**
+       * Entries are inserted in jar order. An entry whose name is already
+       * present is chained after the earlier entries of that name, so that
+       * the table itself only refers to the first.
+       */
+
+      int entry = 0;
+      for (int j = 0; j < this.jars.length; ++j) {
+        final Directory d = NullCheck.notNull(directories.get(j));
+        this.jars[j] = d.jar;
+        for (int index = 0; index < d.records.length; ++index) {
+          this.entry_hash[entry] = d.hashes[index];
+          this.entry_jar[entry] = j;
+          this.entry_record[entry] = d.records[index];
+          this.entry_next[entry] = -1;
+          this.insert(entry);
+          ++entry;
+        }
+      }
+      this.entry_count = count;
+
+      JRMemoryGovernor.get().register(
+        this,
+        JRMemoryConsumerKind.JAR_INDEX,
+        owner,
+        JRMemorySizes.OBJECT
+          + (4L * JRMemorySizes.array(count, 4L))
+          + JRMemorySizes.array(capacity, 4L)
+          + JRMemorySizes.array(this.jars.length, JRMemorySizes.REFERENCE),
+        0L);
+    }
+
+    private void insert(
+      final int entry)
+    {
+      final int hash = this.entry_hash[entry];
+      int slot = hash & this.mask;
+      while (true) {
+        final int existing = this.slots[slot] - 1;
+        if (existing < 0) {
+          this.slots[slot] = entry + 1;
+          return;
+        }
+        if ((this.entry_hash[existing] == hash)
+          && this.sameName(existing, entry)) {
+          int last = existing;
+          while (this.entry_next[last] >= 0) {
+            last = this.entry_next[last];
+          }
+          this.entry_next[last] = entry;
+          return;
+        }
+        slot = (slot + 1) & this.mask;
+      }
+    }
+
+    private int nameOffset(
+      final int entry)
+    {
+      return this.entry_record[entry] + 46;
+    }
+
+    private int nameLength(
+      final int entry)
+    {
+      final ByteBuffer b = this.jars[this.entry_jar[entry]].data;
+      return JRJarIndexClassLoader.unsigned16(b, this.entry_record[entry] + 28);
+    }
+
+    private boolean sameName(
+      final int x,
+      final int y)
+    {
+      final int length = this.nameLength(x);
+      if (length != this.nameLength(y)) {
+        return false;
+      }
+      final ByteBuffer xb = this.jars[this.entry_jar[x]].data;
+      final ByteBuffer yb = this.jars[this.entry_jar[y]].data;
+      final int xo = this.nameOffset(x);
+      final int yo = this.nameOffset(y);
+      for (int index = 0; index < length; ++index) {
+        if (xb.get(xo + index) != yb.get(yo + index)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean nameIsAscii(
+      final int entry,
+      final String name)
+    {
+      if (name.length() != this.nameLength(entry)) {
+        return false;
+      }
+      final ByteBuffer b = this.jars[this.entry_jar[entry]].data;
+      final int offset = this.nameOffset(entry);
+      for (int index = 0; index < name.length(); ++index) {
+        if (b.get(offset + index) != name.charAt(index)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean nameIsBytes(
+      final int entry,
+      final byte[] name)
+    {
+      if (name.length != this.nameLength(entry)) {
+        return false;
+      }
+      final ByteBuffer b = this.jars[this.entry_jar[entry]].data;
+      final int offset = this.nameOffset(entry);
+      for (int index = 0; index < name.length; ++index) {
+        if (b.get(offset + index) != name[index]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return The first entry with the given name, or <tt>-1</tt> if there is
+     *         no such entry
+     */
+
+    int find(
+      final String name)
+    {
+      final boolean ascii = JRJarIndexClassLoader.isAscii(name);
+      final @Nullable byte[] bytes;
+      final int hash;
+      if (ascii) {
+        bytes = null;
+        hash = JRJarIndexClassLoader.hashAscii(name);
+      } else {
+        bytes = name.getBytes(StandardCharsets.UTF_8);
+        hash = JRJarIndexClassLoader.hashBytes(bytes);
+      }
+
+      int slot = hash & this.mask;
+      while (true) {
+        final int entry = this.slots[slot] - 1;
+        if (entry < 0) {
+          return -1;
+        }
+        if (this.entry_hash[entry] == hash) {
+          final boolean same =
+            (bytes == null)
+              ? this.nameIsAscii(entry, name)
+              : this.nameIsBytes(entry, bytes);
+          if (same) {
+            return entry;
+          }
+        }
+        slot = (slot + 1) & this.mask;
+      }
+    }
+
+    private Location locate(
+      final int entry)
+      throws IOException
+    {
+      final ByteBuffer b = this.jars[this.entry_jar[entry]].data;
+      final int record = this.entry_record[entry];
+
+      if ((JRJarIndexClassLoader.unsigned16(b, record + 8) & 1) != 0) {
+        throw new IOException("Encrypted entries are not supported");
+      }
+
+      final int method = JRJarIndexClassLoader.unsigned16(b, record + 10);
+      long compressed = JRJarIndexClassLoader.unsigned32(b, record + 20);
+      long size = JRJarIndexClassLoader.unsigned32(b, record + 24);
+      long local = JRJarIndexClassLoader.unsigned32(b, record + 42);
+
+      /**
+       * Values that do not fit in 32 bits are given, in this order, in the
+       * zip64 extra field of the record.
+       */
+
+      if ((size == 0xffffffffL)
+        || (compressed == 0xffffffffL)
+        || (local == 0xffffffffL)) {
+        final int name_length =
+          JRJarIndexClassLoader.unsigned16(b, record + 28);
+        final int extra_length =
+          JRJarIndexClassLoader.unsigned16(b, record + 30);
+        int extra = record + 46 + name_length;
+        final int extra_end = extra + extra_length;
+        while ((extra + 4) <= extra_end) {
+          final int id = JRJarIndexClassLoader.unsigned16(b, extra);
+          final int length = JRJarIndexClassLoader.unsigned16(b, extra + 2);
+          if (id == 0x0001) {
+            int field = extra + 4;
+            if (size == 0xffffffffL) {
+              size = b.getLong(field);
+              field += 8;
+            }
+            if (compressed == 0xffffffffL) {
+              compressed = b.getLong(field);
+              field += 8;
+            }
+            if (local == 0xffffffffL) {
+              local = b.getLong(field);
+            }
+            break;
+          }
+          extra += 4 + length;
+        }
+      }
+
+      final int header = JRJarIndexClassLoader.checkedOffset(b, local, 30L);
+      if (b.getInt(header) != JRJarIndexClassLoader.LOCAL_SIGNATURE) {
+        throw new IOException(String.format(
+          "Bad local file header at offset %d",
+          Integer.valueOf(header)));
+      }
+
+      final long data =
+        (long) header
+          + 30
+          + JRJarIndexClassLoader.unsigned16(b, header + 26)
+          + JRJarIndexClassLoader.unsigned16(b, header + 28);
+      final int offset =
+        JRJarIndexClassLoader.checkedOffset(b, data, compressed);
+      if (size > (Integer.MAX_VALUE - 8)) {
+        throw new IOException("Entry too large: " + size);
+      }
+      return new Location(method, offset, (int) compressed, (int) size);
+    }
+
+    private ByteBuffer region(
+      final int entry,
+      final Location location)
+    {
+      final ByteBuffer b = this.jars[this.entry_jar[entry]].data.duplicate();
+      b.position(location.offset);
+      b.limit(location.offset + location.compressed);
+      return b;
+    }
+
+    String entryName(
+      final int entry)
+    {
+      final ByteBuffer b = this.jars[this.entry_jar[entry]].data.duplicate();
+      final byte[] name = new byte[this.nameLength(entry)];
+      b.position(this.nameOffset(entry));
+      b.get(name);
+      return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private IOException unsupportedMethod(
+      final int entry,
+      final Location location)
+    {
+      return new IOException(String.format(
+        "%s!/%s: Unsupported compression method %d",
+        this.jars[this.entry_jar[entry]].url,
+        this.entryName(entry),
+        Integer.valueOf(location.method)));
+    }
+
+    /**
+     * Open a stream on the contents of an entry.
+     */
+
+    InputStream open(
+      final int entry)
+      throws IOException
+    {
+      final Location location = this.locate(entry);
+      final ByteBuffer region = this.region(entry, location);
+      switch (location.method) {
+        case 0:
+          return new BufferInputStream(region);
+        case 8:
+        {
+          final Inflater inflater = new Inflater(true);
+          final InputStream s = new BufferInputStream(region);
+          return new InflaterInputStream(s, inflater) {
+            private boolean closed;
+
+            @Override public void close()
+              throws IOException
+            {
+              if (!this.closed) {
+                this.closed = true;
+                super.close();
+                inflater.end();
+              }
+            }
+          };
+        }
+        default:
+          throw this.unsupportedMethod(entry, location);
+      }
+    }
+
+    /**
+     * Read the contents of an entry.
+     */
+
+    byte[] read(
+      final int entry)
+      throws IOException
+    {
+      final Location location = this.locate(entry);
+      final ByteBuffer region = this.region(entry, location);
+      final byte[] out = new byte[location.size];
+      switch (location.method) {
+        case 0:
+          if (location.compressed != location.size) {
+            throw new IOException("Stored entry sizes differ");
+          }
+          region.get(out);
+          return out;
+        case 8:
+        {
+          final Inflater inflater = new Inflater(true);
+          try {
+            inflater.setInput(region);
+            int done = 0;
+            while (done < out.length) {
+              final int n = inflater.inflate(out, done, out.length - done);
+              if ((n == 0) && (inflater.finished() || inflater.needsInput())) {
+                break;
+              }
+              done += n;
+            }
+            if (done != out.length) {
+              throw new IOException(String.format(
+                "%s: Expected %d bytes but inflated %d",
+                this.entryName(entry),
+                Integer.valueOf(out.length),
+                Integer.valueOf(done)));
+            }
+            return out;
+          } catch (final DataFormatException e) {
+            throw new IOException(
+              this.entryName(entry) + ": " + e.getMessage(),
+              e);
+          } finally {
+            inflater.end();
+          }
+        }
+        default:
+          throw this.unsupportedMethod(entry, location);
+      }
+    }
+  }
+
+  private static final int    CENTRAL_SIGNATURE;
+  private static final int    END_SIGNATURE;
+  private static final Logger LOG;
+  private static final int    LOCAL_SIGNATURE;
+  private static final int    ZIP64_END_SIGNATURE;
+  private static final int    ZIP64_LOCATOR_SIGNATURE;
+
+  static {
+    LOG =
+      NullCheck.notNull(LoggerFactory.getLogger(JRJarIndexClassLoader.class));
+    CENTRAL_SIGNATURE = 0x02014b50;
+    END_SIGNATURE = 0x06054b50;
+    LOCAL_SIGNATURE = 0x04034b50;
+    ZIP64_END_SIGNATURE = 0x06064b50;
+    ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * Index the given jar files using the common fork/join pool.
+   *
+   * @param jars
+   *          The jar files, in the order in which they are searched
+   * @param parent
+   *          The parent classloader
+   * @return A new classloader
+   *
+   * @throws IOException
+   *           If a jar file cannot be read
+   *
+   * @see #open(List, ClassLoader, ExecutorService)
+   */
+
+  public static JRJarIndexClassLoader open(
+    final List<Path> jars,
+    final @Nullable ClassLoader parent)
+    throws IOException
+  {
+    return JRJarIndexClassLoader.open(jars, parent, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Index the given jar files, reading their central directories on the
+   * given executor.
+   *
+   * @param jars
+   *          The jar files, in the order in which they are searched
+   * @param parent
+   *          The parent classloader, or <tt>null</tt> for the bootstrap
+   *          classloader
+   * @param executor
+   *          The executor on which jar files are read
+   * @return A new classloader
+   *
+   * @throws IOException
+   *           If a jar file cannot be read, or is not a valid jar file
+   */
+
+  public static JRJarIndexClassLoader open(
+    final List<Path> jars,
+    final @Nullable ClassLoader parent,
+    final ExecutorService executor)
+    throws IOException
+  {
+    NullCheck.notNullAll(jars);
+    NullCheck.notNull(executor);
+
+    final List<Callable<Directory>> tasks =
+      new ArrayList<Callable<Directory>>(jars.size());
+    for (final Path jar : jars) {
+      tasks.add(new Callable<Directory>() {
+        @Override public Directory call()
+          throws IOException
+        {
+          return JRJarIndexClassLoader.readDirectory(NullCheck.notNull(jar));
+        }
+      });
+    }
+
+    final List<Directory> directories = new ArrayList<Directory>(jars.size());
+    try {
+      for (final Future<Directory> f : executor.invokeAll(tasks)) {
+        directories.add(NullCheck.notNull(f.get()));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      final InterruptedIOException x =
+        new InterruptedIOException("Interrupted indexing jars");
+      x.initCause(e);
+      throw x;
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+
+    final JRJarIndexClassLoader loader =
+      new JRJarIndexClassLoader(parent, directories);
+    JRJarIndexClassLoader.LOG.debug(
+      "indexed {} entries of {} jars",
+      Integer.valueOf(loader.entry_count),
+      Integer.valueOf(directories.size()));
+    return loader;
+  }
+
+  private static int unsigned16(
+    final ByteBuffer b,
+    final int offset)
+  {
+    return b.getShort(offset) & 0xffff;
+  }
+
+  private static long unsigned32(
+    final ByteBuffer b,
+    final int offset)
+  {
+    return b.getInt(offset) & 0xffffffffL;
+  }
+
+  private static int checkedOffset(
+    final ByteBuffer b,
+    final long offset,
+    final long length)
+    throws IOException
+  {
+    if ((offset < 0L) || (length < 0L) || ((offset + length) > b.limit())) {
+      throw new IOException(String.format(
+        "Region [%d, +%d) is outside of the file of size %d",
+        Long.valueOf(offset),
+        Long.valueOf(length),
+        Integer.valueOf(b.limit())));
+    }
+    return (int) offset;
+  }
+
+  private static Directory readDirectory(
+    final Path path)
+    throws IOException
+  {
+    final URL url = path.toUri().toURL();
+    final JRMemoryGovernor governor = JRMemoryGovernor.get();
+
+    /**
+     * The admission reserves the size of the jar in the off-heap total,
+     * and the reservation is returned if the jar cannot be mapped.
+     */
+
+    final MappedByteBuffer mapped;
+    try (final FileChannel c =
+      FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = c.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(String.format(
+          "%s: Jar files larger than %d bytes are not supported",
+          path,
+          Integer.valueOf(Integer.MAX_VALUE)));
+      }
+      if (!governor.admitOffHeap(size, path.toString())) {
+        throw new IOException(String.format(
+          "%s: Mapping %d bytes would exceed the off-heap budget",
+          path,
+          Long.valueOf(size)));
+      }
+      try {
+        mapped = c.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+      } catch (final IOException | RuntimeException e) {
+        governor.releaseOffHeap(size);
+        throw e;
+      }
+    }
+
+    final ByteBuffer b = mapped.order(ByteOrder.LITTLE_ENDIAN);
+    final Jar jar = new Jar(url, b);
+    governor.registerAdmitted(
+      jar,
+      JRMemoryConsumerKind.MAPPED_JAR,
+      path.toString(),
+      3L * JRMemorySizes.OBJECT,
+      b.capacity());
+    try {
+      return JRJarIndexClassLoader.readCentral(jar);
+    } catch (final IndexOutOfBoundsException e) {
+      throw new IOException(path + ": Truncated jar file", e);
+    } catch (final IOException e) {
+      throw new IOException(path + ": " + e.getMessage(), e);
+    }
+  }
+
+  private static int findEnd(
+    final ByteBuffer b)
+    throws IOException
+  {
+    final int last = b.limit() - 22;
+    final int first = Math.max(0, last - 0xffff);
+    for (int offset = last; offset >= first; --offset) {
+      if ((b.getInt(offset) == JRJarIndexClassLoader.END_SIGNATURE)
+        && ((offset + 22 + JRJarIndexClassLoader.unsigned16(b, offset + 20))
+        == b.limit())) {
+        return offset;
+      }
+    }
+    throw new IOException("No end of central directory record");
+  }
+
+  private static Directory readCentral(
+    final Jar jar)
+    throws IOException
+  {
+    final ByteBuffer b = jar.data;
+    final int end = JRJarIndexClassLoader.findEnd(b);
+
+    long count = JRJarIndexClassLoader.unsigned16(b, end + 10);
+    long start = JRJarIndexClassLoader.unsigned32(b, end + 16);
+    final int locator = end - 20;
+    final boolean zip64 =
+      (locator >= 0)
+        && (b.getInt(locator) == JRJarIndexClassLoader.ZIP64_LOCATOR_SIGNATURE);
+    if ((count == 0xffffL) || (start == 0xffffffffL)) {
+      if (zip64) {
+        final int end64 =
+          JRJarIndexClassLoader.checkedOffset(b, b.getLong(locator + 8), 56L);
+        if (b.getInt(end64) != JRJarIndexClassLoader.ZIP64_END_SIGNATURE) {
+          throw new IOException("Bad zip64 end of central directory record");
+        }
+        count = b.getLong(end64 + 32);
+        start = b.getLong(end64 + 48);
+      }
+    }
+
+    if ((count < 0L) || (count > Integer.MAX_VALUE)) {
+      throw new IOException("Bad entry count " + count);
+    }
+
+    int offset = JRJarIndexClassLoader.checkedOffset(b, start, 0L);
+    final int[] records = new int[(int) count];
+    final int[] hashes = new int[(int) count];
+    int entries = 0;
+    for (long index = 0L; index < count; ++index) {
+      if (b.getInt(offset) != JRJarIndexClassLoader.CENTRAL_SIGNATURE) {
+        throw new IOException(String.format(
+          "Bad central directory record at offset %d",
+          Integer.valueOf(offset)));
+      }
+
+      final int name_length = JRJarIndexClassLoader.unsigned16(b, offset + 28);
+      final int extra_length = JRJarIndexClassLoader.unsigned16(b, offset + 30);
+      final int comment_length =
+        JRJarIndexClassLoader.unsigned16(b, offset + 32);
+      final int name = offset + 46;
+      JRJarIndexClassLoader.checkedOffset(
+        b,
+        name,
+        (long) name_length + extra_length + comment_length);
+
+      final boolean directory =
+        (name_length > 0) && (b.get((name + name_length) - 1) == '/');
+      if (!directory) {
+        records[entries] = offset;
+        hashes[entries] =
+          JRJarIndexClassLoader.hashBytes(b, name, name_length);
+        ++entries;
+      }
+      offset = name + name_length + extra_length + comment_length;
+    }
+
+    return new Directory(
+      jar,
+      JRJarIndexClassLoader.truncate(records, entries),
+      JRJarIndexClassLoader.truncate(hashes, entries));
+  }
+
+  private static int[] truncate(
+    final int[] array,
+    final int length)
+  {
+    if (array.length == length) {
+      return array;
+    }
+    final int[] out = new int[length];
+    System.arraycopy(array, 0, out, 0, length);
+    return out;
+  }
+
+  private static int mix(
+    final int h)
+  {
+    final int x = h * 0x9e3779b9;
+    return x ^ (x >>> 16);
+  }
+
+  /**
+   * Hash the UTF-8 bytes of a name, as stored in a central directory.
+   */
+
+  private static int hashBytes(
+    final ByteBuffer b,
+    final int offset,
+    final int length)
+  {
+    int h = 0x811c9dc5;
+    for (int index = 0; index < length; ++index) {
+      h = (h ^ (b.get(offset + index) & 0xff)) * 0x01000193;
+    }
+    return JRJarIndexClassLoader.mix(h);
+  }
+
+  private static int hashBytes(
+    final byte[] b)
+  {
+    int h = 0x811c9dc5;
+    for (int index = 0; index < b.length; ++index) {
+      h = (h ^ (b[index] & 0xff)) * 0x01000193;
+    }
+    return JRJarIndexClassLoader.mix(h);
+  }
+
+  private static boolean isAscii(
+    final String name)
+  {
+    for (int index = 0; index < name.length(); ++index) {
+      if (name.charAt(index) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hash an ASCII name, giving the same result as hashing its UTF-8 bytes.
+   */
+
+  private static int hashAscii(
+    final String name)
+  {
+    int h = 0x811c9dc5;
+    for (int index = 0; index < name.length(); ++index) {
+      h = (h ^ name.charAt(index)) * 0x01000193;
+    }
+    return JRJarIndexClassLoader.mix(h);
+  }
+
+  private final int                entry_count;
+  private final Handler            handler;
+  private volatile @Nullable Index index;
+  private final int                jar_count;
+
+  private JRJarIndexClassLoader(
+    final @Nullable ClassLoader in_parent,
+    final List<Directory> directories)
+  {
+    super(in_parent);
+
+    final Index i = new Index(directories, JRMemoryGovernor.describe(this));
+    this.entry_count = i.entry_count;
+    this.jar_count = i.jars.length;
+    this.handler = new Handler(this);
+    this.index = i;
+  }
+
+  /**
+   * Close the classloader, dropping its index and its references to the
+   * mapped jar files. The mappings themselves are released when they are
+   * garbage collected. Classes already defined by the classloader remain
+   * usable, and are still returned by {@link #loadClass(String)}, but no
+   * further classes or resources are found in the jar files, and streams
+   * can no longer be opened on the URLs of resources. Closing a closed
+   * classloader has no effect.
+   */
+
+  @Override public void close()
+  {
+    if (this.index != null) {
+      this.index = null;
+      JRJarIndexClassLoader.LOG.debug("closed {}", this);
+    }
+  }
+
+  /**
+   * Open a stream on the entry named by the URL of a resource.
+   */
+
+  InputStream open(
+    final URL url)
+    throws IOException
+  {
+    final Index i = this.index;
+    if (i == null) {
+      throw new IOException(url + ": The classloader is closed");
+    }
+
+    /**
+     * The URL was created by {@link #url(Index, int, String)}, so its file
+     * and reference together are the jar URL and the entry name.
+     */
+
+    final String ref = url.getRef();
+    final String spec =
+      (ref == null) ? url.getFile() : (url.getFile() + "#" + ref);
+    for (int j = 0; j < i.jars.length; ++j) {
+      final String prefix = i.jars[j].url + "!/";
+      if (spec.startsWith(prefix)) {
+        final String name = NullCheck.notNull(spec.substring(prefix.length()));
+        for (int e = i.find(name); e >= 0; e = i.entry_next[e]) {
+          if (i.entry_jar[e] == j) {
+            return i.open(e);
+          }
+        }
+      }
+    }
+    throw new IOException(url + ": No such entry");
+  }
+
+  private URL url(
+    final Index i,
+    final int entry,
+    final String name)
+  {
+    final Jar jar = i.jars[i.entry_jar[entry]];
+    try {
+      return new URL(null, "jar:" + jar.url + "!/" + name, this.handler);
+    } catch (final MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override protected Class<?> findClass(
+    final @Nullable String name)
+    throws ClassNotFoundException
+  {
+    final String class_name = NullCheck.notNull(name);
+    final Index i = this.index;
+    if (i == null) {
+      throw new ClassNotFoundException(
+        class_name + ": The classloader is closed");
+    }
+
+    final int entry = i.find(class_name.replace('.', '/') + ".class");
+    if (entry < 0) {
+      throw new ClassNotFoundException(class_name);
+    }
+
+    final byte[] data;
+    try {
+      data = i.read(entry);
+    } catch (final IOException e) {
+      throw new ClassNotFoundException(class_name, e);
+    }
+
+    final int dot = class_name.lastIndexOf('.');
+    if (dot > 0) {
+      final String p = NullCheck.notNull(class_name.substring(0, dot));
+      if (this.getDefinedPackage(p) == null) {
+        try {
+          this.definePackage(p, null, null, null, null, null, null, null);
+        } catch (final IllegalArgumentException e) {
+          /**
+           * The package was defined concurrently by another thread.
+           */
+        }
+      }
+    }
+
+    final Jar jar = i.jars[i.entry_jar[entry]];
+    return this.defineClass(class_name, data, 0, data.length, jar.source);
+  }
+
+  @Override protected @Nullable URL findResource(
+    final @Nullable String name)
+  {
+    final String resource = NullCheck.notNull(name);
+    final Index i = this.index;
+    if (i == null) {
+      return null;
+    }
+
+    final int entry = i.find(resource);
+    if (entry < 0) {
+      return null;
+    }
+    return this.url(i, entry, resource);
+  }
+
+  @Override protected Enumeration<URL> findResources(
+    final @Nullable String name)
+  {
+    final String resource = NullCheck.notNull(name);
+    final List<URL> urls = new ArrayList<URL>();
+    final Index i = this.index;
+    if (i != null) {
+      for (int e = i.find(resource); e >= 0; e = i.entry_next[e]) {
+        urls.add(this.url(i, e, resource));
+      }
+    }
+    return NullCheck.notNull(Collections.enumeration(urls));
+  }
+
+  /**
+   * @return The number of entries in the index, excluding directories
+   */
+
+  public int getEntryCount()
+  {
+    return this.entry_count;
+  }
+
+  /**
+   * @return The number of indexed jar files
+   */
+
+  public int getJarCount()
+  {
+    return this.jar_count;
+  }
+
+  /**
+   * @return <tt>true</tt> iff the classloader has been closed
+   */
+
+  public boolean isClosed()
+  {
+    return this.index == null;
+  }
+
+  @Override public String toString()
+  {
+    return String.format(
+      "[JRJarIndexClassLoader %d jars, %d entries]",
+      Integer.valueOf(this.jar_count),
+      Integer.valueOf(this.entry_count));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * The result of scanning a jar file with {@link JRJarScanner}.
+ */
+
+public final class JRJarScanReport
+{
+  private final int                            classes;
+  private final JRDecisionTable                decisions;
+  private final Map<String, SortedSet<String>> denied;
+  private final List<String>                   malformed;
+  private final int                            references;
+
+  JRJarScanReport(
+    final int in_classes,
+    final int in_references,
+    final Map<String, SortedSet<String>> in_denied,
+    final List<String> in_malformed,
+    final JRDecisionTable in_decisions)
+  {
+    this.classes = in_classes;
+    this.references = in_references;
+    this.denied = NullCheck.notNull(Collections.unmodifiableMap(in_denied));
+    this.malformed =
+      NullCheck.notNull(Collections.unmodifiableList(in_malformed));
+    this.decisions = NullCheck.notNull(in_decisions);
+  }
+
+  /**
+   * @return The number of classes scanned
+   */
+
+  public int getClassCount()
+  {
+    return this.classes;
+  }
+
+  /**
+   * @return The decisions of the policy for every class referred to by the
+   *         scanned classes
+   */
+
+  public JRDecisionTable getDecisions()
+  {
+    return this.decisions;
+  }
+
+  /**
+   * @return The classes that the policy denies, each mapped to the scanned
+   *         classes that refer to it, in name order
+   */
+
+  public Map<String, SortedSet<String>> getDeniedReferences()
+  {
+    return this.denied;
+  }
+
+  /**
+   * @return The names of the jar entries that could not be read as class
+   *         files
+   */
+
+  public List<String> getMalformedEntries()
+  {
+    return this.malformed;
+  }
+
+  /**
+   * @return The number of distinct classes referred to by the scanned
+   *         classes
+   */
+
+  public int getReferenceCount()
+  {
+    return this.references;
+  }
+
+  /**
+   * @return <tt>true</tt> iff the policy allows every class referred to by
+   *         the scanned classes
+   */
+
+  public boolean isClean()
+  {
+    return this.denied.isEmpty();
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRJarScanReport classes=");
+    b.append(this.classes);
+    b.append(" references=");
+    b.append(this.references);
+    b.append(" denied=");
+    b.append(this.denied);
+    b.append(" malformed=");
+    b.append(this.malformed);
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * A scanner that finds the classes referred to by the classes in a jar
+ * file, and evaluates a policy for each of them in advance.
+ * </p>
+ * <p>
+ * The constant pools of the class files in the jar are read in parallel,
+ * without loading or defining any class, and every class that they name is
+ * evaluated once against the policy. The resulting report lists the
+ * references that the policy denies, which would otherwise only be found
+ * when the code referring to them first runs, and holds a
+ * {@link JRDecisionTable} that can be given to a {@link JRClassLoader} so
+ * that the policy does not need to be evaluated again at run time.
+ * </p>
+ */
+
+public final class JRJarScanner
+{
+  private static final class Scanned
+  {
+    final String                class_name;
+    final @Nullable Set<String> references;
+
+    Scanned(
+      final String in_class_name,
+      final @Nullable Set<String> in_references)
+    {
+      this.class_name = NullCheck.notNull(in_class_name);
+      this.references = in_references;
+    }
+  }
+
+  private static final Logger LOG;
+
+  static {
+    LOG = NullCheck.notNull(LoggerFactory.getLogger(JRJarScanner.class));
+  }
+
+  /**
+   * Scan a jar file using the common fork/join pool.
+   *
+   * @param jar
+   *          The jar file
+   * @param policy
+   *          The policy
+   * @return A report of the scan
+   *
+   * @throws IOException
+   *           If the jar file cannot be read
+   *
+   * @see #scan(Path, JRClassLoaderPolicyType, ExecutorService)
+   */
+
+  public static JRJarScanReport scan(
+    final Path jar,
+    final JRClassLoaderPolicyType policy)
+    throws IOException
+  {
+    return JRJarScanner.scan(jar, policy, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Scan a jar file, reading class files on the given executor. Entries
+   * that are not valid class files are listed in the report and otherwise
+   * ignored.
+   *
+   * @param jar
+   *          The jar file
+   * @param policy
+   *          The policy
+   * @param executor
+   *          The executor on which class files are read
+   * @return A report of the scan
+   *
+   * @throws IOException
+   *           If the jar file cannot be read
+   */
+
+  public static JRJarScanReport scan(
+    final Path jar,
+    final JRClassLoaderPolicyType policy,
+    final ExecutorService executor)
+    throws IOException
+  {
+    NullCheck.notNull(jar);
+    NullCheck.notNull(policy);
+    NullCheck.notNull(executor);
+
+    final List<Scanned> scanned;
+    try (final JarFile file = new JarFile(jar.toFile())) {
+      final List<Callable<Scanned>> tasks = new ArrayList<Callable<Scanned>>();
+      final Enumeration<JarEntry> entries = file.entries();
+      while (entries.hasMoreElements()) {
+        final JarEntry e = NullCheck.notNull(entries.nextElement());
+        if (!e.isDirectory() && e.getName().endsWith(".class")) {
+          tasks.add(new Callable<Scanned>() {
+            @Override public Scanned call()
+              throws IOException
+            {
+              return JRJarScanner.read(file, e);
+            }
+          });
+        }
+      }
+
+      scanned = new ArrayList<Scanned>(tasks.size());
+      for (final Future<Scanned> f : executor.invokeAll(tasks)) {
+        scanned.add(NullCheck.notNull(f.get()));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      final InterruptedIOException x =
+        new InterruptedIOException("Interrupted scanning " + jar);
+      x.initCause(e);
+      throw x;
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+
+    final Map<String, SortedSet<String>> referrers =
+      new TreeMap<String, SortedSet<String>>();
+    final List<String> malformed = new ArrayList<String>();
+    int classes = 0;
+    for (final Scanned s : scanned) {
+      final Set<String> refs = s.references;
+      if (refs == null) {
+        malformed.add(s.class_name);
+        continue;
+      }
+      ++classes;
+      for (final String r : refs) {
+        SortedSet<String> by = referrers.get(r);
+        if (by == null) {
+          by = new TreeSet<String>();
+          referrers.put(r, by);
+        }
+        by.add(s.class_name);
+      }
+    }
+
+    final JRDecisionTable decisions =
+      JRDecisionTable.evaluate(policy, referrers.keySet());
+    final Map<String, SortedSet<String>> denied =
+      new TreeMap<String, SortedSet<String>>();
+    for (final Map.Entry<String, SortedSet<String>> e : referrers.entrySet()) {
+      if (!decisions.isAllowed(NullCheck.notNull(e.getKey()))) {
+        denied.put(e.getKey(), e.getValue());
+      }
+    }
+
+    final JRJarScanReport report =
+      new JRJarScanReport(
+        classes,
+        referrers.size(),
+        denied,
+        malformed,
+        decisions);
+    JRJarScanner.LOG.info(
+      "scanned {}: {} classes, {} references, {} denied, {} malformed",
+      jar,
+      Integer.valueOf(classes),
+      Integer.valueOf(referrers.size()),
+      Integer.valueOf(denied.size()),
+      Integer.valueOf(malformed.size()));
+    return report;
+  }
+
+  private static Scanned read(
+    final JarFile file,
+    final JarEntry e)
+    throws IOException
+  {
+    final String entry = NullCheck.notNull(e.getName());
+    final String class_name =
+      entry.substring(0, entry.length() - ".class".length()).replace('/', '.');
+
+    final byte[] data;
+    try (final InputStream s = file.getInputStream(e)) {
+      data = s.readAllBytes();
+    }
+
+    try {
+      return new Scanned(class_name, JRConstantPool.referencedClasses(data));
+    } catch (final IOException x) {
+      JRJarScanner.LOG.warn("{}: {}", entry, x.getMessage());
+      return new Scanned(entry, null);
+    }
+  }
+
+  private JRJarScanner()
+  {
+    throw new UnreachableCodeException();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * The kinds of structure that register with the {@link JRMemoryGovernor}.
+ */
+
+public enum JRMemoryConsumerKind
+{
+  /**
+   * The class cache of a {@link JRClassLoader}, which the governor can
+   * evict entries from.
+   */
+
+  CLASS_CACHE,
+
+  /**
+   * A {@link JRDecisionTable}.
+   */
+
+  DECISION_TABLE,
+
+  /**
+   * The index of the entries of the jar files of a
+   * {@link JRJarIndexClassLoader}.
+   */
+
+  JAR_INDEX,
+
+  /**
+   * A jar file mapped by a {@link JRJarIndexClassLoader}, reported as
+   * off-heap memory.
+   */
+
+  MAPPED_JAR,
+
+  /**
+   * The package tables of a {@link JRModulePolicy}.
+   */
+
+  MODULE_POLICY,
+
+  /**
+   * The compiled rule tables of a {@link JRMultiPolicy}.
+   */
+
+  MULTI_POLICY,
+
+  /**
+   * The table of a set of names, held by a name set rule, a
+   * {@link JRDecisionTable} or a {@link JRModulePolicy}.
+   */
+
+  NAME_SET,
+
+  /**
+   * The evaluation engine of the rules of one kind of a
+   * {@link JRSequentialPolicy}, including any index that it built. The
+   * governor can evict the index, after which the rules are evaluated in
+   * order.
+   */
+
+  POLICY_INDEX,
+
+  /**
+   * The rules of a {@link JRSequentialPolicy}, excluding their engines and
+   * name sets.
+   */
+
+  SEQUENTIAL_POLICY
+}
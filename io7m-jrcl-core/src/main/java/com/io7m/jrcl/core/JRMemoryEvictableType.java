@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * The type of structures registered with the {@link JRMemoryGovernor} that
+ * can release memory on demand.
+ */
+
+interface JRMemoryEvictableType
+{
+  /**
+   * @return The number of lookups answered by the structure since the
+   *         previous call
+   */
+
+  long benefit();
+
+  /**
+   * Release approximately <tt>bytes</tt> bytes of heap, preferring entries
+   * that have not been used recently. The structure must charge the
+   * released memory to its registration itself.
+   *
+   * @param bytes
+   *          The number of bytes to release
+   * @return The estimated number of bytes released
+   */
+
+  long evict(
+    long bytes);
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * The process-wide accountant of the memory retained by the caches and
+ * compiled structures of jrcl.
+ * </p>
+ * <p>
+ * Every class cache, policy, policy index, name set table, decision table,
+ * jar index and mapped jar registers with the governor when it is created,
+ * and is unregistered when it is garbage collected. Heap sizes are
+ * estimates computed from the sizes of the arrays and strings that each
+ * structure holds; rules shared between policies are counted once for every
+ * policy that refers to them. Off-heap sizes are those of the direct and
+ * mapped buffers that the structures hold.
+ * </p>
+ * <p>
+ * Whenever a structure grows past the heap budget, the governor evicts
+ * from the evictable structures until the total is back under
+ * {@link #RECLAIM_FRACTION} of the budget. The class caches of loaders and
+ * the indices of policies are evictable: a class cache releases entries,
+ * and a policy index is dropped, leaving the policy to evaluate its rules
+ * in order until it is derived or rebuilt. The structures that answered
+ * the fewest lookups per byte since the previous eviction are evicted from
+ * first, and within a cache, entries that have not been used since the
+ * previous eviction go before those that have. Policies, name sets,
+ * decision tables and jar indices cannot be evicted, so a heap budget that
+ * they alone exceed is reported once as a warning.
+ * </p>
+ * <p>
+ * Nothing that holds off-heap memory can be evicted, so the off-heap budget
+ * is enforced when the memory is allocated instead: a name set that would
+ * exceed it is stored on the heap, and a jar that would exceed it is not
+ * mapped, failing the construction of its loader. Admission reserves the
+ * memory in the off-heap total atomically, so structures allocated
+ * concurrently cannot together overshoot the budget. Both budgets are
+ * unlimited by default.
+ * </p>
+ * <p>
+ * The governor can also watch the collection usage thresholds of the heap
+ * memory pools, and shrink every cache by half whenever a garbage
+ * collection leaves a pool fuller than the threshold.
+ * </p>
+ *
+ * @see #setMemoryPressureThreshold(double)
+ */
+
+public final class JRMemoryGovernor
+{
+  /**
+   * The registration of a structure. Charges are deltas, so a structure
+   * that grows or shrinks charges the difference. The totals of a
+   * registration are only updated by its own structure, so they are not
+   * contended between structures.
+   */
+
+  static final class Registration extends WeakReference<Object>
+  {
+    long                       benefit;
+    final JRMemoryGovernor     governor;
+    final AtomicLong           heap;
+    final JRMemoryConsumerKind kind;
+    final AtomicLong           off_heap;
+    final String               owner;
+
+    Registration(
+      final JRMemoryGovernor in_governor,
+      final Object in_referent,
+      final JRMemoryConsumerKind in_kind,
+      final String in_owner)
+    {
+      super(in_referent, in_governor.queue);
+      this.governor = in_governor;
+      this.kind = NullCheck.notNull(in_kind);
+      this.owner = NullCheck.notNull(in_owner);
+      this.heap = new AtomicLong();
+      this.off_heap = new AtomicLong();
+    }
+
+    /**
+     * Charge memory to the registration.
+     *
+     * @param in_heap
+     *          The change in heap bytes
+     * @param in_off_heap
+     *          The change in off-heap bytes
+     */
+
+    void charge(
+      final long in_heap,
+      final long in_off_heap)
+    {
+      this.governor.charge(this, in_heap, in_off_heap);
+    }
+  }
+
+  private static final JRMemoryGovernor INSTANCE;
+  private static final Logger           LOG;
+
+  /**
+   * The fraction of the shrinkable memory of each cache released when a
+   * memory pool exceeds its threshold.
+   */
+
+  public static final double            PRESSURE_FRACTION = 0.5;
+
+  /**
+   * The fraction of the heap budget that eviction reduces the total to.
+   * Evicting below the budget avoids evicting again on the next insertion.
+   */
+
+  public static final double            RECLAIM_FRACTION  = 0.9;
+
+  static {
+    LOG = LoggerFactory.getLogger(JRMemoryGovernor.class);
+    INSTANCE = new JRMemoryGovernor();
+  }
+
+  /**
+   * @return A description of <tt>o</tt> that identifies it without
+   *         retaining it
+   */
+
+  static String describe(
+    final Object o)
+  {
+    return o.getClass().getSimpleName()
+      + "@"
+      + Integer.toHexString(System.identityHashCode(o));
+  }
+
+  /**
+   * @return The governor
+   */
+
+  public static JRMemoryGovernor get()
+  {
+    return JRMemoryGovernor.INSTANCE;
+  }
+
+  private final LongAdder                heap;
+  private volatile long                  heap_budget;
+  private @Nullable NotificationListener listener;
+  private final ReentrantLock            lock;
+  private final AtomicLong               off_heap;
+  private volatile long                  off_heap_budget;
+  private boolean                        over;
+  private final ReferenceQueue<Object>   queue;
+  private final Set<Registration>        registrations;
+
+  private JRMemoryGovernor()
+  {
+    this.heap = new LongAdder();
+    this.off_heap = new AtomicLong();
+    this.heap_budget = Long.MAX_VALUE;
+    this.off_heap_budget = Long.MAX_VALUE;
+    this.lock = new ReentrantLock();
+    this.queue = new ReferenceQueue<Object>();
+    this.registrations = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * <p>
+   * Reserve <tt>bytes</tt> bytes of off-heap memory, if they can be
+   * allocated without exceeding the off-heap budget. The reservation is
+   * added to the off-heap total atomically, so concurrent admissions
+   * cannot together exceed the budget.
+   * </p>
+   * <p>
+   * An admitted reservation must be returned with
+   * {@link #releaseOffHeap(long)} if the memory is not allocated after all,
+   * and is otherwise settled by registering the structure that uses the
+   * memory with <tt>registerAdmitted</tt>.
+   * </p>
+   *
+   * @param bytes
+   *          The number of bytes
+   * @param what
+   *          A description of the structure, for the log
+   * @return <tt>true</tt> iff the memory can be allocated, in which case it
+   *         has been reserved
+   *
+   * @see #registerAdmitted(Object, JRMemoryConsumerKind, String, long, long)
+   */
+
+  boolean admitOffHeap(
+    final long bytes,
+    final String what)
+  {
+    if (this.off_heap_budget != Long.MAX_VALUE) {
+      this.expunge();
+    }
+
+    for (;;) {
+      final long budget = this.off_heap_budget;
+      final long total = this.off_heap.get();
+      if ((budget != Long.MAX_VALUE) && (bytes > (budget - total))) {
+        JRMemoryGovernor.LOG.warn(
+          "refused {} off-heap bytes for {}: {} of {} bytes in use",
+          Long.valueOf(bytes),
+          what,
+          Long.valueOf(total),
+          Long.valueOf(budget));
+        return false;
+      }
+      if (this.off_heap.compareAndSet(total, total + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Return a reservation made by {@link #admitOffHeap(long, String)} for
+   * memory that was not allocated.
+   *
+   * @param bytes
+   *          The number of bytes reserved
+   */
+
+  void releaseOffHeap(
+    final long bytes)
+  {
+    this.off_heap.addAndGet(-bytes);
+  }
+
+  /**
+   * Update the totals. The heap total is a sum of cells that are updated
+   * without contention between threads, and is only summed when a budget
+   * has been set. The off-heap total changes only when structures that
+   * hold off-heap memory are created or collected, and is a single value
+   * so that admission can reserve from it atomically.
+   */
+
+  private void charge(
+    final Registration r,
+    final long in_heap,
+    final long in_off_heap)
+  {
+    if (in_heap != 0L) {
+      r.heap.addAndGet(in_heap);
+      this.heap.add(in_heap);
+    }
+    if (in_off_heap != 0L) {
+      r.off_heap.addAndGet(in_off_heap);
+      this.off_heap.addAndGet(in_off_heap);
+    }
+
+    final long h_budget = this.heap_budget;
+    final long o_budget = this.off_heap_budget;
+    if (((in_heap > 0L)
+      && (h_budget != Long.MAX_VALUE)
+      && (this.heap.sum() > h_budget))
+      || ((in_off_heap > 0L)
+        && (o_budget != Long.MAX_VALUE)
+        && (this.off_heap.get() > o_budget))) {
+      this.enforce();
+    }
+  }
+
+  /**
+   * Evict from the evictable structures until the heap budget is met, or
+   * until nothing more can be evicted. Only one thread evicts at a time;
+   * other threads that exceed the budget meanwhile carry on without
+   * waiting.
+   */
+
+  private void enforce()
+  {
+    if (!this.lock.tryLock()) {
+      return;
+    }
+
+    try {
+      this.expunge();
+
+      final long budget = this.heap_budget;
+      final long target = (long) (budget * JRMemoryGovernor.RECLAIM_FRACTION);
+      if (this.heap.sum() > budget) {
+        this.evict(this.heap.sum() - target);
+      }
+
+      final boolean now_over =
+        (this.heap.sum() > budget)
+          || (this.off_heap.get() > this.off_heap_budget);
+      if (now_over && !this.over) {
+        JRMemoryGovernor.LOG.warn(
+          "memory budget exceeded by structures that cannot be evicted: {}",
+          this.getReport());
+      }
+      this.over = now_over;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Evict <tt>bytes</tt> bytes from the evictable structures, in ascending
+   * order of the number of lookups that they answered per byte.
+   */
+
+  private void evict(
+    final long bytes)
+  {
+    final List<Registration> candidates = new ArrayList<Registration>();
+    for (final Registration r : this.registrations) {
+      final Object o = r.get();
+      if ((o instanceof JRMemoryEvictableType) && (r.heap.get() > 0)) {
+        r.benefit = ((JRMemoryEvictableType) o).benefit();
+        candidates.add(r);
+      }
+    }
+
+    Collections.sort(candidates, new Comparator<Registration>()
+    {
+      @Override public int compare(
+        final Registration x,
+        final Registration y)
+      {
+        return Double.compare(
+          (double) x.benefit / (double) x.heap.get(),
+          (double) y.benefit / (double) y.heap.get());
+      }
+    });
+
+    long remaining = bytes;
+    for (final Registration r : candidates) {
+      if (remaining <= 0) {
+        break;
+      }
+      final Object o = r.get();
+      if (o instanceof JRMemoryEvictableType) {
+        remaining -= ((JRMemoryEvictableType) o).evict(remaining);
+      }
+    }
+
+    JRMemoryGovernor.LOG.debug(
+      "evicted {} of {} bytes from {} caches",
+      Long.valueOf(bytes - Math.max(0L, remaining)),
+      Long.valueOf(bytes),
+      Integer.valueOf(candidates.size()));
+  }
+
+  /**
+   * Remove the registrations of structures that have been collected.
+   */
+
+  private void expunge()
+  {
+    for (;;) {
+      final Registration r = (Registration) this.queue.poll();
+      if (r == null) {
+        return;
+      }
+      if (this.registrations.remove(r)) {
+        this.heap.add(-r.heap.getAndSet(0L));
+        this.off_heap.addAndGet(-r.off_heap.getAndSet(0L));
+      }
+    }
+  }
+
+  /**
+   * @return The heap budget, in bytes
+   */
+
+  public long getHeapBudget()
+  {
+    return this.heap_budget;
+  }
+
+  /**
+   * @return The off-heap budget, in bytes
+   */
+
+  public long getOffHeapBudget()
+  {
+    return this.off_heap_budget;
+  }
+
+  /**
+   * @return A report of the memory retained by every registered structure
+   */
+
+  public JRMemoryReport getReport()
+  {
+    this.expunge();
+
+    final List<JRMemoryUsage> usages = new ArrayList<JRMemoryUsage>();
+    for (final Registration r : this.registrations) {
+      final Object o = r.get();
+      if (o != null) {
+        usages.add(new JRMemoryUsage(
+          r.kind,
+          r.owner,
+          r.heap.get(),
+          r.off_heap.get(),
+          o instanceof JRMemoryEvictableType));
+      }
+    }
+
+    Collections.sort(usages, new Comparator<JRMemoryUsage>()
+    {
+      @Override public int compare(
+        final JRMemoryUsage x,
+        final JRMemoryUsage y)
+      {
+        return Long.compare(y.getHeapBytes(), x.getHeapBytes());
+      }
+    });
+
+    return new JRMemoryReport(
+      this.heap.sum(),
+      this.heap_budget,
+      this.off_heap.get(),
+      this.off_heap_budget,
+      usages);
+  }
+
+  /**
+   * Register a structure.
+   *
+   * @param referent
+   *          The structure, which is evictable if it is a
+   *          {@link JRMemoryEvictableType}
+   * @param kind
+   *          The kind of structure
+   * @param owner
+   *          A description of the loader or policy that owns the structure
+   * @param in_heap
+   *          The initial number of heap bytes
+   * @param in_off_heap
+   *          The initial number of off-heap bytes
+   * @return A registration to which further changes are charged
+   */
+
+  Registration register(
+    final Object referent,
+    final JRMemoryConsumerKind kind,
+    final String owner,
+    final long in_heap,
+    final long in_off_heap)
+  {
+    this.expunge();
+
+    final Registration r =
+      new Registration(this, NullCheck.notNull(referent), kind, owner);
+    this.registrations.add(r);
+    this.charge(r, in_heap, in_off_heap);
+    return r;
+  }
+
+  /**
+   * Register a structure whose off-heap memory was reserved by
+   * {@link #admitOffHeap(long, String)}. The reservation is settled by
+   * charging it to the registration, without adding it to the off-heap
+   * total a second time.
+   *
+   * @param referent
+   *          The structure, which is evictable if it is a
+   *          {@link JRMemoryEvictableType}
+   * @param kind
+   *          The kind of structure
+   * @param owner
+   *          A description of the loader or policy that owns the structure
+   * @param in_heap
+   *          The initial number of heap bytes
+   * @param in_reserved
+   *          The number of off-heap bytes reserved for the structure
+   * @return A registration to which further changes are charged
+   */
+
+  Registration registerAdmitted(
+    final Object referent,
+    final JRMemoryConsumerKind kind,
+    final String owner,
+    final long in_heap,
+    final long in_reserved)
+  {
+    this.expunge();
+
+    final Registration r =
+      new Registration(this, NullCheck.notNull(referent), kind, owner);
+    r.off_heap.addAndGet(in_reserved);
+    this.registrations.add(r);
+    this.charge(r, in_heap, 0L);
+    return r;
+  }
+
+  /**
+   * Set the budgets, evicting immediately if the heap budget is already
+   * exceeded. The off-heap budget applies to later allocations; memory
+   * already allocated off the heap is not released.
+   *
+   * @param in_heap
+   *          The heap budget in bytes, or {@link Long#MAX_VALUE} for no
+   *          limit
+   * @param in_off_heap
+   *          The off-heap budget in bytes, or {@link Long#MAX_VALUE} for no
+   *          limit
+   */
+
+  public void setBudget(
+    final long in_heap,
+    final long in_off_heap)
+  {
+    if ((in_heap < 0) || (in_off_heap < 0)) {
+      throw new IllegalArgumentException(String.format(
+        "Budgets %d and %d must be non-negative",
+        in_heap,
+        in_off_heap));
+    }
+
+    this.heap_budget = in_heap;
+    this.off_heap_budget = in_off_heap;
+    this.enforce();
+  }
+
+  /**
+   * <p>
+   * Set the collection usage threshold of every heap memory pool that
+   * supports one to <tt>fraction</tt> of the maximum size of the pool, and
+   * shrink every cache by {@link #PRESSURE_FRACTION} whenever a garbage
+   * collection leaves a pool above its threshold.
+   * </p>
+   * <p>
+   * The thresholds are properties of the virtual machine, so setting them
+   * replaces any thresholds set by other code. A fraction of <tt>0</tt>
+   * disables the thresholds and stops watching for notifications.
+   * </p>
+   *
+   * @param fraction
+   *          The fraction, in <tt>[0, 1]</tt>
+   */
+
+  public void setMemoryPressureThreshold(
+    final double fraction)
+  {
+    if (!((fraction >= 0.0) && (fraction <= 1.0))) {
+      throw new IllegalArgumentException(String.format(
+        "Threshold %f must be in [0, 1]",
+        fraction));
+    }
+
+    synchronized (this) {
+      for (final MemoryPoolMXBean pool : ManagementFactory
+        .getMemoryPoolMXBeans()) {
+        final long max = pool.getUsage().getMax();
+        if ((pool.getType() == MemoryType.HEAP)
+          && pool.isCollectionUsageThresholdSupported()
+          && (max > 0)) {
+          pool.setCollectionUsageThreshold((long) (max * fraction));
+        }
+      }
+
+      final NotificationEmitter emitter =
+        (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+      final NotificationListener current = this.listener;
+      if ((fraction > 0.0) && (current == null)) {
+        final NotificationListener l = new NotificationListener()
+        {
+          @Override public void handleNotification(
+            final @Nullable Notification n,
+            final @Nullable Object handback)
+          {
+            if ((n != null)
+              && MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED
+                .equals(n.getType())) {
+              JRMemoryGovernor.LOG.warn(
+                "memory pressure: {}; shrinking caches",
+                n.getMessage());
+              JRMemoryGovernor.this.shrink(JRMemoryGovernor.PRESSURE_FRACTION);
+            }
+          }
+        };
+        emitter.addNotificationListener(l, null, null);
+        this.listener = l;
+      } else if ((fraction == 0.0) && (current != null)) {
+        try {
+          emitter.removeNotificationListener(current);
+        } catch (final ListenerNotFoundException e) {
+          JRMemoryGovernor.LOG.error("listener not found: ", e);
+        }
+        this.listener = null;
+      }
+    }
+  }
+
+  /**
+   * Release <tt>fraction</tt> of the heap retained by every evictable
+   * structure.
+   *
+   * @param fraction
+   *          The fraction, in <tt>[0, 1]</tt>
+   */
+
+  public void shrink(
+    final double fraction)
+  {
+    if (!((fraction >= 0.0) && (fraction <= 1.0))) {
+      throw new IllegalArgumentException(String.format(
+        "Fraction %f must be in [0, 1]",
+        fraction));
+    }
+
+    this.lock.lock();
+    try {
+      this.expunge();
+      for (final Registration r : this.registrations) {
+        final Object o = r.get();
+        if (o instanceof JRMemoryEvictableType) {
+          final long bytes = (long) Math.ceil(r.heap.get() * fraction);
+          if (bytes > 0) {
+            ((JRMemoryEvictableType) o).evict(bytes);
+          }
+        }
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * A report of the memory retained by the structures registered with the
+ * {@link JRMemoryGovernor}.
+ *
+ * @see JRMemoryGovernor#getReport()
+ */
+
+public final class JRMemoryReport
+{
+  private final long                heap;
+  private final long                heap_budget;
+  private final long                off_heap;
+  private final long                off_heap_budget;
+  private final List<JRMemoryUsage> usages;
+
+  JRMemoryReport(
+    final long in_heap,
+    final long in_heap_budget,
+    final long in_off_heap,
+    final long in_off_heap_budget,
+    final List<JRMemoryUsage> in_usages)
+  {
+    this.heap = in_heap;
+    this.heap_budget = in_heap_budget;
+    this.off_heap = in_off_heap;
+    this.off_heap_budget = in_off_heap_budget;
+    this.usages =
+      NullCheck.notNull(Collections.unmodifiableList(NullCheck
+        .notNull(in_usages)));
+  }
+
+  /**
+   * @return The heap budget, in bytes
+   */
+
+  public long getHeapBudget()
+  {
+    return this.heap_budget;
+  }
+
+  /**
+   * @return The estimated number of bytes of heap retained by all
+   *         registered structures
+   */
+
+  public long getHeapBytes()
+  {
+    return this.heap;
+  }
+
+  /**
+   * @return The off-heap budget, in bytes
+   */
+
+  public long getOffHeapBudget()
+  {
+    return this.off_heap_budget;
+  }
+
+  /**
+   * @return The number of bytes of memory outside of the heap retained by
+   *         all registered structures
+   */
+
+  public long getOffHeapBytes()
+  {
+    return this.off_heap;
+  }
+
+  /**
+   * @return The memory retained by each registered structure, in
+   *         descending order of heap usage
+   */
+
+  public List<JRMemoryUsage> getUsages()
+  {
+    return this.usages;
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRMemoryReport heap=");
+    b.append(this.heap);
+    b.append("/");
+    b.append(this.heap_budget);
+    b.append(" off_heap=");
+    b.append(this.off_heap);
+    b.append("/");
+    b.append(this.off_heap_budget);
+    b.append(" structures=");
+    b.append(this.usages.size());
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
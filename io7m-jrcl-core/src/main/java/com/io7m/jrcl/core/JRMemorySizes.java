@@ -0,0 +1,144 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.regex.Pattern;
+
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * Estimates of the heap retained by the structures that register with the
+ * {@link JRMemoryGovernor}.
+ * </p>
+ * <p>
+ * The estimates assume a 64-bit virtual machine with compressed references
+ * and compact strings. They are intended to rank structures and to keep the
+ * totals within a small factor of the truth, not to be exact.
+ * </p>
+ */
+
+final class JRMemorySizes
+{
+  /**
+   * The size of an object header, rounded up to include a few fields.
+   */
+
+  static final long OBJECT = 32L;
+
+  /**
+   * The estimated size of a compiled {@link Pattern} per character of its
+   * source.
+   */
+
+  static final long PATTERN_PER_CHAR = 64L;
+
+  /**
+   * The size of a reference.
+   */
+
+  static final long REFERENCE = 4L;
+
+  private static long align(
+    final long bytes)
+  {
+    return (bytes + 7L) & ~7L;
+  }
+
+  /**
+   * @return The size of an array of <tt>count</tt> elements of
+   *         <tt>element</tt> bytes each
+   */
+
+  static long array(
+    final long count,
+    final long element)
+  {
+    return JRMemorySizes.align(16L + (count * element));
+  }
+
+  /**
+   * @return The heap retained by the name set
+   */
+
+  static long nameSetHeap(
+    final JRNameSet set)
+  {
+    if (set.getStorage() == JRNameSetStorage.HEAP) {
+      return JRMemorySizes.OBJECT
+        + JRMemorySizes.array(set.getByteSize(), 1L);
+    }
+    return JRMemorySizes.OBJECT;
+  }
+
+  /**
+   * @return The memory outside of the heap retained by the name set
+   */
+
+  static long nameSetOffHeap(
+    final JRNameSet set)
+  {
+    if (set.getStorage() == JRNameSetStorage.HEAP) {
+      return 0L;
+    }
+    return set.getByteSize();
+  }
+
+  /**
+   * @return The heap retained by the compiled pattern
+   */
+
+  static long pattern(
+    final Pattern p)
+  {
+    return JRMemorySizes.OBJECT
+      + JRMemorySizes.string(p.pattern())
+      + (JRMemorySizes.PATTERN_PER_CHAR * p.pattern().length());
+  }
+
+  /**
+   * @return The heap retained by the rule, excluding the table of a name
+   *         set rule, which is registered by itself
+   */
+
+  static long ruleHeap(
+    final JRRule rule)
+  {
+    if (rule instanceof JRRulePattern) {
+      return JRMemorySizes.OBJECT
+        + JRMemorySizes.pattern(((JRRulePattern) rule)
+          .getAnalysis()
+          .getPattern());
+    }
+    return JRMemorySizes.OBJECT;
+  }
+
+  /**
+   * @return The heap retained by the string
+   */
+
+  static long string(
+    final String s)
+  {
+    return JRMemorySizes.OBJECT + JRMemorySizes.array(s.length(), 1L);
+  }
+
+  private JRMemorySizes()
+  {
+    throw new UnreachableCodeException();
+  }
+}
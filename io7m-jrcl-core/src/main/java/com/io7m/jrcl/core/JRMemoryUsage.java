@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * The memory retained by one structure registered with the
+ * {@link JRMemoryGovernor}, at the time of a {@link JRMemoryReport}.
+ */
+
+public final class JRMemoryUsage
+{
+  private final boolean              evictable;
+  private final long                 heap;
+  private final JRMemoryConsumerKind kind;
+  private final long                 off_heap;
+  private final String               owner;
+
+  JRMemoryUsage(
+    final JRMemoryConsumerKind in_kind,
+    final String in_owner,
+    final long in_heap,
+    final long in_off_heap,
+    final boolean in_evictable)
+  {
+    this.kind = NullCheck.notNull(in_kind);
+    this.owner = NullCheck.notNull(in_owner);
+    this.heap = in_heap;
+    this.off_heap = in_off_heap;
+    this.evictable = in_evictable;
+  }
+
+  /**
+   * @return The estimated number of bytes of heap retained by the structure
+   */
+
+  public long getHeapBytes()
+  {
+    return this.heap;
+  }
+
+  /**
+   * @return The kind of structure
+   */
+
+  public JRMemoryConsumerKind getKind()
+  {
+    return this.kind;
+  }
+
+  /**
+   * @return The number of bytes of memory outside of the heap retained by
+   *         the structure
+   */
+
+  public long getOffHeapBytes()
+  {
+    return this.off_heap;
+  }
+
+  /**
+   * @return A description of the loader or policy that owns the structure
+   */
+
+  public String getOwner()
+  {
+    return this.owner;
+  }
+
+  /**
+   * @return <tt>true</tt> iff the governor can evict from the structure
+   */
+
+  public boolean isEvictable()
+  {
+    return this.evictable;
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRMemoryUsage ");
+    b.append(this.kind);
+    b.append(" ");
+    b.append(this.owner);
+    b.append(" heap=");
+    b.append(this.heap);
+    b.append(" off_heap=");
+    b.append(this.off_heap);
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * The reason that a rule was removed by minimization.
+ *
+ * @see JRSequentialPolicyBuilderType#setRuleMinimization(boolean)
+ */
+
+public enum JRMinimizationAction
+{
+  /**
+   * Every name that the rule matches is matched by an earlier quick rule,
+   * so evaluation never reaches the rule for a name it matches.
+   */
+
+  UNREACHABLE,
+
+  /**
+   * The rule is not quick, and every name that the rule matches is matched
+   * by a later rule, which therefore always overrides its conclusion.
+   */
+
+  SHADOWED,
+
+  /**
+   * The rule is not quick, its conclusion is the default conclusion, and
+   * no earlier rule that it could override has a different conclusion.
+   */
+
+  REDUNDANT,
+
+  /**
+   * The rule was merged into the preceding rule, which has the same
+   * conclusion and is equally quick.
+   */
+
+  MERGED
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * A rule removed by minimization.
+ *
+ * @see JRMinimizationReport
+ */
+
+public final class JRMinimizationEntry
+{
+  private final JRMinimizationAction action;
+  private final String               description;
+  private final int                  index;
+  private final String               kind;
+
+  JRMinimizationEntry(
+    final String in_kind,
+    final int in_index,
+    final JRMinimizationAction in_action,
+    final String in_description)
+  {
+    this.kind = NullCheck.notNull(in_kind);
+    this.index = in_index;
+    this.action = NullCheck.notNull(in_action);
+    this.description = NullCheck.notNull(in_description);
+  }
+
+  /**
+   * @return The reason that the rule was removed
+   */
+
+  public JRMinimizationAction getAction()
+  {
+    return this.action;
+  }
+
+  /**
+   * @return A human-readable description of the removal
+   */
+
+  public String getDescription()
+  {
+    return this.description;
+  }
+
+  /**
+   * @return The index of the rule in the order in which rules of its kind
+   *         were given to the builder
+   */
+
+  public int getRuleIndex()
+  {
+    return this.index;
+  }
+
+  /**
+   * @return The kind of rule: <tt>class</tt> or <tt>resource</tt>
+   */
+
+  public String getRuleKind()
+  {
+    return this.kind;
+  }
+
+  @Override public String toString()
+  {
+    return NullCheck.notNull(String.format(
+      "%s rule [%d] %s: %s",
+      this.kind,
+      Integer.valueOf(this.index),
+      this.action,
+      this.description));
+  }
+}
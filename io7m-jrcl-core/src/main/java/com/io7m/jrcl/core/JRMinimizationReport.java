@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * <p>
+ * The result of minimizing the rules of a {@link JRSequentialPolicy}.
+ * </p>
+ * <p>
+ * The estimated speedup compares the worst-case cost of evaluating every
+ * rule of the policy before and after minimization, where the cost of a
+ * pattern rule is estimated from the analysis of its pattern (see
+ * {@link JRPatternAnalysis#estimateWorstCaseSteps(int)}) for names of
+ * {@link #ASSUMED_NAME_LENGTH} characters, limited by its step budget.
+ * </p>
+ *
+ * @see JRSequentialPolicyBuilderType#setRuleMinimization(boolean)
+ */
+
+public final class JRMinimizationReport
+{
+  /**
+   * The name length assumed when estimating the cost of rules.
+   */
+
+  public static final int                 ASSUMED_NAME_LENGTH = 64;
+
+  private final long                      cost_after;
+  private final long                      cost_before;
+  private final List<JRMinimizationEntry> entries;
+  private final int                       rules_after;
+  private final int                       rules_before;
+
+  JRMinimizationReport(
+    final List<JRMinimizationEntry> in_entries,
+    final int in_rules_before,
+    final int in_rules_after,
+    final long in_cost_before,
+    final long in_cost_after)
+  {
+    this.entries =
+      NullCheck.notNull(Collections.unmodifiableList(in_entries));
+    this.rules_before = in_rules_before;
+    this.rules_after = in_rules_after;
+    this.cost_before = in_cost_before;
+    this.cost_after = in_cost_after;
+  }
+
+  /**
+   * @return The rules removed, in the order in which they were removed
+   */
+
+  public List<JRMinimizationEntry> getEntries()
+  {
+    return this.entries;
+  }
+
+  /**
+   * @return The estimated ratio of the worst-case cost of evaluating the
+   *         rules before minimization to the cost after minimization
+   */
+
+  public double getEstimatedSpeedup()
+  {
+    return (1.0 + this.cost_before) / (1.0 + this.cost_after);
+  }
+
+  /**
+   * @return The number of rules after minimization
+   */
+
+  public int getRulesAfter()
+  {
+    return this.rules_after;
+  }
+
+  /**
+   * @return The number of rules before minimization
+   */
+
+  public int getRulesBefore()
+  {
+    return this.rules_before;
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRMinimizationReport rules=");
+    b.append(this.rules_before);
+    b.append("->");
+    b.append(this.rules_after);
+    b.append(" speedup=");
+    b.append(String.format("%.2f", Double.valueOf(this.getEstimatedSpeedup())));
+    for (final JRMinimizationEntry e : this.entries) {
+      b.append(" (");
+      b.append(e);
+      b.append(")");
+    }
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
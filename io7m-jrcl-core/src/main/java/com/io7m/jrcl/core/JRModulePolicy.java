@@ -0,0 +1,344 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * A policy that allows or denies whole modules of a {@link ModuleLayer}.
+ * </p>
+ * <p>
+ * When the policy is built, the conclusion for each module of the layer
+ * and of its parent layers is decided once by a series of rules matching
+ * module names (see {@link JRModulePolicyBuilderType}), and the packages of
+ * the modules are indexed in a {@link JRNameSet}.
+ * Checking a class or resource then costs a single lookup of its package:
+ * names in the packages of a module with a conclusion receive that
+ * conclusion, and all other names, including those of the unnamed module
+ * and of modules that no rule matched, are passed to a <i>fallback</i>
+ * policy such as a {@link JRSequentialPolicy}.
+ * </p>
+ * <p>
+ * A package belongs to at most one module of a layer. If modules in
+ * different layers contain the same package, the module in the layer
+ * nearest to the given layer is used.
+ * </p>
+ */
+
+public final class JRModulePolicy implements JRClassLoaderPolicyType
+{
+  private static final class Builder implements JRModulePolicyBuilderType
+  {
+    private final JRClassLoaderPolicyType fallback;
+    private final ModuleLayer             layer;
+    private final List<ModuleRule>        rules;
+
+    Builder(
+      final ModuleLayer in_layer,
+      final JRClassLoaderPolicyType in_fallback)
+    {
+      this.layer = NullCheck.notNull(in_layer);
+      this.fallback = NullCheck.notNull(in_fallback);
+      this.rules = new ArrayList<ModuleRule>();
+    }
+
+    @Override public void addModuleRule(
+      final Pattern p,
+      final JRRuleConclusion c,
+      final boolean quick)
+    {
+      this.rules.add(new ModuleRule(p, c, quick));
+    }
+
+    @Override public JRModulePolicy build()
+    {
+      return new JRModulePolicy(
+        this.layer,
+        new ArrayList<ModuleRule>(this.rules),
+        this.fallback);
+    }
+  }
+
+  private static final class ModuleRule
+  {
+    final JRRuleConclusion conclusion;
+    final Pattern          pattern;
+    final boolean          quick;
+
+    ModuleRule(
+      final Pattern in_pattern,
+      final JRRuleConclusion in_conclusion,
+      final boolean in_quick)
+    {
+      this.pattern = NullCheck.notNull(in_pattern);
+      this.conclusion = NullCheck.notNull(in_conclusion);
+      this.quick = in_quick;
+    }
+  }
+
+  private static final Logger LOG;
+
+  static {
+    LOG = NullCheck.notNull(LoggerFactory.getLogger(JRModulePolicy.class));
+  }
+
+  /**
+   * @return The conclusion of the rules for the given module, or
+   *         <tt>null</tt> if no rule matched
+   */
+
+  private static @Nullable JRRuleConclusion decide(
+    final List<ModuleRule> rules,
+    final String module)
+  {
+    JRRuleConclusion current = null;
+    for (final ModuleRule rule : rules) {
+      if (rule.pattern.matcher(module).matches()) {
+        current = rule.conclusion;
+        if (rule.quick) {
+          break;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * @return The layer and its ancestors, nearest first
+   */
+
+  private static List<ModuleLayer> layers(
+    final ModuleLayer layer)
+  {
+    final Set<ModuleLayer> seen = new LinkedHashSet<ModuleLayer>();
+    final ArrayDeque<ModuleLayer> pending = new ArrayDeque<ModuleLayer>();
+    pending.add(layer);
+    while (!pending.isEmpty()) {
+      final ModuleLayer current = pending.remove();
+      if (seen.add(current)) {
+        pending.addAll(current.parents());
+      }
+    }
+    return new ArrayList<ModuleLayer>(seen);
+  }
+
+  /**
+   * @param layer
+   *          The module layer
+   * @param fallback
+   *          The policy that decides names that are not in a module with a
+   *          conclusion
+   * @return A new policy builder
+   */
+
+  public static JRModulePolicyBuilderType newPolicyBuilder(
+    final ModuleLayer layer,
+    final JRClassLoaderPolicyType fallback)
+  {
+    return new Builder(layer, fallback);
+  }
+
+  private final JRNameSet                     class_packages;
+  private final @Nullable JRRuleConclusion[]  conclusions;
+  private final JRClassLoaderPolicyType       fallback;
+  private final Map<String, JRRuleConclusion> module_conclusions;
+  private final Module[]                      modules;
+  private final JRNameSet                     resource_packages;
+  private final int[]                         resource_slots;
+
+  private JRModulePolicy(
+    final ModuleLayer in_layer,
+    final List<ModuleRule> in_rules,
+    final JRClassLoaderPolicyType in_fallback)
+  {
+    this.fallback = NullCheck.notNull(in_fallback);
+
+    final Map<String, Module> by_package = new LinkedHashMap<String, Module>();
+    final Map<String, JRRuleConclusion> decided =
+      new HashMap<String, JRRuleConclusion>();
+    for (final ModuleLayer layer : JRModulePolicy.layers(in_layer)) {
+      for (final Module m : layer.modules()) {
+        final String name = NullCheck.notNull(m.getName());
+        if (!decided.containsKey(name)) {
+          final JRRuleConclusion c = JRModulePolicy.decide(in_rules, name);
+          if (c != null) {
+            decided.put(name, c);
+            JRModulePolicy.LOG.debug("module {} {}", name, c);
+          }
+        }
+        for (final String p : m.getPackages()) {
+          by_package.putIfAbsent(p, m);
+        }
+      }
+    }
+    this.module_conclusions =
+      NullCheck.notNull(Collections.unmodifiableMap(decided));
+
+    this.class_packages =
+      JRNameSet.create(by_package.keySet(), JRNameSetStorage.HEAP);
+    final List<String> packages = this.class_packages.names();
+    this.modules = new Module[packages.size()];
+    this.conclusions = new JRRuleConclusion[packages.size()];
+
+    final List<String> paths = new ArrayList<String>(packages.size());
+    for (int slot = 0; slot < packages.size(); ++slot) {
+      final String p = NullCheck.notNull(packages.get(slot));
+      final Module m = NullCheck.notNull(by_package.get(p));
+      this.modules[slot] = m;
+      this.conclusions[slot] = decided.get(m.getName());
+      paths.add(p.replace('.', '/'));
+    }
+
+    /**
+     * Resource names use <tt>/</tt> as the separator, and so are looked up
+     * in a second set whose positions map to those of the first.
+     */
+
+    this.resource_packages = JRNameSet.create(paths, JRNameSetStorage.HEAP);
+    final List<String> r_paths = this.resource_packages.names();
+    this.resource_slots = new int[r_paths.size()];
+    for (int slot = 0; slot < r_paths.size(); ++slot) {
+      final String path = NullCheck.notNull(r_paths.get(slot));
+      this.resource_slots[slot] =
+        this.class_packages.indexOfPrefix(
+          path.replace('/', '.'),
+          path.length());
+    }
+
+    JRMemoryGovernor.get().register(
+      this,
+      JRMemoryConsumerKind.MODULE_POLICY,
+      JRMemoryGovernor.describe(this),
+      JRMemorySizes.OBJECT
+        + (2L * JRMemorySizes.array(
+          this.modules.length,
+          JRMemorySizes.REFERENCE))
+        + JRMemorySizes.array(this.resource_slots.length, 4L),
+      0L);
+  }
+
+  /**
+   * @param name
+   *          A binary class name
+   * @return The module containing the package of the class, or
+   *         <tt>null</tt> if the package is not in any module of the layer
+   */
+
+  public @Nullable Module findModuleOfClass(
+    final String name)
+  {
+    final int slot = this.classSlot(NullCheck.notNull(name));
+    return (slot >= 0) ? this.modules[slot] : null;
+  }
+
+  private int classSlot(
+    final String name)
+  {
+    final int dot = name.lastIndexOf('.');
+    if (dot <= 0) {
+      return -1;
+    }
+    return this.class_packages.indexOfPrefix(name, dot);
+  }
+
+  /**
+   * @param module
+   *          The name of a module
+   * @return The conclusion decided for the module, or <tt>null</tt> if the
+   *         module is not in the layer or no rule matched it
+   */
+
+  public @Nullable JRRuleConclusion getModuleConclusion(
+    final String module)
+  {
+    return this.module_conclusions.get(NullCheck.notNull(module));
+  }
+
+  @Override public boolean policyAllowsClass(
+    final String name)
+  {
+    NullCheck.notNull(name);
+
+    final int slot = this.classSlot(name);
+    if (slot >= 0) {
+      final JRRuleConclusion c = this.conclusions[slot];
+      if (c != null) {
+        if (JRModulePolicy.LOG.isDebugEnabled()) {
+          JRModulePolicy.LOG.debug(
+            "class {} {} (module {})",
+            c,
+            name,
+            this.modules[slot].getName());
+        }
+        return c == JRRuleConclusion.ALLOW;
+      }
+    }
+    return this.fallback.policyAllowsClass(name);
+  }
+
+  @Override public boolean policyAllowsResource(
+    final String name)
+  {
+    NullCheck.notNull(name);
+
+    final int slash = name.lastIndexOf('/');
+    if (slash > 0) {
+      final int r_slot = this.resource_packages.indexOfPrefix(name, slash);
+      if (r_slot >= 0) {
+        final int slot = this.resource_slots[r_slot];
+        final JRRuleConclusion c = this.conclusions[slot];
+        if (c != null) {
+          if (JRModulePolicy.LOG.isDebugEnabled()) {
+            JRModulePolicy.LOG.debug(
+              "resource {} {} (module {})",
+              c,
+              name,
+              this.modules[slot].getName());
+          }
+          return c == JRRuleConclusion.ALLOW;
+        }
+      }
+    }
+    return this.fallback.policyAllowsResource(name);
+  }
+
+  /**
+   * The conclusions for modules never change, so the version of the policy
+   * is that of the fallback policy.
+   */
+
+  @Override public long policyVersion()
+  {
+    return this.fallback.policyVersion();
+  }
+}
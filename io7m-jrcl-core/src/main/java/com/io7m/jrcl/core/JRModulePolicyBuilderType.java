@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.regex.Pattern;
+
+/**
+ * A module policy builder.
+ */
+
+public interface JRModulePolicyBuilderType
+{
+  /**
+   * <p>
+   * Add a rule matching the names of modules. Module rules are evaluated in
+   * order against the name of each module when the policy is built, in the
+   * same manner as the rules of a {@link JRSequentialPolicy}: the last
+   * matching rule decides, unless a matching rule is <tt>quick</tt>, in
+   * which case evaluation stops at that rule.
+   * </p>
+   * <p>
+   * The conclusion of a module applies to every class and resource in the
+   * packages of the module. Modules that no rule matches are left to the
+   * fallback policy.
+   * </p>
+   *
+   * @param p
+   *          The pattern matching module names
+   * @param c
+   *          The conclusion
+   * @param quick
+   *          <tt>true</tt> if evaluation should stop at this rule when it
+   *          matches
+   */
+
+  void addModuleRule(
+    Pattern p,
+    JRRuleConclusion c,
+    boolean quick);
+
+  /**
+   * Index the packages of the modules of the layer and its parents, and
+   * decide the conclusion for each module.
+   *
+   * @return A policy based on the parameters given so far
+   */
+
+  JRModulePolicy build();
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * A set of {@link JRSequentialPolicy} values, compiled so that they can be
+ * evaluated together.
+ * </p>
+ * <p>
+ * Evaluating a name against a multi-policy yields a bitmask with bit
+ * <tt>i</tt> set if and only if policy <tt>i</tt> allows the name. Rules
+ * that occur in several policies (those with the same pattern and flags, or
+ * the same set of names) are matched against the name at most once per
+ * evaluation, and rules that no policy reaches are not matched at all. The
+ * cost of evaluating hundreds of policies that share most of their rules is
+ * therefore close to the cost of evaluating one of them.
+ * </p>
+ */
+
+@SuppressWarnings("synthetic-access") public final class JRMultiPolicy
+{
+  /**
+   * Per-evaluation memory of which rules have been matched, and with what
+   * result. One instance is kept per table and is taken by whichever thread
+   * uses it first; a thread that finds it taken allocates a temporary one.
+   */
+
+  private static final class Scratch
+  {
+    final long[] evaluated;
+    final long[] exceeded;
+    final long[] matched;
+
+    Scratch(
+      final int rules)
+    {
+      final int words = JRMultiPolicy.wordsFor(rules);
+      this.evaluated = new long[words];
+      this.matched = new long[words];
+      this.exceeded = new long[words];
+    }
+  }
+
+  /**
+   * The compiled rules for one kind of name.
+   */
+
+  private static final class Table
+  {
+    private static final int       CODE_ALLOW = 0b10;
+    private static final int       CODE_QUICK = 0b01;
+    private static final VarHandle SCRATCH;
+
+    static {
+      try {
+        SCRATCH =
+          MethodHandles.lookup().findVarHandle(
+            Table.class,
+            "scratch",
+            Scratch.class);
+      } catch (final NoSuchFieldException | IllegalAccessException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    static Table compile(
+      final List<JRRuleConclusion> defaults,
+      final List<JRRule[]> policies)
+    {
+      final Map<Object, Integer> keys = new HashMap<Object, Integer>();
+      final List<JRRule> distinct = new ArrayList<JRRule>();
+      final int[][] codes = new int[policies.size()][];
+      final boolean[] allow = new boolean[policies.size()];
+
+      for (int policy = 0; policy < codes.length; ++policy) {
+        allow[policy] = defaults.get(policy) == JRRuleConclusion.ALLOW;
+
+        final JRRule[] rules = NullCheck.notNull(policies.get(policy));
+        final int[] policy_codes = new int[rules.length];
+        for (int index = 0; index < rules.length; ++index) {
+          final JRRule rule = NullCheck.notNull(rules[index]);
+          final Object key = rule.getMatchKey();
+          Integer id = keys.get(key);
+          if (id == null) {
+            id = Integer.valueOf(distinct.size());
+            keys.put(key, id);
+            distinct.add(rule);
+          }
+
+          int code = id.intValue() << 2;
+          if (rule.isQuick()) {
+            code |= Table.CODE_QUICK;
+          }
+          if (rule.getConclusion() == JRRuleConclusion.ALLOW) {
+            code |= Table.CODE_ALLOW;
+          }
+          policy_codes[index] = code;
+        }
+        codes[policy] = policy_codes;
+      }
+
+      return new Table(
+        distinct.toArray(new JRRule[distinct.size()]),
+        codes,
+        allow);
+    }
+
+    /**
+     * For each policy, the rules of the policy in order. Each rule is
+     * encoded as the index of its distinct rule, shifted left by two, with
+     * {@link #CODE_ALLOW} and {@link #CODE_QUICK} set for allowing and quick
+     * rules.
+     */
+
+    private final int[][]          codes;
+    private final boolean[]        default_allow;
+    private final JRRule[]         rules;
+    private @Nullable Scratch      scratch;
+
+    private Table(
+      final JRRule[] in_rules,
+      final int[][] in_codes,
+      final boolean[] in_default_allow)
+    {
+      this.rules = in_rules;
+      this.codes = in_codes;
+      this.default_allow = in_default_allow;
+    }
+
+    /**
+     * @return The estimated heap retained by the table, excluding the rules,
+     *         which belong to the compiled policies
+     */
+
+    long getByteSize()
+    {
+      long size =
+        JRMemorySizes.OBJECT
+          + JRMemorySizes.array(this.rules.length, JRMemorySizes.REFERENCE)
+          + JRMemorySizes.array(this.codes.length, JRMemorySizes.REFERENCE)
+          + JRMemorySizes.array(this.default_allow.length, 1L);
+      for (final int[] c : this.codes) {
+        size += JRMemorySizes.array(c.length, 4L);
+      }
+      return size;
+    }
+
+    void evaluate(
+      final String type,
+      final String name,
+      final long[] mask)
+    {
+      Scratch s = (Scratch) Table.SCRATCH.getAndSet(this, null);
+      if (s == null) {
+        s = new Scratch(this.rules.length);
+      }
+
+      try {
+        Arrays.fill(mask, 0L);
+        for (int policy = 0; policy < this.codes.length; ++policy) {
+          if (this.evaluatePolicy(type, name, s, policy)) {
+            mask[policy >>> 6] |= 1L << policy;
+          }
+        }
+      } finally {
+        Arrays.fill(s.evaluated, 0L);
+        Table.SCRATCH.setRelease(this, s);
+      }
+    }
+
+    private boolean evaluatePolicy(
+      final String type,
+      final String name,
+      final Scratch s,
+      final int policy)
+    {
+      boolean allow = this.default_allow[policy];
+      for (final int code : this.codes[policy]) {
+        final int rule = code >>> 2;
+        final int word = rule >>> 6;
+        final long bit = 1L << rule;
+
+        if ((s.evaluated[word] & bit) == 0L) {
+          this.match(type, name, s, rule);
+        }
+        if ((s.exceeded[word] & bit) != 0L) {
+          return false;
+        }
+        if ((s.matched[word] & bit) != 0L) {
+          allow = (code & Table.CODE_ALLOW) != 0;
+          if ((code & Table.CODE_QUICK) != 0) {
+            break;
+          }
+        }
+      }
+      return allow;
+    }
+
+    private void match(
+      final String type,
+      final String name,
+      final Scratch s,
+      final int index)
+    {
+      final int word = index >>> 6;
+      final long bit = 1L << index;
+      final JRRule rule = NullCheck.notNull(this.rules[index]);
+
+      s.evaluated[word] |= bit;
+      s.matched[word] &= ~bit;
+      s.exceeded[word] &= ~bit;
+
+      try {
+        if (rule.matches(name)) {
+          s.matched[word] |= bit;
+        }
+      } catch (final JRRule.StepBudgetExceeded e) {
+        JRMultiPolicy.LOG.error(
+          "{} rule: {} exceeded the budget of {} steps matching {}; "
+            + "denying",
+          type,
+          rule,
+          rule.getStepBudget(),
+          name);
+        s.exceeded[word] |= bit;
+      }
+    }
+  }
+
+  private static final Logger LOG;
+
+  static {
+    LOG = NullCheck.notNull(LoggerFactory.getLogger(JRMultiPolicy.class));
+  }
+
+  /**
+   * Compile the given policies. Bit <tt>i</tt> of the masks produced by the
+   * resulting multi-policy corresponds to element <tt>i</tt> of
+   * <tt>policies</tt>.
+   *
+   * @param policies
+   *          The policies
+   * @return A multi-policy
+   */
+
+  public static JRMultiPolicy compile(
+    final List<JRSequentialPolicy> policies)
+  {
+    NullCheck.notNull(policies);
+
+    final List<JRRuleConclusion> class_defaults =
+      new ArrayList<JRRuleConclusion>(policies.size());
+    final List<JRRule[]> class_rules = new ArrayList<JRRule[]>();
+    final List<JRRuleConclusion> resource_defaults =
+      new ArrayList<JRRuleConclusion>(policies.size());
+    final List<JRRule[]> resource_rules = new ArrayList<JRRule[]>();
+
+    for (final JRSequentialPolicy p : policies) {
+      NullCheck.notNull(p);
+      class_defaults.add(p.getClassDefault());
+      class_rules.add(p.getClassRules());
+      resource_defaults.add(p.getResourceDefault());
+      resource_rules.add(p.getResourceRules());
+    }
+
+    final Table classes = Table.compile(class_defaults, class_rules);
+    final Table resources = Table.compile(resource_defaults, resource_rules);
+    JRMultiPolicy.LOG.debug(
+      "compiled {} policies: {} distinct class rules, {} distinct resource "
+        + "rules",
+      policies.size(),
+      classes.rules.length,
+      resources.rules.length);
+    return new JRMultiPolicy(policies.size(), classes, resources);
+  }
+
+  private static int wordsFor(
+    final int bits)
+  {
+    return (bits + 63) >>> 6;
+  }
+
+  private final Table classes;
+  private final int   count;
+  private final Table resources;
+
+  private JRMultiPolicy(
+    final int in_count,
+    final Table in_classes,
+    final Table in_resources)
+  {
+    this.count = in_count;
+    this.classes = in_classes;
+    this.resources = in_resources;
+
+    JRMemoryGovernor.get().register(
+      this,
+      JRMemoryConsumerKind.MULTI_POLICY,
+      JRMemoryGovernor.describe(this),
+      JRMemorySizes.OBJECT
+        + in_classes.getByteSize()
+        + in_resources.getByteSize(),
+      0L);
+  }
+
+  private void checkMask(
+    final long[] mask)
+  {
+    NullCheck.notNull(mask);
+    if (mask.length < this.getMaskWords()) {
+      throw new IllegalArgumentException(String.format(
+        "Mask has %d words, but %d are required",
+        mask.length,
+        this.getMaskWords()));
+    }
+  }
+
+  /**
+   * Evaluate a class name against all of the policies. Bit <tt>i</tt> of the
+   * mask is stored in bit <tt>i % 64</tt> of <tt>mask[i / 64]</tt>. Bits
+   * beyond the number of policies are cleared.
+   *
+   * @param name
+   *          The class name
+   * @param mask
+   *          An array of at least {@link #getMaskWords()} elements that
+   *          receives the mask of the policies that allow the class
+   */
+
+  public void classAllowedMask(
+    final String name,
+    final long[] mask)
+  {
+    NullCheck.notNull(name);
+    this.checkMask(mask);
+    this.classes.evaluate("class", name, mask);
+  }
+
+  /**
+   * @return The number of <tt>long</tt> values required to hold a mask
+   */
+
+  public int getMaskWords()
+  {
+    return JRMultiPolicy.wordsFor(this.count);
+  }
+
+  /**
+   * @return The number of policies
+   */
+
+  public int getPolicyCount()
+  {
+    return this.count;
+  }
+
+  /**
+   * Evaluate a class name against all of the policies.
+   *
+   * @param name
+   *          The class name
+   * @return The set of indices of the policies that allow the class
+   */
+
+  public BitSet policiesAllowingClass(
+    final String name)
+  {
+    final long[] mask = new long[this.getMaskWords()];
+    this.classAllowedMask(name, mask);
+    return NullCheck.notNull(BitSet.valueOf(mask));
+  }
+
+  /**
+   * Evaluate a resource name against all of the policies.
+   *
+   * @param name
+   *          The resource name
+   * @return The set of indices of the policies that allow the resource
+   */
+
+  public BitSet policiesAllowingResource(
+    final String name)
+  {
+    final long[] mask = new long[this.getMaskWords()];
+    this.resourceAllowedMask(name, mask);
+    return NullCheck.notNull(BitSet.valueOf(mask));
+  }
+
+  /**
+   * Evaluate a resource name against all of the policies.
+   *
+   * @param name
+   *          The resource name
+   * @param mask
+   *          An array of at least {@link #getMaskWords()} elements that
+   *          receives the mask of the policies that allow the resource
+   *
+   * @see #classAllowedMask(String, long[])
+   */
+
+  public void resourceAllowedMask(
+    final String name,
+    final long[] mask)
+  {
+    NullCheck.notNull(name);
+    this.checkMask(mask);
+    this.resources.evaluate("resource", name, mask);
+  }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * An immutable set of names, stored as a minimal perfect hash table.
+ * </p>
+ * <p>
+ * Names are hashed once to 64 bits. The upper half of the hash selects a
+ * <i>bucket</i>, and each bucket holds a <i>displacement</i> that was chosen
+ * when the set was built so that rehashing the hashes of the names in the
+ * bucket with it places every name of the set in a distinct slot (the
+ * "hash and displace" scheme). Looking up a name therefore takes one hash
+ * of the name, one read of a displacement, and one comparison against the
+ * name stored in the resulting slot, regardless of the size of the set.
+ * </p>
+ * <p>
+ * The table is stored in a single buffer, either on or off the heap: the
+ * displacements (four bytes per bucket, with an average of
+ * {@link #BUCKET_SIZE} names per bucket), the end offsets of the names (four
+ * bytes per name), and the names themselves, in ISO-8859-1 if every name
+ * can be represented in it and in UTF-16 otherwise. The overhead is
+ * therefore around five bytes per name. A table is stored on the heap if
+ * storing it off the heap would exceed the off-heap budget of the
+ * {@link JRMemoryGovernor}.
+ * </p>
+ */
+
+final class JRNameSet
+{
+  /**
+   * The average number of names per bucket.
+   */
+
+  static final int          BUCKET_SIZE  = 4;
+
+  private static final long FNV_PRIME    = 0x100000001B3L;
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+  private static final int  SEEDS        = 16;
+
+  private static int bucketOf(
+    final long hash,
+    final int buckets)
+  {
+    return (int) (((hash >>> 32) * buckets) >>> 32);
+  }
+
+  /**
+   * Build a set from the given names. Duplicate names are ignored.
+   *
+   * @param names
+   *          The names
+   * @param storage
+   *          The storage for the table
+   * @return A new set
+   */
+
+  static JRNameSet create(
+    final Collection<String> names,
+    final JRNameSetStorage storage)
+  {
+    NullCheck.notNull(storage);
+
+    final Set<String> unique = new LinkedHashSet<String>(names.size());
+    for (final String name : names) {
+      unique.add(NullCheck.notNull(name));
+    }
+
+    final String[] keys = unique.toArray(new String[unique.size()]);
+    final int count = keys.length;
+    final int buckets =
+      Math.max(1, (count + JRNameSet.BUCKET_SIZE - 1) / JRNameSet.BUCKET_SIZE);
+
+    boolean wide = false;
+    long chars = 0L;
+    for (final String key : keys) {
+      chars += key.length();
+      for (int index = 0; index < key.length(); ++index) {
+        wide = wide || (key.charAt(index) > 0xff);
+      }
+    }
+
+    final long string_bytes = wide ? chars * 2L : chars;
+    final long total =
+      (buckets * 4L) + ((count + 1L) * 4L) + string_bytes;
+    if (total > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(String.format(
+        "Name set of %d names requires %d bytes, which is too large",
+        count,
+        total));
+    }
+
+    final long[] hashes = new long[count];
+    final int[] displacements = new int[buckets];
+    final int[] slots = new int[count];
+    for (int attempt = 0; attempt < JRNameSet.SEEDS; ++attempt) {
+      final long seed = JRNameSet.mix(attempt * JRNameSet.GOLDEN_GAMMA);
+      for (int index = 0; index < count; ++index) {
+        final String key = NullCheck.notNull(keys[index]);
+        hashes[index] = JRNameSet.hash(key, key.length(), seed);
+      }
+
+      if (JRNameSet.place(hashes, buckets, displacements, slots)) {
+        return JRNameSet.layout(
+          storage,
+          keys,
+          seed,
+          wide,
+          buckets,
+          displacements,
+          slots,
+          (int) total);
+      }
+    }
+
+    /**
+     * Each attempt fails only if two names share a 64-bit hash, or the
+     * search for a displacement is unusually unlucky.
+     */
+
+    throw new IllegalStateException(String.format(
+      "Could not build a perfect hash table for %d names",
+      count));
+  }
+
+  /**
+   * Hash a name with the 64-bit FNV-1a hash of its characters, followed by
+   * a finalizer that spreads the bits over the whole word.
+   */
+
+  private static long hash(
+    final String name,
+    final int length,
+    final long seed)
+  {
+    long h = seed ^ (length * JRNameSet.GOLDEN_GAMMA);
+    for (int index = 0; index < length; ++index) {
+      h = (h ^ name.charAt(index)) * JRNameSet.FNV_PRIME;
+    }
+    return JRNameSet.mix(h);
+  }
+
+  private static JRNameSet layout(
+    final JRNameSetStorage storage,
+    final String[] keys,
+    final long seed,
+    final boolean wide,
+    final int buckets,
+    final int[] displacements,
+    final int[] slots,
+    final int total)
+  {
+    /**
+     * A table that would exceed the off-heap budget of the governor is
+     * stored on the heap instead. An admitted table is reserved in the
+     * off-heap total, and the reservation is settled when the set is
+     * registered.
+     */
+
+    final ByteBuffer data;
+    final JRNameSetStorage actual;
+    switch (storage) {
+      case HEAP:
+        data = ByteBuffer.allocate(total);
+        actual = JRNameSetStorage.HEAP;
+        break;
+      case OFF_HEAP:
+        if (JRMemoryGovernor.get().admitOffHeap(total, "a name set")) {
+          try {
+            data = ByteBuffer.allocateDirect(total);
+          } catch (final OutOfMemoryError e) {
+            JRMemoryGovernor.get().releaseOffHeap(total);
+            throw e;
+          }
+          actual = JRNameSetStorage.OFF_HEAP;
+        } else {
+          data = ByteBuffer.allocate(total);
+          actual = JRNameSetStorage.HEAP;
+        }
+        break;
+      default:
+        throw new UnreachableCodeException();
+    }
+    data.order(ByteOrder.nativeOrder());
+
+    final int count = keys.length;
+    final int offsets_base = buckets * 4;
+    final int strings_base = offsets_base + ((count + 1) * 4);
+
+    for (int bucket = 0; bucket < buckets; ++bucket) {
+      data.putInt(bucket * 4, displacements[bucket]);
+    }
+
+    final String[] by_slot = new String[count];
+    for (int index = 0; index < count; ++index) {
+      by_slot[slots[index]] = keys[index];
+    }
+
+    int offset = 0;
+    data.putInt(offsets_base, 0);
+    for (int slot = 0; slot < count; ++slot) {
+      final String key = NullCheck.notNull(by_slot[slot]);
+      for (int index = 0; index < key.length(); ++index) {
+        final char c = key.charAt(index);
+        if (wide) {
+          data.putChar(strings_base + offset, c);
+          offset += 2;
+        } else {
+          data.put(strings_base + offset, (byte) c);
+          offset += 1;
+        }
+      }
+      data.putInt(offsets_base + ((slot + 1) * 4), offset);
+    }
+
+    return new JRNameSet(
+      actual,
+      data,
+      seed,
+      wide,
+      count,
+      buckets,
+      offsets_base,
+      strings_base);
+  }
+
+  private static long mix(
+    final long x)
+  {
+    long z = x;
+    z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+    z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return z ^ (z >>> 33);
+  }
+
+  /**
+   * Find a displacement for each bucket, largest buckets first, such that
+   * every name lands in a distinct slot.
+   *
+   * @return <tt>false</tt> if some bucket could not be placed
+   */
+
+  private static boolean place(
+    final long[] hashes,
+    final int buckets,
+    final int[] displacements,
+    final int[] slots)
+  {
+    final int count = hashes.length;
+
+    final int[] starts = new int[buckets + 1];
+    for (final long h : hashes) {
+      starts[JRNameSet.bucketOf(h, buckets) + 1] += 1;
+    }
+    for (int bucket = 0; bucket < buckets; ++bucket) {
+      starts[bucket + 1] += starts[bucket];
+    }
+
+    final int[] members = new int[count];
+    final int[] fill = Arrays.copyOf(starts, buckets);
+    for (int index = 0; index < count; ++index) {
+      final int bucket = JRNameSet.bucketOf(hashes[index], buckets);
+      members[fill[bucket]] = index;
+      fill[bucket] += 1;
+    }
+
+    /**
+     * Order buckets by decreasing size: the large buckets are the hardest
+     * to place, and are best placed while most slots are still free.
+     */
+
+    final long[] order = new long[buckets];
+    int largest = 0;
+    for (int bucket = 0; bucket < buckets; ++bucket) {
+      final int size = starts[bucket + 1] - starts[bucket];
+      largest = Math.max(largest, size);
+      order[bucket] = ((long) (Integer.MAX_VALUE - size) << 32) | bucket;
+    }
+    Arrays.sort(order);
+
+    final boolean[] taken = new boolean[count];
+    final int[] candidate = new int[largest];
+    final int limit = Math.max(1 << 20, count * 16);
+
+    for (final long entry : order) {
+      final int bucket = (int) entry;
+      final int start = starts[bucket];
+      final int size = starts[bucket + 1] - start;
+      displacements[bucket] = 0;
+      if (size == 0) {
+        continue;
+      }
+
+      boolean placed = false;
+      for (int d = 0; d < limit; ++d) {
+        placed = true;
+        for (int member = 0; member < size; ++member) {
+          final int slot =
+            JRNameSet.slotOf(hashes[members[start + member]], d, count);
+          if (taken[slot]) {
+            placed = false;
+            break;
+          }
+          for (int other = 0; other < member; ++other) {
+            if (candidate[other] == slot) {
+              placed = false;
+              break;
+            }
+          }
+          if (!placed) {
+            break;
+          }
+          candidate[member] = slot;
+        }
+
+        if (placed) {
+          displacements[bucket] = d;
+          for (int member = 0; member < size; ++member) {
+            taken[candidate[member]] = true;
+            slots[members[start + member]] = candidate[member];
+          }
+          break;
+        }
+      }
+
+      if (!placed) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static int slotOf(
+    final long hash,
+    final int displacement,
+    final int count)
+  {
+    final long h = JRNameSet.mix(hash + (displacement * JRNameSet.GOLDEN_GAMMA));
+    return (int) (((h >>> 32) * count) >>> 32);
+  }
+
+  private final int              buckets;
+  private final int              count;
+  private final ByteBuffer       data;
+  private final int              offsets_base;
+  private final long             seed;
+  private final JRNameSetStorage storage;
+  private final int              strings_base;
+  private final boolean          wide;
+
+  private JRNameSet(
+    final JRNameSetStorage in_storage,
+    final ByteBuffer in_data,
+    final long in_seed,
+    final boolean in_wide,
+    final int in_count,
+    final int in_buckets,
+    final int in_offsets_base,
+    final int in_strings_base)
+  {
+    this.storage = in_storage;
+    this.data = in_data;
+    this.seed = in_seed;
+    this.wide = in_wide;
+    this.count = in_count;
+    this.buckets = in_buckets;
+    this.offsets_base = in_offsets_base;
+    this.strings_base = in_strings_base;
+
+    JRMemoryGovernor.get().registerAdmitted(
+      this,
+      JRMemoryConsumerKind.NAME_SET,
+      JRMemoryGovernor.describe(this),
+      JRMemorySizes.nameSetHeap(this),
+      JRMemorySizes.nameSetOffHeap(this));
+  }
+
+  /**
+   * @param name
+   *          The name
+   * @return <tt>true</tt> iff <tt>name</tt> is in the set
+   */
+
+  boolean contains(
+    final String name)
+  {
+    return this.containsPrefix(name, name.length());
+  }
+
+  /**
+   * @param name
+   *          The name
+   * @param length
+   *          The length of the prefix of <tt>name</tt>
+   * @return <tt>true</tt> iff the first <tt>length</tt> characters of
+   *         <tt>name</tt> are in the set
+   */
+
+  boolean containsPrefix(
+    final String name,
+    final int length)
+  {
+    return this.indexOfPrefix(name, length) >= 0;
+  }
+
+  /**
+   * @param name
+   *          The name
+   * @param length
+   *          The length of the prefix of <tt>name</tt>
+   * @return The position of the first <tt>length</tt> characters of
+   *         <tt>name</tt> in {@link #names()}, or <tt>-1</tt> if they are not
+   *         in the set
+   */
+
+  int indexOfPrefix(
+    final String name,
+    final int length)
+  {
+    if (this.count == 0) {
+      return -1;
+    }
+
+    final long h = JRNameSet.hash(name, length, this.seed);
+    final int bucket = JRNameSet.bucketOf(h, this.buckets);
+    final int displacement = this.data.getInt(bucket * 4);
+    final int slot = JRNameSet.slotOf(h, displacement, this.count);
+
+    final int start = this.data.getInt(this.offsets_base + (slot * 4));
+    final int end = this.data.getInt(this.offsets_base + ((slot + 1) * 4));
+    final int base = this.strings_base + start;
+
+    if (this.wide) {
+      if ((end - start) != (length * 2)) {
+        return -1;
+      }
+      for (int index = 0; index < length; ++index) {
+        if (this.data.getChar(base + (index * 2)) != name.charAt(index)) {
+          return -1;
+        }
+      }
+      return slot;
+    }
+
+    if ((end - start) != length) {
+      return -1;
+    }
+    for (int index = 0; index < length; ++index) {
+      if ((this.data.get(base + index) & 0xff) != name.charAt(index)) {
+        return -1;
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * Two sets are equal if they contain the same names. The layout of a
+   * table depends only on the names in it, so this is a comparison of the
+   * stored tables.
+   */
+
+  @Override public boolean equals(
+    final @Nullable Object obj)
+  {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (this.getClass() != obj.getClass()) {
+      return false;
+    }
+    final JRNameSet other = (JRNameSet) obj;
+    return (this.count == other.count)
+      && (this.seed == other.seed)
+      && (this.wide == other.wide)
+      && this.data.equals(other.data);
+  }
+
+  @Override public int hashCode()
+  {
+    return this.data.hashCode();
+  }
+
+  /**
+   * @return The total size of the table in bytes
+   */
+
+  int getByteSize()
+  {
+    return this.data.capacity();
+  }
+
+  /**
+   * @return The storage used by the table
+   */
+
+  JRNameSetStorage getStorage()
+  {
+    return this.storage;
+  }
+
+  /**
+   * @return The number of bytes used by the names themselves
+   */
+
+  int getStringByteSize()
+  {
+    return this.data.capacity() - this.strings_base;
+  }
+
+  /**
+   * @return The names in the set, in table order
+   */
+
+  List<String> names()
+  {
+    final List<String> out = new ArrayList<String>(this.count);
+    for (int slot = 0; slot < this.count; ++slot) {
+      final int start = this.data.getInt(this.offsets_base + (slot * 4));
+      final int end = this.data.getInt(this.offsets_base + ((slot + 1) * 4));
+      final int base = this.strings_base + start;
+      final StringBuilder sb = new StringBuilder(end - start);
+      if (this.wide) {
+        for (int index = base; index < (this.strings_base + end); index += 2) {
+          sb.append(this.data.getChar(index));
+        }
+      } else {
+        for (int index = base; index < (this.strings_base + end); ++index) {
+          sb.append((char) (this.data.get(index) & 0xff));
+        }
+      }
+      out.add(sb.toString());
+    }
+    return out;
+  }
+
+  /**
+   * @return The number of names in the set
+   */
+
+  int size()
+  {
+    return this.count;
+  }
+}
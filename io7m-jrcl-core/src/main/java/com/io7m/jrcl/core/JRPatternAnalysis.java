@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * The result of analysing the matching cost of a pattern.
+ *
+ * @see JRPatternAnalyzer
+ */
+
+public final class JRPatternAnalysis
+{
+  private static long saturatingMultiply(
+    final long x,
+    final long y)
+  {
+    final long r = x * y;
+    if ((x != 0) && (((r / x) != y) || (r < 0))) {
+      return Long.MAX_VALUE;
+    }
+    return r;
+  }
+
+  private final JRPatternComplexity complexity;
+  private final int                 degree;
+  private final String              diagnostic;
+  private final Pattern             pattern;
+  private final @Nullable Pattern   rewritten;
+  private final int                 size;
+
+  JRPatternAnalysis(
+    final Pattern in_pattern,
+    final JRPatternComplexity in_complexity,
+    final int in_degree,
+    final int in_size,
+    final String in_diagnostic,
+    final @Nullable Pattern in_rewritten)
+  {
+    this.pattern = NullCheck.notNull(in_pattern);
+    this.complexity = NullCheck.notNull(in_complexity);
+    this.degree = in_degree;
+    this.size = in_size;
+    this.diagnostic = NullCheck.notNull(in_diagnostic);
+    this.rewritten = in_rewritten;
+  }
+
+  /**
+   * @return The complexity class of the pattern
+   */
+
+  public JRPatternComplexity getComplexity()
+  {
+    return this.complexity;
+  }
+
+  /**
+   * @return A human-readable explanation of the complexity class
+   */
+
+  public String getDiagnostic()
+  {
+    return this.diagnostic;
+  }
+
+  /**
+   * @return The analysed pattern
+   */
+
+  public Pattern getPattern()
+  {
+    return this.pattern;
+  }
+
+  /**
+   * @return The degree of the polynomial bounding the matching time, if the
+   *         complexity is {@link JRPatternComplexity#POLYNOMIAL}, and
+   *         <tt>1</tt> otherwise
+   */
+
+  public int getPolynomialDegree()
+  {
+    return this.degree;
+  }
+
+  /**
+   * @return An equivalent pattern with a better complexity class, if one
+   *         could be derived, or <tt>null</tt>
+   */
+
+  public @Nullable Pattern getRewrittenPattern()
+  {
+    return this.rewritten;
+  }
+
+  /**
+   * @return <tt>true</tt> iff the pattern can backtrack catastrophically
+   */
+
+  public boolean isDangerous()
+  {
+    return this.complexity == JRPatternComplexity.EXPONENTIAL;
+  }
+
+  /**
+   * Estimate the number of matching steps required, in the worst case, to
+   * match a name of the given length.
+   *
+   * @param length
+   *          The length of the name
+   * @return The estimated number of steps, saturating at
+   *         {@link Long#MAX_VALUE}
+   */
+
+  public long estimateWorstCaseSteps(
+    final int length)
+  {
+    final long n = Math.max(1, length);
+    switch (this.complexity) {
+      case LINEAR:
+        return JRPatternAnalysis.saturatingMultiply(n, this.size);
+      case POLYNOMIAL:
+      {
+        long r = this.size;
+        for (int index = 0; index < this.degree; ++index) {
+          r = JRPatternAnalysis.saturatingMultiply(r, n);
+        }
+        return r;
+      }
+      case EXPONENTIAL:
+      {
+        if (n >= 62) {
+          return Long.MAX_VALUE;
+        }
+        return JRPatternAnalysis.saturatingMultiply(1L << n, this.size);
+      }
+      case UNKNOWN:
+        return Long.MAX_VALUE;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @Override public String toString()
+  {
+    final StringBuilder b = new StringBuilder();
+    b.append("[JRPatternAnalysis ");
+    b.append(this.pattern);
+    b.append(" ");
+    b.append(this.complexity);
+    if (this.complexity == JRPatternComplexity.POLYNOMIAL) {
+      b.append(" (degree ");
+      b.append(this.degree);
+      b.append(")");
+    }
+    b.append(": ");
+    b.append(this.diagnostic);
+    b.append("]");
+    return NullCheck.notNull(b.toString());
+  }
+}
@@ -0,0 +1,770 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * An analyser that estimates the worst-case matching cost of patterns.
+ * </p>
+ * <p>
+ * The analysis is conservative: a pattern classified as
+ * {@link JRPatternComplexity#LINEAR} cannot backtrack super-linearly, but a
+ * pattern classified as {@link JRPatternComplexity#EXPONENTIAL} may in fact
+ * be harmless. A matcher never backtracks into an atomic group or into the
+ * iterations of a possessive quantifier once they have matched, so those
+ * constructs do not combine with their surroundings, but their contents are
+ * still analysed on their own.
+ * </p>
+ * <p>
+ * Dangerous patterns are rewritten into equivalent forms where an exact
+ * rewrite is known: nested quantifiers such as <tt>(X+)+</tt> collapse to
+ * <tt>X+</tt>, alternations of single characters such as
+ * <tt>(\w|\d)+</tt> become character classes, duplicate alternatives are
+ * removed, and adjacent repetitions of the same expression such as
+ * <tt>X*X*</tt> are merged. Rewrites are only ever applied to patterns
+ * without back references, so removing capturing groups cannot change the
+ * language of the pattern.
+ * </p>
+ */
+
+public final class JRPatternAnalyzer
+{
+  private static final int MAXIMUM_DEGREE = 32;
+
+  private static final class Info
+  {
+    final JRCharSet chars;
+    final JRCharSet first;
+    final boolean   nullable;
+
+    Info(
+      final boolean in_nullable,
+      final JRCharSet in_chars,
+      final JRCharSet in_first)
+    {
+      this.nullable = in_nullable;
+      this.chars = in_chars;
+      this.first = in_first;
+    }
+  }
+
+  /**
+   * The mutable state of a single analysis.
+   */
+
+  private static final class State
+  {
+    final Set<JRRegexNode>             committed;
+    int                                complexity_degree;
+    @Nullable String                   exponential;
+    final Map<JRRegexNode, Info>       info;
+    @Nullable String                   polynomial;
+    int                                size;
+
+    State()
+    {
+      this.committed =
+        Collections.newSetFromMap(new IdentityHashMap<JRRegexNode, Boolean>());
+      this.info = new IdentityHashMap<JRRegexNode, Info>();
+      this.complexity_degree = 1;
+    }
+
+    void setExponential(
+      final String message)
+    {
+      if (this.exponential == null) {
+        this.exponential = message;
+      }
+    }
+
+    void setPolynomial(
+      final int degree,
+      final String message)
+    {
+      if (degree > this.complexity_degree) {
+        this.complexity_degree = degree;
+        this.polynomial = message;
+      }
+    }
+  }
+
+  /**
+   * Analyse the given pattern. If the pattern is dangerous, an equivalent
+   * pattern with a better complexity class is derived, if possible.
+   *
+   * @param p
+   *          The pattern
+   * @return An analysis of the pattern
+   */
+
+  public static JRPatternAnalysis analyze(
+    final Pattern p)
+  {
+    NullCheck.notNull(p);
+
+    final JRRegexNode root;
+    try {
+      root = JRRegexParser.parse(p);
+    } catch (final RuntimeException e) {
+      return new JRPatternAnalysis(
+        p,
+        JRPatternComplexity.UNKNOWN,
+        1,
+        p.pattern().length(),
+        "The pattern could not be analysed: " + e.getMessage(),
+        null);
+    }
+
+    final JRPatternAnalysis analysis = JRPatternAnalyzer.analyzeTree(p, root);
+    if (!analysis.isDangerous()) {
+      return analysis;
+    }
+
+    final Pattern rewritten = JRPatternRewriter.rewrite(p, root);
+    if (rewritten == null) {
+      return analysis;
+    }
+
+    final JRPatternAnalysis rewritten_analysis =
+      JRPatternAnalyzer.analyzeTree(
+        rewritten,
+        JRRegexParser.parse(rewritten));
+    if (rewritten_analysis.isDangerous()) {
+      return analysis;
+    }
+
+    return new JRPatternAnalysis(
+      p,
+      analysis.getComplexity(),
+      analysis.getPolynomialDegree(),
+      p.pattern().length(),
+      analysis.getDiagnostic(),
+      rewritten);
+  }
+
+  static JRPatternAnalysis analyzeTree(
+    final Pattern p,
+    final JRRegexNode root)
+  {
+    final State state = new State();
+    JRPatternAnalyzer.walk(state, root);
+
+    final String exponential = state.exponential;
+    if (exponential != null) {
+      return new JRPatternAnalysis(
+        p,
+        JRPatternComplexity.EXPONENTIAL,
+        1,
+        state.size,
+        exponential,
+        null);
+    }
+
+    final String polynomial = state.polynomial;
+    if (polynomial != null) {
+      return new JRPatternAnalysis(
+        p,
+        JRPatternComplexity.POLYNOMIAL,
+        state.complexity_degree,
+        state.size,
+        polynomial,
+        null);
+    }
+
+    return new JRPatternAnalysis(
+      p,
+      JRPatternComplexity.LINEAR,
+      1,
+      state.size,
+      "The pattern does not backtrack super-linearly",
+      null);
+  }
+
+  /**
+   * Compute (and memoize) the basic properties of a node.
+   */
+
+  private static Info info(
+    final State state,
+    final JRRegexNode node)
+  {
+    final Info existing = state.info.get(node);
+    if (existing != null) {
+      return existing;
+    }
+
+    final Info result = JRPatternAnalyzer.computeInfo(state, node);
+    state.info.put(node, result);
+    return result;
+  }
+
+  static boolean isNullable(
+    final JRRegexNode node)
+  {
+    return JRPatternAnalyzer.info(new State(), node).nullable;
+  }
+
+  private static Info computeInfo(
+    final State state,
+    final JRRegexNode node)
+  {
+    switch (node.kind()) {
+      case CHARS:
+      {
+        final JRRegexNode.Chars c = (JRRegexNode.Chars) node;
+        return new Info(false, c.set, c.set);
+      }
+      case OPAQUE:
+      {
+        final JRRegexNode.Opaque c = (JRRegexNode.Opaque) node;
+        return new Info(false, c.set, c.set);
+      }
+      case ANCHOR:
+      case FLAGS:
+      {
+        return new Info(true, JRCharSet.empty(), JRCharSet.empty());
+      }
+      case BACK_REFERENCE:
+      {
+        return new Info(true, JRCharSet.all(), JRCharSet.all());
+      }
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        if (g.isConsuming()) {
+          return JRPatternAnalyzer.info(state, g.child);
+        }
+        return new Info(true, JRCharSet.empty(), JRCharSet.empty());
+      }
+      case REPEAT:
+      {
+        final JRRegexNode.Repeat r = (JRRegexNode.Repeat) node;
+        final Info child = JRPatternAnalyzer.info(state, r.child);
+        if (r.max == 0) {
+          return new Info(true, JRCharSet.empty(), JRCharSet.empty());
+        }
+        return new Info(
+          (r.min == 0) || child.nullable,
+          child.chars,
+          child.first);
+      }
+      case SEQUENCE:
+      {
+        final JRRegexNode.Sequence s = (JRRegexNode.Sequence) node;
+        boolean nullable = true;
+        JRCharSet chars = JRCharSet.empty();
+        JRCharSet first = JRCharSet.empty();
+        for (final JRRegexNode item : s.items) {
+          final Info i = JRPatternAnalyzer.info(state, NullCheck.notNull(item));
+          chars = chars.union(i.chars);
+          if (nullable) {
+            first = first.union(i.first);
+          }
+          nullable = nullable && i.nullable;
+        }
+        return new Info(nullable, chars, first);
+      }
+      case ALTERNATION:
+      {
+        final JRRegexNode.Alternation a = (JRRegexNode.Alternation) node;
+        boolean nullable = false;
+        JRCharSet chars = JRCharSet.empty();
+        JRCharSet first = JRCharSet.empty();
+        for (final JRRegexNode alt : a.alternatives) {
+          final Info i = JRPatternAnalyzer.info(state, NullCheck.notNull(alt));
+          chars = chars.union(i.chars);
+          first = first.union(i.first);
+          nullable = nullable || i.nullable;
+        }
+        return new Info(nullable, chars, first);
+      }
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Flatten a node into the list of items that it matches in sequence,
+   * looking through sequences and plain groups.
+   */
+
+  static void flatten(
+    final JRRegexNode node,
+    final List<JRRegexNode> out)
+  {
+    switch (node.kind()) {
+      case SEQUENCE:
+      {
+        for (final JRRegexNode item : ((JRRegexNode.Sequence) node).items) {
+          JRPatternAnalyzer.flatten(NullCheck.notNull(item), out);
+        }
+        return;
+      }
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        switch (g.group_kind) {
+          case CAPTURING:
+          case NON_CAPTURING:
+            JRPatternAnalyzer.flatten(g.child, out);
+            return;
+          case ATOMIC:
+          case LOOKAHEAD:
+          case LOOKBEHIND:
+          case NEGATIVE_LOOKAHEAD:
+          case NEGATIVE_LOOKBEHIND:
+            out.add(node);
+            return;
+        }
+        throw new UnreachableCodeException();
+      }
+      case ALTERNATION:
+      case ANCHOR:
+      case BACK_REFERENCE:
+      case CHARS:
+      case FLAGS:
+      case OPAQUE:
+      case REPEAT:
+      {
+        out.add(node);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Collect the backtracking repetitions within a node that can match a
+   * variable number of iterations, more than one of which may consume
+   * input.
+   */
+
+  private static void collectVariable(
+    final JRRegexNode node,
+    final List<JRRegexNode.Repeat> out)
+  {
+    switch (node.kind()) {
+      case REPEAT:
+      {
+        final JRRegexNode.Repeat r = (JRRegexNode.Repeat) node;
+        if (r.mode != JRRegexNode.Mode.POSSESSIVE) {
+          if (r.isUnbounded() || ((r.max > 1) && (r.max > r.min))) {
+            out.add(r);
+          }
+          JRPatternAnalyzer.collectVariable(r.child, out);
+        }
+        return;
+      }
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        if (g.group_kind != JRRegexNode.GroupKind.ATOMIC) {
+          JRPatternAnalyzer.collectVariable(g.child, out);
+        }
+        return;
+      }
+      case SEQUENCE:
+      {
+        for (final JRRegexNode item : ((JRRegexNode.Sequence) node).items) {
+          JRPatternAnalyzer.collectVariable(NullCheck.notNull(item), out);
+        }
+        return;
+      }
+      case ALTERNATION:
+      {
+        for (final JRRegexNode a : ((JRRegexNode.Alternation) node).alternatives) {
+          JRPatternAnalyzer.collectVariable(NullCheck.notNull(a), out);
+        }
+        return;
+      }
+      case ANCHOR:
+      case BACK_REFERENCE:
+      case CHARS:
+      case FLAGS:
+      case OPAQUE:
+        return;
+    }
+  }
+
+  /**
+   * Collect the alternations within a node that are subject to
+   * backtracking.
+   */
+
+  private static void collectAlternations(
+    final JRRegexNode node,
+    final List<JRRegexNode.Alternation> out)
+  {
+    switch (node.kind()) {
+      case REPEAT:
+      {
+        final JRRegexNode.Repeat r = (JRRegexNode.Repeat) node;
+        if (r.mode != JRRegexNode.Mode.POSSESSIVE) {
+          JRPatternAnalyzer.collectAlternations(r.child, out);
+        }
+        return;
+      }
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        if (g.group_kind != JRRegexNode.GroupKind.ATOMIC) {
+          JRPatternAnalyzer.collectAlternations(g.child, out);
+        }
+        return;
+      }
+      case SEQUENCE:
+      {
+        for (final JRRegexNode item : ((JRRegexNode.Sequence) node).items) {
+          JRPatternAnalyzer.collectAlternations(NullCheck.notNull(item), out);
+        }
+        return;
+      }
+      case ALTERNATION:
+      {
+        final JRRegexNode.Alternation a = (JRRegexNode.Alternation) node;
+        out.add(a);
+        for (final JRRegexNode alt : a.alternatives) {
+          JRPatternAnalyzer.collectAlternations(NullCheck.notNull(alt), out);
+        }
+        return;
+      }
+      case ANCHOR:
+      case BACK_REFERENCE:
+      case CHARS:
+      case FLAGS:
+      case OPAQUE:
+        return;
+    }
+  }
+
+  private static void walk(
+    final State state,
+    final JRRegexNode node)
+  {
+    state.size += 1;
+
+    switch (node.kind()) {
+      case CHARS:
+      case ANCHOR:
+      case FLAGS:
+      case OPAQUE:
+        return;
+
+      case BACK_REFERENCE:
+      {
+        state.setExponential(String.format(
+          "The back reference '%s' makes matching non-regular",
+          node.source()));
+        return;
+      }
+
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        if (g.group_kind == JRRegexNode.GroupKind.ATOMIC) {
+          JRPatternAnalyzer.markCommitted(state, g.child);
+        }
+        JRPatternAnalyzer.walk(state, g.child);
+        return;
+      }
+
+      case ALTERNATION:
+      {
+        for (final JRRegexNode a : ((JRRegexNode.Alternation) node).alternatives) {
+          JRPatternAnalyzer.walk(state, NullCheck.notNull(a));
+        }
+        return;
+      }
+
+      case SEQUENCE:
+      {
+        final JRRegexNode.Sequence s = (JRRegexNode.Sequence) node;
+        JRPatternAnalyzer.checkSequence(state, s);
+        for (final JRRegexNode item : s.items) {
+          JRPatternAnalyzer.walk(state, NullCheck.notNull(item));
+        }
+        return;
+      }
+
+      case REPEAT:
+      {
+        final JRRegexNode.Repeat r = (JRRegexNode.Repeat) node;
+        if (r.mode == JRRegexNode.Mode.POSSESSIVE) {
+          JRPatternAnalyzer.markCommitted(state, r.child);
+        }
+        final boolean committed =
+          ((r.mode == JRRegexNode.Mode.POSSESSIVE) && (r.min <= 1))
+            || state.committed.contains(r);
+        if (!committed) {
+          JRPatternAnalyzer.checkRepeat(state, r);
+        }
+        JRPatternAnalyzer.walk(state, r.child);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Mark the repetitions at the end of an atomic group or possessive
+   * quantifier. Nothing follows them that can fail, so the first way found
+   * to match them is kept, and they are never backtracked into.
+   */
+
+  private static void markCommitted(
+    final State state,
+    final JRRegexNode node)
+  {
+    switch (node.kind()) {
+      case ANCHOR:
+      case BACK_REFERENCE:
+      case CHARS:
+      case FLAGS:
+      case OPAQUE:
+        return;
+      case ALTERNATION:
+      {
+        for (final JRRegexNode a : ((JRRegexNode.Alternation) node).alternatives) {
+          JRPatternAnalyzer.markCommitted(state, NullCheck.notNull(a));
+        }
+        return;
+      }
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        switch (g.group_kind) {
+          case ATOMIC:
+          case CAPTURING:
+          case NON_CAPTURING:
+            JRPatternAnalyzer.markCommitted(state, g.child);
+            return;
+          case LOOKAHEAD:
+          case LOOKBEHIND:
+          case NEGATIVE_LOOKAHEAD:
+          case NEGATIVE_LOOKBEHIND:
+            return;
+        }
+        throw new UnreachableCodeException();
+      }
+      case REPEAT:
+      {
+        final JRRegexNode.Repeat r = (JRRegexNode.Repeat) node;
+        state.committed.add(r);
+        JRPatternAnalyzer.markCommitted(state, r.child);
+        return;
+      }
+      case SEQUENCE:
+      {
+        final List<JRRegexNode> items = ((JRRegexNode.Sequence) node).items;
+        if (!items.isEmpty()) {
+          JRPatternAnalyzer.markCommitted(
+            state,
+            NullCheck.notNull(items.get(items.size() - 1)));
+        }
+        return;
+      }
+    }
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Check a repetition for nested quantifiers and overlapping alternatives.
+   */
+
+  private static void checkRepeat(
+    final State state,
+    final JRRegexNode.Repeat r)
+  {
+    if ((r.max >= 0) && (r.max <= 1)) {
+      return;
+    }
+
+    final JRRegexNode.Repeat x = JRPatternAnalyzer.ambiguousInner(state, r);
+    if (x != null) {
+      if (r.isUnbounded()) {
+        state.setExponential(String.format(
+          "The nested quantifier '%s' inside '%s' can match the same input in exponentially many ways",
+          x.source(),
+          r.source()));
+      } else {
+        state.setPolynomial(
+          Math.min(r.max, JRPatternAnalyzer.MAXIMUM_DEGREE),
+          String.format(
+            "The nested quantifier '%s' inside the bounded repetition '%s' can match the same input in many ways",
+            x.source(),
+            r.source()));
+      }
+      return;
+    }
+
+    if (r.isUnbounded()) {
+      JRPatternAnalyzer.checkAlternations(state, r);
+    }
+  }
+
+  /**
+   * Determine whether the body of a repetition is ambiguous. The body is
+   * ambiguous if an inner repetition can consume characters that would
+   * otherwise have to be matched by the remaining required parts of the
+   * body: the input can then be divided between iterations in many ways.
+   *
+   * @return The inner repetition responsible, or <tt>null</tt>
+   */
+
+  private static @Nullable JRRegexNode.Repeat ambiguousInner(
+    final State state,
+    final JRRegexNode.Repeat r)
+  {
+    final List<JRRegexNode> items = new ArrayList<JRRegexNode>();
+    JRPatternAnalyzer.flatten(r.child, items);
+
+    for (final JRRegexNode item : items) {
+      final List<JRRegexNode.Repeat> within =
+        new ArrayList<JRRegexNode.Repeat>();
+      JRPatternAnalyzer.collectVariable(NullCheck.notNull(item), within);
+
+      for (final JRRegexNode.Repeat x : within) {
+        final Info xi = JRPatternAnalyzer.info(state, x.child);
+        boolean ambiguous = true;
+        for (final JRRegexNode other : items) {
+          if (other == item) {
+            continue;
+          }
+          final Info oi =
+            JRPatternAnalyzer.info(state, NullCheck.notNull(other));
+          if (!oi.nullable && !oi.chars.overlaps(xi.chars)) {
+            ambiguous = false;
+            break;
+          }
+        }
+
+        if (ambiguous) {
+          return x;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Check for overlapping alternatives under an unbounded repetition.
+   */
+
+  private static void checkAlternations(
+    final State state,
+    final JRRegexNode.Repeat r)
+  {
+    final List<JRRegexNode.Alternation> alternations =
+      new ArrayList<JRRegexNode.Alternation>();
+    JRPatternAnalyzer.collectAlternations(r.child, alternations);
+
+    for (final JRRegexNode.Alternation a : alternations) {
+      for (int i = 0; i < a.alternatives.size(); ++i) {
+        final Info ii =
+          JRPatternAnalyzer.info(state, NullCheck.notNull(a.alternatives.get(i)));
+        for (int j = i + 1; j < a.alternatives.size(); ++j) {
+          final Info ji =
+            JRPatternAnalyzer.info(
+              state,
+              NullCheck.notNull(a.alternatives.get(j)));
+          if (ii.first.overlaps(ji.first) || (ii.nullable && ji.nullable)) {
+            state.setExponential(String.format(
+              "The alternatives '%s' and '%s' under the quantifier '%s' overlap",
+              a.alternatives.get(i).source(),
+              a.alternatives.get(j).source(),
+              r.source()));
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Check a sequence for chains of unbounded quantifiers over overlapping
+   * sets of characters.
+   */
+
+  private static void checkSequence(
+    final State state,
+    final JRRegexNode.Sequence s)
+  {
+    final List<JRRegexNode> items = new ArrayList<JRRegexNode>();
+    JRPatternAnalyzer.flatten(s, items);
+
+    int chain = 0;
+    int chain_start = -1;
+    @Nullable JRCharSet previous = null;
+    JRCharSet between = JRCharSet.empty();
+
+    for (int index = 0; index < items.size(); ++index) {
+      final JRRegexNode item = NullCheck.notNull(items.get(index));
+      final boolean unbounded =
+        (item.kind() == JRRegexNode.Kind.REPEAT)
+          && ((JRRegexNode.Repeat) item).isUnbounded()
+          && (((JRRegexNode.Repeat) item).mode != JRRegexNode.Mode.POSSESSIVE);
+
+      if (!unbounded) {
+        between = between.union(JRPatternAnalyzer.info(state, item).chars);
+        continue;
+      }
+
+      final Info body =
+        JRPatternAnalyzer.info(state, ((JRRegexNode.Repeat) item).child);
+      if ((previous != null)
+        && previous.overlaps(body.first)
+        && previous.containsAll(between)) {
+        chain += 1;
+      } else {
+        chain = 1;
+        chain_start = index;
+      }
+
+      if (chain >= 2) {
+        final StringBuilder sb = new StringBuilder();
+        for (int k = chain_start; k <= index; ++k) {
+          items.get(k).source(sb);
+        }
+        state.setPolynomial(
+          Math.min(chain, JRPatternAnalyzer.MAXIMUM_DEGREE),
+          String.format(
+            "The %d unbounded quantifiers in '%s' match overlapping characters",
+            Integer.valueOf(chain),
+            sb.toString()));
+      }
+
+      previous = body.chars;
+      between = JRCharSet.empty();
+    }
+  }
+
+  private JRPatternAnalyzer()
+  {
+    throw new UnreachableCodeException();
+  }
+}
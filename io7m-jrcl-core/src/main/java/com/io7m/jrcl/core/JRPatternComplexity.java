@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * The worst-case complexity of matching a pattern against a name, as a
+ * function of the length of the name.
+ */
+
+public enum JRPatternComplexity
+{
+  /**
+   * Matching takes time linear in the length of the name.
+   */
+
+  LINEAR,
+
+  /**
+   * Matching takes time polynomial in the length of the name. This is
+   * typically caused by several unbounded quantifiers over overlapping sets
+   * of characters, such as <tt>.*a.*</tt>.
+   */
+
+  POLYNOMIAL,
+
+  /**
+   * Matching can take time exponential in the length of the name
+   * ("catastrophic backtracking"). This is typically caused by nested
+   * quantifiers such as <tt>(a+)+</tt>, overlapping alternatives under a
+   * quantifier such as <tt>(\w|\d)+</tt>, or back references.
+   */
+
+  EXPONENTIAL,
+
+  /**
+   * The pattern uses constructs that could not be analysed.
+   */
+
+  UNKNOWN
+}
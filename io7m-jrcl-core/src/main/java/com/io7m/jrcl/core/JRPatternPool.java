@@ -0,0 +1,250 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * The process-wide pool of compiled and analysed rule patterns.
+ * </p>
+ * <p>
+ * Rules of every {@link JRSequentialPolicy} obtain the analyses of their
+ * patterns from the pool, so that identical patterns (with identical
+ * flags) used by any number of rules and policies share a single compiled
+ * {@link Pattern} and a single {@link JRPatternAnalysis}. Analyses are held
+ * through weak references, and are removed from the pool once no rule
+ * refers to them.
+ * </p>
+ */
+
+public final class JRPatternPool
+{
+  private static final class Key
+  {
+    final int    flags;
+    final String source;
+
+    Key(
+      final String in_source,
+      final int in_flags)
+    {
+      this.source = in_source;
+      this.flags = in_flags;
+    }
+
+    @Override public boolean equals(
+      final @Nullable Object obj)
+    {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null) {
+        return false;
+      }
+      if (this.getClass() != obj.getClass()) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return (this.flags == other.flags) && this.source.equals(other.source);
+    }
+
+    @Override public int hashCode()
+    {
+      return (this.source.hashCode() * 31) + this.flags;
+    }
+  }
+
+  private static final class Entry extends WeakReference<JRPatternAnalysis>
+  {
+    final Key key;
+
+    Entry(
+      final Key in_key,
+      final JRPatternAnalysis in_analysis,
+      final ReferenceQueue<JRPatternAnalysis> in_queue)
+    {
+      super(in_analysis, in_queue);
+      this.key = in_key;
+    }
+  }
+
+  private static final JRPatternPool INSTANCE;
+
+  static {
+    INSTANCE = new JRPatternPool();
+  }
+
+  /**
+   * @return The pool
+   */
+
+  public static JRPatternPool get()
+  {
+    return JRPatternPool.INSTANCE;
+  }
+
+  private final ConcurrentHashMap<Key, Entry>     entries;
+  private final LongAdder                         hits;
+  private final LongAdder                         misses;
+  private final ReferenceQueue<JRPatternAnalysis> queue;
+
+  private JRPatternPool()
+  {
+    this.entries = new ConcurrentHashMap<Key, Entry>();
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.queue = new ReferenceQueue<JRPatternAnalysis>();
+  }
+
+  /**
+   * Obtain the analysis of the given pattern, analysing it if no identical
+   * pattern is in the pool.
+   *
+   * @param p
+   *          The pattern
+   * @return An analysis of the pattern, or of an identical pattern
+   */
+
+  JRPatternAnalysis analyze(
+    final Pattern p)
+  {
+    final Key key = new Key(p.pattern(), p.flags());
+    final JRPatternAnalysis existing = this.lookup(key);
+    if (existing != null) {
+      return existing;
+    }
+    return this.insert(key, JRPatternAnalyzer.analyze(p));
+  }
+
+  /**
+   * Obtain the analysis of the given pattern source, compiling and
+   * analysing it if no identical pattern is in the pool.
+   *
+   * @param source
+   *          The pattern source
+   * @param flags
+   *          The flags, as for {@link Pattern#compile(String, int)}
+   * @return An analysis of the pattern
+   *
+   * @throws java.util.regex.PatternSyntaxException
+   *           If the pattern is not valid
+   */
+
+  JRPatternAnalysis analyze(
+    final String source,
+    final int flags)
+  {
+    final Key key = new Key(NullCheck.notNull(source), flags);
+    final JRPatternAnalysis existing = this.lookup(key);
+    if (existing != null) {
+      return existing;
+    }
+    return this.insert(
+      key,
+      JRPatternAnalyzer.analyze(NullCheck.notNull(Pattern.compile(
+        source,
+        flags))));
+  }
+
+  /**
+   * @return The number of requests answered by the pool
+   */
+
+  public long getHits()
+  {
+    return this.hits.sum();
+  }
+
+  /**
+   * @return The number of requests that compiled or analysed a pattern
+   */
+
+  public long getMisses()
+  {
+    return this.misses.sum();
+  }
+
+  /**
+   * @return The number of patterns in the pool, including any that have
+   *         been collected but not yet removed
+   */
+
+  public int getSize()
+  {
+    this.expunge();
+    return this.entries.size();
+  }
+
+  private void expunge()
+  {
+    for (;;) {
+      final Entry stale = (Entry) this.queue.poll();
+      if (stale == null) {
+        return;
+      }
+      this.entries.remove(stale.key, stale);
+    }
+  }
+
+  /**
+   * Add a new analysis to the pool. If another thread added an analysis of
+   * the same pattern meanwhile, that analysis is returned instead.
+   */
+
+  private JRPatternAnalysis insert(
+    final Key key,
+    final JRPatternAnalysis analysis)
+  {
+    this.misses.increment();
+    this.expunge();
+
+    final Entry entry = new Entry(key, analysis, this.queue);
+    for (;;) {
+      final Entry existing = this.entries.putIfAbsent(key, entry);
+      if (existing == null) {
+        return analysis;
+      }
+      final JRPatternAnalysis a = existing.get();
+      if (a != null) {
+        return a;
+      }
+      this.entries.remove(key, existing);
+    }
+  }
+
+  private @Nullable JRPatternAnalysis lookup(
+    final Key key)
+  {
+    final Entry e = this.entries.get(key);
+    if (e != null) {
+      final JRPatternAnalysis a = e.get();
+      if (a != null) {
+        this.hits.increment();
+        return a;
+      }
+    }
+    return null;
+  }
+}
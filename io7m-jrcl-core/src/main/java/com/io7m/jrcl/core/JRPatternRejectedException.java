@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * An exception raised when a policy is built with a rule pattern that can
+ * backtrack exponentially.
+ *
+ * @see JRPatternSafety
+ */
+
+public final class JRPatternRejectedException extends IllegalArgumentException
+{
+  private static final long       serialVersionUID = 1L;
+
+  private final JRPatternAnalysis analysis;
+  private final int               rule_index;
+  private final String            rule_kind;
+
+  JRPatternRejectedException(
+    final String in_rule_kind,
+    final int in_rule_index,
+    final JRPatternAnalysis in_analysis)
+  {
+    super(String.format(
+      "%s rule [%d]: pattern '%s' rejected: %s",
+      NullCheck.notNull(in_rule_kind),
+      in_rule_index,
+      NullCheck.notNull(in_analysis).getPattern(),
+      in_analysis.getDiagnostic()));
+    this.rule_kind = in_rule_kind;
+    this.rule_index = in_rule_index;
+    this.analysis = in_analysis;
+  }
+
+  /**
+   * @return The analysis of the rejected pattern
+   */
+
+  public JRPatternAnalysis getAnalysis()
+  {
+    return this.analysis;
+  }
+
+  /**
+   * @return The index of the rule within its list of rules
+   */
+
+  public int getRuleIndex()
+  {
+    return this.rule_index;
+  }
+
+  /**
+   * @return The kind of the rule: <tt>class</tt> or <tt>resource</tt>
+   */
+
+  public String getRuleKind()
+  {
+    return this.rule_kind;
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * Language-preserving rewrites of pattern syntax trees.
+ *
+ * @see JRPatternAnalyzer
+ */
+
+final class JRPatternRewriter
+{
+  /**
+   * Rewrite the given pattern into an equivalent pattern.
+   *
+   * @param p
+   *          The original pattern
+   * @param root
+   *          The syntax tree of <tt>p</tt>
+   * @return The rewritten pattern, or <tt>null</tt> if no rewrite applied
+   */
+
+  static @Nullable Pattern rewrite(
+    final Pattern p,
+    final JRRegexNode root)
+  {
+    if ((p.flags() & Pattern.LITERAL) != 0) {
+      return null;
+    }
+    if (JRPatternRewriter.hasBackReferences(root)) {
+      return null;
+    }
+
+    final String source = JRPatternRewriter.rewriteNode(root).source();
+    if (source.equals(p.pattern())) {
+      return null;
+    }
+
+    try {
+      return Pattern.compile(source, p.flags());
+    } catch (final PatternSyntaxException e) {
+      return null;
+    }
+  }
+
+  private static boolean hasBackReferences(
+    final JRRegexNode node)
+  {
+    switch (node.kind()) {
+      case BACK_REFERENCE:
+        return true;
+      case ANCHOR:
+      case CHARS:
+      case FLAGS:
+      case OPAQUE:
+        return false;
+      case GROUP:
+        return JRPatternRewriter
+          .hasBackReferences(((JRRegexNode.Group) node).child);
+      case REPEAT:
+        return JRPatternRewriter
+          .hasBackReferences(((JRRegexNode.Repeat) node).child);
+      case SEQUENCE:
+      {
+        for (final JRRegexNode item : ((JRRegexNode.Sequence) node).items) {
+          if (JRPatternRewriter.hasBackReferences(NullCheck.notNull(item))) {
+            return true;
+          }
+        }
+        return false;
+      }
+      case ALTERNATION:
+      {
+        for (final JRRegexNode a : ((JRRegexNode.Alternation) node).alternatives) {
+          if (JRPatternRewriter.hasBackReferences(NullCheck.notNull(a))) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Rewrite a node bottom-up. The rewrites preserve the language matched by
+   * each subexpression, but not the order in which a backtracking matcher
+   * tries alternatives. Atomic groups and possessive quantifiers commit to
+   * the first alternative found, and so their contents are left untouched.
+   */
+
+  static JRRegexNode rewriteNode(
+    final JRRegexNode node)
+  {
+    switch (node.kind()) {
+      case ANCHOR:
+      case BACK_REFERENCE:
+      case CHARS:
+      case FLAGS:
+      case OPAQUE:
+        return node;
+      case GROUP:
+      {
+        final JRRegexNode.Group g = (JRRegexNode.Group) node;
+        if (g.group_kind == JRRegexNode.GroupKind.ATOMIC) {
+          return node;
+        }
+        return new JRRegexNode.Group(
+          g.group_kind,
+          g.open,
+          JRPatternRewriter.rewriteNode(g.child));
+      }
+      case REPEAT:
+      {
+        final JRRegexNode.Repeat r = (JRRegexNode.Repeat) node;
+        if (r.mode == JRRegexNode.Mode.POSSESSIVE) {
+          return node;
+        }
+        return JRPatternRewriter.collapse(new JRRegexNode.Repeat(
+          JRPatternRewriter.rewriteNode(r.child),
+          r.min,
+          r.max,
+          r.mode));
+      }
+      case SEQUENCE:
+      {
+        final JRRegexNode.Sequence s = (JRRegexNode.Sequence) node;
+        final List<JRRegexNode> items = new ArrayList<JRRegexNode>();
+        for (final JRRegexNode item : s.items) {
+          items.add(JRPatternRewriter.rewriteNode(NullCheck.notNull(item)));
+        }
+        return new JRRegexNode.Sequence(JRPatternRewriter.mergeAdjacent(items));
+      }
+      case ALTERNATION:
+      {
+        return JRPatternRewriter
+          .rewriteAlternation((JRRegexNode.Alternation) node);
+      }
+    }
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Remove any plain groups and single-element sequences around a node.
+   * Groups that set flags are kept, as removing them would change the
+   * meaning of their contents.
+   */
+
+  private static JRRegexNode unwrap(
+    final JRRegexNode node)
+  {
+    JRRegexNode current = node;
+    for (;;) {
+      if (current.kind() == JRRegexNode.Kind.SEQUENCE) {
+        final JRRegexNode.Sequence s = (JRRegexNode.Sequence) current;
+        if (s.items.size() != 1) {
+          return current;
+        }
+        current = NullCheck.notNull(s.items.get(0));
+        continue;
+      }
+
+      if (current.kind() == JRRegexNode.Kind.GROUP) {
+        final JRRegexNode.Group g = (JRRegexNode.Group) current;
+        final boolean plain =
+          ((g.group_kind == JRRegexNode.GroupKind.CAPTURING) || "(?:"
+            .equals(g.open));
+        if (!plain) {
+          return current;
+        }
+        current = g.child;
+        continue;
+      }
+
+      return current;
+    }
+  }
+
+  /**
+   * Collapse a repetition of a repetition:
+   * <ul>
+   * <li><tt>(X{a,}){b,c}</tt> matches the same language as
+   * <tt>X{ab,}</tt> when <tt>b &gt; 0</tt>, and <tt>(X{a,})?</tt> when
+   * <tt>b = 0</tt>.</li>
+   * <li><tt>(X{0,c}){b,}</tt> matches the same language as <tt>X*</tt>.</li>
+   * <li><tt>(X{1,c}){b,}</tt> matches the same language as <tt>X{b,}</tt>.</li>
+   * </ul>
+   */
+
+  private static JRRegexNode collapse(
+    final JRRegexNode.Repeat r)
+  {
+    if (r.mode == JRRegexNode.Mode.POSSESSIVE) {
+      return r;
+    }
+
+    final JRRegexNode inner = JRPatternRewriter.unwrap(r.child);
+    if (inner.kind() != JRRegexNode.Kind.REPEAT) {
+      return r;
+    }
+
+    final JRRegexNode.Repeat q = (JRRegexNode.Repeat) inner;
+    if (q.mode == JRRegexNode.Mode.POSSESSIVE) {
+      return r;
+    }
+
+    if (q.isUnbounded()) {
+      if (r.min >= 1) {
+        final long product = (long) q.min * (long) r.min;
+        if (product > Integer.MAX_VALUE) {
+          return r;
+        }
+        return JRPatternRewriter.collapse(new JRRegexNode.Repeat(
+          q.child,
+          (int) product,
+          -1,
+          JRRegexNode.Mode.GREEDY));
+      }
+      if (q.min <= 1) {
+        return JRPatternRewriter.collapse(new JRRegexNode.Repeat(
+          q.child,
+          0,
+          -1,
+          JRRegexNode.Mode.GREEDY));
+      }
+      return new JRRegexNode.Repeat(q, 0, 1, JRRegexNode.Mode.GREEDY);
+    }
+
+    if (r.isUnbounded() && (q.max != 0) && (q.min <= 1)) {
+      final int min = (q.min == 0) ? 0 : r.min;
+      return JRPatternRewriter.collapse(new JRRegexNode.Repeat(
+        q.child,
+        min,
+        -1,
+        JRRegexNode.Mode.GREEDY));
+    }
+
+    return r;
+  }
+
+  /**
+   * Merge adjacent repetitions of the same expression: <tt>X{a,}X{b,}</tt>
+   * matches the same language as <tt>X{a+b,}</tt>, and <tt>X{a,}X</tt> and
+   * <tt>XX{a,}</tt> match the same language as <tt>X{a+1,}</tt>.
+   */
+
+  private static List<JRRegexNode> mergeAdjacent(
+    final List<JRRegexNode> items)
+  {
+    final List<JRRegexNode> out = new ArrayList<JRRegexNode>(items.size());
+    for (final JRRegexNode item : items) {
+      if (out.isEmpty()) {
+        out.add(item);
+        continue;
+      }
+
+      final JRRegexNode last = NullCheck.notNull(out.get(out.size() - 1));
+      final JRRegexNode.Repeat merged =
+        JRPatternRewriter.merge(last, NullCheck.notNull(item));
+      if (merged != null) {
+        out.set(out.size() - 1, merged);
+      } else {
+        out.add(item);
+      }
+    }
+    return out;
+  }
+
+  private static @Nullable JRRegexNode.Repeat merge(
+    final JRRegexNode x,
+    final JRRegexNode y)
+  {
+    final JRRegexNode.Repeat rx = JRPatternRewriter.asUnbounded(x);
+    final JRRegexNode.Repeat ry = JRPatternRewriter.asUnbounded(y);
+
+    if ((rx != null) && (ry != null)) {
+      if (rx.child.source().equals(ry.child.source())) {
+        return new JRRegexNode.Repeat(
+          rx.child,
+          rx.min + ry.min,
+          -1,
+          JRRegexNode.Mode.GREEDY);
+      }
+      return null;
+    }
+    if ((rx != null) && rx.child.source().equals(y.source()) && y.isAtom()) {
+      return new JRRegexNode.Repeat(
+        rx.child,
+        rx.min + 1,
+        -1,
+        JRRegexNode.Mode.GREEDY);
+    }
+    if ((ry != null) && ry.child.source().equals(x.source()) && x.isAtom()) {
+      return new JRRegexNode.Repeat(
+        ry.child,
+        ry.min + 1,
+        -1,
+        JRRegexNode.Mode.GREEDY);
+    }
+    return null;
+  }
+
+  private static @Nullable JRRegexNode.Repeat asUnbounded(
+    final JRRegexNode x)
+  {
+    if (x.kind() == JRRegexNode.Kind.REPEAT) {
+      final JRRegexNode.Repeat r = (JRRegexNode.Repeat) x;
+      if (r.isUnbounded() && (r.mode != JRRegexNode.Mode.POSSESSIVE)) {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remove duplicate alternatives, and replace an alternation of single
+   * characters with a character class.
+   */
+
+  private static JRRegexNode rewriteAlternation(
+    final JRRegexNode.Alternation a)
+  {
+    final Set<String> seen = new HashSet<String>();
+    final List<JRRegexNode> alternatives = new ArrayList<JRRegexNode>();
+    boolean all_chars = true;
+    for (final JRRegexNode alt : a.alternatives) {
+      final JRRegexNode r = JRPatternRewriter.rewriteNode(NullCheck.notNull(alt));
+      if (seen.add(r.source())) {
+        alternatives.add(r);
+        all_chars =
+          all_chars
+            && (JRPatternRewriter.unwrap(r).kind() == JRRegexNode.Kind.CHARS);
+      }
+    }
+
+    if (alternatives.size() == 1) {
+      return NullCheck.notNull(alternatives.get(0));
+    }
+
+    if (all_chars) {
+      final StringBuilder sb = new StringBuilder();
+      JRCharSet set = JRCharSet.empty();
+      boolean exact = true;
+      sb.append('[');
+      for (final JRRegexNode alt : alternatives) {
+        final JRRegexNode.Chars c =
+          (JRRegexNode.Chars) JRPatternRewriter.unwrap(NullCheck.notNull(alt));
+        set = set.union(c.set);
+        exact = exact && c.exact;
+        JRPatternRewriter.classFragment(sb, c);
+      }
+      sb.append(']');
+      return new JRRegexNode.Chars(
+        set,
+        exact,
+        NullCheck.notNull(sb.toString()));
+    }
+
+    return new JRRegexNode.Alternation(alternatives);
+  }
+
+  /**
+   * Append a fragment that denotes the characters of <tt>c</tt> inside a
+   * character class.
+   */
+
+  private static void classFragment(
+    final StringBuilder sb,
+    final JRRegexNode.Chars c)
+  {
+    if (c.text.startsWith("[") || c.text.startsWith("\\")) {
+      sb.append(c.text);
+      return;
+    }
+    if (".".equals(c.text)) {
+      for (int index = 0; index < c.set.rangeCount(); ++index) {
+        sb.append(JRRegexParser.literalText(c.set.rangeLower(index)));
+        sb.append('-');
+        sb.append(JRRegexParser.literalText(c.set.rangeUpper(index)));
+      }
+      return;
+    }
+    sb.append(JRRegexParser.literalText(c.text.codePointAt(0)));
+  }
+
+  private JRPatternRewriter()
+  {
+    throw new UnreachableCodeException();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * The treatment of rule patterns that are found to be dangerous when a
+ * policy is built.
+ *
+ * @see JRPatternAnalyzer
+ * @see JRSequentialPolicyBuilderType#setPatternSafety(JRPatternSafety)
+ */
+
+public enum JRPatternSafety
+{
+  /**
+   * Patterns that can backtrack exponentially are rejected with a
+   * {@link JRPatternRejectedException}. Rejection must be requested
+   * explicitly, as it rejects patterns such as <tt>(a|ab)*c</tt> that were
+   * previously accepted.
+   */
+
+  REJECT,
+
+  /**
+   * Patterns that can backtrack exponentially are replaced with an
+   * equivalent pattern that cannot, if one is known. Otherwise, the pattern
+   * is rejected with a {@link JRPatternRejectedException}, so patterns with
+   * back-references, for example, are rejected.
+   */
+
+  REWRITE,
+
+  /**
+   * Patterns that can backtrack exponentially are accepted as they are, and
+   * a warning is logged for each. The cost of matching them is still
+   * limited by the evaluation step budget. This is the default, so that no
+   * pattern that is valid for {@link java.util.regex.Pattern} prevents a
+   * policy from being built.
+   */
+
+  PERMIT
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * The classes of the Java platform.
+ * </p>
+ * <p>
+ * The packages of the modules in the boot layer that are defined to the
+ * bootstrap or platform classloaders are indexed once, in a
+ * {@link JRNameSet}. Those packages cannot be split with any other module,
+ * so a class in one of them resolves to the same class through any
+ * classloader that follows the standard delegation model, and can be loaded
+ * directly from the platform classloader.
+ * </p>
+ */
+
+final class JRPlatformClasses
+{
+  private static final ConcurrentHashMap<String, Class<?>> CACHE;
+  private static final ClassLoader                         LOADER;
+  private static final JRNameSet                           PACKAGES;
+
+  static {
+    LOADER = NullCheck.notNull(ClassLoader.getPlatformClassLoader());
+    CACHE = new ConcurrentHashMap<String, Class<?>>();
+
+    final List<String> packages = new ArrayList<String>();
+    for (final Module m : ModuleLayer.boot().modules()) {
+      final ClassLoader loader = m.getClassLoader();
+      if ((loader == null) || (loader == JRPlatformClasses.LOADER)) {
+        packages.addAll(m.getPackages());
+      }
+    }
+    PACKAGES = JRNameSet.create(packages, JRNameSetStorage.HEAP);
+  }
+
+  /**
+   * @param name
+   *          A binary class name
+   * @return <tt>true</tt> iff the class is in a platform package
+   */
+
+  static boolean isPlatformClass(
+    final String name)
+  {
+    final int dot = name.lastIndexOf('.');
+    return (dot > 0) && JRPlatformClasses.PACKAGES.containsPrefix(name, dot);
+  }
+
+  /**
+   * Load a platform class, caching the result.
+   *
+   * @param name
+   *          A binary class name
+   * @return The class, or <tt>null</tt> if the platform classloader cannot
+   *         load it
+   */
+
+  static @Nullable Class<?> load(
+    final String name)
+  {
+    final Class<?> cached = JRPlatformClasses.CACHE.get(name);
+    if (cached != null) {
+      return cached;
+    }
+
+    try {
+      final Class<?> c = JRPlatformClasses.LOADER.loadClass(name);
+      JRPlatformClasses.CACHE.putIfAbsent(name, c);
+      return c;
+    } catch (final ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  private JRPlatformClasses()
+  {
+    throw new UnreachableCodeException();
+  }
+}
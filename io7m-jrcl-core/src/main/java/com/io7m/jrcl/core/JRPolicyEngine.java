@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The engines available for evaluating the rules of a
+ * {@link JRSequentialPolicy}. Every engine makes exactly the same decisions.
+ *
+ * @see JRSequentialPolicyBuilderType#setEvaluationEngine(JRPolicyEngine)
+ */
+
+public enum JRPolicyEngine
+{
+  /**
+   * Rules are matched one at a time, in order.
+   */
+
+  SEQUENTIAL,
+
+  /**
+   * Rules whose patterns are literal names, or literal prefixes followed by
+   * <tt>.*</tt>, are indexed in a trie, so that all of them are checked in
+   * a single pass over the characters of a name regardless of their number.
+   * The remaining rules are matched one at a time, and only up to the first
+   * matching quick rule.
+   */
+
+  PREFIX_INDEX,
+
+  /**
+   * An engine is chosen separately for the class rules and the resource
+   * rules of the policy, whenever the policy is built or derived, as
+   * whichever of the other engines a cost model estimates to be fastest for
+   * those rules. The cost model is calibrated by a short benchmark the
+   * first time that it is used. Only engines that are known to decide
+   * exactly as sequential evaluation would for every one of the rules are
+   * candidates, so the choice never changes a decision.
+   *
+   * @see JRSequentialPolicy#getEngineChoices()
+   */
+
+  ADAPTIVE,
+
+  /**
+   * Rules are divided into contiguous segments that are matched
+   * concurrently on a fork-join pool, and the results of the segments are
+   * combined into exactly the result of matching the rules one at a time.
+   * Rule lists shorter than the parallel threshold are matched one at a
+   * time on the calling thread.
+   *
+   * @see JRSequentialPolicyBuilderType#setParallelEvaluation(ForkJoinPool,
+   *      int)
+   */
+
+  PARALLEL,
+
+  /**
+   * Rules whose patterns are a literal extension preceded by <tt>.*</tt>,
+   * such as <tt>.*\.class</tt>, are indexed by extension, and literal rules
+   * that contain a <tt>/</tt>, such as <tt>META-INF/services/.*</tt>, are
+   * indexed by their leading path segment. Evaluating a name looks up its
+   * extension and its leading segment, and compares only the rules found
+   * with the name. The remaining rules are matched one at a time, and only
+   * up to the first matching quick rule. The engine is intended for
+   * resource rules.
+   */
+
+  SUFFIX_INDEX
+}
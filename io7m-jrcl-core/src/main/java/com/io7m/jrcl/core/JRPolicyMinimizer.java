@@ -0,0 +1,596 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * Removes rules that cannot affect the decisions of a list of rules, and
+ * merges adjacent rules that have the same effect.
+ * </p>
+ * <p>
+ * The languages of pattern rules are compared by converting the patterns to
+ * automata (see {@link JRAutomaton}). Patterns that cannot be converted are
+ * never removed, and are assumed to match any name when deciding whether
+ * another rule can be removed. Name set rules are compared by matching each
+ * of their names against the other rules.
+ * </p>
+ * <p>
+ * A single removal or merge is applied at a time, each of which preserves
+ * the decision for every name, and the list is examined again until no
+ * further change applies. The decisions of the minimized rules are
+ * identical for every name on which no rule exceeds its step budget.
+ * </p>
+ */
+
+final class JRPolicyMinimizer
+{
+  /**
+   * A rule in the list being minimized.
+   */
+
+  private static final class Item
+  {
+    final @Nullable JRAutomaton  automaton;
+    final int                    index;
+    final @Nullable List<String> names;
+    final JRRule                 rule;
+
+    Item(
+      final JRRule in_rule,
+      final int in_index)
+    {
+      this.rule = NullCheck.notNull(in_rule);
+      this.index = in_index;
+
+      if (in_rule instanceof JRRuleNameSet) {
+        this.names = ((JRRuleNameSet) in_rule).getNames().names();
+        this.automaton = null;
+      } else if (in_rule instanceof JRRulePattern) {
+        this.names = null;
+        this.automaton =
+          JRAutomaton.fromPattern(((JRRulePattern) in_rule)
+            .getAnalysis()
+            .getPattern());
+      } else {
+        this.names = null;
+        this.automaton = null;
+      }
+    }
+
+    String describe(
+      final String type)
+    {
+      return String.format("%s rule [%d] (%s)", type, this.index, this.rule);
+    }
+  }
+
+  /**
+   * The minimized rules.
+   */
+
+  static final class Result
+  {
+    final int[]    indices;
+    final JRRule[] rules;
+
+    Result(
+      final JRRule[] in_rules,
+      final int[] in_indices)
+    {
+      this.rules = NullCheck.notNull(in_rules);
+      this.indices = NullCheck.notNull(in_indices);
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> if the rules of <tt>items</tt> can be shown to
+   *         match no name in common
+   */
+
+  private static boolean disjoint(
+    final Item a,
+    final Item b)
+  {
+    final List<String> a_names = a.names;
+    if (a_names != null) {
+      return !JRPolicyMinimizer.anyMatches(a_names, b.rule);
+    }
+    final List<String> b_names = b.names;
+    if (b_names != null) {
+      return !JRPolicyMinimizer.anyMatches(b_names, a.rule);
+    }
+
+    final JRAutomaton a_auto = a.automaton;
+    final JRAutomaton b_auto = b.automaton;
+    if ((a_auto != null) && (b_auto != null)) {
+      return JRAutomaton.intersects(a_auto, b_auto) == JRAutomaton.Answer.NO;
+    }
+    return false;
+  }
+
+  /**
+   * @return <tt>true</tt> if the rule matches any of the names, or might
+   *         match one of them but exceeded its step budget
+   */
+
+  private static boolean anyMatches(
+    final List<String> names,
+    final JRRule rule)
+  {
+    try {
+      for (final String name : names) {
+        if (rule.matches(name)) {
+          return true;
+        }
+      }
+      return false;
+    } catch (final JRRule.StepBudgetExceeded e) {
+      return true;
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> if every name matched by <tt>item</tt> can be shown
+   *         to be matched by at least one of <tt>others</tt>
+   */
+
+  private static boolean coveredBy(
+    final Item item,
+    final List<Item> others)
+  {
+    final List<String> names = item.names;
+    if (names != null) {
+      try {
+        for (final String name : names) {
+          boolean matched = false;
+          for (final Item other : others) {
+            if (other.rule.matches(name)) {
+              matched = true;
+              break;
+            }
+          }
+          if (!matched) {
+            return false;
+          }
+        }
+        return true;
+      } catch (final JRRule.StepBudgetExceeded e) {
+        return false;
+      }
+    }
+
+    final JRAutomaton automaton = item.automaton;
+    if (automaton == null) {
+      return false;
+    }
+
+    final List<JRAutomaton> union = new ArrayList<JRAutomaton>();
+    for (final Item other : others) {
+      final JRAutomaton other_auto = other.automaton;
+      if (other_auto != null) {
+        union.add(other_auto);
+      }
+    }
+    final JRAutomaton.Answer r =
+      JRAutomaton.isSubset(automaton, JRAutomaton.union(union));
+    return r == JRAutomaton.Answer.YES;
+  }
+
+  /**
+   * Estimate the worst-case cost of evaluating every rule against a name
+   * of {@link JRMinimizationReport#ASSUMED_NAME_LENGTH} characters.
+   *
+   * @param rules
+   *          The rules
+   * @return The estimated cost, saturating at {@link Long#MAX_VALUE}
+   */
+
+  static long estimateCost(
+    final JRRule[] rules)
+  {
+    long total = 0L;
+    for (final JRRule rule : rules) {
+      final long cost = JRPolicyMinimizer.estimateRuleCost(rule);
+      total = (Long.MAX_VALUE - total < cost) ? Long.MAX_VALUE : total + cost;
+    }
+    return total;
+  }
+
+  /**
+   * Estimate the worst-case cost of evaluating a single rule against a name
+   * of {@link JRMinimizationReport#ASSUMED_NAME_LENGTH} characters.
+   *
+   * @param rule
+   *          The rule
+   * @return The estimated cost
+   */
+
+  static long estimateRuleCost(
+    final JRRule rule)
+  {
+    if (rule instanceof JRRulePattern) {
+      final long steps =
+        ((JRRulePattern) rule).getAnalysis().estimateWorstCaseSteps(
+          JRMinimizationReport.ASSUMED_NAME_LENGTH);
+      final long budget = rule.getStepBudget();
+      return (budget > 0) ? Math.min(steps, budget) : steps;
+    }
+    return JRMinimizationReport.ASSUMED_NAME_LENGTH;
+  }
+
+  /**
+   * @return The source of a pattern that, as part of a larger pattern
+   *         compiled without flags, matches exactly what <tt>p</tt> matches,
+   *         or <tt>null</tt> if the flags of <tt>p</tt> cannot be expressed
+   *         inline
+   */
+
+  private static @Nullable String inlineSource(
+    final Pattern p)
+  {
+    final int flags = p.flags();
+    if ((flags & Pattern.CANON_EQ) != 0) {
+      return null;
+    }
+
+    final StringBuilder sb = new StringBuilder();
+    sb.append("(?");
+    if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+      sb.append('i');
+    }
+    if ((flags & Pattern.UNIX_LINES) != 0) {
+      sb.append('d');
+    }
+    if ((flags & Pattern.MULTILINE) != 0) {
+      sb.append('m');
+    }
+    if ((flags & Pattern.DOTALL) != 0) {
+      sb.append('s');
+    }
+    if ((flags & Pattern.UNICODE_CASE) != 0) {
+      sb.append('u');
+    }
+    if ((flags & Pattern.UNICODE_CHARACTER_CLASS) != 0) {
+      sb.append('U');
+    }
+    if ((flags & Pattern.COMMENTS) != 0) {
+      sb.append('x');
+    }
+    sb.append(':');
+
+    if ((flags & Pattern.LITERAL) != 0) {
+      sb.append(Pattern.quote(p.pattern()));
+    } else {
+      sb.append(p.pattern());
+    }
+
+    /**
+     * A trailing comment would otherwise extend over the rest of the
+     * combined pattern.
+     */
+
+    if ((flags & Pattern.COMMENTS) != 0) {
+      sb.append('\n');
+    }
+    sb.append(')');
+    return sb.toString();
+  }
+
+  /**
+   * @return A rule matching exactly the names matched by either rule, or
+   *         <tt>null</tt> if no such rule could be constructed
+   */
+
+  private static @Nullable Item merge(
+    final Item first,
+    final Item second)
+  {
+    final JRRule a = first.rule;
+    final JRRule b = second.rule;
+    if ((a.getConclusion() != b.getConclusion())
+      || (a.isQuick() != b.isQuick())) {
+      return null;
+    }
+
+    if ((a instanceof JRRuleNameSet) && (b instanceof JRRuleNameSet)) {
+      final JRNameSet a_set = ((JRRuleNameSet) a).getNames();
+      final Set<String> names =
+        new LinkedHashSet<String>(NullCheck.notNull(first.names));
+      names.addAll(NullCheck.notNull(second.names));
+      final JRNameSet merged = JRNameSet.create(names, a_set.getStorage());
+      return new Item(
+        new JRRuleNameSet(merged, a.getConclusion(), a.isQuick()),
+        first.index);
+    }
+
+    if ((a instanceof JRRulePattern) && (b instanceof JRRulePattern)) {
+      return JRPolicyMinimizer.mergePatterns(first, second);
+    }
+    return null;
+  }
+
+  private static @Nullable Item mergePatterns(
+    final Item first,
+    final Item second)
+  {
+    final JRRulePattern a = (JRRulePattern) first.rule;
+    final JRRulePattern b = (JRRulePattern) second.rule;
+    final JRAutomaton a_auto = first.automaton;
+    final JRAutomaton b_auto = second.automaton;
+    if ((a_auto == null) || (b_auto == null)) {
+      return null;
+    }
+
+    final String a_source =
+      JRPolicyMinimizer.inlineSource(a.getAnalysis().getPattern());
+    final String b_source =
+      JRPolicyMinimizer.inlineSource(b.getAnalysis().getPattern());
+    if ((a_source == null) || (b_source == null)) {
+      return null;
+    }
+
+    final Pattern merged;
+    try {
+      merged = Pattern.compile(a_source + "|" + b_source);
+    } catch (final PatternSyntaxException e) {
+      return null;
+    }
+
+    /**
+     * The merged pattern must not be more expensive to match than the
+     * patterns it replaces, and must provably match the same names.
+     */
+
+    final JRPatternAnalysis analysis = JRPatternAnalyzer.analyze(merged);
+    final long budget = Math.max(a.getStepBudget(), b.getStepBudget());
+    switch (analysis.getComplexity()) {
+      case LINEAR:
+        break;
+      case POLYNOMIAL:
+        if (budget == 0) {
+          return null;
+        }
+        break;
+      case EXPONENTIAL:
+      case UNKNOWN:
+        return null;
+    }
+
+    final JRAutomaton m_auto = JRAutomaton.fromPattern(merged);
+    if (m_auto == null) {
+      return null;
+    }
+    final List<JRAutomaton> parts = new ArrayList<JRAutomaton>();
+    parts.add(a_auto);
+    parts.add(b_auto);
+    final JRAutomaton union = JRAutomaton.union(parts);
+    if ((JRAutomaton.isSubset(m_auto, union) != JRAutomaton.Answer.YES)
+      || (JRAutomaton.isSubset(union, m_auto) != JRAutomaton.Answer.YES)) {
+      return null;
+    }
+
+    return new Item(new JRRulePattern(
+      analysis,
+      a.getConclusion(),
+      a.isQuick(),
+      budget), first.index);
+  }
+
+  /**
+   * Minimize the given rules.
+   *
+   * @param type
+   *          The kind of rules
+   * @param rules
+   *          The rules
+   * @param default_conclusion
+   *          The default conclusion
+   * @param entries
+   *          The list to which a report entry is added for each removed
+   *          rule
+   * @return The minimized rules, and the index of each given rule that each
+   *         minimized rule was derived from
+   */
+
+  static Result minimize(
+    final String type,
+    final JRRule[] rules,
+    final JRRuleConclusion default_conclusion,
+    final List<JRMinimizationEntry> entries)
+  {
+    final List<Item> items = new ArrayList<Item>(rules.length);
+    for (int index = 0; index < rules.length; ++index) {
+      items.add(new Item(NullCheck.notNull(rules[index]), index));
+    }
+
+    while (JRPolicyMinimizer.step(type, items, default_conclusion, entries)) {
+      // Repeat until no change applies
+    }
+
+    final JRRule[] out = new JRRule[items.size()];
+    final int[] indices = new int[items.size()];
+    for (int index = 0; index < out.length; ++index) {
+      final Item item = NullCheck.notNull(items.get(index));
+      out[index] = item.rule;
+      indices[index] = item.index;
+    }
+    return new Result(out, indices);
+  }
+
+  private static void remove(
+    final String type,
+    final List<Item> items,
+    final int position,
+    final JRMinimizationAction action,
+    final String reason,
+    final List<JRMinimizationEntry> entries)
+  {
+    final Item item = items.remove(position);
+    final String text = String.format("%s %s", item.describe(type), reason);
+    entries.add(new JRMinimizationEntry(type, item.index, action, text));
+  }
+
+  /**
+   * Apply the first removal or merge that applies.
+   *
+   * @return <tt>true</tt> if the rules were changed
+   */
+
+  private static boolean step(
+    final String type,
+    final List<Item> items,
+    final JRRuleConclusion default_conclusion,
+    final List<JRMinimizationEntry> entries)
+  {
+    for (final JRMinimizationAction action : JRMinimizationAction.values()) {
+      for (int index = 0; index < items.size(); ++index) {
+        if (JRPolicyMinimizer.tryAction(
+          type,
+          items,
+          index,
+          action,
+          default_conclusion,
+          entries)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean tryAction(
+    final String type,
+    final List<Item> items,
+    final int position,
+    final JRMinimizationAction action,
+    final JRRuleConclusion default_conclusion,
+    final List<JRMinimizationEntry> entries)
+  {
+    final Item item = NullCheck.notNull(items.get(position));
+
+    switch (action) {
+      case UNREACHABLE:
+      {
+        final List<Item> quick = new ArrayList<Item>();
+        for (final Item other : items.subList(0, position)) {
+          if (other.rule.isQuick()) {
+            quick.add(other);
+          }
+        }
+        if (!quick.isEmpty() && JRPolicyMinimizer.coveredBy(item, quick)) {
+          JRPolicyMinimizer.remove(
+            type,
+            items,
+            position,
+            action,
+            "is only reached by names that it does not match",
+            entries);
+          return true;
+        }
+        return false;
+      }
+
+      case SHADOWED:
+      {
+        if (item.rule.isQuick()) {
+          return false;
+        }
+        final List<Item> later =
+          items.subList(position + 1, items.size());
+        if (JRPolicyMinimizer.coveredBy(item, later)) {
+          JRPolicyMinimizer.remove(
+            type,
+            items,
+            position,
+            action,
+            "is always overridden by later rules",
+            entries);
+          return true;
+        }
+        return false;
+      }
+
+      case REDUNDANT:
+      {
+        if (item.rule.isQuick()
+          || (item.rule.getConclusion() != default_conclusion)) {
+          return false;
+        }
+        for (final Item other : items.subList(0, position)) {
+          if (!other.rule.isQuick()
+            && (other.rule.getConclusion() != default_conclusion)
+            && !JRPolicyMinimizer.disjoint(item, other)) {
+            return false;
+          }
+        }
+        JRPolicyMinimizer.remove(
+          type,
+          items,
+          position,
+          action,
+          "only confirms the default conclusion",
+          entries);
+        return true;
+      }
+
+      case MERGED:
+      {
+        if (position == 0) {
+          return false;
+        }
+        final Item previous = NullCheck.notNull(items.get(position - 1));
+        final Item merged = JRPolicyMinimizer.merge(previous, item);
+        if (merged == null) {
+          return false;
+        }
+        items.set(position - 1, merged);
+        final String reason =
+          String.format(
+            "was merged into %s rule [%d] (%s)",
+            type,
+            previous.index,
+            merged.rule);
+        JRPolicyMinimizer.remove(
+          type,
+          items,
+          position,
+          action,
+          reason,
+          entries);
+        return true;
+      }
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  private JRPolicyMinimizer()
+  {
+    throw new UnreachableCodeException();
+  }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.List;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * <p>
+ * The type of nodes in the syntax tree of a parsed {@link java.util.regex}
+ * pattern.
+ * </p>
+ * <p>
+ * Every node can reproduce a self-contained source fragment that, compiled
+ * with the flags of the original pattern, denotes the same language as the
+ * node. This allows rewritten trees to be turned back into patterns.
+ * </p>
+ */
+
+abstract class JRRegexNode
+{
+  /**
+   * The kind of node.
+   */
+
+  enum Kind
+  {
+    ALTERNATION,
+    ANCHOR,
+    BACK_REFERENCE,
+    CHARS,
+    FLAGS,
+    GROUP,
+    OPAQUE,
+    REPEAT,
+    SEQUENCE
+  }
+
+  /**
+   * The kind of group.
+   */
+
+  enum GroupKind
+  {
+    ATOMIC,
+    CAPTURING,
+    LOOKAHEAD,
+    LOOKBEHIND,
+    NEGATIVE_LOOKAHEAD,
+    NEGATIVE_LOOKBEHIND,
+    NON_CAPTURING
+  }
+
+  /**
+   * The matching mode of a quantifier.
+   */
+
+  enum Mode
+  {
+    GREEDY,
+    LAZY,
+    POSSESSIVE
+  }
+
+  /**
+   * A choice between alternatives.
+   */
+
+  static final class Alternation extends JRRegexNode
+  {
+    final List<JRRegexNode> alternatives;
+
+    Alternation(
+      final List<JRRegexNode> in_alternatives)
+    {
+      this.alternatives = NullCheck.notNull(in_alternatives);
+    }
+
+    @Override boolean isAtom()
+    {
+      return false;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.ALTERNATION;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      for (int index = 0; index < this.alternatives.size(); ++index) {
+        if (index > 0) {
+          sb.append('|');
+        }
+        this.alternatives.get(index).source(sb);
+      }
+    }
+  }
+
+  /**
+   * A zero-width assertion such as <tt>^</tt> or <tt>\b</tt>.
+   */
+
+  static final class Anchor extends JRRegexNode
+  {
+    final String text;
+
+    Anchor(
+      final String in_text)
+    {
+      this.text = NullCheck.notNull(in_text);
+    }
+
+    @Override boolean isAtom()
+    {
+      return true;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.ANCHOR;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      sb.append(this.text);
+    }
+  }
+
+  /**
+   * A back reference to a capturing group.
+   */
+
+  static final class BackReference extends JRRegexNode
+  {
+    final String text;
+
+    BackReference(
+      final String in_text)
+    {
+      this.text = NullCheck.notNull(in_text);
+    }
+
+    @Override boolean isAtom()
+    {
+      return true;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.BACK_REFERENCE;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      sb.append(this.text);
+    }
+  }
+
+  /**
+   * A single character drawn from a set. If <tt>exact</tt> is
+   * <tt>false</tt>, the set is a superset of the characters that the node
+   * actually matches.
+   */
+
+  static final class Chars extends JRRegexNode
+  {
+    final boolean   exact;
+    final JRCharSet set;
+    final String    text;
+
+    Chars(
+      final JRCharSet in_set,
+      final boolean in_exact,
+      final String in_text)
+    {
+      this.set = NullCheck.notNull(in_set);
+      this.exact = in_exact;
+      this.text = NullCheck.notNull(in_text);
+    }
+
+    @Override boolean isAtom()
+    {
+      return true;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.CHARS;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      sb.append(this.text);
+    }
+  }
+
+  /**
+   * An embedded flag expression such as <tt>(?i)</tt>, which changes the
+   * flags for the remainder of the enclosing group.
+   */
+
+  static final class Flags extends JRRegexNode
+  {
+    final String text;
+
+    Flags(
+      final String in_text)
+    {
+      this.text = NullCheck.notNull(in_text);
+    }
+
+    @Override boolean isAtom()
+    {
+      return false;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.FLAGS;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      sb.append(this.text);
+    }
+  }
+
+  /**
+   * A group.
+   */
+
+  static final class Group extends JRRegexNode
+  {
+    final JRRegexNode child;
+    final GroupKind   group_kind;
+    final String      open;
+
+    Group(
+      final GroupKind in_kind,
+      final String in_open,
+      final JRRegexNode in_child)
+    {
+      this.group_kind = NullCheck.notNull(in_kind);
+      this.open = NullCheck.notNull(in_open);
+      this.child = NullCheck.notNull(in_child);
+    }
+
+    @Override boolean isAtom()
+    {
+      return true;
+    }
+
+    /**
+     * @return <tt>true</tt> if the group consumes input (as opposed to
+     *         being a lookaround assertion)
+     */
+
+    boolean isConsuming()
+    {
+      switch (this.group_kind) {
+        case ATOMIC:
+        case CAPTURING:
+        case NON_CAPTURING:
+          return true;
+        case LOOKAHEAD:
+        case LOOKBEHIND:
+        case NEGATIVE_LOOKAHEAD:
+        case NEGATIVE_LOOKBEHIND:
+          return false;
+      }
+      return false;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.GROUP;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      sb.append(this.open);
+      this.child.source(sb);
+      sb.append(')');
+    }
+  }
+
+  /**
+   * A construct that is not analysed further, such as <tt>\X</tt>. The
+   * node is assumed to consume at least one character from <tt>set</tt>.
+   */
+
+  static final class Opaque extends JRRegexNode
+  {
+    final JRCharSet set;
+    final String    text;
+
+    Opaque(
+      final JRCharSet in_set,
+      final String in_text)
+    {
+      this.set = NullCheck.notNull(in_set);
+      this.text = NullCheck.notNull(in_text);
+    }
+
+    @Override boolean isAtom()
+    {
+      return true;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.OPAQUE;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      sb.append(this.text);
+    }
+  }
+
+  /**
+   * A quantified node. A <tt>max</tt> of <tt>-1</tt> denotes an unbounded
+   * quantifier.
+   */
+
+  static final class Repeat extends JRRegexNode
+  {
+    final JRRegexNode child;
+    final int         max;
+    final int         min;
+    final Mode        mode;
+
+    Repeat(
+      final JRRegexNode in_child,
+      final int in_min,
+      final int in_max,
+      final Mode in_mode)
+    {
+      this.child = NullCheck.notNull(in_child);
+      this.min = in_min;
+      this.max = in_max;
+      this.mode = NullCheck.notNull(in_mode);
+    }
+
+    @Override boolean isAtom()
+    {
+      return false;
+    }
+
+    boolean isUnbounded()
+    {
+      return this.max < 0;
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.REPEAT;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      JRRegexNode.atomSource(sb, this.child);
+
+      if ((this.min == 0) && (this.max < 0)) {
+        sb.append('*');
+      } else if ((this.min == 1) && (this.max < 0)) {
+        sb.append('+');
+      } else if ((this.min == 0) && (this.max == 1)) {
+        sb.append('?');
+      } else if (this.min == this.max) {
+        sb.append('{');
+        sb.append(this.min);
+        sb.append('}');
+      } else {
+        sb.append('{');
+        sb.append(this.min);
+        sb.append(',');
+        if (this.max >= 0) {
+          sb.append(this.max);
+        }
+        sb.append('}');
+      }
+
+      switch (this.mode) {
+        case GREEDY:
+          break;
+        case LAZY:
+          sb.append('?');
+          break;
+        case POSSESSIVE:
+          sb.append('+');
+          break;
+      }
+    }
+  }
+
+  /**
+   * A sequence of nodes.
+   */
+
+  static final class Sequence extends JRRegexNode
+  {
+    final List<JRRegexNode> items;
+
+    Sequence(
+      final List<JRRegexNode> in_items)
+    {
+      this.items = NullCheck.notNull(in_items);
+    }
+
+    @Override boolean isAtom()
+    {
+      return (this.items.size() == 1) && this.items.get(0).isAtom();
+    }
+
+    @Override Kind kind()
+    {
+      return Kind.SEQUENCE;
+    }
+
+    @Override void source(
+      final StringBuilder sb)
+    {
+      for (final JRRegexNode item : this.items) {
+        if (item.kind() == Kind.ALTERNATION) {
+          sb.append("(?:");
+          item.source(sb);
+          sb.append(')');
+        } else {
+          item.source(sb);
+        }
+      }
+    }
+  }
+
+  private static void atomSource(
+    final StringBuilder sb,
+    final JRRegexNode node)
+  {
+    if (node.isAtom()) {
+      node.source(sb);
+    } else {
+      sb.append("(?:");
+      node.source(sb);
+      sb.append(')');
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> if a quantifier may directly follow the source of
+   *         this node
+   */
+
+  abstract boolean isAtom();
+
+  abstract Kind kind();
+
+  abstract void source(
+    final StringBuilder sb);
+
+  /**
+   * @return A self-contained source fragment for the node
+   */
+
+  final String source()
+  {
+    final StringBuilder sb = new StringBuilder();
+    this.source(sb);
+    return NullCheck.notNull(sb.toString());
+  }
+
+  @Override public final String toString()
+  {
+    return this.source();
+  }
+}
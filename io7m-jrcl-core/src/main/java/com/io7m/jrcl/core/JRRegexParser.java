@@ -0,0 +1,956 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * A parser for the syntax accepted by {@link Pattern}.
+ * </p>
+ * <p>
+ * The parser is only ever given the source of patterns that have already
+ * been compiled successfully, and so does not attempt to diagnose malformed
+ * input. Constructs whose meaning cannot be represented precisely (Unicode
+ * properties, Unicode case folding, canonical equivalence) produce
+ * {@link JRRegexNode.Chars} nodes that are marked as inexact, or
+ * {@link JRRegexNode.Opaque} nodes.
+ * </p>
+ */
+
+final class JRRegexParser
+{
+  private static final JRCharSet DIGIT;
+  private static final JRCharSet HORIZONTAL_SPACE;
+  private static final JRCharSet LINE_TERMINATORS;
+  private static final JRCharSet SPACE;
+  private static final JRCharSet VERTICAL_SPACE;
+  private static final JRCharSet WORD;
+
+  static {
+    DIGIT = JRCharSet.range('0', '9');
+    SPACE = JRCharSet.ofChars(" \t\n\u000B\f\r");
+    WORD =
+      JRCharSet
+        .range('a', 'z')
+        .union(JRCharSet.range('A', 'Z'))
+        .union(JRCharSet.of('_'))
+        .union(JRRegexParser.DIGIT);
+    HORIZONTAL_SPACE =
+      JRCharSet
+        .ofChars(" \t\u00A0\u1680\u180e\u202f\u205f\u3000")
+        .union(JRCharSet.range(0x2000, 0x200a));
+    VERTICAL_SPACE = JRCharSet.ofChars("\n\u000B\f\r\u0085\u2028\u2029");
+    LINE_TERMINATORS = JRCharSet.ofChars("\n\r\u0085\u2028\u2029");
+  }
+
+  /**
+   * Parse the given pattern.
+   *
+   * @param p
+   *          The pattern
+   * @return The syntax tree of the pattern
+   * @throws IllegalArgumentException
+   *           If the pattern uses syntax that the parser does not support
+   */
+
+  static JRRegexNode parse(
+    final Pattern p)
+    throws IllegalArgumentException
+  {
+    final JRRegexParser parser =
+      new JRRegexParser(NullCheck.notNull(p.pattern()), p.flags());
+
+    if ((p.flags() & Pattern.LITERAL) != 0) {
+      return parser.parseLiteral();
+    }
+
+    final JRRegexNode node = parser.parseAlternation();
+    if (parser.position < parser.text.length()) {
+      throw new IllegalArgumentException(String.format(
+        "Unexpected character at offset %d",
+        Integer.valueOf(parser.position)));
+    }
+    return node;
+  }
+
+  private static boolean isOctal(
+    final int c)
+  {
+    return (c >= '0') && (c <= '7');
+  }
+
+  /**
+   * @return A self-contained source fragment denoting the literal code point
+   *         <tt>c</tt>
+   */
+
+  static String literalText(
+    final int c)
+  {
+    if (((c >= 'a') && (c <= 'z'))
+      || ((c >= 'A') && (c <= 'Z'))
+      || ((c >= '0') && (c <= '9'))) {
+      return NullCheck.notNull(String.valueOf((char) c));
+    }
+    if ((c > 0x20) && (c < 0x7f)) {
+      return "\\" + (char) c;
+    }
+    return NullCheck.notNull(String.format("\\x{%x}", Integer.valueOf(c)));
+  }
+
+  private int          flags;
+  private int          position;
+  private final String text;
+
+  private JRRegexParser(
+    final String in_text,
+    final int in_flags)
+  {
+    this.text = in_text;
+    this.flags = in_flags;
+    this.position = 0;
+  }
+
+  private boolean atEnd()
+  {
+    return this.position >= this.text.length();
+  }
+
+  private boolean flag(
+    final int f)
+  {
+    return (this.flags & f) != 0;
+  }
+
+  /**
+   * @return A node for the single code point <tt>c</tt>, respecting the
+   *         current case sensitivity flags
+   */
+
+  private JRRegexNode.Chars literal(
+    final int c,
+    final String fragment)
+  {
+    return new JRRegexNode.Chars(
+      this.fold(JRCharSet.of(c)),
+      this.isFoldExact(),
+      fragment);
+  }
+
+  private JRCharSet fold(
+    final JRCharSet set)
+  {
+    if (this.flag(Pattern.CASE_INSENSITIVE)) {
+      return set.foldAsciiCase();
+    }
+    return set;
+  }
+
+  private boolean isFoldExact()
+  {
+    return !(this.flag(Pattern.CASE_INSENSITIVE) && this
+      .flag(Pattern.UNICODE_CASE)) && !this.flag(Pattern.CANON_EQ);
+  }
+
+  private JRRegexNode parseLiteral()
+  {
+    final List<JRRegexNode> items = new ArrayList<JRRegexNode>();
+    int index = 0;
+    while (index < this.text.length()) {
+      final int c = this.text.codePointAt(index);
+      items.add(this.literal(c, JRRegexParser.literalText(c)));
+      index += Character.charCount(c);
+    }
+    return new JRRegexNode.Sequence(items);
+  }
+
+  private int peek()
+  {
+    return this.text.codePointAt(this.position);
+  }
+
+  private boolean peekIs(
+    final String s)
+  {
+    return this.text.startsWith(s, this.position);
+  }
+
+  private int next()
+  {
+    final int c = this.text.codePointAt(this.position);
+    this.position += Character.charCount(c);
+    return c;
+  }
+
+  private void expect(
+    final char c)
+  {
+    if (this.atEnd() || (this.peek() != c)) {
+      throw new IllegalArgumentException(String.format(
+        "Expected '%c' at offset %d",
+        Character.valueOf(c),
+        Integer.valueOf(this.position)));
+    }
+    this.next();
+  }
+
+  /**
+   * Skip whitespace and comments if the <tt>COMMENTS</tt> flag is set.
+   */
+
+  private void skipComments()
+  {
+    if (!this.flag(Pattern.COMMENTS)) {
+      return;
+    }
+    while (!this.atEnd()) {
+      final int c = this.peek();
+      if ((c == ' ')
+        || (c == '\t')
+        || (c == '\n')
+        || (c == '\u000B')
+        || (c == '\f')
+        || (c == '\r')) {
+        this.next();
+      } else if (c == '#') {
+        while (!this.atEnd() && (this.peek() != '\n')) {
+          this.next();
+        }
+      } else {
+        return;
+      }
+    }
+  }
+
+  private JRRegexNode parseAlternation()
+  {
+    final List<JRRegexNode> alternatives = new ArrayList<JRRegexNode>();
+    alternatives.add(this.parseSequence());
+    while (!this.atEnd() && (this.peek() == '|')) {
+      this.next();
+      alternatives.add(this.parseSequence());
+    }
+    if (alternatives.size() == 1) {
+      return NullCheck.notNull(alternatives.get(0));
+    }
+    return new JRRegexNode.Alternation(alternatives);
+  }
+
+  private JRRegexNode parseSequence()
+  {
+    final List<JRRegexNode> items = new ArrayList<JRRegexNode>();
+    for (;;) {
+      this.skipComments();
+      if (this.atEnd()) {
+        break;
+      }
+      final int c = this.peek();
+      if ((c == '|') || (c == ')')) {
+        break;
+      }
+
+      final int start = this.position;
+      final List<JRRegexNode> atoms = this.parseAtom();
+      if (atoms.size() == 1) {
+        items.add(this.parseQuantifiers(NullCheck.notNull(atoms.get(0))));
+      } else {
+        /**
+         * A quoted sequence produces several atoms; a quantifier following
+         * it applies only to the last one.
+         */
+
+        for (int index = 0; index < (atoms.size() - 1); ++index) {
+          items.add(atoms.get(index));
+        }
+        if (!atoms.isEmpty()) {
+          items.add(this.parseQuantifiers(NullCheck.notNull(atoms.get(atoms
+            .size() - 1))));
+        }
+      }
+
+      assert this.position > start;
+    }
+    return new JRRegexNode.Sequence(items);
+  }
+
+  private JRRegexNode parseQuantifiers(
+    final JRRegexNode atom)
+  {
+    JRRegexNode current = atom;
+    for (;;) {
+      this.skipComments();
+      if (this.atEnd()) {
+        return current;
+      }
+
+      final int c = this.peek();
+      final int min;
+      final int max;
+      if (c == '*') {
+        this.next();
+        min = 0;
+        max = -1;
+      } else if (c == '+') {
+        this.next();
+        min = 1;
+        max = -1;
+      } else if (c == '?') {
+        this.next();
+        min = 0;
+        max = 1;
+      } else if ((c == '{') && this.isBoundedQuantifier()) {
+        this.next();
+        min = this.parseNumber();
+        if (this.peek() == ',') {
+          this.next();
+          if (this.peek() == '}') {
+            max = -1;
+          } else {
+            max = this.parseNumber();
+          }
+        } else {
+          max = min;
+        }
+        this.expect('}');
+      } else {
+        return current;
+      }
+
+      JRRegexNode.Mode mode = JRRegexNode.Mode.GREEDY;
+      if (!this.atEnd()) {
+        if (this.peek() == '?') {
+          this.next();
+          mode = JRRegexNode.Mode.LAZY;
+        } else if (this.peek() == '+') {
+          this.next();
+          mode = JRRegexNode.Mode.POSSESSIVE;
+        }
+      }
+
+      current = new JRRegexNode.Repeat(current, min, max, mode);
+    }
+  }
+
+  private boolean isBoundedQuantifier()
+  {
+    int index = this.position + 1;
+    boolean digits = false;
+    while ((index < this.text.length())
+      && Character.isDigit(this.text.charAt(index))) {
+      ++index;
+      digits = true;
+    }
+    return digits;
+  }
+
+  private int parseNumber()
+  {
+    final int start = this.position;
+    while (!this.atEnd() && (this.peek() >= '0') && (this.peek() <= '9')) {
+      this.next();
+    }
+    return Integer.parseInt(this.text.substring(start, this.position));
+  }
+
+  private List<JRRegexNode> parseAtom()
+  {
+    final int c = this.peek();
+    final List<JRRegexNode> out = new ArrayList<JRRegexNode>(1);
+
+    switch (c) {
+      case '(':
+      {
+        out.add(this.parseGroup());
+        return out;
+      }
+      case '[':
+      {
+        final int start = this.position;
+        final boolean exact[] = new boolean[] { true };
+        final JRCharSet set = this.parseClass(exact);
+        out.add(new JRRegexNode.Chars(
+          set,
+          exact[0] && this.isFoldExact(),
+          NullCheck.notNull(this.text.substring(start, this.position))));
+        return out;
+      }
+      case '.':
+      {
+        this.next();
+        out.add(new JRRegexNode.Chars(this.dot(), true, "."));
+        return out;
+      }
+      case '^':
+      case '$':
+      {
+        this.next();
+        out.add(new JRRegexNode.Anchor(NullCheck.notNull(String
+          .valueOf((char) c))));
+        return out;
+      }
+      case '\\':
+      {
+        return this.parseEscape();
+      }
+      default:
+      {
+        final int start = this.position;
+        final int k = this.next();
+        out.add(this.literal(
+          k,
+          NullCheck.notNull(this.text.substring(start, this.position))));
+        return out;
+      }
+    }
+  }
+
+  private JRCharSet dot()
+  {
+    if (this.flag(Pattern.DOTALL)) {
+      return JRCharSet.all();
+    }
+    if (this.flag(Pattern.UNIX_LINES)) {
+      return JRCharSet.of('\n').complement();
+    }
+    return JRRegexParser.LINE_TERMINATORS.complement();
+  }
+
+  private JRRegexNode parseGroup()
+  {
+    final int start = this.position;
+    final int saved_flags = this.flags;
+    this.expect('(');
+
+    JRRegexNode.GroupKind kind = JRRegexNode.GroupKind.CAPTURING;
+    if (!this.atEnd() && (this.peek() == '?')) {
+      this.next();
+      final int c = this.peek();
+      if (c == ':') {
+        this.next();
+        kind = JRRegexNode.GroupKind.NON_CAPTURING;
+      } else if (c == '=') {
+        this.next();
+        kind = JRRegexNode.GroupKind.LOOKAHEAD;
+      } else if (c == '!') {
+        this.next();
+        kind = JRRegexNode.GroupKind.NEGATIVE_LOOKAHEAD;
+      } else if (c == '>') {
+        this.next();
+        kind = JRRegexNode.GroupKind.ATOMIC;
+      } else if (this.peekIs("<=")) {
+        this.position += 2;
+        kind = JRRegexNode.GroupKind.LOOKBEHIND;
+      } else if (this.peekIs("<!")) {
+        this.position += 2;
+        kind = JRRegexNode.GroupKind.NEGATIVE_LOOKBEHIND;
+      } else if (c == '<') {
+        while (this.next() != '>') {
+          // Skip group name
+        }
+        kind = JRRegexNode.GroupKind.CAPTURING;
+      } else {
+        /**
+         * Embedded flags, either standalone (?i) or scoped (?i:X).
+         */
+
+        final boolean scoped = this.parseFlags();
+        if (!scoped) {
+          final String flag_text =
+            NullCheck.notNull(this.text.substring(start, this.position));
+          return new JRRegexNode.Flags(flag_text);
+        }
+        kind = JRRegexNode.GroupKind.NON_CAPTURING;
+      }
+    }
+
+    final String open =
+      NullCheck.notNull(this.text.substring(start, this.position));
+    final JRRegexNode child = this.parseAlternation();
+    this.expect(')');
+    this.flags = saved_flags;
+    return new JRRegexNode.Group(kind, open, child);
+  }
+
+  /**
+   * Parse the flags of an embedded flag expression, updating the current
+   * flags.
+   *
+   * @return <tt>true</tt> if the flags introduce a scoped group
+   */
+
+  private boolean parseFlags()
+  {
+    boolean enable = true;
+    for (;;) {
+      final int c = this.next();
+      int f = 0;
+      switch (c) {
+        case 'i':
+          f = Pattern.CASE_INSENSITIVE;
+          break;
+        case 'd':
+          f = Pattern.UNIX_LINES;
+          break;
+        case 'm':
+          f = Pattern.MULTILINE;
+          break;
+        case 's':
+          f = Pattern.DOTALL;
+          break;
+        case 'u':
+          f = Pattern.UNICODE_CASE;
+          break;
+        case 'x':
+          f = Pattern.COMMENTS;
+          break;
+        case 'U':
+          f = Pattern.UNICODE_CHARACTER_CLASS;
+          break;
+        case 'c':
+          f = Pattern.CANON_EQ;
+          break;
+        case '-':
+          enable = false;
+          continue;
+        case ')':
+          return false;
+        case ':':
+          return true;
+        default:
+          throw new IllegalArgumentException(String.format(
+            "Unrecognized flag '%c'",
+            Integer.valueOf(c)));
+      }
+      if (enable) {
+        this.flags |= f;
+      } else {
+        this.flags &= ~f;
+      }
+    }
+  }
+
+  /**
+   * Parse a character class, starting at the opening bracket. The items of
+   * the class are folded to the current case sensitivity as they are
+   * parsed, so that a negated class is the complement of the folded items,
+   * exactly as in {@link Pattern}, and is not folded again.
+   */
+
+  private JRCharSet parseClass(
+    final boolean[] exact)
+  {
+    this.expect('[');
+    boolean negate = false;
+    if (!this.atEnd() && (this.peek() == '^')) {
+      this.next();
+      negate = true;
+    }
+
+    final JRCharSet body = this.parseClassBody(exact);
+    this.expect(']');
+    if (negate) {
+      return body.complement();
+    }
+    return body;
+  }
+
+  private void skipClassComments()
+  {
+    if (this.flag(Pattern.COMMENTS)) {
+      this.skipComments();
+    }
+  }
+
+  private JRCharSet parseClassBody(
+    final boolean[] exact)
+  {
+    JRCharSet set = JRCharSet.empty();
+    for (;;) {
+      this.skipClassComments();
+      if (this.atEnd()) {
+        throw new IllegalArgumentException("Unclosed character class");
+      }
+
+      final int c = this.peek();
+      if (c == ']') {
+        return set;
+      }
+      if (c == '[') {
+        set = set.union(this.parseClass(exact));
+        continue;
+      }
+      if (this.peekIs("&&")) {
+        this.position += 2;
+        final JRCharSet rhs = this.parseClassBody(exact);
+        return set.intersect(rhs);
+      }
+
+      final JRCharSet single;
+      final int lo;
+      if (c == '\\') {
+        this.next();
+        final int e = this.peek();
+        if (e == 'Q') {
+          this.next();
+          JRCharSet quoted = JRCharSet.empty();
+          while (!this.atEnd() && !this.peekIs("\\E")) {
+            quoted = quoted.union(JRCharSet.of(this.next()));
+          }
+          if (!this.atEnd()) {
+            this.position += 2;
+          }
+          set = set.union(this.fold(quoted));
+          continue;
+        }
+        final JRCharSet predefined = this.parsePredefinedClass(exact);
+        if (predefined != null) {
+          set = set.union(predefined);
+          continue;
+        }
+        lo = this.parseEscapedChar();
+      } else {
+        lo = this.next();
+      }
+
+      this.skipClassComments();
+      if (!this.atEnd()
+        && (this.peek() == '-')
+        && (this.position + 1 < this.text.length())
+        && (this.text.charAt(this.position + 1) != ']')
+        && (this.text.charAt(this.position + 1) != '[')) {
+        this.next();
+        this.skipClassComments();
+        final int hi;
+        if (this.peek() == '\\') {
+          this.next();
+          hi = this.parseEscapedChar();
+        } else {
+          hi = this.next();
+        }
+        single = JRCharSet.range(lo, hi);
+      } else {
+        single = JRCharSet.of(lo);
+      }
+      set = set.union(this.fold(single));
+    }
+  }
+
+  /**
+   * Parse a predefined class escape, positioned after the backslash.
+   *
+   * @return The class, or <tt>null</tt> if the escape is not a predefined
+   *         class (in which case the position is unchanged)
+   */
+
+  private @Nullable JRCharSet parsePredefinedClass(
+    final boolean[] exact)
+  {
+    final int c = this.peek();
+    final boolean unicode = this.flag(Pattern.UNICODE_CHARACTER_CLASS);
+
+    JRCharSet set;
+    switch (c) {
+      case 'd':
+        set = JRRegexParser.DIGIT;
+        break;
+      case 'D':
+        set = JRRegexParser.DIGIT.complement();
+        break;
+      case 's':
+        set = JRRegexParser.SPACE;
+        break;
+      case 'S':
+        set = JRRegexParser.SPACE.complement();
+        break;
+      case 'w':
+        set = JRRegexParser.WORD;
+        break;
+      case 'W':
+        set = JRRegexParser.WORD.complement();
+        break;
+      case 'h':
+        set = JRRegexParser.HORIZONTAL_SPACE;
+        break;
+      case 'H':
+        set = JRRegexParser.HORIZONTAL_SPACE.complement();
+        break;
+      case 'v':
+        set = JRRegexParser.VERTICAL_SPACE;
+        break;
+      case 'V':
+        set = JRRegexParser.VERTICAL_SPACE.complement();
+        break;
+      case 'p':
+      case 'P':
+      {
+        this.next();
+        final String name;
+        if (this.peek() == '{') {
+          final int end = this.text.indexOf('}', this.position);
+          name = this.text.substring(this.position + 1, end);
+          this.position = end + 1;
+        } else {
+          name = NullCheck.notNull(String.valueOf((char) this.next()));
+        }
+        final JRCharSet posix = JRRegexParser.posixClass(name);
+        if ((posix == null) || unicode) {
+          exact[0] = false;
+          return JRCharSet.all();
+        }
+        if (c == 'P') {
+          return this.fold(posix).complement();
+        }
+        return this.fold(posix);
+      }
+      default:
+        return null;
+    }
+
+    this.next();
+    if (unicode && (c != 'h') && (c != 'H') && (c != 'v') && (c != 'V')) {
+      exact[0] = false;
+      set = JRCharSet.all();
+    }
+    return set;
+  }
+
+  private static @Nullable JRCharSet posixClass(
+    final String name)
+  {
+    final JRCharSet lower = JRCharSet.range('a', 'z');
+    final JRCharSet upper = JRCharSet.range('A', 'Z');
+    final JRCharSet alpha = lower.union(upper);
+    final JRCharSet punct =
+      JRCharSet.ofChars("!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~");
+    final JRCharSet alnum = alpha.union(JRRegexParser.DIGIT);
+
+    switch (name) {
+      case "Lower":
+        return lower;
+      case "Upper":
+        return upper;
+      case "ASCII":
+        return JRCharSet.range(0, 0x7f);
+      case "Alpha":
+        return alpha;
+      case "Digit":
+        return JRRegexParser.DIGIT;
+      case "Alnum":
+        return alnum;
+      case "Punct":
+        return punct;
+      case "Graph":
+      case "Print":
+      {
+        final JRCharSet graph = alnum.union(punct);
+        if ("Print".equals(name)) {
+          return graph.union(JRCharSet.of(' '));
+        }
+        return graph;
+      }
+      case "Blank":
+        return JRCharSet.ofChars(" \t");
+      case "Cntrl":
+        return JRCharSet.range(0, 0x1f).union(JRCharSet.of(0x7f));
+      case "XDigit":
+        return JRRegexParser.DIGIT
+          .union(JRCharSet.range('a', 'f'))
+          .union(JRCharSet.range('A', 'F'));
+      case "Space":
+        return JRRegexParser.SPACE;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Parse an escaped literal character, positioned after the backslash.
+   */
+
+  private int parseEscapedChar()
+  {
+    final int c = this.next();
+    switch (c) {
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case 'a':
+        return '\u0007';
+      case 'e':
+        return '\u001B';
+      case '0':
+      {
+        int value = 0;
+        int count = 0;
+        while ((count < 3)
+          && !this.atEnd()
+          && JRRegexParser.isOctal(this.peek())) {
+          final int next = (value * 8) + (this.peek() - '0');
+          if (next > 0377) {
+            break;
+          }
+          value = next;
+          this.next();
+          ++count;
+        }
+        return value;
+      }
+      case 'x':
+      {
+        if (this.peek() == '{') {
+          final int end = this.text.indexOf('}', this.position);
+          final int value =
+            Integer.parseInt(this.text.substring(this.position + 1, end), 16);
+          this.position = end + 1;
+          return value;
+        }
+        final int value =
+          Integer.parseInt(
+            this.text.substring(this.position, this.position + 2),
+            16);
+        this.position += 2;
+        return value;
+      }
+      case 'u':
+      {
+        final int value =
+          Integer.parseInt(
+            this.text.substring(this.position, this.position + 4),
+            16);
+        this.position += 4;
+        return value;
+      }
+      case 'c':
+        return this.next() ^ 64;
+      case 'N':
+      {
+        final int end = this.text.indexOf('}', this.position);
+        final String name = this.text.substring(this.position + 1, end);
+        this.position = end + 1;
+        return Character.codePointOf(name);
+      }
+      default:
+        return c;
+    }
+  }
+
+  /**
+   * Parse an escape sequence outside of a character class, positioned at
+   * the backslash.
+   */
+
+  private List<JRRegexNode> parseEscape()
+  {
+    final int start = this.position;
+    final List<JRRegexNode> out = new ArrayList<JRRegexNode>(1);
+    this.expect('\\');
+
+    final int c = this.peek();
+    switch (c) {
+      case 'b':
+      case 'B':
+      case 'A':
+      case 'G':
+      case 'Z':
+      case 'z':
+      {
+        this.next();
+        out.add(new JRRegexNode.Anchor(NullCheck.notNull(this.text
+          .substring(start, this.position))));
+        return out;
+      }
+      case 'R':
+      {
+        this.next();
+        out.add(new JRRegexNode.Opaque(JRRegexParser.VERTICAL_SPACE, "\\R"));
+        return out;
+      }
+      case 'X':
+      {
+        this.next();
+        out.add(new JRRegexNode.Opaque(JRCharSet.all(), "\\X"));
+        return out;
+      }
+      case 'k':
+      {
+        final int end = this.text.indexOf('>', this.position);
+        this.position = end + 1;
+        out.add(new JRRegexNode.BackReference(NullCheck.notNull(this.text
+          .substring(start, this.position))));
+        return out;
+      }
+      case 'Q':
+      {
+        this.next();
+        while (!this.atEnd() && !this.peekIs("\\E")) {
+          final int k = this.next();
+          out.add(this.literal(k, JRRegexParser.literalText(k)));
+        }
+        if (!this.atEnd()) {
+          this.position += 2;
+        }
+        return out;
+      }
+      case 'E':
+      {
+        /**
+         * A stray \E is ignored by the pattern compiler.
+         */
+
+        this.next();
+        return out;
+      }
+      default:
+        break;
+    }
+
+    if ((c >= '1') && (c <= '9')) {
+      this.next();
+      while (!this.atEnd() && Character.isDigit(this.peek())) {
+        this.next();
+      }
+      final String ref = this.text.substring(start, this.position);
+      out.add(new JRRegexNode.BackReference("(?:" + ref + ")"));
+      return out;
+    }
+
+    final boolean exact[] = new boolean[] { true };
+    final JRCharSet predefined = this.parsePredefinedClass(exact);
+    if (predefined != null) {
+      out.add(new JRRegexNode.Chars(
+        predefined,
+        exact[0] && this.isFoldExact(),
+        NullCheck.notNull(this.text.substring(start, this.position))));
+      return out;
+    }
+
+    final int k = this.parseEscapedChar();
+    out.add(this.literal(k, JRRegexParser.literalText(k)));
+    return out;
+  }
+}
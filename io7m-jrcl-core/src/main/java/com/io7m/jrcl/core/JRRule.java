@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * A rule in a {@link JRSequentialPolicy}: a conclusion that applies to the
+ * names that the rule matches.
+ */
+
+abstract class JRRule
+{
+  /**
+   * Raised when a rule exceeds its step budget. A single instance without a
+   * stack trace is shared, as the exception carries no state.
+   */
+
+  static final class StepBudgetExceeded extends RuntimeException
+  {
+    static final StepBudgetExceeded INSTANCE;
+    private static final long       serialVersionUID = 1L;
+
+    static {
+      INSTANCE = new StepBudgetExceeded();
+    }
+
+    private StepBudgetExceeded()
+    {
+      super("Step budget exceeded", null, false, false);
+    }
+  }
+
+  private final JRRuleConclusion conclusion;
+  private final boolean          quick;
+
+  JRRule(
+    final JRRuleConclusion in_conclusion,
+    final boolean in_quick)
+  {
+    this.conclusion = NullCheck.notNull(in_conclusion);
+    this.quick = in_quick;
+  }
+
+  /**
+   * @return The conclusion of the rule
+   */
+
+  final JRRuleConclusion getConclusion()
+  {
+    return this.conclusion;
+  }
+
+  /**
+   * @return <tt>true</tt> if processing stops when this rule matches
+   */
+
+  final boolean isQuick()
+  {
+    return this.quick;
+  }
+
+  /**
+   * @return A value that is equal to the key of any other rule that matches
+   *         exactly the same names in exactly the same number of steps
+   */
+
+  abstract Object getMatchKey();
+
+  /**
+   * @return The maximum number of steps the rule may take to match a name,
+   *         or <tt>0</tt> if the rule is not limited
+   */
+
+  abstract long getStepBudget();
+
+  /**
+   * Match <tt>name</tt> against the rule. Implementations must be safe to
+   * call from multiple threads, and should not allocate.
+   *
+   * @param name
+   *          The name
+   * @return <tt>true</tt> if the rule matches <tt>name</tt>
+   *
+   * @throws StepBudgetExceeded
+   *           If the rule is limited and matching exceeds the step budget
+   */
+
+  abstract boolean matches(
+    String name)
+    throws StepBudgetExceeded;
+}
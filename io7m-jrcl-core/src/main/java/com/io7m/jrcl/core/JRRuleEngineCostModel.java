@@ -0,0 +1,441 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+
+/**
+ * <p>
+ * A model of the cost of evaluating rules with each engine, used to choose
+ * an engine for {@link JRPolicyEngine#ADAPTIVE} policies.
+ * </p>
+ * <p>
+ * Each rule is assumed to cost the measured time of matching a typical
+ * linear pattern, scaled up for rules whose estimated worst-case steps
+ * (see {@link JRPolicyMinimizer#estimateRuleCost(JRRule)}) exceed those of
+ * the typical patterns. The trie of a {@link JRRuleEnginePrefix} is
+ * assumed to cost the measured time of walking a name of
+ * {@link JRMinimizationReport#ASSUMED_NAME_LENGTH} characters. Both times
+ * are measured once per virtual machine, the first time that the model is
+ * used, by a benchmark of both engines limited to a few tens of
+ * milliseconds.
+ * </p>
+ * <p>
+ * A {@link JRRuleEngineParallel} is assumed to divide the sequential cost
+ * of its rules evenly between the threads of its pool, and to pay
+ * {@link #TASK_NS} for scheduling and joining each segment. The overhead
+ * is not measured, as the calibration benchmark would otherwise depend on
+ * the load of the pool at the time.
+ * </p>
+ * <p>
+ * The hash lookups of a {@link JRRuleEngineSuffix} are assumed to cost as
+ * much as walking the trie, and each literal rule that it compares with a
+ * name is assumed to cost {@link #COMPARE_NS}.
+ * </p>
+ * <p>
+ * Costs decide only between engines that are exact for all of the rules
+ * (see {@link #isExact(JRPolicyEngine, JRRule)}); an inexact engine is
+ * never chosen, however cheap.
+ * </p>
+ */
+
+final class JRRuleEngineCostModel
+{
+  private static final class Holder
+  {
+    static final JRRuleEngineCostModel MODEL;
+
+    static {
+      MODEL = JRRuleEngineCostModel.calibrate();
+    }
+
+    private Holder()
+    {
+      throw new UnreachableCodeException();
+    }
+  }
+
+  private static final Logger LOG;
+
+  /**
+   * The assumed cost in nanoseconds of scheduling and joining one segment
+   * of a parallel evaluation.
+   */
+
+  static final double         TASK_NS       = 2000.0;
+
+  /**
+   * The assumed cost in nanoseconds of comparing a name with the text of a
+   * literal rule.
+   */
+
+  static final double         COMPARE_NS    = 10.0;
+
+  /**
+   * The fraction by which an engine that builds an index must be estimated
+   * to be faster than the engine of a policy before a policy derived from
+   * it changes to that engine. Building the index costs time in proportion
+   * to the number of rules, so small changes in the estimates are not
+   * worth following.
+   */
+
+  static final double         SWITCH_MARGIN = 0.2;
+
+  private static final int    ROUND_EVALUATIONS;
+  private static final int    ROUNDS;
+  private static final long   TIME_LIMIT;
+  private static volatile int sink;
+
+  static {
+    LOG =
+      NullCheck.notNull(LoggerFactory.getLogger(JRRuleEngineCostModel.class));
+    ROUND_EVALUATIONS = 256;
+    ROUNDS = 400;
+    TIME_LIMIT = 50_000_000L;
+  }
+
+  /**
+   * @return The calibrated model
+   */
+
+  static JRRuleEngineCostModel get()
+  {
+    return Holder.MODEL;
+  }
+
+  /**
+   * @return <tt>true</tt> if the engine builds an index of the rules, which
+   *         takes time in proportion to the number of rules
+   */
+
+  static boolean buildsIndex(
+    final JRPolicyEngine kind)
+  {
+    switch (kind) {
+      case PREFIX_INDEX:
+      case SUFFIX_INDEX:
+        return true;
+      case ADAPTIVE:
+      case PARALLEL:
+      case SEQUENTIAL:
+        return false;
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Determine whether the given engine is known to decide exactly as
+   * sequential evaluation would for the given rule. The sequential and
+   * parallel engines match every rule against its pattern, and so are
+   * always exact. An index engine is exact for a rule that it does not
+   * index, and for a rule whose index entry is confirmed against the
+   * pattern of the rule. An adaptive policy only chooses among engines that
+   * are exact for all of its rules.
+   *
+   * @param kind
+   *          The engine, which must not be {@link JRPolicyEngine#ADAPTIVE}
+   * @param rule
+   *          The rule
+   * @return <tt>true</tt> if the engine is exact for the rule
+   *
+   * @see JRRuleEnginePrefix#confirms(Pattern, JRRuleEnginePrefix.Literal)
+   * @see JRRuleEngineSuffix#confirms(Pattern, JRRuleEngineSuffix.Extension)
+   */
+
+  static boolean isExact(
+    final JRPolicyEngine kind,
+    final JRRule rule)
+  {
+    switch (kind) {
+      case SEQUENTIAL:
+      case PARALLEL:
+      {
+        return true;
+      }
+      case PREFIX_INDEX:
+      {
+        final JRRuleEnginePrefix.Literal literal =
+          JRRuleEnginePrefix.literalOf(rule);
+        return (literal == null)
+          || JRRuleEnginePrefix.confirms(
+            JRRuleEngineCostModel.patternOf(rule),
+            literal);
+      }
+      case SUFFIX_INDEX:
+      {
+        final JRRuleEngineSuffix.Extension extension =
+          JRRuleEngineSuffix.extensionOf(rule);
+        if ((extension != null)
+          && !JRRuleEngineSuffix.confirms(
+            JRRuleEngineCostModel.patternOf(rule),
+            extension)) {
+          return false;
+        }
+        return JRRuleEngineCostModel.isExact(JRPolicyEngine.PREFIX_INDEX, rule);
+      }
+      case ADAPTIVE:
+      {
+        throw new UnreachableCodeException();
+      }
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  private static Pattern patternOf(
+    final JRRule rule)
+  {
+    return ((JRRulePattern) rule).getAnalysis().getPattern();
+  }
+
+  private static JRRule rule(
+    final String pattern)
+  {
+    return new JRRulePattern(
+      JRPatternAnalyzer.analyze(Pattern.compile(pattern)),
+      JRRuleConclusion.ALLOW,
+      false,
+      0L);
+  }
+
+  /**
+   * Evaluate <tt>name</tt> with each engine in alternating rounds, until
+   * either a fixed number of rounds or a time limit is reached. Alternating
+   * the engines exposes each of them to the same state of the compiler,
+   * and the fastest round of each engine is taken to reflect its compiled
+   * code rather than the interpreter.
+   *
+   * @return The mean time in nanoseconds of one evaluation in the fastest
+   *         round of each engine
+   */
+
+  private static double[] time(
+    final JRRuleEngineType[] engines,
+    final String name)
+  {
+    final long start = System.nanoTime();
+    final long[] best = new long[engines.length];
+    Arrays.fill(best, Long.MAX_VALUE);
+
+    int total = 0;
+    for (int round = 0; round < JRRuleEngineCostModel.ROUNDS; ++round) {
+      for (int index = 0; index < engines.length; ++index) {
+        final JRRuleEngineType engine = engines[index];
+        final long round_start = System.nanoTime();
+        for (int e = 0; e < JRRuleEngineCostModel.ROUND_EVALUATIONS; ++e) {
+          total += engine.evaluate(name);
+        }
+        best[index] = Math.min(best[index], System.nanoTime() - round_start);
+      }
+      if ((System.nanoTime() - start) > JRRuleEngineCostModel.TIME_LIMIT) {
+        break;
+      }
+    }
+    JRRuleEngineCostModel.sink = total;
+
+    final double[] times = new double[engines.length];
+    for (int index = 0; index < engines.length; ++index) {
+      times[index] =
+        (double) best[index] / JRRuleEngineCostModel.ROUND_EVALUATIONS;
+    }
+    return times;
+  }
+
+  private static JRRuleEngineCostModel calibrate()
+  {
+    final int length = JRMinimizationReport.ASSUMED_NAME_LENGTH;
+    final StringBuilder b = new StringBuilder("com.example.");
+    while (b.length() < length) {
+      b.append((char) ('a' + (b.length() % 26)));
+    }
+    final String name = NullCheck.notNull(b.toString());
+
+    final JRRule[] general =
+      {
+        JRRuleEngineCostModel.rule("java\\.lang\\.[A-Z][A-Za-z0-9]*"),
+        JRRuleEngineCostModel.rule("[a-z]+\\.internal\\..*"),
+        JRRuleEngineCostModel.rule("com\\.example\\.[a-z]*\\.Impl"),
+        JRRuleEngineCostModel.rule("com\\.example\\.[a-z.]*"), };
+    final JRRule[] literal =
+      {
+        JRRuleEngineCostModel.rule("com\\..*"),
+        JRRuleEngineCostModel.rule("com\\.example\\..*"),
+        JRRuleEngineCostModel.rule(name.replace(".", "\\.")),
+        JRRuleEngineCostModel.rule("org\\.example\\..*"), };
+    final int[] indices = { 0, 1, 2, 3 };
+
+    final JRRuleEngineType[] engines =
+      {
+        new JRRuleEngineSequential("calibration", general, indices),
+        new JRRuleEnginePrefix("calibration", literal, indices, indices), };
+    final double[] times = JRRuleEngineCostModel.time(engines, name);
+
+    final JRRuleEngineCostModel m =
+      new JRRuleEngineCostModel(
+        times[0] / general.length,
+        (double) JRPolicyMinimizer.estimateCost(general) / general.length,
+        times[1]);
+    JRRuleEngineCostModel.LOG.debug("calibrated: {}", m);
+    return m;
+  }
+
+  private final double rule_ns;
+  private final double rule_steps;
+  private final double trie_ns;
+
+  private JRRuleEngineCostModel(
+    final double in_rule_ns,
+    final double in_rule_steps,
+    final double in_trie_ns)
+  {
+    this.rule_ns = in_rule_ns;
+    this.rule_steps = in_rule_steps;
+    this.trie_ns = in_trie_ns;
+  }
+
+  private double matchCost(
+    final JRRule rule)
+  {
+    final double steps = JRPolicyMinimizer.estimateRuleCost(rule);
+    return this.rule_ns * Math.max(1.0, steps / this.rule_steps);
+  }
+
+  /**
+   * Estimate the time that a single rule adds to the evaluation of a name
+   * of {@link JRMinimizationReport#ASSUMED_NAME_LENGTH} characters with the
+   * given engine. The estimate for a list of rules is derived from the sum
+   * of the estimates of its rules (see
+   * {@link #estimate(JRPolicyEngine, double, int, int, int)}), so that the
+   * estimate for a derived policy can be updated with the rules that were
+   * added or removed.
+   *
+   * @param kind
+   *          The engine, which must not be {@link JRPolicyEngine#ADAPTIVE}
+   * @param rule
+   *          The rule
+   * @return The estimated time in nanoseconds
+   */
+
+  double ruleCost(
+    final JRPolicyEngine kind,
+    final JRRule rule)
+  {
+    switch (kind) {
+      case SEQUENTIAL:
+      case PARALLEL:
+      {
+        return this.matchCost(rule);
+      }
+      case PREFIX_INDEX:
+      {
+        if (JRRuleEnginePrefix.literalOf(rule) != null) {
+          return 0.0;
+        }
+        return this.matchCost(rule);
+      }
+      case SUFFIX_INDEX:
+      {
+        if (JRRuleEngineSuffix.extensionOf(rule) != null) {
+          return 0.0;
+        }
+        if (JRRuleEnginePrefix.literalOf(rule) != null) {
+          return JRRuleEngineCostModel.COMPARE_NS;
+        }
+        return this.matchCost(rule);
+      }
+      case ADAPTIVE:
+      {
+        throw new UnreachableCodeException();
+      }
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Estimate the time taken to evaluate a list of rules with the given
+   * engine, for a name of {@link JRMinimizationReport#ASSUMED_NAME_LENGTH}
+   * characters.
+   *
+   * @param kind
+   *          The engine, which must not be {@link JRPolicyEngine#ADAPTIVE}
+   * @param sum
+   *          The sum of {@link #ruleCost(JRPolicyEngine, JRRule)} over the
+   *          rules
+   * @param count
+   *          The number of rules
+   * @param parallelism
+   *          The parallelism of the pool of a parallel engine
+   * @param threshold
+   *          The smallest number of rules matched in parallel
+   * @return The estimated time in nanoseconds
+   */
+
+  double estimate(
+    final JRPolicyEngine kind,
+    final double sum,
+    final int count,
+    final int parallelism,
+    final int threshold)
+  {
+    final double total = Math.max(0.0, sum);
+    switch (kind) {
+      case SEQUENTIAL:
+      {
+        return total;
+      }
+      case PREFIX_INDEX:
+      case SUFFIX_INDEX:
+      {
+        return this.trie_ns + total;
+      }
+      case PARALLEL:
+      {
+        final int segments =
+          JRRuleEngineParallel.segments(count, parallelism, threshold);
+        if (segments < 2) {
+          return total;
+        }
+        return (total / Math.min(parallelism, segments))
+          + (segments * JRRuleEngineCostModel.TASK_NS);
+      }
+      case ADAPTIVE:
+      {
+        throw new UnreachableCodeException();
+      }
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  @Override public String toString()
+  {
+    return NullCheck.notNull(String.format(
+      "[JRRuleEngineCostModel rule=%.1fns (%.0f steps) trie=%.1fns]",
+      Double.valueOf(this.rule_ns),
+      Double.valueOf(this.rule_steps),
+      Double.valueOf(this.trie_ns)));
+  }
+}
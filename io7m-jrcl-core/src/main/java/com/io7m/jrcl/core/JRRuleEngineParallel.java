@@ -0,0 +1,335 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * <p>
+ * An engine that divides the rules into contiguous segments, and matches
+ * the segments concurrently on a fork-join pool.
+ * </p>
+ * <p>
+ * Each segment is matched in order, and summarized as the index of the
+ * rule at which it stopped, if any, and the index of the last rule that
+ * matched before that. Summaries combine associatively from left to right:
+ * the leftmost segment that stopped decides, and otherwise the last match
+ * of the rightmost segment that matched any rule decides. This is exactly
+ * the result of matching all of the rules one at a time. A segment that
+ * stops lowers a bound shared by all of the segments, so that segments to
+ * its right give up on rules that can no longer affect the result.
+ * </p>
+ * <p>
+ * Lists of fewer rules than the threshold, or too few rules to fill two
+ * segments of {@link #MIN_SEGMENT_RULES}, are matched sequentially on the
+ * calling thread.
+ * </p>
+ */
+
+final class JRRuleEngineParallel implements JRRuleEngineType
+{
+  /**
+   * The task that matches a range of segments, splitting it in half until
+   * it contains a single segment.
+   */
+
+  private static final class Task extends RecursiveTask<Long>
+  {
+    private static final long          serialVersionUID = 1L;
+
+    private final JRRuleEngineParallel engine;
+    private final int                  hi;
+    private final int                  lo;
+    private final String               name;
+    private final AtomicInteger        stop;
+
+    Task(
+      final JRRuleEngineParallel in_engine,
+      final String in_name,
+      final AtomicInteger in_stop,
+      final int in_lo,
+      final int in_hi)
+    {
+      this.engine = in_engine;
+      this.name = in_name;
+      this.stop = in_stop;
+      this.lo = in_lo;
+      this.hi = in_hi;
+    }
+
+    @Override protected Long compute()
+    {
+      if ((this.hi - this.lo) == 1) {
+        return Long.valueOf(this.engine.segment(
+          this.name,
+          this.stop,
+          this.lo));
+      }
+
+      final int mid = (this.lo + this.hi) >>> 1;
+      final Task left =
+        new Task(this.engine, this.name, this.stop, this.lo, mid);
+      final Task right =
+        new Task(this.engine, this.name, this.stop, mid, this.hi);
+      right.fork();
+      final long l = left.compute().longValue();
+      final long r = right.join().longValue();
+      return Long.valueOf(JRRuleEngineParallel.combine(l, r));
+    }
+  }
+
+  /**
+   * The smallest number of rules in a segment. Smaller segments cost more
+   * to schedule than to match.
+   */
+
+  static final int MIN_SEGMENT_RULES   = 256;
+
+  /**
+   * The number of segments per thread of the pool, so that threads whose
+   * segments finish early can take segments from those that do not.
+   */
+
+  static final int SEGMENTS_PER_THREAD = 4;
+
+  /**
+   * Summaries of segments are packed into a <tt>long</tt>. The upper half
+   * holds the index of the rule at which the segment stopped, shifted left
+   * by one and with the lowest bit set if the rule exceeded its budget, or
+   * <tt>-1</tt> if the segment did not stop. The lower half holds the index
+   * of the last rule that matched, or <tt>-1</tt>.
+   */
+
+  private static long summary(
+    final int stop,
+    final int last)
+  {
+    return ((long) stop << 32) | (last & 0xffffffffL);
+  }
+
+  private static int stopOf(
+    final long summary)
+  {
+    return (int) (summary >> 32);
+  }
+
+  private static int lastOf(
+    final long summary)
+  {
+    return (int) summary;
+  }
+
+  /**
+   * Combine the summaries of adjacent segments.
+   */
+
+  static long combine(
+    final long left,
+    final long right)
+  {
+    if (JRRuleEngineParallel.stopOf(left) != -1) {
+      return left;
+    }
+    if (JRRuleEngineParallel.stopOf(right) != -1) {
+      return right;
+    }
+    return JRRuleEngineParallel.summary(-1, Math.max(
+      JRRuleEngineParallel.lastOf(left),
+      JRRuleEngineParallel.lastOf(right)));
+  }
+
+  /**
+   * @param rules
+   *          The number of rules
+   * @param parallelism
+   *          The parallelism of the pool
+   * @param threshold
+   *          The smallest number of rules matched in parallel
+   * @return The number of segments into which the rules are divided, which
+   *         is <tt>1</tt> if the rules are matched sequentially
+   */
+
+  static int segments(
+    final int rules,
+    final int parallelism,
+    final int threshold)
+  {
+    if (rules < threshold) {
+      return 1;
+    }
+    return Math.max(1, Math.min(
+      parallelism * JRRuleEngineParallel.SEGMENTS_PER_THREAD,
+      rules / JRRuleEngineParallel.MIN_SEGMENT_RULES));
+  }
+
+  private static void lower(
+    final AtomicInteger stop,
+    final int index)
+  {
+    for (;;) {
+      final int current = stop.get();
+      if ((index >= current) || stop.compareAndSet(current, index)) {
+        return;
+      }
+    }
+  }
+
+  private final int[]                  bounds;
+  private final int[]                  indices;
+  private final ForkJoinPool           pool;
+  private final JRRule[]               rules;
+  private final JRRuleEngineSequential sequential;
+  private final int                    threshold;
+  private final String                 type;
+
+  JRRuleEngineParallel(
+    final String in_type,
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final ForkJoinPool in_pool,
+    final int in_threshold)
+  {
+    this.type = NullCheck.notNull(in_type);
+    this.rules = NullCheck.notNull(in_rules);
+    this.indices = NullCheck.notNull(in_indices);
+    this.pool = NullCheck.notNull(in_pool);
+    this.threshold = in_threshold;
+    this.sequential =
+      new JRRuleEngineSequential(in_type, in_rules, in_indices);
+
+    final int count =
+      JRRuleEngineParallel.segments(
+        in_rules.length,
+        in_pool.getParallelism(),
+        in_threshold);
+    this.bounds = new int[count + 1];
+    for (int index = 0; index <= count; ++index) {
+      this.bounds[index] =
+        (int) (((long) in_rules.length * index) / count);
+    }
+  }
+
+  @Override public int evaluate(
+    final String name)
+  {
+    final int count = this.bounds.length - 1;
+    if (count < 2) {
+      return this.sequential.evaluate(name);
+    }
+
+    final AtomicInteger stop = new AtomicInteger(Integer.MAX_VALUE);
+    final long s =
+      this.pool.invoke(new Task(this, name, stop, 0, count)).longValue();
+
+    final int stopped = JRRuleEngineParallel.stopOf(s);
+    if (stopped == -1) {
+      return JRRuleEngineParallel.lastOf(s);
+    }
+
+    final int index = stopped >>> 1;
+    if ((stopped & 1) == 1) {
+      JRRuleEngineSequential.logBudgetExceeded(
+        this.type,
+        name,
+        this.rules[index],
+        this.indices[index]);
+      return -(index + 2);
+    }
+    return index;
+  }
+
+  @Override public long getByteSize()
+  {
+    return JRMemorySizes.OBJECT
+      + this.sequential.getByteSize()
+      + JRMemorySizes.array(this.bounds.length, 4L);
+  }
+
+  @Override public JRPolicyEngine getKind()
+  {
+    return JRPolicyEngine.PARALLEL;
+  }
+
+  @Override public JRRuleEngineType withRuleAppended(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys)
+  {
+    return new JRRuleEngineParallel(
+      this.type,
+      in_rules,
+      in_indices,
+      this.pool,
+      this.threshold);
+  }
+
+  @Override public JRRuleEngineType withRuleRemoved(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys,
+    final JRRule removed,
+    final int key)
+  {
+    return new JRRuleEngineParallel(
+      this.type,
+      in_rules,
+      in_indices,
+      this.pool,
+      this.threshold);
+  }
+
+  /**
+   * Match the rules of one segment in order, giving up on rules beyond the
+   * earliest rule at which any segment is known to stop.
+   */
+
+  private long segment(
+    final String name,
+    final AtomicInteger stop,
+    final int segment)
+  {
+    final int end = this.bounds[segment + 1];
+    int last = -1;
+    for (int index = this.bounds[segment]; index < end; ++index) {
+      if (index > stop.get()) {
+        break;
+      }
+
+      final JRRule rule = this.rules[index];
+      final boolean matched;
+      try {
+        matched = rule.matches(name);
+      } catch (final JRRule.StepBudgetExceeded e) {
+        JRRuleEngineParallel.lower(stop, index);
+        return JRRuleEngineParallel.summary((index << 1) | 1, last);
+      }
+
+      if (matched) {
+        last = index;
+        if (rule.isQuick()) {
+          JRRuleEngineParallel.lower(stop, index);
+          return JRRuleEngineParallel.summary(index << 1, last);
+        }
+      }
+    }
+    return JRRuleEngineParallel.summary(-1, last);
+  }
+}
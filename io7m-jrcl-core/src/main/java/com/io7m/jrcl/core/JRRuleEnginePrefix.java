@@ -0,0 +1,661 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * An engine that indexes literal rules in a trie.
+ * </p>
+ * <p>
+ * A rule is <i>literal</i> if its pattern matches exactly one name, or
+ * exactly the names that begin with a given prefix (a literal followed by
+ * <tt>.*</tt>), as read directly from the source of the pattern; see
+ * {@link #shapeOf(Pattern)}. The literal texts are stored in a
+ * {@link JRRuleTrie} whose nodes record the greatest key of the rules that
+ * end at the node, and the least key of the quick rules that end at the
+ * node. Walking the trie along a name therefore yields, in time
+ * proportional to the length of the name, the last literal rule that
+ * matches it and the first quick literal rule that matches it, which is all
+ * that ordered evaluation needs to know about them. The keys are mapped
+ * back to positions only once, for the rule that decides.
+ * </p>
+ * <p>
+ * The remaining rules are matched in order, stopping at the first quick
+ * literal rule that matched, as ordered evaluation would. The characters
+ * that <tt>.</tt> does not match depend on the flags of a pattern, so names
+ * that contain line terminators are always evaluated one rule at a time.
+ * </p>
+ * <p>
+ * The trie is persistent, so an engine derived for an appended or removed
+ * rule shares every node of the original engine except those on the path to
+ * the text of the changed rule, and a changed rule that is not literal
+ * leaves the trie untouched.
+ * </p>
+ */
+
+final class JRRuleEnginePrefix implements JRRuleEngineType
+{
+  /**
+   * The shape of a pattern whose source is literal text, optionally
+   * preceded or followed by <tt>.*</tt>.
+   *
+   * @see JRRuleEnginePrefix#shapeOf(Pattern)
+   */
+
+  static final class Shape
+  {
+    final boolean leading;
+    final String  text;
+    final boolean trailing;
+
+    Shape(
+      final boolean in_leading,
+      final String in_text,
+      final boolean in_trailing)
+    {
+      this.leading = in_leading;
+      this.text = NullCheck.notNull(in_text);
+      this.trailing = in_trailing;
+    }
+  }
+
+  /**
+   * The text of a literal rule.
+   */
+
+  static final class Literal
+  {
+    final boolean prefix;
+    final String  text;
+
+    Literal(
+      final String in_text,
+      final boolean in_prefix)
+    {
+      this.text = NullCheck.notNull(in_text);
+      this.prefix = in_prefix;
+    }
+
+    /**
+     * @return <tt>true</tt> iff a name without line terminators matches the
+     *         literal
+     */
+
+    boolean matches(
+      final String name)
+    {
+      if (this.prefix) {
+        return name.startsWith(this.text);
+      }
+      return name.equals(this.text);
+    }
+  }
+
+  /**
+   * The flags that change how the literal text of a pattern is matched.
+   */
+
+  private static final int       INEXACT_FLAGS;
+
+  /**
+   * The characters appended to and prepended to the text of an indexed
+   * rule to confirm the meaning of the rule against its pattern.
+   */
+
+  private static final String[]  WITNESSES;
+
+  /**
+   * The characters that are not literal in the source of a pattern.
+   */
+
+  private static final String    META;
+
+  /**
+   * The value cached by rules whose patterns are not literal.
+   */
+
+  static final Literal           NOT_LITERAL;
+
+  static {
+    NOT_LITERAL = new Literal("", false);
+    INEXACT_FLAGS =
+      Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ;
+    META = "\\^$.|?*+()[]{}";
+    WITNESSES =
+      new String[] { "a", "A", "z", "Z", "0", ".", "/", "$", "\u00e9" };
+  }
+
+  static boolean hasLineTerminator(
+    final String name)
+  {
+    for (int index = 0; index < name.length(); ++index) {
+      final char c = name.charAt(index);
+      if ((c == '\n')
+        || (c == '\r')
+        || (c == '\u0085')
+        || (c == '\u2028')
+        || (c == '\u2029')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The literal text of the rule, or <tt>null</tt> if the rule is
+   *         not literal
+   */
+
+  static @Nullable Literal literalOf(
+    final JRRule rule)
+  {
+    if (!(rule instanceof JRRulePattern) || (rule.getStepBudget() != 0)) {
+      return null;
+    }
+    return ((JRRulePattern) rule).getLiteral();
+  }
+
+  /**
+   * @return The literal text of the pattern, or {@link #NOT_LITERAL} if the
+   *         pattern is not literal
+   *
+   * @see #shapeOf(Pattern)
+   */
+
+  static Literal parseLiteral(
+    final Pattern p)
+  {
+    final Shape shape = JRRuleEnginePrefix.shapeOf(p);
+    if ((shape == null) || shape.leading) {
+      return JRRuleEnginePrefix.NOT_LITERAL;
+    }
+    return new Literal(shape.text, shape.trailing);
+  }
+
+  /**
+   * <p>
+   * Read the source of the given pattern as literal text, optionally
+   * anchored, and optionally preceded or followed by <tt>.*</tt>.
+   * </p>
+   * <p>
+   * The source is read directly, rather than through the syntax tree of
+   * {@link JRRegexParser}, and anything that is not plainly literal is
+   * refused: character classes, groups, inline flags, escapes other than
+   * those of single punctuation characters and a few control characters,
+   * and the flags that change how literal text is matched. An index
+   * therefore never depends on the parser's model of a pattern being
+   * exact, and a pattern that it refuses is simply evaluated in order.
+   * </p>
+   *
+   * @return The shape of the pattern, or <tt>null</tt> if the pattern is
+   *         not of that form
+   */
+
+  static @Nullable Shape shapeOf(
+    final Pattern p)
+  {
+    final int flags = p.flags();
+    if ((flags & JRRuleEnginePrefix.INEXACT_FLAGS) != 0) {
+      return null;
+    }
+    final String s = NullCheck.notNull(p.pattern());
+    if ((flags & Pattern.LITERAL) != 0) {
+      return new Shape(false, s, false);
+    }
+
+    final int end = s.length();
+    int pos = 0;
+    if (s.startsWith("^", pos)) {
+      pos += 1;
+    } else if (s.startsWith("\\A", pos)) {
+      pos += 2;
+    }
+
+    final int lead = JRRuleEnginePrefix.anythingAt(s, pos);
+    final boolean leading = lead >= 0;
+    if (leading) {
+      pos = lead;
+    }
+
+    final StringBuilder text = new StringBuilder();
+    boolean trailing = false;
+    while (pos < end) {
+      final int any = JRRuleEnginePrefix.anythingAt(s, pos);
+      if (any >= 0) {
+        trailing = true;
+        pos = any;
+        break;
+      }
+
+      final int c = s.codePointAt(pos);
+      if (c == '\\') {
+        if ((pos + 1) >= end) {
+          return null;
+        }
+        final int e = s.codePointAt(pos + 1);
+        if (e == 'Q') {
+          final int close = s.indexOf("\\E", pos + 2);
+          if (close < 0) {
+            text.append(s, pos + 2, end);
+            pos = end;
+          } else {
+            text.append(s, pos + 2, close);
+            pos = close + 2;
+          }
+          continue;
+        }
+        if ((e == 'z') || (e == 'Z')) {
+          break;
+        }
+        final int k = JRRuleEnginePrefix.escaped(e);
+        if (k < 0) {
+          return null;
+        }
+        text.appendCodePoint(k);
+        pos += 1 + Character.charCount(e);
+        continue;
+      }
+      if (JRRuleEnginePrefix.META.indexOf(c) >= 0) {
+        break;
+      }
+      text.appendCodePoint(c);
+      pos += Character.charCount(c);
+    }
+
+    if (s.startsWith("$", pos)) {
+      pos += 1;
+    } else if (s.startsWith("\\z", pos) || s.startsWith("\\Z", pos)) {
+      pos += 2;
+    }
+    if (pos != end) {
+      return null;
+    }
+    return new Shape(leading, NullCheck.notNull(text.toString()), trailing);
+  }
+
+  /**
+   * @return Names around <tt>text</tt> with which to confirm the meaning
+   *         that an index gives to a rule: the text itself, the text
+   *         without its last character, the text with the case of its
+   *         letters swapped, and the text with each witness character
+   *         prepended, appended, or both
+   */
+
+  static List<String> witnesses(
+    final String text)
+  {
+    final List<String> out = new ArrayList<String>();
+    out.add(text);
+    if (!text.isEmpty()) {
+      out.add(text.substring(0, text.length() - 1));
+    }
+
+    final StringBuilder swapped = new StringBuilder(text.length());
+    for (int index = 0; index < text.length(); ++index) {
+      final char c = text.charAt(index);
+      if (Character.isUpperCase(c)) {
+        swapped.append(Character.toLowerCase(c));
+      } else {
+        swapped.append(Character.toUpperCase(c));
+      }
+    }
+    out.add(swapped.toString());
+
+    for (final String w : JRRuleEnginePrefix.WITNESSES) {
+      out.add(text + w);
+      out.add(text + w + w);
+      out.add(w + text);
+      out.add(w + text + w);
+    }
+    return out;
+  }
+
+  /**
+   * Confirm that the pattern of a literal rule agrees with the literal on
+   * the names given by {@link #witnesses(String)}. This cannot prove that
+   * the two agree on every name, but it refutes any literal that misreads
+   * the pattern in the ways that matter in practice: case, negation, and
+   * the extent of the text.
+   *
+   * @return <tt>true</tt> iff the pattern and the literal agree
+   */
+
+  static boolean confirms(
+    final Pattern p,
+    final Literal literal)
+  {
+    for (final String name : JRRuleEnginePrefix.witnesses(literal.text)) {
+      if (p.matcher(name).matches() != literal.matches(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The position after <tt>.*</tt> or <tt>.*?</tt> at
+   *         <tt>pos</tt>, or <tt>-1</tt> if neither is there
+   */
+
+  private static int anythingAt(
+    final String s,
+    final int pos)
+  {
+    if (!s.startsWith(".*", pos)) {
+      return -1;
+    }
+    final int next = pos + 2;
+    if (s.startsWith("?", next)) {
+      return next + 1;
+    }
+    if (s.startsWith("+", next)) {
+      return -1;
+    }
+    return next;
+  }
+
+  /**
+   * @return The character denoted by a backslash followed by <tt>e</tt>, or
+   *         <tt>-1</tt> if the escape does not denote a single known
+   *         character
+   */
+
+  private static int escaped(
+    final int e)
+  {
+    switch (e) {
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case 'a':
+        return '\007';
+      case 'e':
+        return '\033';
+      default:
+        break;
+    }
+    if (Character.isLetterOrDigit(e) || (e > 0x7f)) {
+      return -1;
+    }
+    return e;
+  }
+
+  private final int[]                  indices;
+  private final int[]                  keys;
+  private final int[]                  other_keys;
+  private final JRRule[]               other_rules;
+  private final JRRule[]               rules;
+  private final JRRuleEngineSequential sequential;
+  private final JRRuleTrie             trie;
+  private final String                 type;
+
+  JRRuleEnginePrefix(
+    final String in_type,
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys)
+  {
+    this.type = NullCheck.notNull(in_type);
+    this.rules = NullCheck.notNull(in_rules);
+    this.indices = NullCheck.notNull(in_indices);
+    this.keys = NullCheck.notNull(in_keys);
+    this.sequential =
+      new JRRuleEngineSequential(in_type, in_rules, in_indices);
+
+    final List<JRRuleTrie.Entry> entries = new ArrayList<JRRuleTrie.Entry>();
+    final List<Integer> rest = new ArrayList<Integer>();
+    for (int index = 0; index < in_rules.length; ++index) {
+      final JRRule rule = NullCheck.notNull(in_rules[index]);
+      final Literal literal = JRRuleEnginePrefix.literalOf(rule);
+      if (literal == null) {
+        rest.add(Integer.valueOf(index));
+      } else {
+        entries.add(new JRRuleTrie.Entry(
+          literal.text,
+          literal.prefix,
+          in_keys[index],
+          rule));
+      }
+    }
+    this.trie = JRRuleTrie.build(entries);
+
+    this.other_keys = new int[rest.size()];
+    this.other_rules = new JRRule[rest.size()];
+    for (int index = 0; index < this.other_keys.length; ++index) {
+      final int position = NullCheck.notNull(rest.get(index)).intValue();
+      this.other_keys[index] = in_keys[position];
+      this.other_rules[index] = in_rules[position];
+    }
+  }
+
+  private JRRuleEnginePrefix(
+    final String in_type,
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys,
+    final JRRuleTrie in_trie,
+    final int[] in_other_keys,
+    final JRRule[] in_other_rules)
+  {
+    this.type = in_type;
+    this.rules = in_rules;
+    this.indices = in_indices;
+    this.keys = in_keys;
+    this.sequential =
+      new JRRuleEngineSequential(in_type, in_rules, in_indices);
+    this.trie = in_trie;
+    this.other_keys = in_other_keys;
+    this.other_rules = in_other_rules;
+  }
+
+  private int position(
+    final int key)
+  {
+    final int position = Arrays.binarySearch(this.keys, key);
+    assert position >= 0;
+    return position;
+  }
+
+  @Override public int evaluate(
+    final String name)
+  {
+    if (JRRuleEnginePrefix.hasLineTerminator(name)) {
+      return this.sequential.evaluate(name);
+    }
+
+    /**
+     * Find the key of the last matching literal rule, and of the first
+     * matching quick literal rule.
+     */
+
+    int last = -1;
+    int quick = Integer.MAX_VALUE;
+    JRRuleTrie node = this.trie;
+    final int length = name.length();
+    for (int index = 0;; ++index) {
+      last = Math.max(last, node.prefix_max);
+      quick = Math.min(quick, node.prefix_quick);
+      if (index == length) {
+        last = Math.max(last, node.exact_max);
+        quick = Math.min(quick, node.exact_quick);
+        break;
+      }
+      final JRRuleTrie next = node.child(name.charAt(index));
+      if (next == null) {
+        break;
+      }
+      node = next;
+    }
+
+    /**
+     * Match the other rules in order, up to the first quick literal rule.
+     */
+
+    for (int index = 0; index < this.other_keys.length; ++index) {
+      final int key = this.other_keys[index];
+      if (key > quick) {
+        break;
+      }
+      final JRRule rule = this.other_rules[index];
+      final boolean matched;
+      try {
+        matched = rule.matches(name);
+      } catch (final JRRule.StepBudgetExceeded e) {
+        final int position = this.position(key);
+        JRRuleEngineSequential.logBudgetExceeded(
+          this.type,
+          name,
+          rule,
+          this.indices[position]);
+        return -(position + 2);
+      }
+      if (matched) {
+        if (rule.isQuick()) {
+          return this.position(key);
+        }
+        last = Math.max(last, key);
+      }
+    }
+
+    if (quick != Integer.MAX_VALUE) {
+      return this.position(quick);
+    }
+    if (last < 0) {
+      return -1;
+    }
+    return this.position(last);
+  }
+
+  @Override public long getByteSize()
+  {
+    return JRMemorySizes.OBJECT
+      + this.sequential.getByteSize()
+      + this.trie.getByteSize()
+      + JRMemorySizes.array(this.other_keys.length, 4L)
+      + JRMemorySizes.array(this.other_rules.length, JRMemorySizes.REFERENCE);
+  }
+
+  @Override public JRPolicyEngine getKind()
+  {
+    return JRPolicyEngine.PREFIX_INDEX;
+  }
+
+  @Override public JRRuleEngineType withRuleAppended(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys)
+  {
+    final int last = in_rules.length - 1;
+    final JRRule rule = NullCheck.notNull(in_rules[last]);
+    final int key = in_keys[last];
+
+    final Literal literal = JRRuleEnginePrefix.literalOf(rule);
+    if (literal != null) {
+      return new JRRuleEnginePrefix(
+        this.type,
+        in_rules,
+        in_indices,
+        in_keys,
+        this.trie.withRule(literal.text, literal.prefix, key, rule),
+        this.other_keys,
+        this.other_rules);
+    }
+
+    final int count = this.other_keys.length;
+    final int[] k = Arrays.copyOf(this.other_keys, count + 1);
+    final JRRule[] r = Arrays.copyOf(this.other_rules, count + 1);
+    k[count] = key;
+    r[count] = rule;
+    return new JRRuleEnginePrefix(
+      this.type,
+      in_rules,
+      in_indices,
+      in_keys,
+      this.trie,
+      k,
+      r);
+  }
+
+  @Override public JRRuleEngineType withRuleRemoved(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys,
+    final JRRule removed,
+    final int key)
+  {
+    final Literal literal = JRRuleEnginePrefix.literalOf(removed);
+    if (literal != null) {
+      return new JRRuleEnginePrefix(
+        this.type,
+        in_rules,
+        in_indices,
+        in_keys,
+        this.trie.withoutRule(literal.text, literal.prefix, key),
+        this.other_keys,
+        this.other_rules);
+    }
+
+    final int at = Arrays.binarySearch(this.other_keys, key);
+    assert at >= 0;
+    final int count = this.other_keys.length;
+    final int[] k = new int[count - 1];
+    final JRRule[] r = new JRRule[count - 1];
+    System.arraycopy(this.other_keys, 0, k, 0, at);
+    System.arraycopy(this.other_rules, 0, r, 0, at);
+    System.arraycopy(this.other_keys, at + 1, k, at, count - at - 1);
+    System.arraycopy(this.other_rules, at + 1, r, at, count - at - 1);
+    return new JRRuleEnginePrefix(
+      this.type,
+      in_rules,
+      in_indices,
+      in_keys,
+      this.trie,
+      k,
+      r);
+  }
+
+  /**
+   * @return The number of rules indexed in the trie
+   */
+
+  int getLiteralCount()
+  {
+    return this.trie.getRuleCount();
+  }
+
+  /**
+   * @return The trie of literal rules
+   */
+
+  JRRuleTrie getTrie()
+  {
+    return this.trie;
+  }
+}
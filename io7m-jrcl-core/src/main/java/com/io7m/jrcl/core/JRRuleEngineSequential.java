@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * An engine that matches rules one at a time, in order.
+ */
+
+final class JRRuleEngineSequential implements JRRuleEngineType
+{
+  private static final Logger LOG;
+
+  static {
+    LOG =
+      NullCheck.notNull(LoggerFactory.getLogger(JRRuleEngineSequential.class));
+  }
+
+  /**
+   * Log that a rule exceeded its step budget and decided the evaluation of
+   * a name.
+   */
+
+  static void logBudgetExceeded(
+    final String type,
+    final String name,
+    final JRRule rule,
+    final int declared)
+  {
+    JRRuleEngineSequential.LOG.error(
+      "{} rule [{}]: {} exceeded the budget of {} steps matching {}; "
+        + "denying",
+      type,
+      Integer.valueOf(declared),
+      rule,
+      Long.valueOf(rule.getStepBudget()),
+      name);
+  }
+
+  /**
+   * Match a single rule, logging if it exceeds its step budget.
+   *
+   * @return <tt>1</tt> if the rule matched, <tt>0</tt> if it did not, and
+   *         <tt>-1</tt> if it exceeded its step budget
+   */
+
+  static int match(
+    final String type,
+    final String name,
+    final JRRule rule,
+    final int declared)
+  {
+    try {
+      return rule.matches(name) ? 1 : 0;
+    } catch (final JRRule.StepBudgetExceeded e) {
+      JRRuleEngineSequential.logBudgetExceeded(type, name, rule, declared);
+      return -1;
+    }
+  }
+
+  private final int[]    indices;
+  private final JRRule[] rules;
+  private final String   type;
+
+  JRRuleEngineSequential(
+    final String in_type,
+    final JRRule[] in_rules,
+    final int[] in_indices)
+  {
+    this.type = NullCheck.notNull(in_type);
+    this.rules = NullCheck.notNull(in_rules);
+    this.indices = NullCheck.notNull(in_indices);
+  }
+
+  @Override public int evaluate(
+    final String name)
+  {
+    int deciding = -1;
+    for (int index = 0; index < this.rules.length; ++index) {
+      final JRRule rule = this.rules[index];
+      final int result =
+        JRRuleEngineSequential.match(
+          this.type,
+          name,
+          rule,
+          this.indices[index]);
+      if (result < 0) {
+        return -(index + 2);
+      }
+      if (result > 0) {
+        deciding = index;
+        if (rule.isQuick()) {
+          break;
+        }
+      }
+    }
+    return deciding;
+  }
+
+  @Override public long getByteSize()
+  {
+    return JRMemorySizes.OBJECT;
+  }
+
+  @Override public JRPolicyEngine getKind()
+  {
+    return JRPolicyEngine.SEQUENTIAL;
+  }
+
+  @Override public JRRuleEngineType withRuleAppended(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys)
+  {
+    return new JRRuleEngineSequential(this.type, in_rules, in_indices);
+  }
+
+  @Override public JRRuleEngineType withRuleRemoved(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys,
+    final JRRule removed,
+    final int key)
+  {
+    return new JRRuleEngineSequential(this.type, in_rules, in_indices);
+  }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * An engine that indexes rules by file extension and by leading path
+ * segment, intended for resource rules.
+ * </p>
+ * <p>
+ * A rule is an <i>extension</i> rule if its pattern matches exactly the
+ * names that end with a literal extension: <tt>.*</tt> followed by a
+ * literal text that begins with a period and contains no other period,
+ * such as <tt>.*\.class</tt>, as read directly from the source of the
+ * pattern by {@link JRRuleEnginePrefix#shapeOf(Pattern)}. Such a rule
+ * matches a name exactly when the text after the last period of the name
+ * is its extension, so the greatest index of the rules with each extension,
+ * and the least index of the quick rules with each extension, are stored in
+ * a hash table, and looked up by hashing the extension of a name in place.
+ * </p>
+ * <p>
+ * A literal rule (see {@link JRRuleEnginePrefix}) whose text contains a
+ * <tt>/</tt> can only match names that share its leading path segment, the
+ * text before the first <tt>/</tt>. Such rules are grouped by leading
+ * segment in a second hash table, and only the group of the leading
+ * segment of a name is compared with the name.
+ * </p>
+ * <p>
+ * The remaining rules are matched in order, stopping at the first quick
+ * rule that matched, as ordered evaluation would. Names that contain line
+ * terminators are always evaluated one rule at a time.
+ * </p>
+ */
+
+final class JRRuleEngineSuffix implements JRRuleEngineType
+{
+  /**
+   * The extension of an extension rule.
+   */
+
+  static final class Extension
+  {
+    final String text;
+
+    Extension(
+      final String in_text)
+    {
+      this.text = NullCheck.notNull(in_text);
+    }
+
+    /**
+     * @return <tt>true</tt> iff a name without line terminators matches the
+     *         extension
+     */
+
+    boolean matches(
+      final String name)
+    {
+      return name.endsWith("." + this.text);
+    }
+  }
+
+  /**
+   * A hash table of groups of rule indices, keyed by text, that can be
+   * searched with a range of the characters of a name.
+   */
+
+  private static final class Table
+  {
+    final int[][]  groups;
+    final String[] keys;
+    final int      mask;
+
+    Table(
+      final Map<String, List<Integer>> in_groups)
+    {
+      int capacity = 2;
+      while (capacity < (in_groups.size() * 2)) {
+        capacity *= 2;
+      }
+      this.mask = capacity - 1;
+      this.keys = new String[capacity];
+      this.groups = new int[capacity][];
+
+      for (final Map.Entry<String, List<Integer>> e : in_groups.entrySet()) {
+        final String key = NullCheck.notNull(e.getKey());
+        final List<Integer> g = NullCheck.notNull(e.getValue());
+        final int[] group = new int[g.size()];
+        for (int index = 0; index < group.length; ++index) {
+          group[index] = NullCheck.notNull(g.get(index)).intValue();
+        }
+
+        int slot = JRRuleEngineSuffix.spread(key.hashCode()) & this.mask;
+        while (this.keys[slot] != null) {
+          slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = key;
+        this.groups[slot] = group;
+      }
+    }
+
+    /**
+     * @return The slot of the key equal to the characters of <tt>name</tt>
+     *         in <tt>[start, end)</tt>, or <tt>-1</tt> if there is none
+     */
+
+    int find(
+      final String name,
+      final int start,
+      final int end)
+    {
+      int h = 0;
+      for (int index = start; index < end; ++index) {
+        h = (31 * h) + name.charAt(index);
+      }
+
+      final int length = end - start;
+      int slot = JRRuleEngineSuffix.spread(h) & this.mask;
+      for (;;) {
+        final String key = this.keys[slot];
+        if (key == null) {
+          return -1;
+        }
+        if ((key.length() == length)
+          && name.regionMatches(start, key, 0, length)) {
+          return slot;
+        }
+        slot = (slot + 1) & this.mask;
+      }
+    }
+
+    long getByteSize()
+    {
+      final long slots = this.keys.length;
+      long size =
+        JRMemorySizes.OBJECT
+          + (2L * JRMemorySizes.array(slots, JRMemorySizes.REFERENCE));
+      for (int index = 0; index < this.keys.length; ++index) {
+        final String key = this.keys[index];
+        if (key != null) {
+          size += JRMemorySizes.string(key);
+          size += JRMemorySizes.array(this.groups[index].length, 4L);
+        }
+      }
+      return size;
+    }
+  }
+
+  /**
+   * The value cached by rules whose patterns are not extension patterns.
+   */
+
+  static final Extension NOT_EXTENSION;
+
+  static {
+    NOT_EXTENSION = new Extension("");
+  }
+
+  /**
+   * @return The extension of the rule, or <tt>null</tt> if the rule is not
+   *         an extension rule
+   */
+
+  static @Nullable Extension extensionOf(
+    final JRRule rule)
+  {
+    if (!(rule instanceof JRRulePattern) || (rule.getStepBudget() != 0)) {
+      return null;
+    }
+    return ((JRRulePattern) rule).getExtension();
+  }
+
+  private static boolean literalMatches(
+    final JRRuleEnginePrefix.Literal literal,
+    final String name)
+  {
+    if (literal.prefix) {
+      return name.startsWith(literal.text);
+    }
+    return name.equals(literal.text);
+  }
+
+  /**
+   * @return The extension of the pattern, or {@link #NOT_EXTENSION} if the
+   *         pattern is not an extension pattern
+   *
+   * @see JRRuleEnginePrefix#shapeOf(Pattern)
+   */
+
+  static Extension parseExtension(
+    final Pattern p)
+  {
+    final JRRuleEnginePrefix.Shape shape = JRRuleEnginePrefix.shapeOf(p);
+    if ((shape == null) || !shape.leading || shape.trailing) {
+      return JRRuleEngineSuffix.NOT_EXTENSION;
+    }
+
+    final String text = shape.text;
+    if ((text.length() == 0)
+      || (text.charAt(0) != '.')
+      || (text.indexOf(".", 1) >= 0)) {
+      return JRRuleEngineSuffix.NOT_EXTENSION;
+    }
+    return new Extension(NullCheck.notNull(text.substring(1)));
+  }
+
+  /**
+   * Confirm that the pattern of an extension rule agrees with the extension
+   * on the names given by {@link JRRuleEnginePrefix#witnesses(String)}.
+   *
+   * @return <tt>true</tt> iff the pattern and the extension agree
+   *
+   * @see JRRuleEnginePrefix#confirms(Pattern, JRRuleEnginePrefix.Literal)
+   */
+
+  static boolean confirms(
+    final Pattern p,
+    final Extension extension)
+  {
+    final String text = "." + extension.text;
+    for (final String name : JRRuleEnginePrefix.witnesses(text)) {
+      if (p.matcher(name).matches() != extension.matches(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int spread(
+    final int h)
+  {
+    return h ^ (h >>> 16);
+  }
+
+  private final int[]                        extension_max;
+  private final int[]                        extension_quick;
+  private final Table                        extensions;
+  private final int                          indexed_count;
+  private final int[]                        indices;
+  private final JRRuleEnginePrefix.Literal[] literals;
+  private final int[]                        others;
+  private final JRRule[]                     rules;
+  private final Table                        segments;
+  private final JRRuleEngineSequential       sequential;
+  private final String                       type;
+
+  JRRuleEngineSuffix(
+    final String in_type,
+    final JRRule[] in_rules,
+    final int[] in_indices)
+  {
+    this.type = NullCheck.notNull(in_type);
+    this.rules = NullCheck.notNull(in_rules);
+    this.indices = NullCheck.notNull(in_indices);
+    this.sequential =
+      new JRRuleEngineSequential(in_type, in_rules, in_indices);
+    this.literals = new JRRuleEnginePrefix.Literal[in_rules.length];
+
+    final Map<String, List<Integer>> by_extension =
+      new LinkedHashMap<String, List<Integer>>();
+    final Map<String, List<Integer>> by_segment =
+      new LinkedHashMap<String, List<Integer>>();
+    final List<Integer> rest = new ArrayList<Integer>();
+
+    for (int index = 0; index < in_rules.length; ++index) {
+      final JRRule rule = NullCheck.notNull(in_rules[index]);
+      final Integer boxed = Integer.valueOf(index);
+
+      final Extension extension = JRRuleEngineSuffix.extensionOf(rule);
+      if (extension != null) {
+        JRRuleEngineSuffix.group(by_extension, extension.text).add(boxed);
+        continue;
+      }
+
+      final JRRuleEnginePrefix.Literal literal =
+        JRRuleEnginePrefix.literalOf(rule);
+      this.literals[index] = literal;
+      if (literal != null) {
+        final int slash = literal.text.indexOf('/');
+        if (slash >= 0) {
+          final String segment =
+            NullCheck.notNull(literal.text.substring(0, slash));
+          JRRuleEngineSuffix.group(by_segment, segment).add(boxed);
+          continue;
+        }
+      }
+      rest.add(boxed);
+    }
+
+    this.indexed_count = in_rules.length - rest.size();
+    this.extensions = new Table(by_extension);
+    this.segments = new Table(by_segment);
+
+    /**
+     * Every rule with a given extension matches the same names, so only
+     * the last of them and the first quick one are needed.
+     */
+
+    final int capacity = this.extensions.keys.length;
+    this.extension_max = new int[capacity];
+    this.extension_quick = new int[capacity];
+    for (int slot = 0; slot < capacity; ++slot) {
+      int max = -1;
+      int quick = Integer.MAX_VALUE;
+      final int[] group = this.extensions.groups[slot];
+      if (group != null) {
+        for (final int index : group) {
+          max = Math.max(max, index);
+          if (in_rules[index].isQuick()) {
+            quick = Math.min(quick, index);
+          }
+        }
+      }
+      this.extension_max[slot] = max;
+      this.extension_quick[slot] = quick;
+    }
+
+    this.others = new int[rest.size()];
+    for (int index = 0; index < this.others.length; ++index) {
+      this.others[index] = NullCheck.notNull(rest.get(index)).intValue();
+    }
+  }
+
+  private static List<Integer> group(
+    final Map<String, List<Integer>> groups,
+    final String key)
+  {
+    List<Integer> g = groups.get(key);
+    if (g == null) {
+      g = new ArrayList<Integer>();
+      groups.put(key, g);
+    }
+    return g;
+  }
+
+  @Override public int evaluate(
+    final String name)
+  {
+    if (JRRuleEnginePrefix.hasLineTerminator(name)) {
+      return this.sequential.evaluate(name);
+    }
+
+    /**
+     * Find the last matching indexed rule, and the first matching quick
+     * indexed rule.
+     */
+
+    int last = -1;
+    int quick = Integer.MAX_VALUE;
+
+    final int dot = name.lastIndexOf('.');
+    if (dot >= 0) {
+      final int slot = this.extensions.find(name, dot + 1, name.length());
+      if (slot >= 0) {
+        last = this.extension_max[slot];
+        quick = this.extension_quick[slot];
+      }
+    }
+
+    final int slash = name.indexOf('/');
+    if (slash >= 0) {
+      final int slot = this.segments.find(name, 0, slash);
+      if (slot >= 0) {
+        for (final int index : this.segments.groups[slot]) {
+          if (index > quick) {
+            break;
+          }
+          final JRRuleEnginePrefix.Literal literal =
+            NullCheck.notNull(this.literals[index]);
+          if (JRRuleEngineSuffix.literalMatches(literal, name)) {
+            last = Math.max(last, index);
+            if (this.rules[index].isQuick()) {
+              quick = index;
+              break;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Match the other rules in order, up to the first quick indexed rule.
+     */
+
+    for (final int index : this.others) {
+      if (index > quick) {
+        break;
+      }
+      final JRRule rule = this.rules[index];
+      final JRRuleEnginePrefix.Literal literal = this.literals[index];
+      final boolean matched;
+      if (literal != null) {
+        matched = JRRuleEngineSuffix.literalMatches(literal, name);
+      } else {
+        final int result =
+          JRRuleEngineSequential.match(
+            this.type,
+            name,
+            rule,
+            this.indices[index]);
+        if (result < 0) {
+          return -(index + 2);
+        }
+        matched = result > 0;
+      }
+      if (matched) {
+        if (rule.isQuick()) {
+          return index;
+        }
+        last = Math.max(last, index);
+      }
+    }
+
+    if (quick != Integer.MAX_VALUE) {
+      return quick;
+    }
+    return last;
+  }
+
+  @Override public long getByteSize()
+  {
+    return JRMemorySizes.OBJECT
+      + this.sequential.getByteSize()
+      + this.extensions.getByteSize()
+      + this.segments.getByteSize()
+      + (2L * JRMemorySizes.array(this.extension_max.length, 4L))
+      + JRMemorySizes.array(this.literals.length, JRMemorySizes.REFERENCE)
+      + JRMemorySizes.array(this.others.length, 4L);
+  }
+
+  /**
+   * @return The number of rules indexed by extension or leading segment
+   */
+
+  int getIndexedCount()
+  {
+    return this.indexed_count;
+  }
+
+  @Override public JRPolicyEngine getKind()
+  {
+    return JRPolicyEngine.SUFFIX_INDEX;
+  }
+
+  @Override public JRRuleEngineType withRuleAppended(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys)
+  {
+    return new JRRuleEngineSuffix(this.type, in_rules, in_indices);
+  }
+
+  @Override public JRRuleEngineType withRuleRemoved(
+    final JRRule[] in_rules,
+    final int[] in_indices,
+    final int[] in_keys,
+    final JRRule removed,
+    final int key)
+  {
+    return new JRRuleEngineSuffix(this.type, in_rules, in_indices);
+  }
+}
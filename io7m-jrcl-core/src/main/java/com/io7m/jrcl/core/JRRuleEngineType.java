@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+/**
+ * <p>
+ * The type of engines that evaluate the rules of one kind of a
+ * {@link JRSequentialPolicy}.
+ * </p>
+ * <p>
+ * Every engine must produce exactly the result of evaluating the rules one
+ * at a time, in order: the current conclusion is that of the last rule
+ * that matched, and evaluation stops at the first matching rule that is
+ * quick.
+ * </p>
+ * <p>
+ * Each rule of a policy also has a <i>key</i>. Keys increase along the
+ * rules, and a rule keeps its key in every policy derived from the policy
+ * that declared it, whichever rules are appended or removed around it.
+ * Engines that index rules by key rather than by position can therefore be
+ * derived for a changed list of rules by patching the index, rather than
+ * by building a new one.
+ * </p>
+ */
+
+interface JRRuleEngineType
+{
+  /**
+   * Evaluate the rules against <tt>name</tt>. Implementations must be safe
+   * to call from multiple threads.
+   *
+   * @param name
+   *          The name
+   * @return The index of the deciding rule, <tt>-1</tt> if no rule matched,
+   *         or <tt>-(i + 2)</tt> if rule <tt>i</tt> exceeded its step budget
+   */
+
+  int evaluate(
+    String name);
+
+  /**
+   * @return An estimate of the number of bytes of heap retained by the
+   *         engine, excluding the rules themselves
+   */
+
+  long getByteSize();
+
+  /**
+   * @return The kind of engine
+   */
+
+  JRPolicyEngine getKind();
+
+  /**
+   * Derive an engine for the rules of this engine followed by one more
+   * rule, sharing as much of this engine as possible.
+   *
+   * @param rules
+   *          The rules of this engine followed by the new rule
+   * @param indices
+   *          The declared indices of <tt>rules</tt>
+   * @param keys
+   *          The keys of <tt>rules</tt>
+   * @return A new engine
+   */
+
+  JRRuleEngineType withRuleAppended(
+    JRRule[] rules,
+    int[] indices,
+    int[] keys);
+
+  /**
+   * Derive an engine for the rules of this engine without one of them,
+   * sharing as much of this engine as possible.
+   *
+   * @param rules
+   *          The rules of this engine without the removed rule
+   * @param indices
+   *          The declared indices of <tt>rules</tt>
+   * @param keys
+   *          The keys of <tt>rules</tt>
+   * @param removed
+   *          The removed rule
+   * @param key
+   *          The key of the removed rule
+   * @return A new engine
+   */
+
+  JRRuleEngineType withRuleRemoved(
+    JRRule[] rules,
+    int[] indices,
+    int[] keys,
+    JRRule removed,
+    int key);
+}
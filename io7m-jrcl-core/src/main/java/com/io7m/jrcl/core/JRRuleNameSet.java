@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import com.io7m.jnull.NullCheck;
+
+/**
+ * A rule that matches names that are exactly equal to one of a set of
+ * names.
+ */
+
+final class JRRuleNameSet extends JRRule
+{
+  private final JRNameSet names;
+
+  JRRuleNameSet(
+    final JRNameSet in_names,
+    final JRRuleConclusion in_conclusion,
+    final boolean in_quick)
+  {
+    super(in_conclusion, in_quick);
+    this.names = NullCheck.notNull(in_names);
+  }
+
+  /**
+   * @return The set of names
+   */
+
+  JRNameSet getNames()
+  {
+    return this.names;
+  }
+
+  @Override Object getMatchKey()
+  {
+    return this.names;
+  }
+
+  @Override long getStepBudget()
+  {
+    return 0L;
+  }
+
+  @Override boolean matches(
+    final String name)
+  {
+    return this.names.contains(name);
+  }
+
+  @Override public String toString()
+  {
+    return String.format(
+      "name set of %d names (%d bytes, %s)",
+      this.names.size(),
+      this.names.getByteSize(),
+      this.names.getStorage());
+  }
+}
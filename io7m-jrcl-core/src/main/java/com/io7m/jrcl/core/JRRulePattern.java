@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * A rule that matches names against a pattern.
+ */
+
+final class JRRulePattern extends JRRule
+{
+  /**
+   * A matcher, and the step counter that feeds it names if the rule is
+   * guarded.
+   */
+
+  private static final class Slot
+  {
+    final @Nullable StepCounter counter;
+    final Matcher               matcher;
+
+    Slot(
+      final Pattern in_pattern,
+      final long in_budget)
+    {
+      this.matcher = NullCheck.notNull(in_pattern.matcher(""));
+      if (in_budget > 0) {
+        this.counter = new StepCounter(in_budget);
+      } else {
+        this.counter = null;
+      }
+    }
+  }
+
+  /**
+   * A character sequence that counts every character read from it, and
+   * raises {@link JRRule.StepBudgetExceeded} when the count passes the
+   * budget. Reading a character is the unit of work of a backtracking
+   * matcher, so the count bounds the total work done in a match. The
+   * counter is restarted for every name, and belongs to one rule, so the
+   * budget bounds one match of one rule rather than a whole evaluation.
+   */
+
+  private static final class StepCounter implements CharSequence
+  {
+    private final long budget;
+    private long       steps;
+    private String     text;
+
+    StepCounter(
+      final long in_budget)
+    {
+      this.budget = in_budget;
+      this.text = "";
+    }
+
+    void start(
+      final String in_text)
+    {
+      this.text = in_text;
+      this.steps = 0L;
+    }
+
+    @Override public char charAt(
+      final int index)
+    {
+      this.steps += 1L;
+      if (this.steps > this.budget) {
+        throw JRRule.StepBudgetExceeded.INSTANCE;
+      }
+      return this.text.charAt(index);
+    }
+
+    @Override public int length()
+    {
+      return this.text.length();
+    }
+
+    @Override public CharSequence subSequence(
+      final int start,
+      final int end)
+    {
+      return NullCheck.notNull(this.text.subSequence(start, end));
+    }
+
+    @Override public String toString()
+    {
+      return this.text;
+    }
+  }
+
+  private static final VarHandle SLOT;
+
+  static {
+    try {
+      SLOT =
+        MethodHandles.lookup().findVarHandle(
+          JRRulePattern.class,
+          "slot",
+          Slot.class);
+    } catch (final NoSuchFieldException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final JRPatternAnalysis                analysis;
+  private final long                             budget;
+  private @Nullable JRRuleEngineSuffix.Extension extension;
+  private @Nullable JRRuleEnginePrefix.Literal   literal;
+  private final Pattern                          pattern;
+  private @Nullable Slot                         slot;
+
+  /**
+   * Construct a rule. The rule is limited to <tt>in_budget</tt> steps per
+   * name unless the analysis shows that the pattern matches in linear time,
+   * in which case it is not guarded at all.
+   *
+   * @param in_analysis
+   *          The analysis of the pattern
+   * @param in_conclusion
+   *          The conclusion
+   * @param in_quick
+   *          <tt>true</tt> if the rule is quick
+   * @param in_budget
+   *          The step budget
+   */
+
+  JRRulePattern(
+    final JRPatternAnalysis in_analysis,
+    final JRRuleConclusion in_conclusion,
+    final boolean in_quick,
+    final long in_budget)
+  {
+    super(in_conclusion, in_quick);
+    this.analysis = NullCheck.notNull(in_analysis);
+    this.pattern = in_analysis.getPattern();
+    if (in_analysis.getComplexity() == JRPatternComplexity.LINEAR) {
+      this.budget = 0L;
+    } else {
+      this.budget = in_budget;
+    }
+  }
+
+  /**
+   * @return The analysis of the rule's pattern
+   */
+
+  JRPatternAnalysis getAnalysis()
+  {
+    return this.analysis;
+  }
+
+  /**
+   * Determine whether the rule's pattern is an extension pattern, once, on
+   * behalf of every policy that shares the rule, in the same manner as
+   * {@link #getLiteral()}.
+   *
+   * @return The extension of the pattern, or <tt>null</tt> if the pattern
+   *         is not an extension pattern
+   *
+   * @see JRRuleEngineSuffix
+   */
+
+  @Nullable JRRuleEngineSuffix.Extension getExtension()
+  {
+    JRRuleEngineSuffix.Extension e = this.extension;
+    if (e == null) {
+      e = JRRuleEngineSuffix.parseExtension(this.pattern);
+      this.extension = e;
+    }
+    return (e == JRRuleEngineSuffix.NOT_EXTENSION) ? null : e;
+  }
+
+  /**
+   * Determine whether the rule's pattern is literal, once, on behalf of
+   * every policy that shares the rule. The literal is immutable, so a race
+   * between threads only computes it twice.
+   *
+   * @return The literal text of the pattern, or <tt>null</tt> if the
+   *         pattern is not literal
+   *
+   * @see JRRuleEnginePrefix
+   */
+
+  @Nullable JRRuleEnginePrefix.Literal getLiteral()
+  {
+    JRRuleEnginePrefix.Literal l = this.literal;
+    if (l == null) {
+      l = JRRuleEnginePrefix.parseLiteral(this.pattern);
+      this.literal = l;
+    }
+    return (l == JRRuleEnginePrefix.NOT_LITERAL) ? null : l;
+  }
+
+  @Override Object getMatchKey()
+  {
+    return Arrays.asList(
+      this.pattern.pattern(),
+      Integer.valueOf(this.pattern.flags()),
+      Long.valueOf(this.budget));
+  }
+
+  @Override long getStepBudget()
+  {
+    return this.budget;
+  }
+
+  /**
+   * Match <tt>name</tt> against the rule's pattern. A single matcher is kept
+   * per rule and is taken by whichever thread uses it first; a thread that
+   * finds the matcher taken allocates a temporary one. Uncontended
+   * evaluations therefore allocate nothing.
+   */
+
+  @Override boolean matches(
+    final String name)
+    throws JRRule.StepBudgetExceeded
+  {
+    Slot s = (Slot) JRRulePattern.SLOT.getAndSet(this, null);
+    if (s == null) {
+      s = new Slot(this.pattern, this.budget);
+    }
+
+    final Matcher m = s.matcher;
+    final StepCounter counter = s.counter;
+    try {
+      if (counter != null) {
+        counter.start(name);
+        m.reset(counter);
+      } else {
+        m.reset(name);
+      }
+      return m.matches();
+    } finally {
+      m.reset("");
+      if (counter != null) {
+        counter.start("");
+      }
+      JRRulePattern.SLOT.setRelease(this, s);
+    }
+  }
+
+  @Override public String toString()
+  {
+    return String.format(
+      "pattern '%s' (%s)",
+      this.pattern,
+      this.analysis.getComplexity());
+  }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+/**
+ * <p>
+ * A persistent trie of rules keyed by literal text.
+ * </p>
+ * <p>
+ * Each node holds two groups of the rules whose texts end at the node: the
+ * <i>exact</i> rules, which match exactly their text, and the
+ * <i>prefix</i> rules, which match every name that begins with their text.
+ * For each group the node records the greatest key of its rules and the
+ * least key of its quick rules, which is all that ordered evaluation needs
+ * to know about the rules that a name reaches. The edges of each node are
+ * kept in a flat sorted array.
+ * </p>
+ * <p>
+ * Nodes are immutable. Adding or removing a rule copies the nodes on the
+ * path to its text and shares every other node with the original trie, so
+ * a trie derived for a changed list of rules costs time and memory in
+ * proportion to the length of the text of the changed rule.
+ * </p>
+ */
+
+final class JRRuleTrie
+{
+  /**
+   * A rule to be added to a trie built by {@link JRRuleTrie#build(List)}.
+   */
+
+  static final class Entry
+  {
+    final int     key;
+    final boolean prefix;
+    final JRRule  rule;
+    final String  text;
+
+    Entry(
+      final String in_text,
+      final boolean in_prefix,
+      final int in_key,
+      final JRRule in_rule)
+    {
+      this.text = NullCheck.notNull(in_text);
+      this.prefix = in_prefix;
+      this.key = in_key;
+      this.rule = NullCheck.notNull(in_rule);
+    }
+  }
+
+  /**
+   * An immutable group of rules with the same text, in order of key.
+   */
+
+  static final class Group
+  {
+    final int[]    keys;
+    final int      max;
+    final int      quick;
+    final JRRule[] rules;
+
+    Group(
+      final int[] in_keys,
+      final JRRule[] in_rules)
+    {
+      assert in_keys.length > 0;
+      assert in_keys.length == in_rules.length;
+
+      this.keys = in_keys;
+      this.rules = in_rules;
+      this.max = in_keys[in_keys.length - 1];
+
+      int q = Integer.MAX_VALUE;
+      for (int index = 0; index < in_keys.length; ++index) {
+        if (in_rules[index].isQuick()) {
+          q = in_keys[index];
+          break;
+        }
+      }
+      this.quick = q;
+    }
+
+    static Group with(
+      final @Nullable Group g,
+      final int key,
+      final JRRule rule)
+    {
+      if (g == null) {
+        return new Group(new int[] { key }, new JRRule[] { rule });
+      }
+
+      final int found = Arrays.binarySearch(g.keys, key);
+      assert found < 0;
+      final int at = -(found + 1);
+      final int count = g.keys.length;
+      final int[] k = new int[count + 1];
+      final JRRule[] r = new JRRule[count + 1];
+      System.arraycopy(g.keys, 0, k, 0, at);
+      System.arraycopy(g.rules, 0, r, 0, at);
+      k[at] = key;
+      r[at] = rule;
+      System.arraycopy(g.keys, at, k, at + 1, count - at);
+      System.arraycopy(g.rules, at, r, at + 1, count - at);
+      return new Group(k, r);
+    }
+
+    /**
+     * @return The group without the rule with the given key, the group
+     *         itself if it has no such rule, or <tt>null</tt> if the group
+     *         would be empty
+     */
+
+    static @Nullable Group without(
+      final @Nullable Group g,
+      final int key)
+    {
+      if (g == null) {
+        return null;
+      }
+
+      final int at = Arrays.binarySearch(g.keys, key);
+      if (at < 0) {
+        return g;
+      }
+      final int count = g.keys.length;
+      if (count == 1) {
+        return null;
+      }
+      final int[] k = new int[count - 1];
+      final JRRule[] r = new JRRule[count - 1];
+      System.arraycopy(g.keys, 0, k, 0, at);
+      System.arraycopy(g.rules, 0, r, 0, at);
+      System.arraycopy(g.keys, at + 1, k, at, count - at - 1);
+      System.arraycopy(g.rules, at + 1, r, at, count - at - 1);
+      return new Group(k, r);
+    }
+
+    static long getByteSize(
+      final @Nullable Group g)
+    {
+      if (g == null) {
+        return 0L;
+      }
+      return JRMemorySizes.OBJECT
+        + JRMemorySizes.array(g.keys.length, 4L)
+        + JRMemorySizes.array(g.rules.length, JRMemorySizes.REFERENCE);
+    }
+  }
+
+  /**
+   * The trie with no rules.
+   */
+
+  static final JRRuleTrie     EMPTY;
+
+  private static final char[] NO_CHARS;
+
+  static {
+    NO_CHARS = new char[0];
+    EMPTY = new JRRuleTrie(JRRuleTrie.NO_CHARS, new JRRuleTrie[0], null, null);
+  }
+
+  /**
+   * Build a trie of the given rules, which must be in order of key.
+   *
+   * @param entries
+   *          The rules
+   * @return A trie
+   */
+
+  static JRRuleTrie build(
+    final List<Entry> entries)
+  {
+    if (entries.isEmpty()) {
+      return JRRuleTrie.EMPTY;
+    }
+
+    /**
+     * Sort the texts, keeping the rules with the same text in order of
+     * key, so that the rules of each node, and the subtree of each edge,
+     * occupy contiguous ranges.
+     */
+
+    final List<Entry> sorted = new ArrayList<Entry>(entries);
+    Collections.sort(sorted, new Comparator<Entry>()
+    {
+      @Override public int compare(
+        final Entry x,
+        final Entry y)
+      {
+        return x.text.compareTo(y.text);
+      }
+    });
+    return JRRuleTrie.buildRange(sorted, 0, sorted.size(), 0);
+  }
+
+  private static JRRuleTrie buildRange(
+    final List<Entry> entries,
+    final int lo,
+    final int hi,
+    final int depth)
+  {
+    @Nullable Group exact = null;
+    @Nullable Group prefix = null;
+    int index = lo;
+    for (; index < hi; ++index) {
+      final Entry e = NullCheck.notNull(entries.get(index));
+      if (e.text.length() != depth) {
+        break;
+      }
+      if (e.prefix) {
+        prefix = Group.with(prefix, e.key, e.rule);
+      } else {
+        exact = Group.with(exact, e.key, e.rule);
+      }
+    }
+
+    final List<Character> chars = new ArrayList<Character>();
+    final List<JRRuleTrie> children = new ArrayList<JRRuleTrie>();
+    while (index < hi) {
+      final char c = NullCheck.notNull(entries.get(index)).text.charAt(depth);
+      int end = index + 1;
+      while ((end < hi)
+        && (NullCheck.notNull(entries.get(end)).text.charAt(depth) == c)) {
+        ++end;
+      }
+      chars.add(Character.valueOf(c));
+      children.add(JRRuleTrie.buildRange(entries, index, end, depth + 1));
+      index = end;
+    }
+
+    final char[] c = new char[chars.size()];
+    for (int i = 0; i < c.length; ++i) {
+      c[i] = NullCheck.notNull(chars.get(i)).charValue();
+    }
+    return new JRRuleTrie(
+      c,
+      children.toArray(new JRRuleTrie[children.size()]),
+      exact,
+      prefix);
+  }
+
+  private static JRRuleTrie insert(
+    final JRRuleTrie node,
+    final Entry e,
+    final int depth)
+  {
+    if (depth == e.text.length()) {
+      if (e.prefix) {
+        return new JRRuleTrie(
+          node.chars,
+          node.children,
+          node.exact,
+          Group.with(node.prefix, e.key, e.rule));
+      }
+      return new JRRuleTrie(
+        node.chars,
+        node.children,
+        Group.with(node.exact, e.key, e.rule),
+        node.prefix);
+    }
+
+    final char c = e.text.charAt(depth);
+    final int found = node.find(c);
+    if (found >= 0) {
+      final JRRuleTrie[] children = node.children.clone();
+      children[found] = JRRuleTrie.insert(children[found], e, depth + 1);
+      return new JRRuleTrie(node.chars, children, node.exact, node.prefix);
+    }
+
+    final int at = -(found + 1);
+    final int count = node.chars.length;
+    final char[] chars = new char[count + 1];
+    final JRRuleTrie[] children = new JRRuleTrie[count + 1];
+    System.arraycopy(node.chars, 0, chars, 0, at);
+    System.arraycopy(node.children, 0, children, 0, at);
+    chars[at] = c;
+    children[at] = JRRuleTrie.insert(JRRuleTrie.EMPTY, e, depth + 1);
+    System.arraycopy(node.chars, at, chars, at + 1, count - at);
+    System.arraycopy(node.children, at, children, at + 1, count - at);
+    return new JRRuleTrie(chars, children, node.exact, node.prefix);
+  }
+
+  /**
+   * @return The node without the rule, the node itself if it has no such
+   *         rule, or <tt>null</tt> if the node would hold no rules
+   */
+
+  private static @Nullable JRRuleTrie remove(
+    final JRRuleTrie node,
+    final String text,
+    final boolean prefix,
+    final int key,
+    final int depth)
+  {
+    final JRRuleTrie result;
+    if (depth == text.length()) {
+      if (prefix) {
+        final Group g = Group.without(node.prefix, key);
+        if (g == node.prefix) {
+          return node;
+        }
+        result = new JRRuleTrie(node.chars, node.children, node.exact, g);
+      } else {
+        final Group g = Group.without(node.exact, key);
+        if (g == node.exact) {
+          return node;
+        }
+        result = new JRRuleTrie(node.chars, node.children, g, node.prefix);
+      }
+    } else {
+      final int found = node.find(text.charAt(depth));
+      if (found < 0) {
+        return node;
+      }
+
+      final JRRuleTrie child = node.children[found];
+      final JRRuleTrie removed =
+        JRRuleTrie.remove(child, text, prefix, key, depth + 1);
+      if (removed == child) {
+        return node;
+      }
+
+      if (removed != null) {
+        final JRRuleTrie[] children = node.children.clone();
+        children[found] = removed;
+        result =
+          new JRRuleTrie(node.chars, children, node.exact, node.prefix);
+      } else {
+        final int count = node.chars.length;
+        final char[] chars = new char[count - 1];
+        final JRRuleTrie[] children = new JRRuleTrie[count - 1];
+        System.arraycopy(node.chars, 0, chars, 0, found);
+        System.arraycopy(node.children, 0, children, 0, found);
+        System.arraycopy(
+          node.chars,
+          found + 1,
+          chars,
+          found,
+          count - found - 1);
+        System.arraycopy(
+          node.children,
+          found + 1,
+          children,
+          found,
+          count - found - 1);
+        result = new JRRuleTrie(chars, children, node.exact, node.prefix);
+      }
+    }
+
+    if ((result.exact == null)
+      && (result.prefix == null)
+      && (result.chars.length == 0)) {
+      return null;
+    }
+    return result;
+  }
+
+  private final long                bytes;
+  private final char[]              chars;
+  private final JRRuleTrie[]        children;
+  private final int                 count;
+  private final @Nullable Group     exact;
+  private final @Nullable Group     prefix;
+
+  /**
+   * The greatest key of the exact rules of the node, or <tt>-1</tt>.
+   */
+
+  final int                         exact_max;
+
+  /**
+   * The least key of the quick exact rules of the node, or
+   * {@link Integer#MAX_VALUE}.
+   */
+
+  final int                         exact_quick;
+
+  /**
+   * The greatest key of the prefix rules of the node, or <tt>-1</tt>.
+   */
+
+  final int                         prefix_max;
+
+  /**
+   * The least key of the quick prefix rules of the node, or
+   * {@link Integer#MAX_VALUE}.
+   */
+
+  final int                         prefix_quick;
+
+  private JRRuleTrie(
+    final char[] in_chars,
+    final JRRuleTrie[] in_children,
+    final @Nullable Group in_exact,
+    final @Nullable Group in_prefix)
+  {
+    this.chars = in_chars;
+    this.children = in_children;
+    this.exact = in_exact;
+    this.prefix = in_prefix;
+
+    long size =
+      JRMemorySizes.OBJECT
+        + JRMemorySizes.array(in_chars.length, 2L)
+        + JRMemorySizes.array(in_children.length, JRMemorySizes.REFERENCE)
+        + Group.getByteSize(in_exact)
+        + Group.getByteSize(in_prefix);
+    int rules = 0;
+    for (final JRRuleTrie child : in_children) {
+      size += child.bytes;
+      rules += child.count;
+    }
+
+    if (in_exact != null) {
+      this.exact_max = in_exact.max;
+      this.exact_quick = in_exact.quick;
+      rules += in_exact.keys.length;
+    } else {
+      this.exact_max = -1;
+      this.exact_quick = Integer.MAX_VALUE;
+    }
+    if (in_prefix != null) {
+      this.prefix_max = in_prefix.max;
+      this.prefix_quick = in_prefix.quick;
+      rules += in_prefix.keys.length;
+    } else {
+      this.prefix_max = -1;
+      this.prefix_quick = Integer.MAX_VALUE;
+    }
+
+    this.bytes = size;
+    this.count = rules;
+  }
+
+  /**
+   * @return The child of the node along the edge labelled <tt>c</tt>, or
+   *         <tt>null</tt> if there is no such edge
+   */
+
+  @Nullable JRRuleTrie child(
+    final char c)
+  {
+    int low = 0;
+    int high = this.chars.length - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final char k = this.chars[mid];
+      if (k < c) {
+        low = mid + 1;
+      } else if (k > c) {
+        high = mid - 1;
+      } else {
+        return this.children[mid];
+      }
+    }
+    return null;
+  }
+
+  private int find(
+    final char c)
+  {
+    return Arrays.binarySearch(this.chars, c);
+  }
+
+  /**
+   * @return An estimate of the heap retained by the trie, including any
+   *         nodes shared with other tries
+   */
+
+  long getByteSize()
+  {
+    return this.bytes;
+  }
+
+  /**
+   * @return The number of rules in the trie
+   */
+
+  int getRuleCount()
+  {
+    return this.count;
+  }
+
+  /**
+   * @return The number of edges leaving the node
+   */
+
+  int getEdgeCount()
+  {
+    return this.chars.length;
+  }
+
+  /**
+   * @param index
+   *          The index of an edge, in order of label
+   * @return The child of the node along the edge
+   */
+
+  JRRuleTrie getEdgeTarget(
+    final int index)
+  {
+    return this.children[index];
+  }
+
+  /**
+   * Derive a trie with an additional rule.
+   *
+   * @param text
+   *          The text of the rule
+   * @param is_prefix
+   *          <tt>true</tt> if the rule matches every name beginning with
+   *          the text
+   * @param key
+   *          The key of the rule, which must not be in the trie
+   * @param rule
+   *          The rule
+   * @return A new trie
+   */
+
+  JRRuleTrie withRule(
+    final String text,
+    final boolean is_prefix,
+    final int key,
+    final JRRule rule)
+  {
+    return JRRuleTrie.insert(this, new Entry(text, is_prefix, key, rule), 0);
+  }
+
+  /**
+   * Derive a trie without a rule.
+   *
+   * @param text
+   *          The text of the rule
+   * @param is_prefix
+   *          <tt>true</tt> if the rule matches every name beginning with
+   *          the text
+   * @param key
+   *          The key of the rule
+   * @return A new trie, or this trie if it has no such rule
+   */
+
+  JRRuleTrie withoutRule(
+    final String text,
+    final boolean is_prefix,
+    final int key)
+  {
+    final JRRuleTrie r = JRRuleTrie.remove(this, text, is_prefix, key, 0);
+    return (r != null) ? r : JRRuleTrie.EMPTY;
+  }
+}
@@ -17,14 +17,27 @@
 package com.io7m.jrcl.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
+import jdk.jfr.EventType;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
 import com.io7m.junreachable.UnreachableCodeException;
 
 /**
@@ -46,6 +59,86 @@ import com.io7m.junreachable.UnreachableCodeException;
  * <p>
  * This scheme was inspired by the OpenBSD PF firewall.
  * </p>
+ * <p>
+ * Instead of a pattern, a rule may specify a set of exact names, in which
+ * case the rule matches any name in the set. Sets are stored as minimal
+ * perfect hash tables, so checking a name against a set of tens of
+ * thousands of names costs no more than checking it against a single
+ * name.
+ * </p>
+ * <p>
+ * Each evaluation is published to the Java Flight Recorder as a
+ * <tt>com.io7m.jrcl.PolicyEvaluation</tt> event, giving the name, the kind
+ * of name, the conclusion, the index of the deciding rule, and the duration
+ * of the evaluation. Nothing is allocated for the event unless a recording
+ * has enabled it.
+ * </p>
+ * <p>
+ * The pattern of each rule is analysed when the policy is built (see
+ * {@link JRPatternAnalyzer}). Patterns that can backtrack exponentially are
+ * rewritten or rejected according to the {@link JRPatternSafety} given to
+ * the builder. Patterns that are not known to match in linear time are
+ * limited to a budget of steps each time they are matched: a rule that
+ * exceeds its budget stops evaluation and the name is denied, so that a
+ * single badly written rule cannot make loading a class arbitrarily slow.
+ * The budget is per rule, not per name: each limited rule tested against a
+ * name may take up to the whole budget, and rules whose patterns match in
+ * linear time are not counted at all. The work of evaluating a name is
+ * therefore bounded by the budget times the number of limited rules
+ * tested, plus the length of the name times the number of linear rules
+ * tested.
+ * </p>
+ * <p>
+ * The builder may also minimize the rules (see
+ * {@link JRSequentialPolicyBuilderType#setRuleMinimization(boolean)}),
+ * removing rules that are unreachable, always overridden, or that only
+ * confirm the default conclusion, and merging adjacent rules with the same
+ * conclusion. Rule indices in log messages and events always refer to the
+ * order in which the rules were given to the builder.
+ * </p>
+ * <p>
+ * Policies are immutable, but new policies can be derived from them by
+ * appending or removing rules or by changing the default conclusions (see
+ * {@link #withClassRuleAppended(Pattern, JRRuleConclusion, boolean)}). A
+ * derived policy shares the compiled rules of the original policy, so only
+ * the rules that are added are analysed or hashed. Its evaluation engine is
+ * derived from that of the original policy by patching it for the rule
+ * that was appended or removed, an adaptive policy updates its cost
+ * estimates with the cost of that rule alone, and the rules of a kind that
+ * is not changed are shared outright. Copying the arrays of references to
+ * the rules is the only part of deriving a policy whose cost grows with
+ * the number of its rules.
+ * </p>
+ * <p>
+ * Derived policies are not minimized, and their rules are indexed in the
+ * order in which the rules of the original policy were declared followed
+ * by any appended rules. Minimization cannot be carried forward, because
+ * a rule removed as redundant may be needed again once the rules around it
+ * change. The first policy derived from a minimized policy is therefore
+ * built again from the rules as they were declared, and policies derived
+ * from it in turn are derived incrementally.
+ * </p>
+ * <p>
+ * Rules are evaluated one at a time by default. The builder may instead
+ * select an engine that indexes rules whose patterns are literal names or
+ * literal prefixes, so that policies with many such rules are evaluated in
+ * time proportional to the length of the name rather than the number of
+ * rules (see
+ * {@link JRSequentialPolicyBuilderType#setEvaluationEngine(JRPolicyEngine)}).
+ * An adaptive engine chooses, separately for class rules and resource
+ * rules, whichever engine a calibrated cost model estimates to be fastest
+ * (see {@link #getEngineChoices()}), among the engines that are known to
+ * make the same decisions as sequential evaluation for those rules.
+ * </p>
+ * <p>
+ * The evaluation of a single name can be explained with
+ * {@link #explainClass(String)} and {@link #explainResource(String)}, which
+ * return the rules tested and the rule and reason that decided the
+ * conclusion. The builder may also be given a pattern of names whose
+ * evaluations are traced and logged as they happen (see
+ * {@link JRSequentialPolicyBuilderType#setTraceFilter(Pattern)}); the
+ * evaluation of other names does no per-rule logging.
+ * </p>
  *
  * @see <a href="http://www.openbsd.org/faq/pf/filter.html">OpenBSD PF</a>
  */
@@ -55,10 +148,62 @@ import com.io7m.junreachable.UnreachableCodeException;
 {
   private static final class Builder implements JRSequentialPolicyBuilderType
   {
-    private final JRRuleConclusion class_default;
-    private final List<Rule>       class_rules;
-    private final JRRuleConclusion resource_default;
-    private final List<Rule>       resource_rules;
+    /**
+     * Compile the declarations on the common pool. The pool given for
+     * parallel evaluation is not used, as it belongs to the caller, who may
+     * have reserved it for evaluation or shut it down. If any declarations
+     * cannot be compiled, the exception of the first of them is raised, as
+     * it would have been had they been compiled in order.
+     */
+
+    private static JRRule[] compile(
+      final String type,
+      final List<Declaration> declarations,
+      final JRPatternSafety safety,
+      final long budget,
+      final JRNameSetStorage storage)
+    {
+      final int count = declarations.size();
+      final JRRule[] rules = new JRRule[count];
+      final RuntimeException[] errors = new RuntimeException[count];
+      final CompileTask task =
+        new CompileTask(
+          type,
+          declarations,
+          safety,
+          budget,
+          storage,
+          rules,
+          errors,
+          0,
+          count);
+
+      if (count <= CompileTask.GRAIN) {
+        task.compute();
+      } else {
+        ForkJoinPool.commonPool().invoke(task);
+      }
+
+      for (final RuntimeException e : errors) {
+        if (e != null) {
+          throw e;
+        }
+      }
+      return rules;
+    }
+
+    private long                    budget;
+    private final JRRuleConclusion  class_default;
+    private final List<Declaration> class_rules;
+    private JRPolicyEngine          engine;
+    private boolean                 minimize;
+    private ForkJoinPool            pool;
+    private final JRRuleConclusion  resource_default;
+    private final List<Declaration> resource_rules;
+    private JRPatternSafety         safety;
+    private JRNameSetStorage        storage;
+    private int                     threshold;
+    private @Nullable Pattern       trace_filter;
 
     public Builder(
       final JRRuleConclusion in_class_default,
@@ -66,8 +211,25 @@ import com.io7m.junreachable.UnreachableCodeException;
     {
       this.class_default = NullCheck.notNull(in_class_default);
       this.resource_default = NullCheck.notNull(in_resource_default);
-      this.class_rules = new ArrayList<JRSequentialPolicy.Rule>();
-      this.resource_rules = new ArrayList<JRSequentialPolicy.Rule>();
+      this.class_rules = new ArrayList<JRSequentialPolicy.Declaration>();
+      this.resource_rules = new ArrayList<JRSequentialPolicy.Declaration>();
+      this.safety = JRPatternSafety.PERMIT;
+      this.budget = JRSequentialPolicyBuilderType.DEFAULT_STEP_BUDGET;
+      this.storage = JRNameSetStorage.HEAP;
+      this.engine = JRPolicyEngine.SEQUENTIAL;
+      this.pool = NullCheck.notNull(ForkJoinPool.commonPool());
+      this.threshold =
+        JRSequentialPolicyBuilderType.DEFAULT_PARALLEL_THRESHOLD;
+    }
+
+    @Override public void addClassNameSetRule(
+      final Collection<String> names,
+      final JRRuleConclusion c,
+      final boolean quick)
+    {
+      NullCheck.notNull(names);
+      NullCheck.notNull(c);
+      this.class_rules.add(new NameSetDeclaration(names, quick, c));
     }
 
     @Override public void addClassRule(
@@ -77,7 +239,27 @@ import com.io7m.junreachable.UnreachableCodeException;
     {
       NullCheck.notNull(p);
       NullCheck.notNull(c);
-      this.class_rules.add(new Rule(p, quick, c));
+      this.class_rules.add(new PatternDeclaration(p, quick, c));
+    }
+
+    @Override public void addClassRule(
+      final String p,
+      final JRRuleConclusion c,
+      final boolean quick)
+    {
+      NullCheck.notNull(p);
+      NullCheck.notNull(c);
+      this.class_rules.add(new PatternDeclaration(p, quick, c));
+    }
+
+    @Override public void addResourceNameSetRule(
+      final Collection<String> names,
+      final JRRuleConclusion c,
+      final boolean quick)
+    {
+      NullCheck.notNull(names);
+      NullCheck.notNull(c);
+      this.resource_rules.add(new NameSetDeclaration(names, quick, c));
     }
 
     @Override public void addResourceRule(
@@ -87,86 +269,1173 @@ import com.io7m.junreachable.UnreachableCodeException;
     {
       NullCheck.notNull(p);
       NullCheck.notNull(c);
-      this.resource_rules.add(new Rule(p, quick, c));
+      this.resource_rules.add(new PatternDeclaration(p, quick, c));
+    }
+
+    @Override public void addResourceRule(
+      final String p,
+      final JRRuleConclusion c,
+      final boolean quick)
+    {
+      NullCheck.notNull(p);
+      NullCheck.notNull(c);
+      this.resource_rules.add(new PatternDeclaration(p, quick, c));
+    }
+
+    @Override public void setPatternSafety(
+      final JRPatternSafety s)
+    {
+      this.safety = NullCheck.notNull(s);
+    }
+
+    @Override public void setEvaluationStepBudget(
+      final long steps)
+    {
+      if (steps <= 0) {
+        throw new IllegalArgumentException(String.format(
+          "Step budget %d must be positive",
+          steps));
+      }
+      this.budget = steps;
+    }
+
+    @Override public void setNameSetStorage(
+      final JRNameSetStorage s)
+    {
+      this.storage = NullCheck.notNull(s);
+    }
+
+    @Override public void setRuleMinimization(
+      final boolean enabled)
+    {
+      this.minimize = enabled;
+    }
+
+    @Override public void setEvaluationEngine(
+      final JRPolicyEngine e)
+    {
+      this.engine = NullCheck.notNull(e);
+    }
+
+    @Override public void setParallelEvaluation(
+      final ForkJoinPool p,
+      final int rules)
+    {
+      NullCheck.notNull(p);
+      if (rules <= 0) {
+        throw new IllegalArgumentException(String.format(
+          "Parallel threshold %d must be positive",
+          rules));
+      }
+      this.pool = p;
+      this.threshold = rules;
+    }
+
+    @Override public void setTraceFilter(
+      final Pattern p)
+    {
+      this.trace_filter = NullCheck.notNull(p);
     }
 
     @Override public JRSequentialPolicy build()
     {
+      final JRRule[] c_rules =
+        Builder.compile(
+          "class",
+          this.class_rules,
+          this.safety,
+          this.budget,
+          this.storage);
+      final JRRule[] r_rules =
+        Builder.compile(
+          "resource",
+          this.resource_rules,
+          this.safety,
+          this.budget,
+          this.storage);
+
+      final List<JRMinimizationEntry> entries =
+        new ArrayList<JRMinimizationEntry>();
+      final JRPolicyMinimizer.Result c_min;
+      final JRPolicyMinimizer.Result r_min;
+      if (this.minimize) {
+        c_min =
+          JRPolicyMinimizer.minimize(
+            "class",
+            c_rules,
+            this.class_default,
+            entries);
+        r_min =
+          JRPolicyMinimizer.minimize(
+            "resource",
+            r_rules,
+            this.resource_default,
+            entries);
+      } else {
+        final int[] c_indices = JRSequentialPolicy.identity(c_rules.length);
+        final int[] r_indices = JRSequentialPolicy.identity(r_rules.length);
+        c_min = new JRPolicyMinimizer.Result(c_rules, c_indices);
+        r_min = new JRPolicyMinimizer.Result(r_rules, r_indices);
+      }
+
+      final JRMinimizationReport report =
+        new JRMinimizationReport(
+          entries,
+          c_rules.length + r_rules.length,
+          c_min.rules.length + r_min.rules.length,
+          JRPolicyMinimizer.estimateCost(c_rules)
+            + JRPolicyMinimizer.estimateCost(r_rules),
+          JRPolicyMinimizer.estimateCost(c_min.rules)
+            + JRPolicyMinimizer.estimateCost(r_min.rules));
+      if (this.minimize) {
+        JRSequentialPolicy.LOG.info("minimized: {}", report);
+      }
+
+      final Pattern filter = this.trace_filter;
+      final @Nullable JRRule trace;
+      if (filter != null) {
+        trace =
+          new PatternDeclaration(filter, false, JRRuleConclusion.ALLOW)
+            .compile("trace", 0, this.safety, this.budget, this.storage);
+      } else {
+        trace = null;
+      }
+
+      final Configuration configuration =
+        new Configuration(
+          this.safety,
+          this.budget,
+          this.storage,
+          this.engine,
+          this.pool,
+          this.threshold,
+          trace);
       return new JRSequentialPolicy(
-        this.class_rules,
-        this.resource_rules,
+        Rules.build("class", configuration, c_rules, c_min),
+        Rules.build("resource", configuration, r_rules, r_min),
         this.class_default,
-        this.resource_default);
+        this.resource_default,
+        configuration,
+        report);
+    }
+  }
+
+  /**
+   * The task that compiles a range of declarations, splitting it in half
+   * until it is small enough to compile on one thread.
+   */
+
+  private static final class CompileTask extends RecursiveAction
+  {
+    static final int          GRAIN            = 16;
+    private static final long serialVersionUID = 1L;
+
+    private final long               budget;
+    private final List<Declaration>  declarations;
+    private final RuntimeException[] errors;
+    private final int                hi;
+    private final int                lo;
+    private final JRRule[]           rules;
+    private final JRPatternSafety    safety;
+    private final JRNameSetStorage   storage;
+    private final String             type;
+
+    CompileTask(
+      final String in_type,
+      final List<Declaration> in_declarations,
+      final JRPatternSafety in_safety,
+      final long in_budget,
+      final JRNameSetStorage in_storage,
+      final JRRule[] in_rules,
+      final RuntimeException[] in_errors,
+      final int in_lo,
+      final int in_hi)
+    {
+      this.type = in_type;
+      this.declarations = in_declarations;
+      this.safety = in_safety;
+      this.budget = in_budget;
+      this.storage = in_storage;
+      this.rules = in_rules;
+      this.errors = in_errors;
+      this.lo = in_lo;
+      this.hi = in_hi;
+    }
+
+    @Override protected void compute()
+    {
+      if ((this.hi - this.lo) > CompileTask.GRAIN) {
+        final int mid = (this.lo + this.hi) >>> 1;
+        final CompileTask left = this.split(this.lo, mid);
+        final CompileTask right = this.split(mid, this.hi);
+        ForkJoinTask.invokeAll(left, right);
+        return;
+      }
+
+      for (int index = this.lo; index < this.hi; ++index) {
+        final Declaration d = NullCheck.notNull(this.declarations.get(index));
+        try {
+          this.rules[index] =
+            d.compile(
+              this.type,
+              index,
+              this.safety,
+              this.budget,
+              this.storage);
+        } catch (final RuntimeException e) {
+          this.errors[index] = e;
+        }
+      }
+    }
+
+    private CompileTask split(
+      final int in_lo,
+      final int in_hi)
+    {
+      return new CompileTask(
+        this.type,
+        this.declarations,
+        this.safety,
+        this.budget,
+        this.storage,
+        this.rules,
+        this.errors,
+        in_lo,
+        in_hi);
     }
   }
 
-  private static final class Rule
+  /**
+   * The parameters of the builder that apply to rules added to derived
+   * policies, and to the evaluation of derived policies.
+   */
+
+  private static final class Configuration
+  {
+    final long             budget;
+    final JRPolicyEngine   engine;
+    final ForkJoinPool     pool;
+    final JRPatternSafety  safety;
+    final JRNameSetStorage storage;
+    final int              threshold;
+    final @Nullable JRRule trace;
+
+    Configuration(
+      final JRPatternSafety in_safety,
+      final long in_budget,
+      final JRNameSetStorage in_storage,
+      final JRPolicyEngine in_engine,
+      final ForkJoinPool in_pool,
+      final int in_threshold,
+      final @Nullable JRRule in_trace)
+    {
+      this.safety = NullCheck.notNull(in_safety);
+      this.budget = in_budget;
+      this.storage = NullCheck.notNull(in_storage);
+      this.engine = NullCheck.notNull(in_engine);
+      this.pool = NullCheck.notNull(in_pool);
+      this.threshold = in_threshold;
+      this.trace = in_trace;
+    }
+  }
+
+  /**
+   * A rule as given to the builder.
+   */
+
+  private abstract static class Declaration
   {
     final JRRuleConclusion conclusion;
-    final Pattern          pattern;
     final boolean          quick;
 
-    Rule(
-      final Pattern in_pattern,
+    Declaration(
       final boolean in_quick,
       final JRRuleConclusion in_conclusion)
     {
-      this.pattern = NullCheck.notNull(in_pattern);
       this.quick = in_quick;
       this.conclusion = NullCheck.notNull(in_conclusion);
     }
 
-    boolean matches(
-      final String name)
+    abstract JRRule compile(
+      String type,
+      int index,
+      JRPatternSafety safety,
+      long budget,
+      JRNameSetStorage storage);
+  }
+
+  /**
+   * A rule given as a set of names. The names are copied when the rule is
+   * declared, but the set is only built when the rule is compiled, so that
+   * it is stored according to the storage of the builder at that time.
+   */
+
+  private static final class NameSetDeclaration extends Declaration
+  {
+    private final String[] names;
+
+    NameSetDeclaration(
+      final Collection<String> in_names,
+      final boolean in_quick,
+      final JRRuleConclusion in_conclusion)
+    {
+      super(in_quick, in_conclusion);
+      this.names = in_names.toArray(new String[in_names.size()]);
+      for (final String name : this.names) {
+        NullCheck.notNull(name);
+      }
+    }
+
+    @Override JRRule compile(
+      final String type,
+      final int index,
+      final JRPatternSafety safety,
+      final long budget,
+      final JRNameSetStorage storage)
+    {
+      final JRNameSet set =
+        JRNameSet.create(Arrays.asList(this.names), storage);
+      final JRRuleNameSet rule =
+        new JRRuleNameSet(set, this.conclusion, this.quick);
+      JRSequentialPolicy.LOG.debug("{} rule [{}]: {}", type, index, rule);
+      return rule;
+    }
+  }
+
+  /**
+   * A rule given as a compiled pattern, or as the source of a pattern that
+   * is compiled when the rule is.
+   */
+
+  private static final class PatternDeclaration extends Declaration
+  {
+    private final @Nullable Pattern pattern;
+    private final String            source;
+
+    PatternDeclaration(
+      final Pattern in_pattern,
+      final boolean in_quick,
+      final JRRuleConclusion in_conclusion)
+    {
+      super(in_quick, in_conclusion);
+      this.pattern = NullCheck.notNull(in_pattern);
+      this.source = NullCheck.notNull(in_pattern.pattern());
+    }
+
+    PatternDeclaration(
+      final String in_source,
+      final boolean in_quick,
+      final JRRuleConclusion in_conclusion)
+    {
+      super(in_quick, in_conclusion);
+      this.pattern = null;
+      this.source = NullCheck.notNull(in_source);
+    }
+
+    /**
+     * Analyse the pattern, and rewrite or reject it if it is dangerous.
+     * Analyses are obtained from the {@link JRPatternPool}, so rules with
+     * identical patterns share them.
+     */
+
+    @Override JRRule compile(
+      final String type,
+      final int index,
+      final JRPatternSafety safety,
+      final long budget,
+      final JRNameSetStorage storage)
+    {
+      final JRPatternPool pool = JRPatternPool.get();
+      final Pattern p = this.pattern;
+      JRPatternAnalysis a =
+        (p != null) ? pool.analyze(p) : pool.analyze(this.source, 0);
+      if (a.isDangerous()) {
+        switch (safety) {
+          case PERMIT:
+          {
+            JRSequentialPolicy.LOG.warn(
+              "{} rule [{}]: pattern '{}' permitted: {}",
+              type,
+              index,
+              this.source,
+              a.getDiagnostic());
+            break;
+          }
+          case REJECT:
+          {
+            throw new JRPatternRejectedException(type, index, a);
+          }
+          case REWRITE:
+          {
+            final Pattern r = a.getRewrittenPattern();
+            if (r == null) {
+              throw new JRPatternRejectedException(type, index, a);
+            }
+            JRSequentialPolicy.LOG.info(
+              "{} rule [{}]: pattern '{}' rewritten to '{}': {}",
+              type,
+              index,
+              this.source,
+              r,
+              a.getDiagnostic());
+            a = pool.analyze(r);
+            break;
+          }
+        }
+      }
+
+      switch (a.getComplexity()) {
+        case LINEAR:
+          break;
+        case EXPONENTIAL:
+        case POLYNOMIAL:
+        case UNKNOWN:
+        {
+          JRSequentialPolicy.LOG.warn(
+            "{} rule [{}]: pattern '{}' limited to {} steps: {}",
+            type,
+            index,
+            a.getPattern(),
+            budget,
+            a.getDiagnostic());
+          break;
+        }
+      }
+
+      return new JRRulePattern(a, this.conclusion, this.quick, budget);
+    }
+  }
+
+  /**
+   * The compiled rules of one kind, with the engine that evaluates them
+   * and the estimates that chose it. Policies derived from a policy share
+   * the rules of each kind that they do not change. The rules of a kind
+   * that they do change are derived from those of the original policy: the
+   * engine is patched for the rule that was appended or removed, and the
+   * cost estimates and the estimate of the memory retained are updated
+   * with the cost and size of that rule alone.
+   * <p>
+   * The engine is registered with the {@link JRMemoryGovernor} by itself,
+   * and the governor may evict an engine that built an index by replacing
+   * it with one that evaluates the rules in order. The rules derived from
+   * evicted rules build a new engine.
+   * </p>
+   */
+
+  private static final class Rules implements JRMemoryEvictableType
+  {
+    /**
+     * Build the rules of one kind from scratch.
+     */
+
+    static Rules build(
+      final String type,
+      final Configuration configuration,
+      final JRRule[] declared,
+      final JRPolicyMinimizer.Result minimized)
+    {
+      final JRRule[] rules = minimized.rules;
+      final int[] keys = JRSequentialPolicy.identity(rules.length);
+
+      final @Nullable double[] sums;
+      final @Nullable int[] inexact;
+      if (configuration.engine == JRPolicyEngine.ADAPTIVE) {
+        final JRRuleEngineCostModel model = JRRuleEngineCostModel.get();
+        final JRPolicyEngine[] engines = JRPolicyEngine.values();
+        sums = new double[engines.length];
+        inexact = new int[engines.length];
+        for (final JRPolicyEngine e : engines) {
+          if (e == JRPolicyEngine.ADAPTIVE) {
+            continue;
+          }
+          for (final JRRule rule : rules) {
+            sums[e.ordinal()] += model.ruleCost(e, rule);
+            if (!JRRuleEngineCostModel.isExact(e, rule)) {
+              inexact[e.ordinal()] += 1;
+            }
+          }
+        }
+      } else {
+        sums = null;
+        inexact = null;
+      }
+
+      final JREngineChoice choice =
+        JRSequentialPolicy.choose(
+          type,
+          configuration,
+          null,
+          sums,
+          inexact,
+          rules.length);
+      final JRRuleEngineType engine =
+        JRSequentialPolicy.engine(
+          type,
+          choice.getEngine(),
+          configuration,
+          rules,
+          minimized.indices,
+          keys);
+
+      /**
+       * Rules that appear both as declared and as minimized are counted
+       * once.
+       */
+
+      final Set<JRRule> seen =
+        Collections.newSetFromMap(new IdentityHashMap<JRRule, Boolean>());
+      long heap = 0L;
+      for (final JRRule[] array : new JRRule[][] { declared, rules }) {
+        for (final JRRule rule : array) {
+          if (seen.add(rule)) {
+            heap += JRMemorySizes.ruleHeap(rule);
+          }
+        }
+      }
+
+      return new Rules(
+        type,
+        declared,
+        rules,
+        minimized.indices,
+        keys,
+        choice,
+        sums,
+        inexact,
+        engine,
+        heap);
+    }
+
+    final JREngineChoice                        choice;
+    final JRRule[]                              declared;
+    volatile JRRuleEngineType                   engine;
+    private final LongAdder                     evaluations;
+    final int[]                                 indices;
+    final @Nullable int[]                       inexact;
+    final int[]                                 keys;
+    private final JRMemoryGovernor.Registration registration;
+    final long                                  rule_heap;
+    final JRRule[]                              rules;
+    final @Nullable double[]                    sums;
+    final String                                type;
+
+    private Rules(
+      final String in_type,
+      final JRRule[] in_declared,
+      final JRRule[] in_rules,
+      final int[] in_indices,
+      final int[] in_keys,
+      final JREngineChoice in_choice,
+      final @Nullable double[] in_sums,
+      final @Nullable int[] in_inexact,
+      final JRRuleEngineType in_engine,
+      final long in_rule_heap)
+    {
+      this.type = NullCheck.notNull(in_type);
+      this.declared = NullCheck.notNull(in_declared);
+      this.rules = NullCheck.notNull(in_rules);
+      this.indices = NullCheck.notNull(in_indices);
+      this.keys = NullCheck.notNull(in_keys);
+      this.choice = NullCheck.notNull(in_choice);
+      this.sums = in_sums;
+      this.inexact = in_inexact;
+      this.engine = NullCheck.notNull(in_engine);
+      this.rule_heap = in_rule_heap;
+      this.evaluations = new LongAdder();
+
+      /**
+       * The governor only evicts from registrations that have been charged,
+       * so the engine is charged once the registration has been assigned.
+       */
+
+      this.registration =
+        JRMemoryGovernor.get().register(
+          this,
+          JRMemoryConsumerKind.POLICY_INDEX,
+          JRMemoryGovernor.describe(this),
+          0L,
+          0L);
+      this.registration.charge(in_engine.getByteSize(), 0L);
+    }
+
+    @Override public long benefit()
+    {
+      return this.evaluations.sumThenReset();
+    }
+
+    @Override public long evict(
+      final long bytes)
+    {
+      synchronized (this) {
+        final JRRuleEngineType current = this.engine;
+        if (!JRRuleEngineCostModel.buildsIndex(current.getKind())) {
+          return 0L;
+        }
+
+        final JRRuleEngineType replacement =
+          new JRRuleEngineSequential(this.type, this.rules, this.indices);
+        final long released =
+          current.getByteSize() - replacement.getByteSize();
+        this.engine = replacement;
+        this.registration.charge(-released, 0L);
+        JRSequentialPolicy.LOG.debug(
+          "{} rules: evicted {} engine of {} bytes",
+          this.type,
+          current.getKind(),
+          Long.valueOf(released));
+        return released;
+      }
+    }
+
+    /**
+     * @return The engine, counting an evaluation
+     */
+
+    JRRuleEngineType evaluator()
+    {
+      this.evaluations.increment();
+      return this.engine;
+    }
+
+    /**
+     * @return <tt>true</tt> if the rules were minimized when they were
+     *         built
+     */
+
+    boolean isMinimized()
+    {
+      return this.declared != this.rules;
+    }
+
+    /**
+     * @return The rules with <tt>rule</tt> appended
+     */
+
+    Rules appended(
+      final Configuration configuration,
+      final JRRule rule)
+    {
+      final int count = this.declared.length;
+      if (this.isMinimized()
+        || ((count > 0) && (this.keys[count - 1] == Integer.MAX_VALUE))) {
+        return Rules.rebuild(
+          this.type,
+          configuration,
+          JRSequentialPolicy.appended(this.declared, rule));
+      }
+
+      final int[] k = Arrays.copyOf(this.keys, count + 1);
+      k[count] = (count == 0) ? 0 : this.keys[count - 1] + 1;
+      return this.derived(
+        configuration,
+        JRSequentialPolicy.appended(this.rules, rule),
+        k,
+        rule,
+        k[count],
+        true);
+    }
+
+    /**
+     * @return The rules without the declared rule at <tt>index</tt>
+     */
+
+    Rules removed(
+      final Configuration configuration,
+      final int index)
+    {
+      final JRRule[] d =
+        JRSequentialPolicy.removed(this.type, this.declared, index);
+      if (this.isMinimized()) {
+        return Rules.rebuild(this.type, configuration, d);
+      }
+
+      final int[] k = new int[d.length];
+      System.arraycopy(this.keys, 0, k, 0, index);
+      System.arraycopy(this.keys, index + 1, k, index, k.length - index);
+      return this.derived(
+        configuration,
+        d,
+        k,
+        NullCheck.notNull(this.rules[index]),
+        this.keys[index],
+        false);
+    }
+
+    /**
+     * Build unminimized rules from scratch.
+     */
+
+    private static Rules rebuild(
+      final String type,
+      final Configuration configuration,
+      final JRRule[] declared)
+    {
+      return Rules.build(
+        type,
+        configuration,
+        declared,
+        new JRPolicyMinimizer.Result(
+          declared,
+          JRSequentialPolicy.identity(declared.length)));
+    }
+
+    private Rules derived(
+      final Configuration configuration,
+      final JRRule[] r,
+      final int[] k,
+      final JRRule changed,
+      final int key,
+      final boolean added)
+    {
+      final int[] i = JRSequentialPolicy.identity(r.length);
+      final long sign = added ? 1L : -1L;
+
+      final double[] current = this.sums;
+      final int[] current_inexact = this.inexact;
+      final @Nullable double[] s;
+      final @Nullable int[] n;
+      if ((current != null) && (current_inexact != null)) {
+        final JRRuleEngineCostModel model = JRRuleEngineCostModel.get();
+        s = current.clone();
+        n = current_inexact.clone();
+        for (final JRPolicyEngine e : JRPolicyEngine.values()) {
+          if (e != JRPolicyEngine.ADAPTIVE) {
+            s[e.ordinal()] += sign * model.ruleCost(e, changed);
+            if (!JRRuleEngineCostModel.isExact(e, changed)) {
+              n[e.ordinal()] += (int) sign;
+            }
+          }
+        }
+      } else {
+        s = null;
+        n = null;
+      }
+
+      final JRRuleEngineType existing = this.engine;
+      final JREngineChoice c =
+        JRSequentialPolicy.choose(
+          this.type,
+          configuration,
+          existing.getKind(),
+          s,
+          n,
+          r.length);
+
+      final JRRuleEngineType e;
+      if (c.getEngine() == existing.getKind()) {
+        if (added) {
+          e = existing.withRuleAppended(r, i, k);
+        } else {
+          e = existing.withRuleRemoved(r, i, k, changed, key);
+        }
+      } else {
+        e =
+          JRSequentialPolicy.engine(
+            this.type,
+            c.getEngine(),
+            configuration,
+            r,
+            i,
+            k);
+      }
+
+      return new Rules(
+        this.type,
+        r,
+        r,
+        i,
+        k,
+        c,
+        s,
+        n,
+        e,
+        this.rule_heap + (sign * JRMemorySizes.ruleHeap(changed)));
+    }
+
+    /**
+     * @return An estimate of the heap retained by the rules and their
+     *         arrays, excluding the engine
+     */
+
+    long getHeap()
     {
-      final Matcher m = this.pattern.matcher(name);
-      return m.matches();
+      final long count = this.rules.length;
+      long arrays =
+        JRMemorySizes.array(count, JRMemorySizes.REFERENCE)
+          + (2L * JRMemorySizes.array(count, 4L));
+      if (this.isMinimized()) {
+        arrays +=
+          JRMemorySizes.array(this.declared.length, JRMemorySizes.REFERENCE);
+      }
+      return JRMemorySizes.OBJECT + this.rule_heap + arrays;
     }
   }
 
-  private static final Logger LOG;
+  private static final EventType EVALUATION_EVENT;
+  private static final Logger    LOG;
 
   static {
     LOG =
       NullCheck.notNull(LoggerFactory.getLogger(JRSequentialPolicy.class));
+    EVALUATION_EVENT =
+      NullCheck.notNull(EventType.getEventType(JRPolicyEvaluationEvent.class));
   }
 
-  private static JRRuleConclusion checkRules(
+  /**
+   * Evaluate the given rules against <tt>name</tt> one at a time, recording
+   * each rule tested.
+   *
+   * @return The index of the deciding rule, <tt>-1</tt> if no rule matched,
+   *         or <tt>-(i + 2)</tt> if rule <tt>i</tt> exceeded its step budget
+   */
+
+  private static int explainRules(
+    final String type,
+    final String name,
+    final JRRule[] rules,
+    final int[] indices,
+    final List<JRDecisionTraceStep> steps)
+  {
+    int deciding = -1;
+    for (int index = 0; index < rules.length; ++index) {
+      final JRRule rule = rules[index];
+      final int result =
+        JRRuleEngineSequential.match(type, name, rule, indices[index]);
+      steps.add(new JRDecisionTraceStep(
+        indices[index],
+        NullCheck.notNull(rule.toString()),
+        rule.getConclusion(),
+        rule.isQuick(),
+        result > 0,
+        result < 0));
+
+      if (result < 0) {
+        return -(index + 2);
+      }
+      if (result > 0) {
+        deciding = index;
+        if (rule.isQuick()) {
+          break;
+        }
+      }
+    }
+    return deciding;
+  }
+
+  private static JRDecisionTrace explain(
     final String type,
     final String name,
     final JRRuleConclusion default_conclusion,
-    final List<Rule> rules)
+    final JRRule[] rules,
+    final int[] indices)
   {
-    JRSequentialPolicy.LOG.debug("{} check {}", type, name);
+    final List<JRDecisionTraceStep> steps =
+      new ArrayList<JRDecisionTraceStep>();
+    final int result =
+      JRSequentialPolicy.explainRules(type, name, rules, indices, steps);
+    return JRSequentialPolicy.trace(
+      type,
+      name,
+      default_conclusion,
+      rules,
+      indices,
+      result,
+      steps);
+  }
 
-    JRRuleConclusion current_conclusion = default_conclusion;
-    boolean done = false;
-    for (int index = 0; index < rules.size(); ++index) {
-      final Rule rule = rules.get(index);
+  private static JRDecisionTrace trace(
+    final String type,
+    final String name,
+    final JRRuleConclusion default_conclusion,
+    final JRRule[] rules,
+    final int[] indices,
+    final int result,
+    final List<JRDecisionTraceStep> steps)
+  {
+    if (result >= 0) {
+      final JRRule rule = rules[result];
+      return new JRDecisionTrace(
+        type,
+        name,
+        rule.getConclusion(),
+        rule.isQuick()
+          ? JRDecisionReason.QUICK_RULE
+          : JRDecisionReason.LAST_MATCHING_RULE,
+        indices[result],
+        steps);
+    }
+    if (result == -1) {
+      return new JRDecisionTrace(
+        type,
+        name,
+        default_conclusion,
+        JRDecisionReason.DEFAULT,
+        -1,
+        steps);
+    }
+    return new JRDecisionTrace(
+      type,
+      name,
+      JRRuleConclusion.DENY,
+      JRDecisionReason.STEP_BUDGET_EXCEEDED,
+      indices[-(result + 2)],
+      steps);
+  }
 
-      final boolean match = rule.matches(name);
-      if (match) {
-        current_conclusion = rule.conclusion;
-        if (rule.quick) {
-          done = true;
-        }
+  /**
+   * @return <tt>true</tt> if evaluations of <tt>name</tt> should be traced
+   */
+
+  private static boolean isTraced(
+    final @Nullable JRRule trace,
+    final String name)
+  {
+    if (trace == null) {
+      return false;
+    }
+    try {
+      return trace.matches(name);
+    } catch (final JRRule.StepBudgetExceeded e) {
+      return false;
+    }
+  }
+
+  private static boolean evaluate(
+    final String type,
+    final String name,
+    final JRRuleConclusion default_conclusion,
+    final JRRuleEngineType engine,
+    final @Nullable JRRule trace,
+    final JRRule[] rules,
+    final int[] indices)
+  {
+    final @Nullable JRPolicyEvaluationEvent event;
+    if (JRSequentialPolicy.EVALUATION_EVENT.isEnabled()) {
+      event = new JRPolicyEvaluationEvent();
+      event.begin();
+    } else {
+      event = null;
+    }
+
+    final @Nullable List<JRDecisionTraceStep> steps;
+    final int result;
+    if (JRSequentialPolicy.isTraced(trace, name)) {
+      steps = new ArrayList<JRDecisionTraceStep>();
+      result =
+        JRSequentialPolicy.explainRules(type, name, rules, indices, steps);
+    } else {
+      steps = null;
+      result = engine.evaluate(name);
+    }
+
+    final int deciding;
+    final JRRuleConclusion current_conclusion;
+    if (result >= 0) {
+      deciding = result;
+      current_conclusion = rules[deciding].getConclusion();
+    } else if (result == -1) {
+      deciding = -1;
+      current_conclusion = default_conclusion;
+    } else {
+      deciding = -(result + 2);
+      current_conclusion = JRRuleConclusion.DENY;
+    }
+
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.name = name;
+        event.kind = type;
+        event.conclusion = current_conclusion.toString();
+        event.rule_index = (deciding >= 0) ? indices[deciding] : -1;
+        event.budget_exceeded = result < -1;
+        event.commit();
       }
+    }
 
-      JRSequentialPolicy.LOG.debug(
-        "rule [{}]: quick:{} pattern:{} match:{} conclusion:{}",
-        index,
-        rule.quick,
-        rule.pattern,
-        match,
-        rule.conclusion);
+    if (steps != null) {
+      JRSequentialPolicy.LOG.info(
+        "{}",
+        JRSequentialPolicy.trace(
+          type,
+          name,
+          default_conclusion,
+          rules,
+          indices,
+          result,
+          steps));
+    }
+
+    if (JRSequentialPolicy.LOG.isDebugEnabled()) {
+      JRSequentialPolicy.LOG.debug("{} {} {}", type, current_conclusion, name);
+    }
 
-      if (done) {
-        break;
+    switch (current_conclusion) {
+      case ALLOW:
+        return true;
+      case DENY:
+        return false;
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  private static JRRule[] appended(
+    final JRRule[] rules,
+    final JRRule rule)
+  {
+    final JRRule[] out = Arrays.copyOf(rules, rules.length + 1);
+    out[rules.length] = rule;
+    return out;
+  }
+
+  /**
+   * Choose the engine for the given rules, estimating the cost of each
+   * candidate engine if the configured engine is adaptive. Only engines
+   * that are exact for every rule (see
+   * {@link JRRuleEngineCostModel#isExact(JRPolicyEngine, JRRule)}) are
+   * candidates, so that the choice, which depends on the calibration of
+   * the cost model, can never change a decision. A derived
+   * policy only changes to an engine that must build an index if that
+   * engine is estimated to be faster than the engine of the policy that it
+   * was derived from by more than
+   * {@link JRRuleEngineCostModel#SWITCH_MARGIN}.
+   *
+   * @param current
+   *          The engine of the policy that the rules were derived from, if
+   *          any
+   * @param sums
+   *          The sums of the costs of the rules for each engine, if the
+   *          configured engine is adaptive
+   * @param inexact
+   *          The number of rules for which each engine is not known to be
+   *          exact, if the configured engine is adaptive
+   */
+
+  private static JREngineChoice choose(
+    final String type,
+    final Configuration configuration,
+    final @Nullable JRPolicyEngine current,
+    final @Nullable double[] sums,
+    final @Nullable int[] inexact,
+    final int count)
+  {
+    final JRPolicyEngine configured = configuration.engine;
+    if (configured != JRPolicyEngine.ADAPTIVE) {
+      return new JREngineChoice(
+        type,
+        count,
+        configured,
+        new EnumMap<JRPolicyEngine, Double>(JRPolicyEngine.class));
+    }
+
+    final double[] s = NullCheck.notNull(sums);
+    final int[] n = NullCheck.notNull(inexact);
+    final JRRuleEngineCostModel model = JRRuleEngineCostModel.get();
+    final Map<JRPolicyEngine, Double> costs =
+      new EnumMap<JRPolicyEngine, Double>(JRPolicyEngine.class);
+    JRPolicyEngine best = JRPolicyEngine.SEQUENTIAL;
+    double best_cost = Double.POSITIVE_INFINITY;
+    for (final JRPolicyEngine e : JRPolicyEngine.values()) {
+      if (e == JRPolicyEngine.ADAPTIVE) {
+        continue;
+      }
+      if (n[e.ordinal()] > 0) {
+        JRSequentialPolicy.LOG.debug(
+          "{} rules: {} is not exact for {} rules",
+          type,
+          e,
+          Integer.valueOf(n[e.ordinal()]));
+        continue;
       }
+      final double cost =
+        model.estimate(
+          e,
+          s[e.ordinal()],
+          count,
+          configuration.pool.getParallelism(),
+          configuration.threshold);
+      costs.put(e, Double.valueOf(cost));
+      if (cost < best_cost) {
+        best = e;
+        best_cost = cost;
+      }
+    }
+
+    if ((current != null)
+      && (current != best)
+      && costs.containsKey(current)
+      && JRRuleEngineCostModel.buildsIndex(best)) {
+      final double current_cost =
+        NullCheck.notNull(costs.get(current)).doubleValue();
+      if (current_cost
+        <= (best_cost * (1.0 + JRRuleEngineCostModel.SWITCH_MARGIN))) {
+        best = current;
+      }
+    }
+
+    final JREngineChoice choice =
+      new JREngineChoice(type, count, best, costs);
+    JRSequentialPolicy.LOG.debug("engine: {}", choice);
+    return choice;
+  }
+
+  private static JRRuleEngineType engine(
+    final String type,
+    final JRPolicyEngine kind,
+    final Configuration configuration,
+    final JRRule[] rules,
+    final int[] indices,
+    final int[] keys)
+  {
+    switch (kind) {
+      case SEQUENTIAL:
+        return new JRRuleEngineSequential(type, rules, indices);
+      case PREFIX_INDEX:
+        return new JRRuleEnginePrefix(type, rules, indices, keys);
+      case SUFFIX_INDEX:
+        return new JRRuleEngineSuffix(type, rules, indices);
+      case PARALLEL:
+        return new JRRuleEngineParallel(
+          type,
+          rules,
+          indices,
+          configuration.pool,
+          configuration.threshold);
+      case ADAPTIVE:
+        throw new UnreachableCodeException();
+    }
+
+    throw new UnreachableCodeException();
+  }
+
+  private static int[] identity(
+    final int count)
+  {
+    final int[] indices = new int[count];
+    for (int index = 0; index < count; ++index) {
+      indices[index] = index;
+    }
+    return indices;
+  }
+
+  private static JRRule[] removed(
+    final String type,
+    final JRRule[] rules,
+    final int index)
+  {
+    if ((index < 0) || (index >= rules.length)) {
+      throw new IndexOutOfBoundsException(String.format(
+        "%s rule index %d is not in the range [0, %d)",
+        type,
+        index,
+        rules.length));
     }
 
-    JRSequentialPolicy.LOG.info("class {} {}", current_conclusion, name);
-    return current_conclusion;
+    final JRRule[] out = new JRRule[rules.length - 1];
+    System.arraycopy(rules, 0, out, 0, index);
+    System.arraycopy(rules, index + 1, out, index, out.length - index);
+    return out;
   }
 
   /**
@@ -184,64 +1453,420 @@ import com.io7m.junreachable.UnreachableCodeException;
     return new Builder(class_default, resource_default);
   }
 
-  private final JRRuleConclusion class_default;
-  private final List<Rule>       class_rules;
-  private final JRRuleConclusion resource_default;
-  private final List<Rule>       resource_rules;
+  private final JRRuleConclusion     class_default;
+  private final Rules                class_rules;
+  private final Configuration        configuration;
+  private final JRMinimizationReport report;
+  private final JRRuleConclusion     resource_default;
+  private final Rules                resource_rules;
 
   private JRSequentialPolicy(
-    final List<Rule> in_class_rules,
-    final List<Rule> in_resource_rules,
+    final Rules in_class_rules,
+    final Rules in_resource_rules,
     final JRRuleConclusion in_class_default,
-    final JRRuleConclusion in_resource_default)
+    final JRRuleConclusion in_resource_default,
+    final Configuration in_configuration,
+    final JRMinimizationReport in_report)
   {
     this.class_rules = NullCheck.notNull(in_class_rules);
     this.resource_rules = NullCheck.notNull(in_resource_rules);
     this.class_default = NullCheck.notNull(in_class_default);
     this.resource_default = NullCheck.notNull(in_resource_default);
+    this.configuration = NullCheck.notNull(in_configuration);
+    this.report = NullCheck.notNull(in_report);
+    this.register();
   }
 
-  @Override public boolean policyAllowsClass(
+  /**
+   * Register the policy with the {@link JRMemoryGovernor}.
+   */
+
+  private void register()
+  {
+    JRMemoryGovernor.get().register(
+      this,
+      JRMemoryConsumerKind.SEQUENTIAL_POLICY,
+      JRMemoryGovernor.describe(this),
+      JRMemorySizes.OBJECT
+        + this.class_rules.getHeap()
+        + this.resource_rules.getHeap(),
+      0L);
+  }
+
+  /**
+   * Create a policy from the given rules, without minimization.
+   */
+
+  private JRSequentialPolicy derive(
+    final Rules c_rules,
+    final Rules r_rules,
+    final JRRuleConclusion c_default,
+    final JRRuleConclusion r_default)
+  {
+    final int count = c_rules.declared.length + r_rules.declared.length;
+    return new JRSequentialPolicy(
+      c_rules,
+      r_rules,
+      c_default,
+      r_default,
+      this.configuration,
+      new JRMinimizationReport(
+        new ArrayList<JRMinimizationEntry>(),
+        count,
+        count,
+        0L,
+        0L));
+  }
+
+  JRRuleConclusion getClassDefault()
+  {
+    return this.class_default;
+  }
+
+  JRRule[] getClassRules()
+  {
+    return this.class_rules.rules;
+  }
+
+  JRRuleEngineType getClassEngine()
+  {
+    return this.class_rules.engine;
+  }
+
+  /**
+   * @return The report of the minimization of the policy's rules, which
+   *         records no removals if minimization was not enabled or if the
+   *         policy was derived from another policy
+   *
+   * @see JRSequentialPolicyBuilderType#setRuleMinimization(boolean)
+   */
+
+  public JRMinimizationReport getMinimizationReport()
+  {
+    return this.report;
+  }
+
+  /**
+   * Evaluate the policy for the given class name, recording each rule that
+   * is tested. The conclusion of the trace is the same as that of
+   * {@link #policyAllowsClass(String)}, but the rules are always tested
+   * one at a time, whichever evaluation engine the policy uses.
+   *
+   * @param name
+   *          The class name
+   * @return A trace of the evaluation
+   */
+
+  public JRDecisionTrace explainClass(
     final String name)
   {
-    NullCheck.notNull(name);
+    return JRSequentialPolicy.explain(
+      "class",
+      NullCheck.notNull(name),
+      this.class_default,
+      this.class_rules.rules,
+      this.class_rules.indices);
+  }
+
+  /**
+   * Evaluate the policy for the given resource name, recording each rule
+   * that is tested.
+   *
+   * @param name
+   *          The resource name
+   * @return A trace of the evaluation
+   *
+   * @see #explainClass(String)
+   */
+
+  public JRDecisionTrace explainResource(
+    final String name)
+  {
+    return JRSequentialPolicy.explain(
+      "resource",
+      NullCheck.notNull(name),
+      this.resource_default,
+      this.resource_rules.rules,
+      this.resource_rules.indices);
+  }
+
+  /**
+   * @return The engine configured to evaluate the policy's rules, which may
+   *         be {@link JRPolicyEngine#ADAPTIVE}
+   *
+   * @see JRSequentialPolicyBuilderType#setEvaluationEngine(JRPolicyEngine)
+   * @see #getEngineChoices()
+   */
+
+  public JRPolicyEngine getEvaluationEngine()
+  {
+    return this.configuration.engine;
+  }
+
+  /**
+   * @return The engines that evaluate the class rules and the resource
+   *         rules of the policy, in that order
+   */
+
+  public List<JREngineChoice> getEngineChoices()
+  {
+    return NullCheck.notNull(Collections.unmodifiableList(Arrays.asList(
+      this.class_rules.choice,
+      this.resource_rules.choice)));
+  }
+
+  JRRuleConclusion getResourceDefault()
+  {
+    return this.resource_default;
+  }
 
-    final JRRuleConclusion current_conclusion =
-      JRSequentialPolicy.checkRules(
+  JRRule[] getResourceRules()
+  {
+    return this.resource_rules.rules;
+  }
+
+  /**
+   * Derive a policy with a class rule appended. The pattern is analysed
+   * with the pattern safety and step budget of the builder of this policy.
+   *
+   * @param p
+   *          The pattern
+   * @param c
+   *          The conclusion
+   * @param quick
+   *          <tt>true</tt> if evaluation should stop at this rule when it
+   *          matches
+   * @return A new policy
+   *
+   * @throws JRPatternRejectedException
+   *           If the pattern can backtrack exponentially and the pattern
+   *           safety does not permit it
+   *
+   * @see JRSequentialPolicyBuilderType#addClassRule(Pattern,
+   *      JRRuleConclusion, boolean)
+   */
+
+  public JRSequentialPolicy withClassRuleAppended(
+    final Pattern p,
+    final JRRuleConclusion c,
+    final boolean quick)
+    throws JRPatternRejectedException
+  {
+    final JRRule rule =
+      new PatternDeclaration(p, quick, c).compile(
         "class",
-        name,
-        this.class_default,
-        this.class_rules);
+        this.class_rules.declared.length,
+        this.configuration.safety,
+        this.configuration.budget,
+        this.configuration.storage);
+    return this.derive(
+      this.class_rules.appended(this.configuration, rule),
+      this.resource_rules,
+      this.class_default,
+      this.resource_default);
+  }
 
-    switch (current_conclusion) {
-      case ALLOW:
-        return true;
-      case DENY:
-        return false;
-    }
+  /**
+   * Derive a policy with a class name set rule appended. The set uses the
+   * name set storage of the builder of this policy at the time that it
+   * built the policy.
+   *
+   * @param names
+   *          The names
+   * @param c
+   *          The conclusion
+   * @param quick
+   *          <tt>true</tt> if evaluation should stop at this rule when it
+   *          matches
+   * @return A new policy
+   *
+   * @see JRSequentialPolicyBuilderType#addClassNameSetRule(Collection,
+   *      JRRuleConclusion, boolean)
+   */
 
-    throw new UnreachableCodeException();
+  public JRSequentialPolicy withClassNameSetRuleAppended(
+    final Collection<String> names,
+    final JRRuleConclusion c,
+    final boolean quick)
+  {
+    final JRRule rule =
+      new JRRuleNameSet(
+        JRNameSet.create(names, this.configuration.storage),
+        NullCheck.notNull(c),
+        quick);
+    return this.derive(
+      this.class_rules.appended(this.configuration, rule),
+      this.resource_rules,
+      this.class_default,
+      this.resource_default);
   }
 
-  @Override public boolean policyAllowsResource(
+  /**
+   * Derive a policy with a resource rule appended.
+   *
+   * @param p
+   *          The pattern
+   * @param c
+   *          The conclusion
+   * @param quick
+   *          <tt>true</tt> if evaluation should stop at this rule when it
+   *          matches
+   * @return A new policy
+   *
+   * @throws JRPatternRejectedException
+   *           If the pattern can backtrack exponentially and the pattern
+   *           safety does not permit it
+   *
+   * @see #withClassRuleAppended(Pattern, JRRuleConclusion, boolean)
+   */
+
+  public JRSequentialPolicy withResourceRuleAppended(
+    final Pattern p,
+    final JRRuleConclusion c,
+    final boolean quick)
+    throws JRPatternRejectedException
+  {
+    final JRRule rule =
+      new PatternDeclaration(p, quick, c).compile(
+        "resource",
+        this.resource_rules.declared.length,
+        this.configuration.safety,
+        this.configuration.budget,
+        this.configuration.storage);
+    return this.derive(
+      this.class_rules,
+      this.resource_rules.appended(this.configuration, rule),
+      this.class_default,
+      this.resource_default);
+  }
+
+  /**
+   * Derive a policy with a resource name set rule appended.
+   *
+   * @param names
+   *          The names
+   * @param c
+   *          The conclusion
+   * @param quick
+   *          <tt>true</tt> if evaluation should stop at this rule when it
+   *          matches
+   * @return A new policy
+   *
+   * @see #withClassNameSetRuleAppended(Collection, JRRuleConclusion,
+   *      boolean)
+   */
+
+  public JRSequentialPolicy withResourceNameSetRuleAppended(
+    final Collection<String> names,
+    final JRRuleConclusion c,
+    final boolean quick)
+  {
+    final JRRule rule =
+      new JRRuleNameSet(
+        JRNameSet.create(names, this.configuration.storage),
+        NullCheck.notNull(c),
+        quick);
+    return this.derive(
+      this.class_rules,
+      this.resource_rules.appended(this.configuration, rule),
+      this.class_default,
+      this.resource_default);
+  }
+
+  /**
+   * Derive a policy without the class rule at the given index, in the order
+   * in which the rules of this policy were declared.
+   *
+   * @param index
+   *          The index of the rule
+   * @return A new policy
+   *
+   * @throws IndexOutOfBoundsException
+   *           If there is no class rule at the given index
+   */
+
+  public JRSequentialPolicy withClassRuleRemoved(
+    final int index)
+    throws IndexOutOfBoundsException
+  {
+    return this.derive(
+      this.class_rules.removed(this.configuration, index),
+      this.resource_rules,
+      this.class_default,
+      this.resource_default);
+  }
+
+  /**
+   * Derive a policy without the resource rule at the given index, in the
+   * order in which the rules of this policy were declared.
+   *
+   * @param index
+   *          The index of the rule
+   * @return A new policy
+   *
+   * @throws IndexOutOfBoundsException
+   *           If there is no resource rule at the given index
+   */
+
+  public JRSequentialPolicy withResourceRuleRemoved(
+    final int index)
+    throws IndexOutOfBoundsException
+  {
+    return this.derive(
+      this.class_rules,
+      this.resource_rules.removed(this.configuration, index),
+      this.class_default,
+      this.resource_default);
+  }
+
+  /**
+   * Derive a policy with different default conclusions.
+   *
+   * @param c_default
+   *          The default conclusion for classes
+   * @param r_default
+   *          The default conclusion for resources
+   * @return A new policy
+   */
+
+  public JRSequentialPolicy withDefaults(
+    final JRRuleConclusion c_default,
+    final JRRuleConclusion r_default)
+  {
+    return this.derive(
+      this.class_rules,
+      this.resource_rules,
+      NullCheck.notNull(c_default),
+      NullCheck.notNull(r_default));
+  }
+
+  @Override public boolean policyAllowsClass(
     final String name)
   {
     NullCheck.notNull(name);
 
-    final JRRuleConclusion current_conclusion =
-      JRSequentialPolicy.checkRules(
-        "resource",
-        name,
-        this.resource_default,
-        this.resource_rules);
+    return JRSequentialPolicy.evaluate(
+      "class",
+      name,
+      this.class_default,
+      this.class_rules.evaluator(),
+      this.configuration.trace,
+      this.class_rules.rules,
+      this.class_rules.indices);
+  }
 
-    switch (current_conclusion) {
-      case ALLOW:
-        return true;
-      case DENY:
-        return false;
-    }
+  @Override public boolean policyAllowsResource(
+    final String name)
+  {
+    NullCheck.notNull(name);
 
-    throw new UnreachableCodeException();
+    return JRSequentialPolicy.evaluate(
+      "resource",
+      name,
+      this.resource_default,
+      this.resource_rules.evaluator(),
+      this.configuration.trace,
+      this.resource_rules.rules,
+      this.resource_rules.indices);
   }
 }
@@ -16,6 +16,8 @@
 
 package com.io7m.jrcl.core;
 
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 
 /**
@@ -24,6 +26,19 @@ import java.util.regex.Pattern;
 
 public interface JRSequentialPolicyBuilderType
 {
+  /**
+   * The default evaluation step budget, per rule and name.
+   */
+
+  long DEFAULT_STEP_BUDGET = 1_000_000L;
+
+  /**
+   * The default smallest number of rules of one kind that a
+   * {@link JRPolicyEngine#PARALLEL} engine matches in parallel.
+   */
+
+  int DEFAULT_PARALLEL_THRESHOLD = 16384;
+
   /**
    * Add a rule at the end of the current list of rules.
    *
@@ -41,6 +56,36 @@ public interface JRSequentialPolicyBuilderType
     JRRuleConclusion c,
     boolean quick);
 
+  /**
+   * <p>
+   * Add a rule at the end of the current list of rules, given the source of
+   * its pattern. Flags may be given inline, as in <tt>(?i)</tt>.
+   * </p>
+   * <p>
+   * Patterns given as source are compiled when the policy is built, in
+   * parallel on the pool given to
+   * {@link #setParallelEvaluation(ForkJoinPool, int)}, and identical
+   * patterns are compiled once and shared by every policy that uses them.
+   * See {@link JRPatternPool}.
+   * </p>
+   *
+   * @param p
+   *          The source of the pattern against which class names will be
+   *          matched
+   * @param c
+   *          The conclusion of the rule
+   * @param quick
+   *          <tt>true</tt> if the rule is quick; processing stops when this
+   *          rule matches
+   *
+   * @see #build()
+   */
+
+  void addClassRule(
+    String p,
+    JRRuleConclusion c,
+    boolean quick);
+
   /**
    * Add a rule at the end of the current list of rules.
    *
@@ -59,8 +104,208 @@ public interface JRSequentialPolicyBuilderType
     boolean quick);
 
   /**
+   * Add a rule at the end of the current list of rules, given the source of
+   * its pattern.
+   *
+   * @param p
+   *          The source of the pattern against which resource names will
+   *          be matched
+   * @param c
+   *          The conclusion of the rule
+   * @param quick
+   *          <tt>true</tt> if the rule is quick; processing stops when this
+   *          rule matches
+   *
+   * @see #addClassRule(String, JRRuleConclusion, boolean)
+   */
+
+  void addResourceRule(
+    String p,
+    JRRuleConclusion c,
+    boolean quick);
+
+  /**
+   * Add a rule at the end of the current list of rules that matches class
+   * names exactly equal to any of the given names. Checking a name against
+   * the rule takes the same time however many names are given, so this is
+   * preferable to adding one pattern rule per name for large sets of names.
+   * The names are copied, and are stored according to the storage in effect
+   * when {@link #build()} is called.
+   *
+   * @param names
+   *          The class names
+   * @param c
+   *          The conclusion of the rule
+   * @param quick
+   *          <tt>true</tt> if the rule is quick; processing stops when this
+   *          rule matches
+   */
+
+  void addClassNameSetRule(
+    Collection<String> names,
+    JRRuleConclusion c,
+    boolean quick);
+
+  /**
+   * Add a rule at the end of the current list of rules that matches
+   * resource names exactly equal to any of the given names.
+   *
+   * @param names
+   *          The resource names
+   * @param c
+   *          The conclusion of the rule
+   * @param quick
+   *          <tt>true</tt> if the rule is quick; processing stops when this
+   *          rule matches
+   *
+   * @see #addClassNameSetRule(Collection, JRRuleConclusion, boolean)
+   */
+
+  void addResourceNameSetRule(
+    Collection<String> names,
+    JRRuleConclusion c,
+    boolean quick);
+
+  /**
+   * Set the storage used for the names of name set rules. The storage
+   * applies to every name set rule of the built policy, including rules
+   * added before this call, and to name set rules appended to policies
+   * derived from it. The default is {@link JRNameSetStorage#HEAP}.
+   *
+   * @param s
+   *          The storage
+   */
+
+  void setNameSetStorage(
+    JRNameSetStorage s);
+
+  /**
+   * Set the treatment of rule patterns that can backtrack exponentially.
+   * The default is {@link JRPatternSafety#PERMIT}, which only logs a
+   * warning for each dangerous pattern; rewriting and rejection must be
+   * requested explicitly.
+   *
+   * @param s
+   *          The pattern safety
+   */
+
+  void setPatternSafety(
+    JRPatternSafety s);
+
+  /**
+   * <p>
+   * Set the maximum number of steps that a rule's pattern may take to match
+   * a single name, where a step is the examination of one character of the
+   * name. Only patterns that are not known to match in linear time are
+   * limited. If a pattern exceeds the budget, evaluation stops and the name
+   * is denied. The default is {@link #DEFAULT_STEP_BUDGET}.
+   * </p>
+   * <p>
+   * The budget applies to each rule separately: the steps of one rule are
+   * not charged to the other rules tested against the same name, so a
+   * policy with <tt>n</tt> limited rules may take up to <tt>n</tt> times
+   * the budget to evaluate a name.
+   * </p>
+   *
+   * @param steps
+   *          The step budget, which must be positive
+   */
+
+  void setEvaluationStepBudget(
+    long steps);
+
+  /**
+   * Enable or disable minimization of the rules when the policy is built.
+   * Minimization removes rules that cannot affect any decision and merges
+   * adjacent rules with the same conclusion, producing a policy that makes
+   * the same decision as the unminimized policy for every name on which no
+   * rule exceeds the step budget. The default is <tt>false</tt>.
+   *
+   * @param enabled
+   *          <tt>true</tt> if rules should be minimized
+   *
+   * @see JRSequentialPolicy#getMinimizationReport()
+   */
+
+  void setRuleMinimization(
+    boolean enabled);
+
+  /**
+   * Set the engine that evaluates the rules of the policy. Every engine
+   * makes the same decision for every name, and policies derived from the
+   * policy use the same setting; an {@link JRPolicyEngine#ADAPTIVE} engine
+   * is chosen again for each derived policy. The default is
+   * {@link JRPolicyEngine#SEQUENTIAL}.
+   *
+   * @param e
+   *          The engine
+   *
+   * @see JRSequentialPolicy#getEvaluationEngine()
+   */
+
+  void setEvaluationEngine(
+    JRPolicyEngine e);
+
+  /**
+   * <p>
+   * Set the pool on which a {@link JRPolicyEngine#PARALLEL} engine matches
+   * segments of the rules, and the smallest number of rules of one kind
+   * that it matches in parallel. The setting also determines whether an
+   * {@link JRPolicyEngine#ADAPTIVE} engine considers parallel evaluation.
+   * The defaults are {@link ForkJoinPool#commonPool()} and
+   * {@link #DEFAULT_PARALLEL_THRESHOLD}.
+   * </p>
+   * <p>
+   * The pool remains owned by the caller: neither the builder nor the
+   * policy, nor any policy derived from it, ever shuts it down, and the
+   * caller must not shut it down while such policies are still evaluated.
+   * The pool is used only for evaluation; the rules of the policy are
+   * compiled on {@link ForkJoinPool#commonPool()} when it is built.
+   * </p>
+   *
+   * @param pool
+   *          The pool
+   * @param threshold
+   *          The threshold, which must be positive
+   */
+
+  void setParallelEvaluation(
+    ForkJoinPool pool,
+    int threshold);
+
+  /**
+   * Trace the evaluation of every name that matches the given pattern, as
+   * if by {@link JRSequentialPolicy#explainClass(String)}, logging each
+   * trace at <tt>INFO</tt> level. The pattern is subject to the same
+   * safety checks and step budget as the patterns of rules. Names that do
+   * not match the pattern are evaluated without tracing. By default, no
+   * names are traced.
+   *
+   * @param p
+   *          The pattern of names to trace
+   *
+   * @throws JRPatternRejectedException
+   *           When the policy is built, if the pattern is dangerous and the
+   *           pattern safety does not permit it
+   */
+
+  void setTraceFilter(
+    Pattern p);
+
+  /**
+   * Analyse the patterns of all rules and build a policy.
+   *
    * @return A policy based on the parameters given so far
+   *
+   * @throws JRPatternRejectedException
+   *           If a rule pattern can backtrack exponentially and the pattern
+   *           safety does not permit it
+   * @throws java.util.regex.PatternSyntaxException
+   *           If the source of a rule pattern is not a valid pattern
+   *
+   * @see JRPatternAnalyzer
    */
 
-  JRSequentialPolicy build();
+  JRSequentialPolicy build()
+    throws JRPatternRejectedException;
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method") public final class JRMemoryConsumersTest
+{
+  @Test public void testPolicyIndexEvicted_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.PREFIX_INDEX);
+    for (int index = 0; index < 100; ++index) {
+      jpb.addClassRule(
+        Pattern.compile("com\\.example" + index + "\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+    }
+    jpb.addClassRule(
+      Pattern.compile("com\\.example1\\.[a-z]+"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRSequentialPolicy p0 = jpb.build();
+    Assert.assertEquals(
+      JRPolicyEngine.PREFIX_INDEX,
+      p0.getClassEngine().getKind());
+    Assert.assertTrue(p0.policyAllowsClass("com.example7.Main"));
+
+    /**
+     * Evicting the index leaves the rules to be evaluated in order, with
+     * the same decisions.
+     */
+
+    JRMemoryGovernor.get().shrink(1.0);
+    Assert.assertEquals(
+      JRPolicyEngine.SEQUENTIAL,
+      p0.getClassEngine().getKind());
+    Assert.assertTrue(p0.policyAllowsClass("com.example7.Main"));
+    Assert.assertFalse(p0.policyAllowsClass("com.example1.main"));
+    Assert.assertFalse(p0.policyAllowsClass("org.example.Main"));
+
+    /**
+     * A policy derived from the evicted policy builds a new index.
+     */
+
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("org\\.example\\.Main"),
+        JRRuleConclusion.ALLOW,
+        false);
+    Assert.assertEquals(
+      JRPolicyEngine.PREFIX_INDEX,
+      p1.getClassEngine().getKind());
+    Assert.assertTrue(p1.policyAllowsClass("org.example.Main"));
+    Assert.assertFalse(p1.policyAllowsClass("com.example1.main"));
+  }
+
+  @Test public void testNameSetOffHeapRefused_0()
+  {
+    final List<String> names = new ArrayList<String>();
+    for (int index = 0; index < 100; ++index) {
+      names.add("com.example.Gadget" + index);
+    }
+
+    final JRMemoryGovernor g = JRMemoryGovernor.get();
+    try {
+      g.setBudget(Long.MAX_VALUE, 0L);
+      final JRNameSet s = JRNameSet.create(names, JRNameSetStorage.OFF_HEAP);
+      Assert.assertEquals(JRNameSetStorage.HEAP, s.getStorage());
+      Assert.assertTrue(s.contains("com.example.Gadget23"));
+    } finally {
+      g.setBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    final JRNameSet s = JRNameSet.create(names, JRNameSetStorage.OFF_HEAP);
+    Assert.assertEquals(JRNameSetStorage.OFF_HEAP, s.getStorage());
+  }
+
+  @Test public void testOffHeapReserved_0()
+  {
+    /**
+     * The sizes dwarf anything that other tests leave registered, so that
+     * collecting those structures meanwhile cannot change the outcome.
+     */
+
+    final long size = 1L << 40;
+    final JRMemoryGovernor g = JRMemoryGovernor.get();
+    final long before = g.getReport().getOffHeapBytes();
+    final long budget = before + (size * 3L) / 2L;
+    final Object o = new Object();
+    try {
+      g.setBudget(Long.MAX_VALUE, budget);
+      Assert.assertTrue(g.admitOffHeap(size, "a"));
+      Assert.assertFalse(g.admitOffHeap(size, "b"));
+      g.releaseOffHeap(size);
+      Assert.assertTrue(g.admitOffHeap(size, "c"));
+
+      final JRMemoryGovernor.Registration r =
+        g.registerAdmitted(o, JRMemoryConsumerKind.MAPPED_JAR, "c", 0L, size);
+      Assert.assertEquals(size, r.off_heap.get());
+      Assert.assertTrue(g.getReport().getOffHeapBytes() <= budget);
+      Assert.assertFalse(g.admitOffHeap(size, "d"));
+      r.charge(0L, -size);
+      Assert.assertTrue(g.getReport().getOffHeapBytes() <= before);
+    } finally {
+      g.setBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+  }
+}
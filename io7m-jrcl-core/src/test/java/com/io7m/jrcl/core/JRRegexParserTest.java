@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jnull.Nullable;
+
+@SuppressWarnings("static-method") public final class JRRegexParserTest
+{
+  private static final String[] CLASSES = {
+    "a",
+    "\\x41",
+    "[a]",
+    "[^a]",
+    "[^k]",
+    "[^a-z]",
+    "[^A-Z]",
+    "[^\\x41]",
+    "[^\\QaB\\E]",
+    "[^a[b]]",
+    "[^a-c[X-Z]]",
+    "[^[^a]]",
+    "[a&&A]",
+    "[a&&[A]]",
+    "[a-z&&[^b]]",
+    "[^a-z&&[^b]]",
+    "[^[a-c]&&[b-d]]",
+    "[\\x00-\\x7f&&[^A]]",
+    "[^@-\\x5b]",
+    "[^\\w]",
+    "[^\\S]",
+    "\\W",
+    "\\D",
+    "\\p{Lower}",
+    "\\P{Lower}",
+    "[^\\p{Lower}]",
+    "\\P{Upper}",
+    "[^\\P{Upper}]",
+    "\\P{Alpha}",
+    "[^\\p{XDigit}]", };
+
+  private static @Nullable JRRegexNode.Chars chars(
+    final JRRegexNode node)
+  {
+    switch (node.kind()) {
+      case CHARS:
+        return (JRRegexNode.Chars) node;
+      case GROUP:
+        return JRRegexParserTest.chars(((JRRegexNode.Group) node).child);
+      case REPEAT:
+        return JRRegexParserTest.chars(((JRRegexNode.Repeat) node).child);
+      case SEQUENCE:
+      {
+        JRRegexNode.Chars found = null;
+        for (final JRRegexNode item : ((JRRegexNode.Sequence) node).items) {
+          final JRRegexNode.Chars c = JRRegexParserTest.chars(item);
+          if (c != null) {
+            Assert.assertNull(found);
+            found = c;
+          }
+        }
+        return found;
+      }
+      default:
+        return null;
+    }
+  }
+
+  private static void check(
+    final String source,
+    final String single)
+  {
+    final Pattern p = Pattern.compile(source);
+    final Pattern q = Pattern.compile(single);
+    final JRRegexNode.Chars c =
+      JRRegexParserTest.chars(JRRegexParser.parse(p));
+    Assert.assertNotNull(source, c);
+    Assert.assertTrue(source, c.exact);
+
+    for (int code = 0; code < 0x180; ++code) {
+      final String text = new String(Character.toChars(code));
+      Assert.assertEquals(
+        String.format("%s U+%04x", source, Integer.valueOf(code)),
+        Boolean.valueOf(q.matcher(text).matches()),
+        Boolean.valueOf(c.set.contains(code)));
+    }
+  }
+
+  @Test public void testClassesMatchPattern_0()
+  {
+    for (final String c : JRRegexParserTest.CLASSES) {
+      JRRegexParserTest.check(c, c);
+      JRRegexParserTest.check(c + "*", c);
+    }
+  }
+
+  @Test public void testClassesMatchPatternCaseInsensitive_0()
+  {
+    for (final String c : JRRegexParserTest.CLASSES) {
+      JRRegexParserTest.check("(?i)" + c, "(?i)" + c);
+      JRRegexParserTest.check("(?i)" + c + "*", "(?i)" + c);
+      JRRegexParserTest.check("(?i:" + c + ")+", "(?i)" + c);
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jrcl.core;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method") public final class JRRuleEnginePrefixTest
+{
+  private static void collect(
+    final JRRuleTrie node,
+    final Set<JRRuleTrie> out)
+  {
+    out.add(node);
+    for (int index = 0; index < node.getEdgeCount(); ++index) {
+      JRRuleEnginePrefixTest.collect(node.getEdgeTarget(index), out);
+    }
+  }
+
+  private static Set<JRRuleTrie> nodes(
+    final JRRuleTrie trie)
+  {
+    final Set<JRRuleTrie> out =
+      Collections.newSetFromMap(new IdentityHashMap<JRRuleTrie, Boolean>());
+    JRRuleEnginePrefixTest.collect(trie, out);
+    return out;
+  }
+
+  private static JRRuleTrie trie(
+    final JRSequentialPolicy p)
+  {
+    return ((JRRuleEnginePrefix) p.getClassEngine()).getTrie();
+  }
+
+  private static JRSequentialPolicy policy()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.PREFIX_INDEX);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\.A"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\.B"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("[a-z]+\\.Main"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("org\\.example\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("net\\.example"),
+      JRRuleConclusion.ALLOW,
+      false);
+    return jpb.build();
+  }
+
+  /**
+   * Walk both tries along the given text, checking that every node on the
+   * path of the derived trie is new, and that every node off the path is
+   * shared with the parent.
+   */
+
+  private static void checkPatchedPath(
+    final JRRuleTrie parent,
+    final JRRuleTrie derived,
+    final String text)
+  {
+    final Set<JRRuleTrie> shared = JRRuleEnginePrefixTest.nodes(parent);
+    final Set<JRRuleTrie> fresh = JRRuleEnginePrefixTest.nodes(derived);
+    fresh.removeAll(shared);
+
+    JRRuleTrie node = derived;
+    int path = 0;
+    for (int index = 0;; ++index) {
+      Assert.assertTrue(fresh.contains(node));
+      ++path;
+      if (index == text.length()) {
+        break;
+      }
+      final JRRuleTrie next = node.child(text.charAt(index));
+      if (next == null) {
+        break;
+      }
+      node = next;
+    }
+    Assert.assertEquals(path, fresh.size());
+  }
+
+  private static void checkShape(
+    final Pattern p,
+    final boolean leading,
+    final String text,
+    final boolean trailing)
+  {
+    final JRRuleEnginePrefix.Shape s = JRRuleEnginePrefix.shapeOf(p);
+    Assert.assertNotNull(p.pattern(), s);
+    Assert.assertEquals(
+      p.pattern(),
+      Boolean.valueOf(leading),
+      Boolean.valueOf(s.leading));
+    Assert.assertEquals(p.pattern(), text, s.text);
+    Assert.assertEquals(
+      p.pattern(),
+      Boolean.valueOf(trailing),
+      Boolean.valueOf(s.trailing));
+  }
+
+  @Test public void testShape_0()
+  {
+    JRRuleEnginePrefixTest.checkShape(
+      Pattern.compile("com\\.example\\.A"),
+      false,
+      "com.example.A",
+      false);
+    JRRuleEnginePrefixTest.checkShape(
+      Pattern.compile("^org\\.example\\..*$"),
+      false,
+      "org.example.",
+      true);
+    JRRuleEnginePrefixTest.checkShape(
+      Pattern.compile("\\A.*?\\Q.class\\E\\z"),
+      true,
+      ".class",
+      false);
+    JRRuleEnginePrefixTest.checkShape(
+      Pattern.compile("a\\tb.*", Pattern.DOTALL),
+      false,
+      "a\tb",
+      true);
+    JRRuleEnginePrefixTest.checkShape(
+      Pattern.compile("a.*b", Pattern.LITERAL),
+      false,
+      "a.*b",
+      false);
+  }
+
+  @Test public void testShapeRefused_0()
+  {
+    final String[] sources = {
+      "(?i)[^a]*",
+      "[^a]*",
+      "[a]",
+      "(?:a).*",
+      "(?i)a",
+      "a.*+",
+      "a.",
+      "a.*b",
+      "a\\x41",
+      "a\\1",
+      "a\\w",
+      "a$b",
+      "a|b",
+      "a+", };
+    for (final String source : sources) {
+      Assert.assertNull(
+        source,
+        JRRuleEnginePrefix.shapeOf(Pattern.compile(source)));
+    }
+    Assert.assertNull(JRRuleEnginePrefix.shapeOf(Pattern.compile(
+      "a",
+      Pattern.CASE_INSENSITIVE)));
+    Assert.assertNull(JRRuleEnginePrefix.shapeOf(Pattern.compile(
+      "a",
+      Pattern.COMMENTS)));
+  }
+
+  @Test public void testConfirms_0()
+  {
+    Assert.assertTrue(JRRuleEnginePrefix.confirms(
+      Pattern.compile("ab.*"),
+      new JRRuleEnginePrefix.Literal("ab", true)));
+    Assert.assertTrue(JRRuleEnginePrefix.confirms(
+      Pattern.compile("ab"),
+      new JRRuleEnginePrefix.Literal("ab", false)));
+    Assert.assertTrue(JRRuleEngineSuffix.confirms(
+      Pattern.compile(".*\\.class"),
+      new JRRuleEngineSuffix.Extension("class")));
+  }
+
+  @Test public void testConfirmsRefused_0()
+  {
+    Assert.assertFalse(JRRuleEnginePrefix.confirms(
+      Pattern.compile("(?i)[^a]*"),
+      new JRRuleEnginePrefix.Literal("", true)));
+    Assert.assertFalse(JRRuleEnginePrefix.confirms(
+      Pattern.compile("(?i)[^b].*"),
+      new JRRuleEnginePrefix.Literal("", true)));
+    Assert.assertFalse(JRRuleEnginePrefix.confirms(
+      Pattern.compile("(?i)ab"),
+      new JRRuleEnginePrefix.Literal("ab", false)));
+    Assert.assertFalse(JRRuleEnginePrefix.confirms(
+      Pattern.compile("ab"),
+      new JRRuleEnginePrefix.Literal("ab", true)));
+    Assert.assertFalse(JRRuleEngineSuffix.confirms(
+      Pattern.compile("(?i).*\\.class"),
+      new JRRuleEngineSuffix.Extension("class")));
+    Assert.assertFalse(JRRuleEngineSuffix.confirms(
+      Pattern.compile(".*[^a]"),
+      new JRRuleEngineSuffix.Extension("class")));
+  }
+
+  @Test public void testDerivedAppendedLiteral_0()
+  {
+    final JRSequentialPolicy p0 = JRRuleEnginePrefixTest.policy();
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("com\\.example\\.C"),
+        JRRuleConclusion.ALLOW,
+        false);
+
+    final JRRuleTrie t0 = JRRuleEnginePrefixTest.trie(p0);
+    final JRRuleTrie t1 = JRRuleEnginePrefixTest.trie(p1);
+    Assert.assertEquals(t0.getRuleCount() + 1, t1.getRuleCount());
+    JRRuleEnginePrefixTest.checkPatchedPath(t0, t1, "com.example.C");
+
+    Assert.assertFalse(p0.policyAllowsClass("com.example.C"));
+    Assert.assertTrue(p1.policyAllowsClass("com.example.C"));
+    Assert.assertTrue(p1.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(p1.policyAllowsClass("org.example.X"));
+    Assert.assertTrue(p1.policyAllowsClass("abc.Main"));
+    Assert.assertFalse(p1.policyAllowsClass("com.example.D"));
+  }
+
+  @Test public void testDerivedAppendedLiteral_1()
+  {
+    final JRSequentialPolicy p0 = JRRuleEnginePrefixTest.policy();
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("com\\.example\\..*"),
+        JRRuleConclusion.DENY,
+        false);
+
+    final JRRuleTrie t0 = JRRuleEnginePrefixTest.trie(p0);
+    final JRRuleTrie t1 = JRRuleEnginePrefixTest.trie(p1);
+    JRRuleEnginePrefixTest.checkPatchedPath(t0, t1, "com.example.");
+
+    Assert.assertTrue(p0.policyAllowsClass("com.example.A"));
+    Assert.assertFalse(p1.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(p1.policyAllowsClass("net.example"));
+  }
+
+  @Test public void testDerivedAppendedOther_0()
+  {
+    final JRSequentialPolicy p0 = JRRuleEnginePrefixTest.policy();
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("com\\.[a-z]+\\.A"),
+        JRRuleConclusion.DENY,
+        false);
+
+    Assert.assertSame(
+      JRRuleEnginePrefixTest.trie(p0),
+      JRRuleEnginePrefixTest.trie(p1));
+    Assert.assertTrue(p0.policyAllowsClass("com.example.A"));
+    Assert.assertFalse(p1.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(p1.policyAllowsClass("com.example.B"));
+  }
+
+  @Test public void testDerivedRemovedLiteral_0()
+  {
+    final JRSequentialPolicy p0 = JRRuleEnginePrefixTest.policy();
+    final JRSequentialPolicy p1 = p0.withClassRuleRemoved(0);
+
+    final JRRuleTrie t0 = JRRuleEnginePrefixTest.trie(p0);
+    final JRRuleTrie t1 = JRRuleEnginePrefixTest.trie(p1);
+    Assert.assertEquals(t0.getRuleCount() - 1, t1.getRuleCount());
+    JRRuleEnginePrefixTest.checkPatchedPath(t0, t1, "com.example.");
+
+    Assert.assertFalse(p1.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(p1.policyAllowsClass("com.example.B"));
+  }
+
+  @Test public void testDerivedRemovedLiteral_1()
+  {
+    final JRSequentialPolicy p0 = JRRuleEnginePrefixTest.policy();
+    final JRSequentialPolicy p1 = p0.withClassRuleRemoved(3);
+
+    /**
+     * The branch of the removed rule is pruned, so only the root is new.
+     */
+
+    final JRRuleTrie t0 = JRRuleEnginePrefixTest.trie(p0);
+    final JRRuleTrie t1 = JRRuleEnginePrefixTest.trie(p1);
+    final Set<JRRuleTrie> fresh = JRRuleEnginePrefixTest.nodes(t1);
+    fresh.removeAll(JRRuleEnginePrefixTest.nodes(t0));
+    Assert.assertEquals(Collections.singleton(t1), fresh);
+    Assert.assertNull(t1.child('o'));
+    Assert.assertEquals(
+      JRRuleEnginePrefixTest.nodes(t0).size() - "org.example.".length(),
+      JRRuleEnginePrefixTest.nodes(t1).size());
+
+    Assert.assertTrue(p0.policyAllowsClass("org.example.X"));
+    Assert.assertFalse(p1.policyAllowsClass("org.example.X"));
+    Assert.assertTrue(p1.policyAllowsClass("net.example"));
+  }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import com.io7m.jnull.Nullable;
+import com.io7m.jrcl.core.JRClassLoader;
+import com.io7m.jrcl.core.JRClassLoaderBuilderType;
+import com.io7m.jrcl.core.JRClassLoaderPolicyType;
+import com.io7m.jrcl.core.JRDecisionTable;
+import com.io7m.jrcl.core.JRModulePolicy;
+import com.io7m.jrcl.core.JRModulePolicyBuilderType;
+import com.io7m.jrcl.core.JRMultiPolicy;
+import com.io7m.jrcl.core.JRPolicyEngine;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Allocation regression tests: steady-state decisions must not allocate.
+ */
+
+@SuppressWarnings("static-method") public final class JRAllocationTest
+{
+  private static final int ITERATIONS = 200000;
+
+  /**
+   * A delegate that answers every request without allocating, so that only
+   * the allocations of the restricted loader itself are measured.
+   */
+
+  private static final class FixedLoader extends ClassLoader
+  {
+    private final URL url;
+
+    FixedLoader()
+      throws Exception
+    {
+      super(null);
+      this.url = new URL("file:///hello.txt");
+    }
+
+    @Override public Class<?> loadClass(
+      final @Nullable String name)
+    {
+      return Object.class;
+    }
+
+    @Override public @Nullable URL getResource(
+      final @Nullable String name)
+    {
+      return this.url;
+    }
+  }
+
+  private static abstract class Operation
+  {
+    Operation()
+    {
+
+    }
+
+    abstract void run()
+      throws Exception;
+  }
+
+  private static long allocatedBytes()
+  {
+    final ThreadMXBean bean =
+      (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * @return The number of bytes allocated per execution of <tt>op</tt>
+   */
+
+  private static long bytesPerOperation(
+    final Operation op)
+    throws Exception
+  {
+    for (int index = 0; index < JRAllocationTest.ITERATIONS; ++index) {
+      op.run();
+    }
+
+    final long overhead_start = JRAllocationTest.allocatedBytes();
+    final long overhead_end = JRAllocationTest.allocatedBytes();
+    final long overhead = overhead_end - overhead_start;
+
+    final long start = JRAllocationTest.allocatedBytes();
+    for (int index = 0; index < JRAllocationTest.ITERATIONS; ++index) {
+      op.run();
+    }
+    final long end = JRAllocationTest.allocatedBytes();
+    return Math.max(0L, end - start - overhead) / JRAllocationTest.ITERATIONS;
+  }
+
+  private static JRSequentialPolicy policy()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassNameSetRule(
+      Arrays.asList("java.lang.Runtime", "java.lang.ProcessBuilder"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.reflect\\..*"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\.[A-Z][a-zA-Z0-9]*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.(Object|String|Integer)"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.txt"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile(".*/.*\\.properties"),
+      JRRuleConclusion.DENY,
+      false);
+    return jpb.build();
+  }
+
+  private @Nullable Level saved_level;
+
+  @Before public void setUp()
+  {
+    final Logger root = (Logger) LoggerFactory.getLogger("com.io7m.jrcl");
+    this.saved_level = root.getLevel();
+    root.setLevel(Level.INFO);
+  }
+
+  @After public void tearDown()
+  {
+    final Logger root = (Logger) LoggerFactory.getLogger("com.io7m.jrcl");
+    root.setLevel(this.saved_level);
+  }
+
+  @Test public void testSequentialPolicyClass()
+    throws Exception
+  {
+    final JRSequentialPolicy p = JRAllocationTest.policy();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertTrue(p.policyAllowsClass("java.lang.String"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testSequentialPolicyClassDenied()
+    throws Exception
+  {
+    final JRSequentialPolicy p = JRAllocationTest.policy();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertFalse(p.policyAllowsClass("java.lang.reflect.Method"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testPrefixIndexPolicyClass()
+    throws Exception
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.PREFIX_INDEX);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.Runtime"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\.[A-Z][a-zA-Z0-9]*"),
+      JRRuleConclusion.ALLOW,
+      true);
+
+    final JRSequentialPolicy p = jpb.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertTrue(p.policyAllowsClass("java.lang.String"));
+          Assert.assertFalse(p.policyAllowsClass("java.lang.Runtime"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testSuffixIndexPolicyResource()
+    throws Exception
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.SUFFIX_INDEX);
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.properties"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.class"),
+      JRRuleConclusion.DENY,
+      true);
+    jpb.addResourceRule(
+      Pattern.compile("META-INF/services/.*"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy p = jpb.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertTrue(p.policyAllowsResource("com/x.properties"));
+          Assert.assertFalse(p.policyAllowsResource("com/X.class"));
+          Assert.assertTrue(
+            p.policyAllowsResource("META-INF/services/java.sql.Driver"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testSequentialPolicyTraceFilter()
+    throws Exception
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setTraceFilter(Pattern.compile("com\\.example\\..*"));
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy p = jpb.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertTrue(p.policyAllowsClass("java.lang.String"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testSequentialPolicyResource()
+    throws Exception
+  {
+    final JRSequentialPolicy p = JRAllocationTest.policy();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertTrue(p.policyAllowsResource("hello.txt"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testClassLoaderClass()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType p = JRAllocationTest.policy();
+    final JRClassLoader cl =
+      JRClassLoader.getRestrictedClassLoader(new FixedLoader(), p);
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+          throws Exception
+        {
+          cl.loadClass("com.example.Plugin");
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testClassLoaderPlatformClass()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType p = JRAllocationTest.policy();
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(new FixedLoader(), p);
+    b.setPlatformFastPath(true);
+    final JRClassLoader cl = b.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+          throws Exception
+        {
+          Assert.assertEquals(String.class, cl.loadClass("java.lang.String"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testClassLoaderCachedClass()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType p = JRAllocationTest.policy();
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(new FixedLoader(), p);
+    b.setClassCache(true);
+    final JRClassLoader cl = b.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+          throws Exception
+        {
+          cl.loadClass("com.example.Plugin");
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testClassLoaderDecisionTable()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType p = JRAllocationTest.policy();
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(new FixedLoader(), p);
+    b.setDecisionTable(JRDecisionTable.evaluate(
+      p,
+      Arrays.asList("com.example.Plugin", "java.lang.Runtime")));
+    final JRClassLoader cl = b.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+          throws Exception
+        {
+          cl.loadClass("com.example.Plugin");
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testClassLoaderFused()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType p = JRAllocationTest.policy();
+    final JRClassLoader inner =
+      JRClassLoader.getRestrictedClassLoader(new FixedLoader(), p);
+    final JRClassLoader cl = JRClassLoader.getRestrictedClassLoader(inner, p);
+    Assert.assertEquals(2, cl.getPolicyLayerCount());
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+          throws Exception
+        {
+          cl.loadClass("com.example.Plugin");
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testClassLoaderResource()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType p = JRAllocationTest.policy();
+    final JRClassLoader cl =
+      JRClassLoader.getRestrictedClassLoader(new FixedLoader(), p);
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          cl.getResource("hello.txt");
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testMultiPolicyClass()
+    throws Exception
+  {
+    final List<JRSequentialPolicy> policies =
+      new ArrayList<JRSequentialPolicy>();
+    for (int index = 0; index < 100; ++index) {
+      policies.add(JRAllocationTest.policy());
+    }
+
+    final JRMultiPolicy m = JRMultiPolicy.compile(policies);
+    final long[] mask = new long[m.getMaskWords()];
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          m.classAllowedMask("java.lang.String", mask);
+          Assert.assertEquals(-1L, mask[0]);
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+
+  @Test public void testModulePolicyClass()
+    throws Exception
+  {
+    final JRModulePolicyBuilderType b =
+      JRModulePolicy.newPolicyBuilder(
+        ModuleLayer.boot(),
+        JRAllocationTest.policy());
+    b.addModuleRule(
+      Pattern.compile("java\\.base"),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRModulePolicy p = b.build();
+    final long bytes =
+      JRAllocationTest.bytesPerOperation(new Operation() {
+        @Override void run()
+        {
+          Assert.assertTrue(p.policyAllowsClass("java.util.HashMap"));
+          Assert.assertTrue(p.policyAllowsResource("java/lang/Object.class"));
+        }
+      });
+    Assert.assertEquals(0L, bytes);
+  }
+}
@@ -19,19 +19,70 @@ package com.io7m.tests.jrcl.core;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.io7m.jnull.NonNull;
 import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.jrcl.core.JRClassCacheStatistics;
 import com.io7m.jrcl.core.JRClassLoader;
 import com.io7m.jrcl.core.JRClassLoaderAbstractPolicy;
+import com.io7m.jrcl.core.JRClassLoaderBuilderType;
 import com.io7m.jrcl.core.JRClassLoaderPolicyType;
 import com.io7m.jrcl.core.JRRuleConclusion;
 
 @SuppressWarnings("static-method") public final class JRClassLoaderTest
 {
+  /**
+   * A classloader that counts the classes requested from it.
+   */
+
+  private static final class CountingLoader extends ClassLoader
+  {
+    private int count;
+
+    CountingLoader(
+      final ClassLoader parent)
+    {
+      super(parent);
+    }
+
+    @Override public Class<?> loadClass(
+      final @Nullable String name)
+      throws ClassNotFoundException
+    {
+      this.count += 1;
+      return NullCheck.notNull(super.loadClass(name));
+    }
+  }
+
+  /**
+   * A classloader that refuses to load <tt>java.util.ArrayList</tt>.
+   */
+
+  private static final class RestrictingLoader extends ClassLoader
+  {
+    RestrictingLoader(
+      final ClassLoader parent)
+    {
+      super(parent);
+    }
+
+    @Override public Class<?> loadClass(
+      final @Nullable String name)
+      throws ClassNotFoundException
+    {
+      if ("java.util.ArrayList".equals(name)) {
+        throw new ClassNotFoundException(name);
+      }
+      return NullCheck.notNull(super.loadClass(name));
+    }
+  }
+
   private @NonNull ClassLoader getDefaultLoader()
   {
     return NullCheck.notNull(JRClassLoaderTest.class.getClassLoader());
@@ -184,4 +235,383 @@ import com.io7m.jrcl.core.JRRuleConclusion;
 
     cl.getResources("hello.txt");
   }
+
+  @Test public void testPlatformFastPath()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final CountingLoader delegate =
+      new CountingLoader(this.getDefaultLoader());
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(delegate, policy);
+    b.setPlatformFastPath(true);
+    final JRClassLoader cl = b.build();
+
+    Assert.assertEquals(String.class, cl.loadClass("java.lang.String"));
+    Assert.assertEquals(String.class, cl.loadClass("java.lang.String"));
+    Assert.assertEquals(
+      java.util.logging.Logger.class,
+      cl.loadClass("java.util.logging.Logger"));
+    Assert.assertEquals(
+      Thread.State.class,
+      cl.loadClass("java.lang.Thread$State"));
+    Assert.assertEquals(0, delegate.count);
+
+    Assert.assertEquals(
+      JRClassLoaderTest.class,
+      cl.loadClass(JRClassLoaderTest.class.getName()));
+    Assert.assertEquals(1, delegate.count);
+
+    try {
+      cl.loadClass("java.lang.DoesNotExist");
+      Assert.fail();
+    } catch (final ClassNotFoundException e) {
+      Assert.assertEquals(2, delegate.count);
+    }
+  }
+
+  @Test public void testPlatformFastPathDisabled()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final CountingLoader delegate =
+      new CountingLoader(this.getDefaultLoader());
+    final JRClassLoader cl = JRClassLoader.newBuilder(delegate, policy).build();
+
+    Assert.assertEquals(String.class, cl.loadClass("java.lang.String"));
+    Assert.assertEquals(1, delegate.count);
+  }
+
+  @Test public void testPlatformFastPathBypassesDelegate()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final RestrictingLoader delegate =
+      new RestrictingLoader(this.getDefaultLoader());
+
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(delegate, policy);
+    b.setPlatformFastPath(true);
+    final JRClassLoader fast = b.build();
+    Assert.assertEquals(
+      java.util.ArrayList.class,
+      fast.loadClass("java.util.ArrayList"));
+
+    final JRClassLoader slow =
+      JRClassLoader.newBuilder(delegate, policy).build();
+    try {
+      slow.loadClass("java.util.ArrayList");
+      Assert.fail();
+    } catch (final ClassNotFoundException e) {
+      // Expected
+    }
+  }
+
+  @Test(expected = SecurityException.class) public
+    void
+    testPlatformFastPathDenied()
+      throws Exception
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.DENY) {
+        // Nothing
+      };
+
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(this.getDefaultLoader(), policy);
+    b.setPlatformFastPath(true);
+    b.build().loadClass("java.lang.String");
+  }
+
+  @Test public void testClassCache()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final CountingLoader delegate =
+      new CountingLoader(this.getDefaultLoader());
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(delegate, policy);
+    b.setClassCache(true);
+    final JRClassLoader cl = b.build();
+
+    final String name = JRClassLoaderTest.class.getName();
+    Assert.assertEquals(JRClassLoaderTest.class, cl.loadClass(name));
+    Assert.assertEquals(JRClassLoaderTest.class, cl.loadClass(name));
+    Assert.assertEquals(JRClassLoaderTest.class, cl.loadClass(name));
+    Assert.assertEquals(1, delegate.count);
+
+    final JRClassCacheStatistics stats = cl.getClassCacheStatistics();
+    Assert.assertEquals(2L, stats.getHits());
+    Assert.assertEquals(1L, stats.getMisses());
+    Assert.assertEquals(0L, stats.getInvalidations());
+    Assert.assertEquals(1, stats.getSize());
+  }
+
+  @Test public void testClassCacheDisabled()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final CountingLoader delegate =
+      new CountingLoader(this.getDefaultLoader());
+    final JRClassLoader cl =
+      JRClassLoader.getRestrictedClassLoader(delegate, policy);
+
+    final String name = JRClassLoaderTest.class.getName();
+    cl.loadClass(name);
+    cl.loadClass(name);
+    Assert.assertEquals(2, delegate.count);
+    Assert.assertEquals(0L, cl.getClassCacheStatistics().getMisses());
+  }
+
+  @Test public void testClassCachePolicyVersion()
+    throws Exception
+  {
+    final AtomicBoolean allow = new AtomicBoolean(true);
+    final AtomicLong version = new AtomicLong(0L);
+    final JRClassLoaderPolicyType policy = new JRClassLoaderPolicyType() {
+      @Override public boolean policyAllowsClass(
+        final String name)
+      {
+        return allow.get();
+      }
+
+      @Override public boolean policyAllowsResource(
+        final String name)
+      {
+        return allow.get();
+      }
+
+      @Override public long policyVersion()
+      {
+        return version.get();
+      }
+    };
+
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(this.getDefaultLoader(), policy);
+    b.setClassCache(true);
+    final JRClassLoader cl = b.build();
+
+    final String name = JRClassLoaderTest.class.getName();
+    Assert.assertEquals(JRClassLoaderTest.class, cl.loadClass(name));
+    Assert.assertEquals(JRClassLoaderTest.class, cl.loadClass(name));
+
+    allow.set(false);
+    version.incrementAndGet();
+
+    try {
+      cl.loadClass(name);
+      Assert.fail();
+    } catch (final SecurityException e) {
+      // Expected
+    }
+
+    final JRClassCacheStatistics stats = cl.getClassCacheStatistics();
+    Assert.assertEquals(1L, stats.getHits());
+    Assert.assertEquals(2L, stats.getMisses());
+    Assert.assertEquals(1L, stats.getInvalidations());
+    Assert.assertEquals(0, stats.getSize());
+  }
+
+  @Test public void testFused_0()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType allow =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+    final JRClassLoaderPolicyType deny_tests =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        @Override public boolean policyAllowsClass(
+          final String name)
+        {
+          return !name.startsWith("com.io7m.tests.");
+        }
+
+        @Override public boolean policyAllowsResource(
+          final String name)
+        {
+          return !name.endsWith(".txt");
+        }
+      };
+
+    final CountingLoader delegate =
+      new CountingLoader(this.getDefaultLoader());
+    final JRClassLoader inner =
+      JRClassLoader.getRestrictedClassLoader(delegate, deny_tests);
+    final JRClassLoader middle =
+      JRClassLoader.getRestrictedClassLoader(inner, allow);
+    final JRClassLoader outer =
+      JRClassLoader.getRestrictedClassLoader(middle, allow);
+
+    Assert.assertEquals(1, inner.getPolicyLayerCount());
+    Assert.assertEquals(2, middle.getPolicyLayerCount());
+    Assert.assertEquals(3, outer.getPolicyLayerCount());
+
+    Assert.assertEquals(
+      JRClassLoaderAbstractPolicy.class,
+      outer.loadClass(JRClassLoaderAbstractPolicy.class.getName()));
+    Assert.assertEquals(1, delegate.count);
+
+    final String name = JRClassLoaderTest.class.getName();
+    try {
+      outer.loadClass(name);
+      Assert.fail();
+    } catch (final SecurityException e) {
+      Assert.assertEquals("Access denied: " + name, e.getMessage());
+    }
+    Assert.assertEquals(1, delegate.count);
+
+    try {
+      outer.getResource("a.txt");
+      Assert.fail();
+    } catch (final SecurityException e) {
+      Assert.assertEquals("Access denied: a.txt", e.getMessage());
+    }
+  }
+
+  @Test public void testFusedPlatformFastPath_0()
+    throws Exception
+  {
+    final JRClassLoaderPolicyType allow =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+    final JRClassLoaderPolicyType deny_util =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        @Override public boolean policyAllowsClass(
+          final String name)
+        {
+          return !name.startsWith("java.util.");
+        }
+      };
+
+    final String name = "java.util.ArrayList";
+
+    /**
+     * The outer loader loads platform classes directly, so the inner
+     * loader never sees the request, fused or not. A plain classloader
+     * between the two prevents fusion. A platform class that the platform
+     * classloader cannot find is passed on to the inner loader.
+     */
+
+    {
+      final JRClassLoader inner =
+        JRClassLoader.getRestrictedClassLoader(
+          this.getDefaultLoader(),
+          deny_util);
+      final JRClassLoaderBuilderType fused_b =
+        JRClassLoader.newBuilder(inner, allow);
+      fused_b.setPlatformFastPath(true);
+      final JRClassLoader fused = fused_b.build();
+      final JRClassLoaderBuilderType chain_b =
+        JRClassLoader.newBuilder(new ClassLoader(inner) {
+          // Nothing
+        }, allow);
+      chain_b.setPlatformFastPath(true);
+      final JRClassLoader chain = chain_b.build();
+
+      Assert.assertEquals(2, fused.getPolicyLayerCount());
+      Assert.assertEquals(1, chain.getPolicyLayerCount());
+      Assert.assertEquals(java.util.ArrayList.class, chain.loadClass(name));
+      Assert.assertEquals(java.util.ArrayList.class, fused.loadClass(name));
+
+      try {
+        fused.loadClass("java.util.DoesNotExist");
+        Assert.fail();
+      } catch (final SecurityException e) {
+        Assert.assertEquals(
+          "Access denied: java.util.DoesNotExist",
+          e.getMessage());
+      }
+    }
+
+    /**
+     * The inner loader has the fast path, but the outer loader does not:
+     * both policies apply.
+     */
+
+    {
+      final JRClassLoaderBuilderType inner_b =
+        JRClassLoader.newBuilder(this.getDefaultLoader(), deny_util);
+      inner_b.setPlatformFastPath(true);
+      final JRClassLoader fused =
+        JRClassLoader.getRestrictedClassLoader(inner_b.build(), allow);
+
+      try {
+        fused.loadClass(name);
+        Assert.fail();
+      } catch (final SecurityException e) {
+        Assert.assertEquals("Access denied: " + name, e.getMessage());
+      }
+    }
+  }
+
+  @Test public void testFusedVersion_0()
+    throws Exception
+  {
+    final AtomicBoolean allow = new AtomicBoolean(true);
+    final AtomicLong version = new AtomicLong(0L);
+    final JRClassLoaderPolicyType mutable =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        @Override public boolean policyAllowsClass(
+          final String name)
+        {
+          return allow.get();
+        }
+
+        @Override public long policyVersion()
+        {
+          return version.get();
+        }
+      };
+    final JRClassLoaderPolicyType fixed =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final JRClassLoader inner =
+      JRClassLoader.getRestrictedClassLoader(this.getDefaultLoader(), mutable);
+    final JRClassLoaderBuilderType b = JRClassLoader.newBuilder(inner, fixed);
+    b.setClassCache(true);
+    final JRClassLoader outer = b.build();
+
+    final String name = JRClassLoaderTest.class.getName();
+    Assert.assertEquals(JRClassLoaderTest.class, outer.loadClass(name));
+    Assert.assertEquals(JRClassLoaderTest.class, outer.loadClass(name));
+    Assert.assertEquals(1L, outer.getClassCacheStatistics().getHits());
+
+    allow.set(false);
+    version.incrementAndGet();
+
+    try {
+      outer.loadClass(name);
+      Assert.fail();
+    } catch (final SecurityException e) {
+      // Expected
+    }
+    Assert.assertEquals(
+      1L,
+      outer.getClassCacheStatistics().getInvalidations());
+  }
 }
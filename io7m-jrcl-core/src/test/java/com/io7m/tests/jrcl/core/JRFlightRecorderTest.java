@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jrcl.core.JRClassLoader;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+
+@SuppressWarnings("static-method") public final class JRFlightRecorderTest
+{
+  private static List<RecordedEvent> record(
+    final Runnable r)
+    throws Exception
+  {
+    final Path file = Files.createTempFile("jrcl", ".jfr");
+    try {
+      try (final Recording rec = new Recording()) {
+        rec.enable("com.io7m.jrcl.PolicyEvaluation").withThreshold(null);
+        rec.enable("com.io7m.jrcl.DelegateLoad").withThreshold(null);
+        rec.enable("com.io7m.jrcl.Denial").withStackTrace();
+        rec.start();
+        r.run();
+        rec.stop();
+        rec.dump(file);
+      }
+      return RecordingFile.readAllEvents(file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static int count(
+    final List<RecordedEvent> events,
+    final String type)
+  {
+    int count = 0;
+    for (final RecordedEvent e : events) {
+      if (type.equals(e.getEventType().getName())) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private static RecordedEvent find(
+    final List<RecordedEvent> events,
+    final String type,
+    final String name)
+  {
+    for (final RecordedEvent e : events) {
+      if (type.equals(e.getEventType().getName())
+        && name.equals(e.getString("name"))) {
+        return e;
+      }
+    }
+    throw new AssertionError("No " + type + " event for " + name);
+  }
+
+  @Test public void testEvents()
+    throws Exception
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.Integer"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRClassLoader cl =
+      JRClassLoader.getRestrictedClassLoader(
+        NullCheck.notNull(JRFlightRecorderTest.class.getClassLoader()),
+        jpb.build());
+
+    final List<RecordedEvent> events =
+      JRFlightRecorderTest.record(new Runnable() {
+        @Override public void run()
+        {
+          try {
+            cl.loadClass("java.lang.Object");
+          } catch (final ClassNotFoundException e) {
+            throw new AssertionError(e);
+          }
+
+          try {
+            cl.loadClass("java.lang.Integer");
+            Assert.fail();
+          } catch (final SecurityException e) {
+            // Expected
+          } catch (final ClassNotFoundException e) {
+            throw new AssertionError(e);
+          }
+        }
+      });
+
+    Assert.assertEquals(
+      2,
+      JRFlightRecorderTest.count(events, "com.io7m.jrcl.PolicyEvaluation"));
+    Assert.assertEquals(
+      1,
+      JRFlightRecorderTest.count(events, "com.io7m.jrcl.DelegateLoad"));
+    Assert.assertEquals(
+      1,
+      JRFlightRecorderTest.count(events, "com.io7m.jrcl.Denial"));
+
+    final RecordedEvent allowed =
+      JRFlightRecorderTest.find(
+        events,
+        "com.io7m.jrcl.PolicyEvaluation",
+        "java.lang.Object");
+    Assert.assertEquals("ALLOW", allowed.getString("conclusion"));
+    Assert.assertEquals("class", allowed.getString("kind"));
+    Assert.assertEquals(0, allowed.getInt("rule_index"));
+
+    final RecordedEvent denied =
+      JRFlightRecorderTest.find(
+        events,
+        "com.io7m.jrcl.PolicyEvaluation",
+        "java.lang.Integer");
+    Assert.assertEquals("DENY", denied.getString("conclusion"));
+    Assert.assertEquals(1, denied.getInt("rule_index"));
+
+    final RecordedEvent denial =
+      JRFlightRecorderTest.find(
+        events,
+        "com.io7m.jrcl.Denial",
+        "java.lang.Integer");
+    Assert.assertNotNull(denial.getStackTrace());
+  }
+}
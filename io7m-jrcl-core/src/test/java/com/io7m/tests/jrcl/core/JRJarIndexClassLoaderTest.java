@@ -0,0 +1,374 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jrcl.core.JRClassLoader;
+import com.io7m.jrcl.core.JRJarIndexClassLoader;
+import com.io7m.jrcl.core.JRMemoryConsumerKind;
+import com.io7m.jrcl.core.JRMemoryGovernor;
+import com.io7m.jrcl.core.JRMemoryUsage;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+
+@SuppressWarnings("static-method") public final class JRJarIndexClassLoaderTest
+{
+  /**
+   * A class that is copied into a jar and loaded from there.
+   */
+
+  public static final class Example
+  {
+    public Example()
+    {
+
+    }
+
+    @Override public String toString()
+    {
+      return "example";
+    }
+  }
+
+  private static byte[] bytes(
+    final String text)
+  {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] read(
+    final InputStream stream)
+    throws IOException
+  {
+    try (final InputStream s = stream) {
+      return NullCheck.notNull(s.readAllBytes());
+    }
+  }
+
+  private static void put(
+    final JarOutputStream out,
+    final String name,
+    final byte[] data,
+    final boolean stored)
+    throws IOException
+  {
+    final JarEntry e = new JarEntry(name);
+    if (stored) {
+      final CRC32 crc = new CRC32();
+      crc.update(data);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(data.length);
+      e.setCompressedSize(data.length);
+      e.setCrc(crc.getValue());
+    }
+    out.putNextEntry(e);
+    out.write(data);
+    out.closeEntry();
+  }
+
+  private static Path jar(
+    final String text,
+    final boolean stored)
+    throws Exception
+  {
+    final Path file = Files.createTempFile("jrcl-index", ".jar");
+    file.toFile().deleteOnExit();
+
+    final String fixture =
+      Example.class.getName().replace('.', '/') + ".class";
+    final byte[] data =
+      JRJarIndexClassLoaderTest.read(NullCheck.notNull(Example.class
+        .getClassLoader()
+        .getResourceAsStream(fixture)));
+
+    try (final JarOutputStream out =
+      new JarOutputStream(Files.newOutputStream(file))) {
+      out.putNextEntry(new JarEntry("com/"));
+      out.closeEntry();
+      JRJarIndexClassLoaderTest.put(out, fixture, data, stored);
+      JRJarIndexClassLoaderTest.put(
+        out,
+        "hello.txt",
+        JRJarIndexClassLoaderTest.bytes(text),
+        stored);
+      JRJarIndexClassLoaderTest.put(
+        out,
+        "\u00e9t\u00e9.txt",
+        JRJarIndexClassLoaderTest.bytes(text),
+        stored);
+    }
+    return file;
+  }
+
+  @Test public void testLoadClass_0()
+    throws Exception
+  {
+    final JRJarIndexClassLoader cl =
+      JRJarIndexClassLoader.open(
+        Collections.singletonList(JRJarIndexClassLoaderTest.jar("a", false)),
+        null);
+    Assert.assertEquals(1, cl.getJarCount());
+    Assert.assertEquals(3, cl.getEntryCount());
+
+    final Class<?> c = cl.loadClass(Example.class.getName());
+    Assert.assertNotEquals(Example.class, c);
+    Assert.assertEquals(Example.class.getName(), c.getName());
+    Assert.assertSame(cl, c.getClassLoader());
+    Assert.assertEquals(
+      Example.class.getPackageName(),
+      c.getPackage().getName());
+    Assert.assertEquals(
+      "example",
+      c.getConstructor().newInstance().toString());
+    Assert.assertSame(c, cl.loadClass(Example.class.getName()));
+
+    try {
+      cl.loadClass("com.example.Missing");
+      Assert.fail();
+    } catch (final ClassNotFoundException e) {
+      // Expected
+    }
+  }
+
+  @Test public void testResources_0()
+    throws Exception
+  {
+    final List<Path> jars =
+      Arrays.asList(
+        JRJarIndexClassLoaderTest.jar("first", true),
+        JRJarIndexClassLoaderTest.jar("second", false));
+    final JRJarIndexClassLoader cl = JRJarIndexClassLoader.open(jars, null);
+    Assert.assertEquals(2, cl.getJarCount());
+    Assert.assertEquals(6, cl.getEntryCount());
+
+    Assert.assertArrayEquals(
+      JRJarIndexClassLoaderTest.bytes("first"),
+      JRJarIndexClassLoaderTest.read(NullCheck.notNull(cl
+        .getResourceAsStream("hello.txt"))));
+    Assert.assertArrayEquals(
+      JRJarIndexClassLoaderTest.bytes("first"),
+      JRJarIndexClassLoaderTest.read(NullCheck.notNull(cl
+        .getResourceAsStream("\u00e9t\u00e9.txt"))));
+
+    final List<String> texts = new ArrayList<String>();
+    final Enumeration<URL> urls = cl.getResources("hello.txt");
+    while (urls.hasMoreElements()) {
+      final URL u = NullCheck.notNull(urls.nextElement());
+      texts.add(new String(
+        JRJarIndexClassLoaderTest.read(u.openStream()),
+        StandardCharsets.UTF_8));
+    }
+    Assert.assertEquals(Arrays.asList("first", "second"), texts);
+
+    Assert.assertNull(cl.getResource("missing.txt"));
+    Assert.assertNull(cl.getResource("com/"));
+    Assert.assertNull(cl.getResource("com"));
+  }
+
+  @Test public void testClose_0()
+    throws Exception
+  {
+    final JRJarIndexClassLoader cl =
+      JRJarIndexClassLoader.open(
+        Collections.singletonList(JRJarIndexClassLoaderTest.jar("a", true)),
+        null);
+    final Class<?> c = cl.loadClass(Example.class.getName());
+    final URL u = NullCheck.notNull(cl.getResource("hello.txt"));
+    Assert.assertFalse(cl.isClosed());
+
+    cl.close();
+    cl.close();
+    Assert.assertTrue(cl.isClosed());
+    Assert.assertEquals(1, cl.getJarCount());
+
+    /**
+     * Classes already defined remain usable, but nothing further is found.
+     */
+
+    Assert.assertSame(c, cl.loadClass(Example.class.getName()));
+    Assert.assertEquals(
+      "example",
+      c.getConstructor().newInstance().toString());
+    Assert.assertNull(cl.getResource("hello.txt"));
+    Assert.assertFalse(cl.getResources("hello.txt").hasMoreElements());
+
+    try {
+      u.openStream();
+      Assert.fail();
+    } catch (final IOException e) {
+      // Expected
+    }
+  }
+
+  @Test public void testEquivalentZipFile_0()
+    throws Exception
+  {
+    final Path path =
+      Paths.get(Test.class
+        .getProtectionDomain()
+        .getCodeSource()
+        .getLocation()
+        .toURI());
+    final JRJarIndexClassLoader cl =
+      JRJarIndexClassLoader.open(Collections.singletonList(path), null);
+
+    int checked = 0;
+    try (final JarFile file = new JarFile(path.toFile())) {
+      final Enumeration<JarEntry> entries = file.entries();
+      while (entries.hasMoreElements()) {
+        final JarEntry e = NullCheck.notNull(entries.nextElement());
+        if (e.isDirectory() || !e.getName().startsWith("org/junit/")) {
+          continue;
+        }
+        Assert.assertArrayEquals(
+          e.getName(),
+          JRJarIndexClassLoaderTest.read(file.getInputStream(e)),
+          JRJarIndexClassLoaderTest.read(NullCheck.notNull(cl
+            .getResourceAsStream(e.getName()))));
+        ++checked;
+      }
+    }
+    Assert.assertTrue(checked > 100);
+  }
+
+  @Test(expected = IOException.class) public void testNotJar_0()
+    throws Exception
+  {
+    final Path file = Files.createTempFile("jrcl-index", ".jar");
+    file.toFile().deleteOnExit();
+    Files.write(file, JRJarIndexClassLoaderTest.bytes("not a jar file"));
+    JRJarIndexClassLoader.open(Collections.singletonList(file), null);
+  }
+
+  @Test public void testOffHeapBudget_0()
+    throws Exception
+  {
+    final Path file = JRJarIndexClassLoaderTest.jar("a", false);
+    final JRMemoryGovernor g = JRMemoryGovernor.get();
+    try {
+      g.setBudget(Long.MAX_VALUE, 0L);
+      JRJarIndexClassLoader.open(Collections.singletonList(file), null);
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertTrue(e.getMessage().contains("off-heap budget"));
+    } finally {
+      g.setBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    final JRJarIndexClassLoader cl =
+      JRJarIndexClassLoader.open(Collections.singletonList(file), null);
+    Assert.assertEquals(1, cl.getJarCount());
+
+    boolean mapped = false;
+    for (final JRMemoryUsage u : g.getReport().getUsages()) {
+      if ((u.getKind() == JRMemoryConsumerKind.MAPPED_JAR)
+        && u.getOwner().equals(file.toString())) {
+        Assert.assertEquals(Files.size(file), u.getOffHeapBytes());
+        mapped = true;
+      }
+    }
+    Assert.assertTrue(mapped);
+  }
+
+  @Test public void testOffHeapBudgetParallel_0()
+    throws Exception
+  {
+    final JRMemoryGovernor g = JRMemoryGovernor.get();
+    final List<Path> files = new ArrayList<Path>();
+    files.add(JRJarIndexClassLoaderTest.jar("a", false));
+    final long size = Files.size(files.get(0));
+
+    /**
+     * Only two of the jars fit in the budget, even if every other
+     * structure is collected while they are opened.
+     */
+
+    final long before = g.getReport().getOffHeapBytes();
+    final long budget = before + (size * 5L) / 2L;
+    final long count = 16L + (budget / size);
+    while (files.size() < count) {
+      files.add(JRJarIndexClassLoaderTest.jar("a", false));
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      g.setBudget(Long.MAX_VALUE, budget);
+      JRJarIndexClassLoader.open(files, null, executor);
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertTrue(e.getMessage().contains("off-heap budget"));
+      Assert.assertTrue(g.getReport().getOffHeapBytes() <= budget);
+    } finally {
+      g.setBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testDelegate_0()
+    throws Exception
+  {
+    final JRJarIndexClassLoader index =
+      JRJarIndexClassLoader.open(
+        Collections.singletonList(JRJarIndexClassLoaderTest.jar("a", false)),
+        null);
+
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.addClassRule(
+      Pattern.compile(Pattern.quote(Example.class.getName())),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRClassLoader cl =
+      JRClassLoader.getRestrictedClassLoader(index, jpb.build());
+
+    Assert.assertSame(index, cl.loadClass(Example.class.getName())
+      .getClassLoader());
+    try {
+      cl.getResource("hello.txt");
+      Assert.fail();
+    } catch (final SecurityException e) {
+      // Expected
+    }
+  }
+}
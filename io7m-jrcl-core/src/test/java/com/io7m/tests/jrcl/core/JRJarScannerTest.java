@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jrcl.core.JRClassLoader;
+import com.io7m.jrcl.core.JRClassLoaderBuilderType;
+import com.io7m.jrcl.core.JRClassLoaderPolicyType;
+import com.io7m.jrcl.core.JRDecisionTable;
+import com.io7m.jrcl.core.JRJarScanReport;
+import com.io7m.jrcl.core.JRJarScanner;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+
+@SuppressWarnings("static-method") public final class JRJarScannerTest
+{
+  /**
+   * A class whose references are scanned.
+   */
+
+  static final class UsesSql
+  {
+    UsesSql()
+    {
+
+    }
+
+    static int timeout()
+    {
+      return java.sql.DriverManager.getLoginTimeout();
+    }
+  }
+
+  /**
+   * A policy that counts the class names evaluated by it.
+   */
+
+  private static final class CountingPolicy implements
+    JRClassLoaderPolicyType
+  {
+    final AtomicInteger              count;
+    private final JRSequentialPolicy policy;
+    final AtomicLong                 version;
+
+    CountingPolicy()
+    {
+      final JRSequentialPolicyBuilderType jpb =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.DENY,
+          JRRuleConclusion.DENY);
+      jpb.addClassRule(
+        Pattern.compile("java\\.lang\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+      jpb.addClassRule(
+        Pattern.compile("com\\.io7m\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+      this.policy = jpb.build();
+      this.count = new AtomicInteger();
+      this.version = new AtomicLong();
+    }
+
+    @Override public boolean policyAllowsClass(
+      final String name)
+    {
+      this.count.incrementAndGet();
+      return this.policy.policyAllowsClass(name);
+    }
+
+    @Override public boolean policyAllowsResource(
+      final String name)
+    {
+      return this.policy.policyAllowsResource(name);
+    }
+
+    @Override public long policyVersion()
+    {
+      return this.version.get();
+    }
+  }
+
+  private static Path jar()
+    throws Exception
+  {
+    final Path file = Files.createTempFile("jrcl-scan", ".jar");
+    file.toFile().deleteOnExit();
+
+    final String fixture =
+      UsesSql.class.getName().replace('.', '/') + ".class";
+    try (final JarOutputStream out =
+      new JarOutputStream(Files.newOutputStream(file))) {
+      out.putNextEntry(new JarEntry(fixture));
+      try (final InputStream in =
+        NullCheck.notNull(JRJarScannerTest.class.getResourceAsStream("/"
+          + fixture))) {
+        out.write(in.readAllBytes());
+      }
+      out.closeEntry();
+
+      out.putNextEntry(new JarEntry("broken/Broken.class"));
+      out.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+      out.closeEntry();
+
+      out.putNextEntry(new JarEntry("README.txt"));
+      out.write(new byte[] { 'h', 'i' });
+      out.closeEntry();
+    }
+    return file;
+  }
+
+  @Test public void testScan_0()
+    throws Exception
+  {
+    final CountingPolicy policy = new CountingPolicy();
+    final JRJarScanReport r = JRJarScanner.scan(JRJarScannerTest.jar(), policy);
+
+    Assert.assertEquals(1, r.getClassCount());
+    Assert.assertEquals(
+      Arrays.asList("broken/Broken.class"),
+      r.getMalformedEntries());
+    Assert.assertFalse(r.isClean());
+    Assert.assertEquals(r.getReferenceCount(), policy.count.get());
+
+    final SortedSet<String> referrers =
+      r.getDeniedReferences().get("java.sql.DriverManager");
+    Assert.assertNotNull(referrers);
+    Assert.assertEquals(UsesSql.class.getName(), referrers.first());
+    Assert.assertFalse(r.getDeniedReferences().containsKey("java.lang.Object"));
+
+    final JRDecisionTable t = r.getDecisions();
+    Assert.assertEquals(r.getReferenceCount(), t.size());
+    Assert.assertTrue(t.contains("java.lang.Object"));
+    Assert.assertTrue(t.isAllowed("java.lang.Object"));
+    Assert.assertTrue(t.contains("java.sql.DriverManager"));
+    Assert.assertFalse(t.isAllowed("java.sql.DriverManager"));
+    Assert.assertFalse(t.contains(UsesSql.class.getName()));
+    Assert.assertEquals(0L, t.getPolicyVersion());
+  }
+
+  @Test public void testDecisionTable_0()
+    throws Exception
+  {
+    final CountingPolicy policy = new CountingPolicy();
+    final JRDecisionTable t =
+      JRDecisionTable.evaluate(
+        policy,
+        Arrays.asList("java.lang.Object", "java.sql.DriverManager"));
+
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(
+        NullCheck.notNull(JRJarScannerTest.class.getClassLoader()),
+        policy);
+    b.setDecisionTable(t);
+    final JRClassLoader cl = b.build();
+
+    policy.count.set(0);
+    Assert.assertEquals(Object.class, cl.loadClass("java.lang.Object"));
+    try {
+      cl.loadClass("java.sql.DriverManager");
+      Assert.fail();
+    } catch (final SecurityException e) {
+      // Expected
+    }
+    Assert.assertEquals(0, policy.count.get());
+
+    Assert.assertEquals(
+      JRJarScannerTest.class,
+      cl.loadClass(JRJarScannerTest.class.getName()));
+    Assert.assertEquals(1, policy.count.get());
+
+    /**
+     * The table is ignored once the version of the policy changes.
+     */
+
+    policy.version.incrementAndGet();
+    Assert.assertEquals(Object.class, cl.loadClass("java.lang.Object"));
+    Assert.assertEquals(2, policy.count.get());
+  }
+
+  @Test public void testDecisionTableEmpty_0()
+  {
+    final JRDecisionTable t =
+      JRDecisionTable.evaluate(
+        new CountingPolicy(),
+        Collections.<String> emptyList());
+    Assert.assertEquals(0, t.size());
+    Assert.assertFalse(t.contains("java.lang.Object"));
+    Assert.assertFalse(t.isAllowed("java.lang.Object"));
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.jrcl.core.JRClassCacheStatistics;
+import com.io7m.jrcl.core.JRClassLoader;
+import com.io7m.jrcl.core.JRClassLoaderAbstractPolicy;
+import com.io7m.jrcl.core.JRClassLoaderBuilderType;
+import com.io7m.jrcl.core.JRClassLoaderPolicyType;
+import com.io7m.jrcl.core.JRMemoryConsumerKind;
+import com.io7m.jrcl.core.JRMemoryGovernor;
+import com.io7m.jrcl.core.JRMemoryReport;
+import com.io7m.jrcl.core.JRMemoryUsage;
+import com.io7m.jrcl.core.JRNameSetStorage;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+
+@SuppressWarnings("static-method") public final class JRMemoryGovernorTest
+{
+  private static JRClassLoader cachingLoader()
+  {
+    final JRClassLoaderPolicyType policy =
+      new JRClassLoaderAbstractPolicy(JRRuleConclusion.ALLOW) {
+        // Nothing
+      };
+
+    final JRClassLoaderBuilderType b =
+      JRClassLoader.newBuilder(
+        NullCheck.notNull(JRMemoryGovernorTest.class.getClassLoader()),
+        policy);
+    b.setClassCache(true);
+    return b.build();
+  }
+
+  private static @Nullable JRMemoryUsage find(
+    final Object o)
+  {
+    final String owner =
+      o.getClass().getSimpleName()
+        + "@"
+        + Integer.toHexString(System.identityHashCode(o));
+    final JRMemoryReport r = JRMemoryGovernor.get().getReport();
+    for (final JRMemoryUsage u : r.getUsages()) {
+      if (u.getOwner().equals(owner)) {
+        return u;
+      }
+    }
+    return null;
+  }
+
+  @Test public void testReportClassCache()
+    throws Exception
+  {
+    final JRClassLoader cl = JRMemoryGovernorTest.cachingLoader();
+    final JRMemoryUsage u0 =
+      NullCheck.notNull(JRMemoryGovernorTest.find(cl));
+    Assert.assertEquals(JRMemoryConsumerKind.CLASS_CACHE, u0.getKind());
+    Assert.assertTrue(u0.isEvictable());
+
+    cl.loadClass(JRClassLoaderTest.class.getName());
+    cl.loadClass(JRSequentialPolicyTest.class.getName());
+
+    final JRMemoryUsage u1 =
+      NullCheck.notNull(JRMemoryGovernorTest.find(cl));
+    Assert.assertTrue(u1.getHeapBytes() > u0.getHeapBytes());
+    Assert.assertEquals(0L, u1.getOffHeapBytes());
+  }
+
+  @Test public void testReportPolicy()
+  {
+    final List<String> names = new ArrayList<String>();
+    for (int index = 0; index < 1000; ++index) {
+      names.add(String.format("com.example.gadget%d.Gadget%d", index, index));
+    }
+
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.ALLOW,
+        JRRuleConclusion.ALLOW);
+    jpb.setNameSetStorage(JRNameSetStorage.OFF_HEAP);
+    jpb.addClassNameSetRule(names, JRRuleConclusion.DENY, true);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRSequentialPolicy jp = jpb.build();
+
+    final JRMemoryUsage u = NullCheck.notNull(JRMemoryGovernorTest.find(jp));
+    Assert.assertEquals(JRMemoryConsumerKind.SEQUENTIAL_POLICY, u.getKind());
+    Assert.assertFalse(u.isEvictable());
+    Assert.assertTrue(u.getHeapBytes() > 0L);
+
+    /**
+     * The name set and the engines are registered by themselves.
+     */
+
+    Assert.assertEquals(0L, u.getOffHeapBytes());
+
+    boolean name_set = false;
+    boolean index = false;
+    final JRMemoryReport r = JRMemoryGovernor.get().getReport();
+    for (final JRMemoryUsage v : r.getUsages()) {
+      if (v.getKind() == JRMemoryConsumerKind.NAME_SET) {
+        Assert.assertFalse(v.isEvictable());
+        name_set = name_set || (v.getOffHeapBytes() > 0L);
+      }
+      if (v.getKind() == JRMemoryConsumerKind.POLICY_INDEX) {
+        Assert.assertTrue(v.isEvictable());
+        index = true;
+      }
+    }
+    Assert.assertTrue(name_set);
+    Assert.assertTrue(index);
+  }
+
+  @Test public void testShrinkSecondChance()
+    throws Exception
+  {
+    final JRClassLoader cl = JRMemoryGovernorTest.cachingLoader();
+    final String used = JRClassLoaderTest.class.getName();
+    cl.loadClass(used);
+    cl.loadClass(used);
+    cl.loadClass(JRSequentialPolicyTest.class.getName());
+    cl.loadClass(JRMultiPolicyTest.class.getName());
+    Assert.assertEquals(3, cl.getClassCacheStatistics().getSize());
+
+    JRMemoryGovernor.get().shrink(0.5);
+
+    final JRClassCacheStatistics s0 = cl.getClassCacheStatistics();
+    Assert.assertEquals(1, s0.getSize());
+    Assert.assertEquals(2L, s0.getEvictions());
+
+    cl.loadClass(used);
+    final JRClassCacheStatistics s1 = cl.getClassCacheStatistics();
+    Assert.assertEquals(s0.getHits() + 1L, s1.getHits());
+  }
+
+  @Test public void testShrinkAll()
+    throws Exception
+  {
+    final JRClassLoader cl = JRMemoryGovernorTest.cachingLoader();
+    final JRMemoryUsage u0 =
+      NullCheck.notNull(JRMemoryGovernorTest.find(cl));
+    cl.loadClass(JRClassLoaderTest.class.getName());
+    cl.loadClass(JRClassLoaderTest.class.getName());
+    cl.loadClass(JRSequentialPolicyTest.class.getName());
+
+    JRMemoryGovernor.get().shrink(1.0);
+
+    Assert.assertEquals(0, cl.getClassCacheStatistics().getSize());
+    final JRMemoryUsage u1 =
+      NullCheck.notNull(JRMemoryGovernorTest.find(cl));
+    Assert.assertEquals(u0.getHeapBytes(), u1.getHeapBytes());
+  }
+
+  @Test public void testBudget()
+    throws Exception
+  {
+    final JRMemoryGovernor g = JRMemoryGovernor.get();
+    final JRClassLoader cl = JRMemoryGovernorTest.cachingLoader();
+    cl.loadClass(JRClassLoaderTest.class.getName());
+    cl.loadClass(JRSequentialPolicyTest.class.getName());
+    Assert.assertEquals(2, cl.getClassCacheStatistics().getSize());
+
+    try {
+      g.setBudget(0L, Long.MAX_VALUE);
+      Assert.assertEquals(0, cl.getClassCacheStatistics().getSize());
+
+      cl.loadClass(JRClassLoaderTest.class.getName());
+      Assert.assertEquals(0, cl.getClassCacheStatistics().getSize());
+    } finally {
+      g.setBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    cl.loadClass(JRClassLoaderTest.class.getName());
+    Assert.assertEquals(1, cl.getClassCacheStatistics().getSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class) public
+    void
+    testBudgetInvalid()
+  {
+    JRMemoryGovernor.get().setBudget(-1L, 0L);
+  }
+
+  @Test public void testMemoryPressureThreshold()
+  {
+    final JRMemoryGovernor g = JRMemoryGovernor.get();
+    g.setMemoryPressureThreshold(0.99);
+    g.setMemoryPressureThreshold(0.99);
+    g.setMemoryPressureThreshold(0.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public
+    void
+    testMemoryPressureThresholdInvalid()
+  {
+    JRMemoryGovernor.get().setMemoryPressureThreshold(1.5);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jrcl.core.JRModulePolicy;
+import com.io7m.jrcl.core.JRModulePolicyBuilderType;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+
+@SuppressWarnings("static-method") public final class JRModulePolicyTest
+{
+  private static JRSequentialPolicy fallback()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.sql\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile("META-INF/.*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    return jpb.build();
+  }
+
+  @Test public void testModulePolicy_0()
+  {
+    final JRModulePolicyBuilderType b =
+      JRModulePolicy.newPolicyBuilder(
+        ModuleLayer.boot(),
+        JRModulePolicyTest.fallback());
+    b.addModuleRule(
+      Pattern.compile("java\\.base"),
+      JRRuleConclusion.ALLOW,
+      false);
+    b.addModuleRule(
+      Pattern.compile("java\\.sql"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRModulePolicy p = b.build();
+    Assert.assertEquals(
+      JRRuleConclusion.ALLOW,
+      p.getModuleConclusion("java.base"));
+    Assert.assertEquals(
+      JRRuleConclusion.DENY,
+      p.getModuleConclusion("java.sql"));
+    Assert.assertNull(p.getModuleConclusion("java.logging"));
+    Assert.assertNull(p.getModuleConclusion("nonexistent"));
+
+    Assert.assertTrue(p.policyAllowsClass("java.lang.String"));
+    Assert.assertTrue(p.policyAllowsClass("java.util.Map$Entry"));
+    Assert.assertFalse(p.policyAllowsClass("java.sql.Connection"));
+    Assert.assertFalse(p.policyAllowsClass("javax.sql.DataSource"));
+    Assert.assertFalse(p.policyAllowsClass("java.util.logging.Logger"));
+    Assert.assertTrue(p.policyAllowsClass("com.example.Plugin"));
+    Assert.assertFalse(p.policyAllowsClass("org.example.Plugin"));
+    Assert.assertFalse(p.policyAllowsClass("Unpackaged"));
+
+    Assert.assertTrue(p.policyAllowsResource("java/lang/Object.class"));
+    Assert.assertFalse(p.policyAllowsResource("java/sql/Driver.class"));
+    Assert.assertTrue(p.policyAllowsResource("META-INF/MANIFEST.MF"));
+    Assert.assertFalse(p.policyAllowsResource("hello.txt"));
+  }
+
+  @Test public void testModulePolicyQuick_0()
+  {
+    final JRModulePolicyBuilderType b =
+      JRModulePolicy.newPolicyBuilder(
+        ModuleLayer.boot(),
+        JRModulePolicyTest.fallback());
+    b.addModuleRule(
+      Pattern.compile("java\\..*"),
+      JRRuleConclusion.DENY,
+      true);
+    b.addModuleRule(
+      Pattern.compile("java\\.base"),
+      JRRuleConclusion.ALLOW,
+      false);
+    b.addModuleRule(
+      Pattern.compile("jdk\\..*"),
+      JRRuleConclusion.DENY,
+      false);
+    b.addModuleRule(
+      Pattern.compile("jdk\\.jfr"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRModulePolicy p = b.build();
+    Assert.assertEquals(
+      JRRuleConclusion.DENY,
+      p.getModuleConclusion("java.base"));
+    Assert.assertEquals(
+      JRRuleConclusion.ALLOW,
+      p.getModuleConclusion("jdk.jfr"));
+    Assert.assertFalse(p.policyAllowsClass("java.lang.String"));
+    Assert.assertTrue(p.policyAllowsClass("jdk.jfr.Event"));
+  }
+
+  @Test public void testModulePolicyFindModule_0()
+  {
+    final JRModulePolicy p =
+      JRModulePolicy.newPolicyBuilder(
+        ModuleLayer.boot(),
+        JRModulePolicyTest.fallback()).build();
+
+    Assert.assertEquals(
+      Object.class.getModule(),
+      p.findModuleOfClass("java.lang.Object"));
+    Assert.assertEquals(
+      "java.sql",
+      p.findModuleOfClass("java.sql.Connection").getName());
+    Assert.assertNull(p.findModuleOfClass("com.example.Plugin"));
+    Assert.assertNull(p.findModuleOfClass("Unpackaged"));
+
+    /**
+     * Without module rules, every decision is made by the fallback.
+     */
+
+    Assert.assertFalse(p.policyAllowsClass("java.lang.String"));
+    Assert.assertTrue(p.policyAllowsClass("java.sql.Connection"));
+    Assert.assertTrue(p.policyAllowsClass("com.example.Plugin"));
+  }
+}
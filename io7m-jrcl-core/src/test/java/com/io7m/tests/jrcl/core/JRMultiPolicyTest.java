@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jrcl.core.JRMultiPolicy;
+import com.io7m.jrcl.core.JRPatternSafety;
+import com.io7m.jrcl.core.JRRuleConclusion;
+import com.io7m.jrcl.core.JRSequentialPolicy;
+import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
+
+@SuppressWarnings("static-method") public final class JRMultiPolicyTest
+{
+  private static final String[] NAMES = {
+    "",
+    "java.lang.Object",
+    "java.lang.String",
+    "java.lang.reflect.Method",
+    "java.io.File",
+    "com.example.Main",
+    "com.example.internal.Secret",
+    "com.example.gadget.Gadget",
+    "org.example.Tool",
+    "file.txt",
+    "META-INF/MANIFEST.MF",
+    "com/example/config.properties", };
+
+  private static final String[] PATTERNS = {
+    "java\\.lang\\..*",
+    "java\\.lang\\.reflect\\..*",
+    "java\\.io\\..*",
+    "com\\.example\\..*",
+    "com\\.example\\.internal\\..*",
+    "org\\..*",
+    ".*\\.txt",
+    "META-INF/.*",
+    ".*/.*\\.properties",
+    "java\\.lang\\.(Object|String)", };
+
+  private static List<JRSequentialPolicy> randomPolicies(
+    final Random r,
+    final int count)
+  {
+    final List<String> gadgets =
+      Arrays.asList("com.example.gadget.Gadget", "java.io.File");
+
+    final List<JRSequentialPolicy> policies =
+      new ArrayList<JRSequentialPolicy>();
+    for (int index = 0; index < count; ++index) {
+      final JRSequentialPolicyBuilderType jpb =
+        JRSequentialPolicy.newPolicyBuilder(
+          r.nextBoolean() ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY,
+          r.nextBoolean() ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY);
+
+      final int rules = r.nextInt(6);
+      for (int rule = 0; rule < rules; ++rule) {
+        final JRRuleConclusion c =
+          r.nextBoolean() ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY;
+        final boolean quick = r.nextInt(4) == 0;
+
+        switch (r.nextInt(5)) {
+          case 0:
+            jpb.addClassNameSetRule(gadgets, c, quick);
+            break;
+          case 1:
+            jpb.addResourceRule(
+              Pattern.compile(JRMultiPolicyTest.PATTERNS[r
+                .nextInt(JRMultiPolicyTest.PATTERNS.length)]),
+              c,
+              quick);
+            break;
+          default:
+            jpb.addClassRule(
+              Pattern.compile(JRMultiPolicyTest.PATTERNS[r
+                .nextInt(JRMultiPolicyTest.PATTERNS.length)]),
+              c,
+              quick);
+            break;
+        }
+      }
+      policies.add(jpb.build());
+    }
+    return policies;
+  }
+
+  @Test public void testEmpty()
+  {
+    final JRMultiPolicy m =
+      JRMultiPolicy.compile(new ArrayList<JRSequentialPolicy>());
+    Assert.assertEquals(0, m.getPolicyCount());
+    Assert.assertEquals(0, m.getMaskWords());
+    Assert.assertTrue(m.policiesAllowingClass("java.lang.Object").isEmpty());
+  }
+
+  @Test public void testEquivalent()
+  {
+    final Random r = new Random(0x10e7L);
+    final List<JRSequentialPolicy> policies =
+      JRMultiPolicyTest.randomPolicies(r, 300);
+    final JRMultiPolicy m = JRMultiPolicy.compile(policies);
+
+    Assert.assertEquals(300, m.getPolicyCount());
+    Assert.assertEquals(5, m.getMaskWords());
+
+    final long[] mask = new long[m.getMaskWords()];
+    for (final String name : JRMultiPolicyTest.NAMES) {
+      final BitSet classes = m.policiesAllowingClass(name);
+      final BitSet resources = m.policiesAllowingResource(name);
+      m.classAllowedMask(name, mask);
+      Assert.assertEquals(classes, BitSet.valueOf(mask));
+
+      for (int index = 0; index < policies.size(); ++index) {
+        final JRSequentialPolicy p = policies.get(index);
+        Assert.assertEquals(
+          name + " " + index,
+          Boolean.valueOf(p.policyAllowsClass(name)),
+          Boolean.valueOf(classes.get(index)));
+        Assert.assertEquals(
+          name + " " + index,
+          Boolean.valueOf(p.policyAllowsResource(name)),
+          Boolean.valueOf(resources.get(index)));
+      }
+    }
+  }
+
+  @Test public void testStepBudget()
+  {
+    final List<JRSequentialPolicy> policies =
+      new ArrayList<JRSequentialPolicy>();
+
+    for (int index = 0; index < 2; ++index) {
+      final JRSequentialPolicyBuilderType jpb =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.ALLOW,
+          JRRuleConclusion.ALLOW);
+      jpb.setPatternSafety(JRPatternSafety.PERMIT);
+      jpb.setEvaluationStepBudget(10000);
+      if (index == 0) {
+        jpb.addClassRule(
+          Pattern.compile("((a+)+)+b"),
+          JRRuleConclusion.ALLOW,
+          false);
+      }
+      policies.add(jpb.build());
+    }
+
+    final JRMultiPolicy m = JRMultiPolicy.compile(policies);
+    final BitSet allowed =
+      m.policiesAllowingClass("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+    Assert.assertFalse(allowed.get(0));
+    Assert.assertTrue(allowed.get(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class) public
+    void
+    testMaskTooSmall()
+  {
+    final Random r = new Random(0x10e7L);
+    final JRMultiPolicy m =
+      JRMultiPolicy.compile(JRMultiPolicyTest.randomPolicies(r, 65));
+    m.classAllowedMask("java.lang.Object", new long[1]);
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2015 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.tests.jrcl.core;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jrcl.core.JRPatternAnalysis;
+import com.io7m.jrcl.core.JRPatternAnalyzer;
+import com.io7m.jrcl.core.JRPatternComplexity;
+
+@SuppressWarnings("static-method") public final class JRPatternAnalyzerTest
+{
+  private static JRPatternAnalysis analyze(
+    final String p)
+  {
+    return JRPatternAnalyzer.analyze(NullCheck.notNull(Pattern.compile(p)));
+  }
+
+  private static void checkComplexity(
+    final String p,
+    final JRPatternComplexity c)
+  {
+    final JRPatternAnalysis a = JRPatternAnalyzerTest.analyze(p);
+    Assert.assertEquals(a.toString(), c, a.getComplexity());
+  }
+
+  /**
+   * Check that the rewritten form of <tt>p</tt> exists, is not dangerous,
+   * and agrees with <tt>p</tt> on a set of random names drawn from
+   * <tt>alphabet</tt>.
+   */
+
+  private static void checkRewrite(
+    final String p,
+    final String alphabet)
+  {
+    final JRPatternAnalysis a = JRPatternAnalyzerTest.analyze(p);
+    Assert.assertTrue(a.toString(), a.isDangerous());
+
+    final Pattern r = a.getRewrittenPattern();
+    Assert.assertNotNull(a.toString(), r);
+    assert r != null;
+
+    final JRPatternAnalysis ra = JRPatternAnalyzer.analyze(r);
+    Assert.assertFalse(ra.toString(), ra.isDangerous());
+
+    final Pattern original = a.getPattern();
+    final Random random = new Random(0x10203040L);
+    for (int index = 0; index < 2000; ++index) {
+      final int length = random.nextInt(12);
+      final StringBuilder sb = new StringBuilder();
+      for (int k = 0; k < length; ++k) {
+        sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      final String name = sb.toString();
+      Assert.assertEquals(
+        p + " vs " + r + " on '" + name + "'",
+        Boolean.valueOf(original.matcher(name).matches()),
+        Boolean.valueOf(r.matcher(name).matches()));
+    }
+  }
+
+  @Test public void testLinear()
+  {
+    JRPatternAnalyzerTest.checkComplexity(
+      "java.lang.Object",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "java\\.lang\\..*",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "[a-z]+(\\.[a-z]+)*",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(\\w+\\.)+Foo",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(?>(a+)+)b",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(a++)+b",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(com|org|net)\\..*",
+      JRPatternComplexity.LINEAR);
+    JRPatternAnalyzerTest.checkComplexity(
+      "\\Q(a+)+\\E",
+      JRPatternComplexity.LINEAR);
+  }
+
+  @Test public void testPolynomial()
+  {
+    final JRPatternAnalysis a =
+      JRPatternAnalyzerTest.analyze("com\\..*\\..*\\..*");
+    Assert.assertEquals(JRPatternComplexity.POLYNOMIAL, a.getComplexity());
+    Assert.assertEquals(3, a.getPolynomialDegree());
+    Assert.assertTrue(a.estimateWorstCaseSteps(100) >= 1000000L);
+
+    JRPatternAnalyzerTest.checkComplexity(
+      "\\w*\\w*",
+      JRPatternComplexity.POLYNOMIAL);
+  }
+
+  @Test public void testExponential()
+  {
+    JRPatternAnalyzerTest.checkComplexity(
+      "(a+)+b",
+      JRPatternComplexity.EXPONENTIAL);
+    JRPatternAnalyzerTest.checkComplexity(
+      "([a-z]+\\.?)+Foo",
+      JRPatternComplexity.EXPONENTIAL);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(\\w|\\d)+x",
+      JRPatternComplexity.EXPONENTIAL);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(.*a)+",
+      JRPatternComplexity.EXPONENTIAL);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(a)\\1",
+      JRPatternComplexity.EXPONENTIAL);
+    JRPatternAnalyzerTest.checkComplexity(
+      "(?>(a+)+b)",
+      JRPatternComplexity.EXPONENTIAL);
+
+    final JRPatternAnalysis a = JRPatternAnalyzerTest.analyze("(a+)+b");
+    Assert.assertEquals(Long.MAX_VALUE, a.estimateWorstCaseSteps(100));
+  }
+
+  @Test public void testRewrite()
+  {
+    JRPatternAnalyzerTest.checkRewrite("(a+)+b", "ab");
+    JRPatternAnalyzerTest.checkRewrite("(a+)*b", "ab");
+    JRPatternAnalyzerTest.checkRewrite("(?:a{2,})*b", "ab");
+    JRPatternAnalyzerTest.checkRewrite("(a*)+", "ab");
+    JRPatternAnalyzerTest.checkRewrite("((ab)+)+c", "abc");
+    JRPatternAnalyzerTest.checkRewrite("(a{1,3})+b", "ab");
+    JRPatternAnalyzerTest.checkRewrite("(\\w|\\d)+x", "a1x.-");
+    JRPatternAnalyzerTest.checkRewrite("(a|a)+b", "ab");
+    JRPatternAnalyzerTest.checkRewrite("(x|[xy]|\\.)*z", "xyz.");
+    JRPatternAnalyzerTest.checkRewrite("(?i)(A|a|b)+c", "aAbBcC");
+  }
+
+  @Test public void testNoRewrite()
+  {
+    final JRPatternAnalysis a =
+      JRPatternAnalyzerTest.analyze("([a-z]+\\.?)+Foo");
+    Assert.assertNull(a.getRewrittenPattern());
+
+    final JRPatternAnalysis b = JRPatternAnalyzerTest.analyze("(a)\\1+");
+    Assert.assertNull(b.getRewrittenPattern());
+  }
+}
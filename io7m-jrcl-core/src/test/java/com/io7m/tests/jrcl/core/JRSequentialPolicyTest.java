@@ -16,11 +16,37 @@
 
 package com.io7m.tests.jrcl.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.slf4j.LoggerFactory;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+import com.io7m.jrcl.core.JRDecisionReason;
+import com.io7m.jrcl.core.JRDecisionTrace;
+import com.io7m.jrcl.core.JRDecisionTraceStep;
+import com.io7m.jrcl.core.JREngineChoice;
+import com.io7m.jrcl.core.JRMinimizationAction;
+import com.io7m.jrcl.core.JRMinimizationEntry;
+import com.io7m.jrcl.core.JRMinimizationReport;
+import com.io7m.jrcl.core.JRNameSetStorage;
+import com.io7m.jrcl.core.JRPatternComplexity;
+import com.io7m.jrcl.core.JRPatternPool;
+import com.io7m.jrcl.core.JRPatternRejectedException;
+import com.io7m.jrcl.core.JRPatternSafety;
+import com.io7m.jrcl.core.JRPolicyEngine;
 import com.io7m.jrcl.core.JRRuleConclusion;
 import com.io7m.jrcl.core.JRSequentialPolicy;
 import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
@@ -102,4 +128,1798 @@ import com.io7m.jrcl.core.JRSequentialPolicyBuilderType;
     Assert.assertFalse(jp.policyAllowsClass("java.lang.Nothing"));
     Assert.assertFalse(jp.policyAllowsResource("file.txt"));
   }
+
+  private static String repeat(
+    final String s,
+    final int count)
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (int index = 0; index < count; ++index) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  @Test public void testPatternRejected_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.setPatternSafety(JRPatternSafety.REJECT);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("(a+)+b"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    try {
+      jpb.build();
+      Assert.fail();
+    } catch (final JRPatternRejectedException e) {
+      Assert.assertEquals("class", e.getRuleKind());
+      Assert.assertEquals(1, e.getRuleIndex());
+      Assert.assertEquals(
+        JRPatternComplexity.EXPONENTIAL,
+        e.getAnalysis().getComplexity());
+    }
+  }
+
+  @Test(expected = JRPatternRejectedException.class) public
+    void
+    testPatternRejected_1()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.setPatternSafety(JRPatternSafety.REWRITE);
+    jpb.addResourceRule(
+      Pattern.compile("(\\w+)/\\1"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.build();
+  }
+
+  @Test public void testPatternRewritten_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.setPatternSafety(JRPatternSafety.REWRITE);
+    jpb.setEvaluationStepBudget(1000);
+    jpb.addClassRule(
+      Pattern.compile("(a+)+b"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertTrue(jp.policyAllowsClass("aaab"));
+    Assert.assertFalse(jp.policyAllowsClass("aaa"));
+    Assert.assertFalse(jp.policyAllowsClass(JRSequentialPolicyTest.repeat(
+      "a",
+      200)));
+  }
+
+  @Test public void testStepBudget_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.setEvaluationStepBudget(10000);
+    jpb.addClassRule(
+      Pattern.compile("((a+)+)+b"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    final String name = JRSequentialPolicyTest.repeat("a", 40);
+
+    final Logger logger =
+      (Logger) LoggerFactory
+        .getLogger("com.io7m.jrcl.core.JRRuleEngineSequential");
+    final ListAppender<ILoggingEvent> appender =
+      new ListAppender<ILoggingEvent>();
+    appender.start();
+    logger.addAppender(appender);
+    try {
+
+      /**
+       * A name within the budget still matches the pattern, and one that
+       * does not match is denied by default, without exceeding the budget.
+       */
+
+      Assert.assertTrue(jp.policyAllowsClass("aaab"));
+      Assert.assertFalse(jp.policyAllowsClass("aaa"));
+      Assert.assertEquals(0, appender.list.size());
+
+      /**
+       * A name that exhausts the budget is denied, and the denial is
+       * logged.
+       */
+
+      final long time_then = System.nanoTime();
+      Assert.assertFalse(jp.policyAllowsClass(name));
+      final long time_now = System.nanoTime();
+      Assert.assertTrue(time_now - time_then < 10_000_000_000L);
+
+      Assert.assertEquals(1, appender.list.size());
+      final ILoggingEvent e = appender.list.get(0);
+      Assert.assertEquals(Level.ERROR, e.getLevel());
+      Assert.assertTrue(e.getFormattedMessage().contains(
+        "exceeded the budget of 10000 steps"));
+    } finally {
+      logger.detachAppender(appender);
+    }
+
+    final JRDecisionTrace t = jp.explainClass(name);
+    Assert.assertEquals(JRRuleConclusion.DENY, t.getConclusion());
+    Assert.assertEquals(
+      JRDecisionReason.STEP_BUDGET_EXCEEDED,
+      t.getReason());
+    Assert.assertEquals(0, t.getDecidingRuleIndex());
+
+    final JRDecisionTrace u = jp.explainClass("aaab");
+    Assert.assertEquals(JRRuleConclusion.ALLOW, u.getConclusion());
+    Assert.assertEquals(JRDecisionReason.LAST_MATCHING_RULE, u.getReason());
+  }
+
+  @Test public void testPatternSafetyDefault_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.addClassRule(
+      Pattern.compile("(a|ab)*c"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("(x+)\\1y"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertTrue(jp.policyAllowsClass("aabc"));
+    Assert.assertTrue(jp.policyAllowsClass("xxxxy"));
+    Assert.assertFalse(jp.policyAllowsClass("xxxy"));
+  }
+
+  @Test public void testStepBudget_1()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.addClassRule(
+      Pattern.compile("com\\..*\\..*Impl"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertTrue(jp.policyAllowsClass("com.example.FooImpl"));
+    Assert.assertFalse(jp.policyAllowsClass("com.example.Foo"));
+  }
+
+  @Test public void testStepBudgetPerRule_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.ALLOW,
+        JRRuleConclusion.ALLOW);
+
+    /**
+     * Each rule takes a few hundred steps to reject the name, so the rules
+     * together take several times the budget. The budget is per rule, so
+     * none of them exceeds it, and the name is allowed by default.
+     */
+
+    jpb.setEvaluationStepBudget(400);
+    for (int index = 0; index < 10; ++index) {
+      jpb.addClassRule(
+        Pattern.compile("((a+)+)+b"),
+        JRRuleConclusion.DENY,
+        false);
+    }
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertTrue(jp.policyAllowsClass("aaaaaa"));
+    Assert.assertFalse(jp.policyAllowsClass(JRSequentialPolicyTest.repeat(
+      "a",
+      16)));
+  }
+
+  @Test(expected = IllegalArgumentException.class) public
+    void
+    testStepBudgetInvalid_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationStepBudget(0);
+  }
+
+  private static void checkNameSet(
+    final JRNameSetStorage storage)
+  {
+    final List<String> names = new ArrayList<String>();
+    for (int index = 0; index < 20000; ++index) {
+      names.add(String.format("com.example.gadget%d.Gadget%d", index, index));
+    }
+
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.ALLOW,
+        JRRuleConclusion.ALLOW);
+
+    jpb.setNameSetStorage(storage);
+    jpb.addClassNameSetRule(names, JRRuleConclusion.DENY, true);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    for (final String name : names) {
+      Assert.assertFalse(name, jp.policyAllowsClass(name));
+    }
+    for (int index = 0; index < 20000; ++index) {
+      final String name =
+        String.format("com.example.gadget%d.Gadget%d", index, index + 1);
+      Assert.assertTrue(name, jp.policyAllowsClass(name));
+    }
+    Assert.assertTrue(jp.policyAllowsClass(""));
+    Assert.assertTrue(jp.policyAllowsClass("com.example.gadget1.Gadget"));
+    Assert.assertTrue(jp.policyAllowsClass("com.example.gadget1.Gadget1x"));
+  }
+
+  @Test public void testNameSet_0()
+  {
+    JRSequentialPolicyTest.checkNameSet(JRNameSetStorage.HEAP);
+  }
+
+  @Test public void testNameSet_1()
+  {
+    JRSequentialPolicyTest.checkNameSet(JRNameSetStorage.OFF_HEAP);
+  }
+
+  @Test public void testNameSet_2()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    jpb.addClassNameSetRule(
+      Collections.<String> emptyList(),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceNameSetRule(
+      Arrays.asList(
+        "data/\u00e9t\u00e9.txt",
+        "data/\u6587\u5b57.txt",
+        "data/plain.txt",
+        "data/plain.txt"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertFalse(jp.policyAllowsClass(""));
+    Assert.assertFalse(jp.policyAllowsClass("java.lang.Object"));
+    Assert.assertTrue(jp.policyAllowsResource("data/\u00e9t\u00e9.txt"));
+    Assert.assertTrue(jp.policyAllowsResource("data/\u6587\u5b57.txt"));
+    Assert.assertTrue(jp.policyAllowsResource("data/plain.txt"));
+    Assert.assertFalse(jp.policyAllowsResource("data/\u6587.txt"));
+    Assert.assertFalse(jp.policyAllowsResource("data/plain.txt "));
+  }
+
+  @Test public void testNameSetStorageLate_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+
+    final List<String> names = new ArrayList<String>();
+    names.add("com.example.A");
+    names.add("com.example.B");
+    jpb.addClassNameSetRule(names, JRRuleConclusion.ALLOW, false);
+
+    /**
+     * The storage applies to sets added before it was set, and the names
+     * were copied when the rule was added.
+     */
+
+    jpb.setNameSetStorage(JRNameSetStorage.OFF_HEAP);
+    names.add("com.example.C");
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertTrue(jp.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(jp.policyAllowsClass("com.example.B"));
+    Assert.assertFalse(jp.policyAllowsClass("com.example.C"));
+
+    final JRDecisionTrace t = jp.explainClass("com.example.A");
+    final JRDecisionTraceStep s = t.getSteps().get(0);
+    Assert.assertTrue(s.getRule(), s.getRule().contains("OFF_HEAP"));
+  }
+
+  @Test public void testMinimizeDisabled_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.String"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRMinimizationReport r = jpb.build().getMinimizationReport();
+    Assert.assertEquals(0, r.getEntries().size());
+    Assert.assertEquals(2, r.getRulesBefore());
+    Assert.assertEquals(2, r.getRulesAfter());
+    Assert.assertEquals(1.0, r.getEstimatedSpeedup(), 0.0);
+  }
+
+  @Test public void testMinimizeUnreachable_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setRuleMinimization(true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.(String|Integer)"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassNameSetRule(
+      Arrays.asList("java.lang.Object", "java.lang.Runtime"),
+      JRRuleConclusion.DENY,
+      true);
+
+    final JRSequentialPolicy jp = jpb.build();
+    final JRMinimizationReport r = jp.getMinimizationReport();
+    Assert.assertEquals(3, r.getRulesBefore());
+    Assert.assertEquals(1, r.getRulesAfter());
+    Assert.assertTrue(r.getEstimatedSpeedup() > 1.0);
+
+    final List<JRMinimizationEntry> e = r.getEntries();
+    Assert.assertEquals(2, e.size());
+    Assert.assertEquals(JRMinimizationAction.UNREACHABLE, e.get(0).getAction());
+    Assert.assertEquals(1, e.get(0).getRuleIndex());
+    Assert.assertEquals("class", e.get(0).getRuleKind());
+    Assert.assertEquals(JRMinimizationAction.UNREACHABLE, e.get(1).getAction());
+    Assert.assertEquals(2, e.get(1).getRuleIndex());
+
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.String"));
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertFalse(jp.policyAllowsClass("java.util.List"));
+  }
+
+  @Test public void testMinimizeUnreachableCaseInsensitive_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setRuleMinimization(true);
+    jpb.addClassRule(
+      Pattern.compile("(?i)[^a]*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(Pattern.compile("bB"), JRRuleConclusion.DENY, false);
+    jpb.addClassRule(Pattern.compile("A"), JRRuleConclusion.ALLOW, false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    final JRMinimizationReport r = jp.getMinimizationReport();
+    Assert.assertEquals(3, r.getRulesBefore());
+    Assert.assertEquals(2, r.getRulesAfter());
+
+    final List<JRMinimizationEntry> e = r.getEntries();
+    Assert.assertEquals(1, e.size());
+    Assert.assertEquals(JRMinimizationAction.UNREACHABLE, e.get(0).getAction());
+    Assert.assertEquals(1, e.get(0).getRuleIndex());
+
+    Assert.assertTrue(jp.policyAllowsClass("bB"));
+    Assert.assertTrue(jp.policyAllowsClass("A"));
+    Assert.assertFalse(jp.policyAllowsClass("a"));
+    Assert.assertFalse(jp.policyAllowsClass("ba"));
+  }
+
+  @Test public void testMinimizeShadowed_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.ALLOW);
+    jpb.setRuleMinimization(true);
+    jpb.addResourceRule(
+      Pattern.compile("secret/[a-z]+\\.txt"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile("secret/.*"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    final List<JRMinimizationEntry> e =
+      jp.getMinimizationReport().getEntries();
+    Assert.assertEquals(1, e.size());
+    Assert.assertEquals(JRMinimizationAction.SHADOWED, e.get(0).getAction());
+    Assert.assertEquals(0, e.get(0).getRuleIndex());
+    Assert.assertEquals("resource", e.get(0).getRuleKind());
+
+    Assert.assertFalse(jp.policyAllowsResource("secret/key.txt"));
+    Assert.assertTrue(jp.policyAllowsResource("public/key.txt"));
+  }
+
+  @Test public void testMinimizeRedundant_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setRuleMinimization(true);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("org\\.example\\..*"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\.Internal"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    final List<JRMinimizationEntry> e =
+      jp.getMinimizationReport().getEntries();
+    Assert.assertEquals(1, e.size());
+    Assert.assertEquals(JRMinimizationAction.REDUNDANT, e.get(0).getAction());
+    Assert.assertEquals(1, e.get(0).getRuleIndex());
+
+    Assert.assertTrue(jp.policyAllowsClass("com.example.Public"));
+    Assert.assertFalse(jp.policyAllowsClass("com.example.Internal"));
+    Assert.assertFalse(jp.policyAllowsClass("org.example.Public"));
+  }
+
+  @Test public void testMinimizeMerged_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setRuleMinimization(true);
+    jpb.addClassRule(
+      Pattern.compile("com\\.example\\..*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("ORG\\.EXAMPLE\\..*", Pattern.CASE_INSENSITIVE),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassNameSetRule(
+      Arrays.asList("java.lang.Object"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassNameSetRule(
+      Arrays.asList("java.lang.String"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    final JRMinimizationReport r = jp.getMinimizationReport();
+    Assert.assertEquals(2, r.getRulesAfter());
+
+    final List<JRMinimizationEntry> e = r.getEntries();
+    Assert.assertEquals(2, e.size());
+    Assert.assertEquals(JRMinimizationAction.MERGED, e.get(0).getAction());
+    Assert.assertEquals(1, e.get(0).getRuleIndex());
+    Assert.assertEquals(JRMinimizationAction.MERGED, e.get(1).getAction());
+    Assert.assertEquals(3, e.get(1).getRuleIndex());
+
+    Assert.assertTrue(jp.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(jp.policyAllowsClass("org.example.A"));
+    Assert.assertFalse(jp.policyAllowsClass("COM.EXAMPLE.A"));
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.Object"));
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.String"));
+    Assert.assertFalse(jp.policyAllowsClass("java.lang.Integer"));
+  }
+
+  private static void names(
+    final String prefix,
+    final int length,
+    final List<String> out)
+  {
+    out.add(prefix);
+    if (length > 0) {
+      for (final char c : "ab.A".toCharArray()) {
+        JRSequentialPolicyTest.names(prefix + c, length - 1, out);
+      }
+    }
+  }
+
+  @Test public void testMinimizeEquivalent_0()
+  {
+    final String[] patterns =
+      {
+        "a.*",
+        ".*b",
+        "[ab]*",
+        "a\\.b",
+        "(a|b)+",
+        "a{2,3}",
+        "a?b?",
+        "(?i)a.*",
+        "a+?b",
+        "\\w\\.\\w",
+        "^ab$",
+        "(a)\\1",
+        "(?=a).*",
+        "a++",
+        "[^.]*",
+        "(?:a|ab)(?:b|)",
+        "(?i)[^a]*",
+        "(?i)[^a-z]*",
+        "(?i)[^b].*",
+        "(?i:[^A])*",
+        "(?i)[^.a]+",
+        ".",
+        "", };
+    final List<List<String>> sets = new ArrayList<List<String>>();
+    sets.add(Arrays.asList("a", "ab"));
+    sets.add(Arrays.asList("b", "a.b", "A"));
+    sets.add(Arrays.asList(""));
+
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.names("", 4, names);
+
+    final Random random = new Random(33L);
+    for (int policy = 0; policy < 300; ++policy) {
+      final JRRuleConclusion d =
+        random.nextBoolean() ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY;
+      final JRSequentialPolicyBuilderType plain =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      final JRSequentialPolicyBuilderType minimized =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      minimized.setRuleMinimization(true);
+      plain.setPatternSafety(JRPatternSafety.PERMIT);
+      minimized.setPatternSafety(JRPatternSafety.PERMIT);
+
+      final int count = 1 + random.nextInt(8);
+      for (int index = 0; index < count; ++index) {
+        final JRRuleConclusion c =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        final boolean quick = random.nextInt(3) == 0;
+        if (random.nextInt(4) == 0) {
+          final List<String> set = sets.get(random.nextInt(sets.size()));
+          plain.addClassNameSetRule(set, c, quick);
+          minimized.addClassNameSetRule(set, c, quick);
+        } else {
+          final Pattern p =
+            Pattern.compile(patterns[random.nextInt(patterns.length)]);
+          plain.addClassRule(p, c, quick);
+          minimized.addClassRule(p, c, quick);
+        }
+      }
+
+      final JRSequentialPolicy p = plain.build();
+      final JRSequentialPolicy m = minimized.build();
+      final JRMinimizationReport r = m.getMinimizationReport();
+      for (final String name : names) {
+        Assert.assertEquals(
+          name + " " + r,
+          p.policyAllowsClass(name),
+          m.policyAllowsClass(name));
+      }
+    }
+  }
+
+  @Test public void testDerived_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.txt"),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRSequentialPolicy p0 = jpb.build();
+
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("java\\.lang\\.Runtime"),
+        JRRuleConclusion.DENY,
+        false);
+    Assert.assertTrue(p0.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertFalse(p1.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertTrue(p1.policyAllowsClass("java.lang.String"));
+
+    final JRSequentialPolicy p2 =
+      p1.withClassNameSetRuleAppended(
+        Arrays.asList("com.example.A", "com.example.B"),
+        JRRuleConclusion.ALLOW,
+        true);
+    Assert.assertFalse(p1.policyAllowsClass("com.example.A"));
+    Assert.assertTrue(p2.policyAllowsClass("com.example.A"));
+    Assert.assertFalse(p2.policyAllowsClass("com.example.C"));
+
+    final JRSequentialPolicy p3 = p2.withClassRuleRemoved(1);
+    Assert.assertFalse(p2.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertTrue(p3.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertTrue(p3.policyAllowsClass("com.example.A"));
+
+    final JRSequentialPolicy p4 =
+      p3.withDefaults(JRRuleConclusion.ALLOW, JRRuleConclusion.DENY);
+    Assert.assertFalse(p3.policyAllowsClass("org.example.A"));
+    Assert.assertTrue(p4.policyAllowsClass("org.example.A"));
+
+    final JRSequentialPolicy p5 =
+      p4.withResourceRuleAppended(
+        Pattern.compile("secret/.*"),
+        JRRuleConclusion.DENY,
+        false).withResourceNameSetRuleAppended(
+        Arrays.asList("secret/public.txt"),
+        JRRuleConclusion.ALLOW,
+        false);
+    Assert.assertTrue(p4.policyAllowsResource("secret/key.txt"));
+    Assert.assertFalse(p5.policyAllowsResource("secret/key.txt"));
+    Assert.assertTrue(p5.policyAllowsResource("secret/public.txt"));
+
+    final JRSequentialPolicy p6 = p5.withResourceRuleRemoved(0);
+    Assert.assertFalse(p6.policyAllowsResource("hello.txt"));
+    Assert.assertTrue(p6.policyAllowsResource("secret/public.txt"));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class) public
+    void
+    testDerivedRemoveInvalid_0()
+  {
+    JRSequentialPolicy
+      .newPolicyBuilder(JRRuleConclusion.DENY, JRRuleConclusion.DENY)
+      .build()
+      .withClassRuleRemoved(0);
+  }
+
+  @Test(expected = JRPatternRejectedException.class) public
+    void
+    testDerivedRejected_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setPatternSafety(JRPatternSafety.REJECT);
+    jpb.build().withClassRuleAppended(
+      Pattern.compile("(a+)+b"),
+      JRRuleConclusion.ALLOW,
+      false);
+  }
+
+  @Test public void testDerivedMinimized_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setRuleMinimization(true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.Runtime"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRSequentialPolicy p0 = jpb.build();
+    Assert.assertEquals(1, p0.getMinimizationReport().getRulesAfter());
+    Assert.assertTrue(p0.policyAllowsClass("java.lang.Runtime"));
+
+    /**
+     * Derived policies refer to the rules as declared, including those
+     * removed by minimization.
+     */
+
+    final JRSequentialPolicy p1 = p0.withClassRuleRemoved(0);
+    Assert.assertEquals(1, p1.getMinimizationReport().getRulesAfter());
+    Assert.assertEquals(0, p1.getMinimizationReport().getEntries().size());
+    Assert.assertFalse(p1.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertFalse(p1.policyAllowsClass("java.lang.String"));
+  }
+
+  @Test public void testDerivedMinimized_1()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setRuleMinimization(true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.Runtime"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRSequentialPolicy p0 = jpb.build();
+    Assert.assertEquals(1, p0.getMinimizationReport().getRulesAfter());
+    Assert.assertEquals(1, p0.getMinimizationReport().getEntries().size());
+    Assert.assertEquals(1, p0.explainClass("com.x").getSteps().size());
+
+    /**
+     * Appending a rule does not carry the minimization forward: the
+     * derived policy evaluates every declared rule.
+     */
+
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("com\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+    Assert.assertEquals(3, p1.getMinimizationReport().getRulesBefore());
+    Assert.assertEquals(3, p1.getMinimizationReport().getRulesAfter());
+    Assert.assertEquals(0, p1.getMinimizationReport().getEntries().size());
+    Assert.assertEquals(3, p1.explainClass("com.x").getSteps().size());
+    Assert.assertTrue(p1.policyAllowsClass("com.x"));
+    Assert.assertTrue(p1.policyAllowsClass("java.lang.Runtime"));
+
+    final JRSequentialPolicy p2 = p1.withClassRuleRemoved(0);
+    Assert.assertEquals(2, p2.explainClass("com.x").getSteps().size());
+    Assert.assertFalse(p2.policyAllowsClass("java.lang.Runtime"));
+  }
+
+  @Test public void testDerivedEquivalent_0()
+  {
+    final String[] patterns =
+      { "a.*", ".*b", "[ab]*", "a\\.b", "(a|b)+", "a?b?", "." };
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.names("", 3, names);
+
+    final Random random = new Random(36L);
+    final List<Pattern> p_list = new ArrayList<Pattern>();
+    final List<JRRuleConclusion> c_list = new ArrayList<JRRuleConclusion>();
+    final List<Boolean> q_list = new ArrayList<Boolean>();
+    JRRuleConclusion d = JRRuleConclusion.DENY;
+    JRSequentialPolicy derived =
+      JRSequentialPolicy.newPolicyBuilder(d, d).build();
+
+    for (int step = 0; step < 200; ++step) {
+      final int op = random.nextInt(5);
+      if ((op == 0) && !p_list.isEmpty()) {
+        final int index = random.nextInt(p_list.size());
+        p_list.remove(index);
+        c_list.remove(index);
+        q_list.remove(index);
+        derived = derived.withClassRuleRemoved(index);
+      } else if (op == 1) {
+        d =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        derived = derived.withDefaults(d, d);
+      } else {
+        final Pattern p =
+          Pattern.compile(patterns[random.nextInt(patterns.length)]);
+        final JRRuleConclusion c =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        final boolean q = random.nextInt(3) == 0;
+        p_list.add(p);
+        c_list.add(c);
+        q_list.add(Boolean.valueOf(q));
+        derived = derived.withClassRuleAppended(p, c, q);
+      }
+
+      final JRSequentialPolicyBuilderType jpb =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      for (int index = 0; index < p_list.size(); ++index) {
+        jpb.addClassRule(
+          p_list.get(index),
+          c_list.get(index),
+          q_list.get(index).booleanValue());
+      }
+      final JRSequentialPolicy built = jpb.build();
+      for (final String name : names) {
+        Assert.assertEquals(
+          name,
+          built.policyAllowsClass(name),
+          derived.policyAllowsClass(name));
+      }
+    }
+  }
+
+  /**
+   * Check that policies derived by appending and removing resource rules
+   * with the given engine make the same decisions as policies built from
+   * the same rules.
+   */
+
+  private static void checkDerivedEquivalent(
+    final JRPolicyEngine engine,
+    final long seed)
+  {
+    final String[] patterns =
+      {
+        "a",
+        "ab",
+        "a.*",
+        "ab.*",
+        "a/.*",
+        "a/b",
+        "b/a.*",
+        ".*\\.a",
+        ".*\\.b",
+        "(?i)a.*",
+        "[ab]*",
+        ".*/b",
+        "" };
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.resourceNames("", 3, names);
+
+    final Random random = new Random(seed);
+    final List<Pattern> p_list = new ArrayList<Pattern>();
+    final List<JRRuleConclusion> c_list = new ArrayList<JRRuleConclusion>();
+    final List<Boolean> q_list = new ArrayList<Boolean>();
+    final JRRuleConclusion d = JRRuleConclusion.DENY;
+    final JRSequentialPolicyBuilderType start =
+      JRSequentialPolicy.newPolicyBuilder(d, d);
+    start.setEvaluationEngine(engine);
+    JRSequentialPolicy derived = start.build();
+
+    for (int step = 0; step < 150; ++step) {
+      if ((random.nextInt(3) == 0) && !p_list.isEmpty()) {
+        final int index = random.nextInt(p_list.size());
+        p_list.remove(index);
+        c_list.remove(index);
+        q_list.remove(index);
+        derived = derived.withResourceRuleRemoved(index);
+      } else {
+        final Pattern p =
+          Pattern.compile(patterns[random.nextInt(patterns.length)]);
+        final JRRuleConclusion c =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        final boolean q = random.nextInt(4) == 0;
+        p_list.add(p);
+        c_list.add(c);
+        q_list.add(Boolean.valueOf(q));
+        derived = derived.withResourceRuleAppended(p, c, q);
+      }
+
+      final JRSequentialPolicyBuilderType jpb =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      for (int index = 0; index < p_list.size(); ++index) {
+        jpb.addResourceRule(
+          p_list.get(index),
+          c_list.get(index),
+          q_list.get(index).booleanValue());
+      }
+      final JRSequentialPolicy built = jpb.build();
+      for (final String name : names) {
+        Assert.assertEquals(
+          name,
+          built.policyAllowsResource(name),
+          derived.policyAllowsResource(name));
+      }
+    }
+  }
+
+  @Test public void testDerivedEquivalentPrefixIndex_0()
+  {
+    JRSequentialPolicyTest.checkDerivedEquivalent(
+      JRPolicyEngine.PREFIX_INDEX,
+      136L);
+  }
+
+  @Test public void testDerivedEquivalentSuffixIndex_0()
+  {
+    JRSequentialPolicyTest.checkDerivedEquivalent(
+      JRPolicyEngine.SUFFIX_INDEX,
+      145L);
+  }
+
+  @Test public void testDerivedEquivalentAdaptive_0()
+  {
+    JRSequentialPolicyTest.checkDerivedEquivalent(
+      JRPolicyEngine.ADAPTIVE,
+      140L);
+  }
+
+  @Test public void testDerivedAdaptive_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.ADAPTIVE);
+    for (int index = 0; index < 200; ++index) {
+      jpb.addClassRule(
+        Pattern.compile("com\\.vendor" + index + "\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+    }
+
+    final JRSequentialPolicy p0 = jpb.build();
+    final JREngineChoice c0 = p0.getEngineChoices().get(0);
+    Assert.assertEquals(JRPolicyEngine.PREFIX_INDEX, c0.getEngine());
+
+    /**
+     * Appending a rule that the trie cannot index adds its cost to every
+     * estimate, but does not move the choice.
+     */
+
+    final JRSequentialPolicy p1 =
+      p0.withClassRuleAppended(
+        Pattern.compile("org\\.[a-z]+\\.Main"),
+        JRRuleConclusion.ALLOW,
+        false);
+    final JREngineChoice c1 = p1.getEngineChoices().get(0);
+    Assert.assertEquals(JRPolicyEngine.PREFIX_INDEX, c1.getEngine());
+    Assert.assertEquals(201, c1.getRuleCount());
+    Assert.assertTrue(
+      c1.getEstimatedCosts().get(JRPolicyEngine.SEQUENTIAL).doubleValue()
+      > c0.getEstimatedCosts().get(JRPolicyEngine.SEQUENTIAL).doubleValue());
+    Assert.assertTrue(
+      c1.getEstimatedCosts().get(JRPolicyEngine.PREFIX_INDEX).doubleValue()
+      > c0.getEstimatedCosts().get(JRPolicyEngine.PREFIX_INDEX).doubleValue());
+    Assert.assertTrue(p1.policyAllowsClass("org.example.Main"));
+    Assert.assertTrue(p1.policyAllowsClass("com.vendor7.Main"));
+
+    /**
+     * Removing the rule again restores the estimates.
+     */
+
+    final JRSequentialPolicy p2 = p1.withClassRuleRemoved(200);
+    final JREngineChoice c2 = p2.getEngineChoices().get(0);
+    Assert.assertEquals(JRPolicyEngine.PREFIX_INDEX, c2.getEngine());
+    Assert.assertEquals(
+      c0.getEstimatedCosts().get(JRPolicyEngine.SEQUENTIAL).doubleValue(),
+      c2.getEstimatedCosts().get(JRPolicyEngine.SEQUENTIAL).doubleValue(),
+      1.0);
+    Assert.assertFalse(p2.policyAllowsClass("org.example.Main"));
+
+    /**
+     * Changing only the defaults leaves the choices as they were.
+     */
+
+    final JRSequentialPolicy p3 =
+      p2.withDefaults(JRRuleConclusion.ALLOW, JRRuleConclusion.ALLOW);
+    Assert.assertEquals(p2.getEngineChoices(), p3.getEngineChoices());
+    Assert.assertTrue(p3.policyAllowsClass("org.example.Main"));
+  }
+
+  @Test public void testPrefixIndex_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.PREFIX_INDEX);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.Runtime"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.reflect\\.[A-Z].*"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.reflect\\.Array"),
+      JRRuleConclusion.ALLOW,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.reflect\\..*"),
+      JRRuleConclusion.DENY,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertEquals(JRPolicyEngine.PREFIX_INDEX, jp.getEvaluationEngine());
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.Object"));
+    Assert.assertFalse(jp.policyAllowsClass("java.lang.Runtime"));
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.RuntimeException"));
+    Assert.assertFalse(jp.policyAllowsClass("java.lang.reflect.Method"));
+    Assert.assertTrue(jp.policyAllowsClass("java.lang.reflect.Array"));
+    Assert.assertFalse(jp.policyAllowsClass("java.lang.reflect.x"));
+    Assert.assertFalse(jp.policyAllowsClass("java.util.List"));
+    Assert.assertFalse(jp.policyAllowsClass("java.lang.Object\n"));
+
+    final JRSequentialPolicy derived =
+      jp.withClassRuleAppended(
+        Pattern.compile("java\\.util\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+    Assert.assertEquals(
+      JRPolicyEngine.PREFIX_INDEX,
+      derived.getEvaluationEngine());
+    Assert.assertTrue(derived.policyAllowsClass("java.util.List"));
+  }
+
+  /**
+   * Check that policies evaluated by the given engine make the same
+   * decisions as policies evaluated sequentially.
+   */
+
+  private static void checkEquivalentEngine(
+    final JRPolicyEngine engine,
+    final long seed)
+  {
+    final String[] patterns =
+      {
+        "a",
+        "ab",
+        "a\\.b",
+        "a.*",
+        "ab.*",
+        "^a\\..*$",
+        "\\Ab\\z",
+        "b.*?",
+        "a.*+",
+        "(?i)ab",
+        ".*b",
+        "[ab]*",
+        "a.",
+        "(?i)[^a]*",
+        "(?i)[^a-z]*",
+        "(?i)[^b].*",
+        "(?i:[^A])*",
+        "[^a]*",
+        "\\Qa.\\E.*",
+        "" };
+    final int[] flags = { 0, Pattern.DOTALL, Pattern.UNIX_LINES };
+
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.names("", 3, names);
+    names.add("a\n");
+    names.add("ab\r");
+    names.add("a\u2028b");
+    names.add("\u0085");
+
+    final Random random = new Random(seed);
+    for (int policy = 0; policy < 200; ++policy) {
+      final JRRuleConclusion d =
+        random.nextBoolean() ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY;
+      final JRSequentialPolicyBuilderType sb =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      final JRSequentialPolicyBuilderType ib =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      ib.setEvaluationEngine(engine);
+
+      final int count = random.nextInt(12);
+      for (int index = 0; index < count; ++index) {
+        final Pattern p =
+          Pattern.compile(
+            patterns[random.nextInt(patterns.length)],
+            flags[random.nextInt(flags.length)]);
+        final JRRuleConclusion c =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        final boolean q = random.nextInt(3) == 0;
+        sb.addClassRule(p, c, q);
+        ib.addClassRule(p, c, q);
+      }
+
+      final JRSequentialPolicy sp = sb.build();
+      final JRSequentialPolicy ip = ib.build();
+      for (final String name : names) {
+        Assert.assertEquals(
+          name,
+          sp.policyAllowsClass(name),
+          ip.policyAllowsClass(name));
+      }
+    }
+  }
+
+  @Test public void testPrefixIndexEquivalent_0()
+  {
+    JRSequentialPolicyTest.checkEquivalentEngine(
+      JRPolicyEngine.PREFIX_INDEX,
+      37L);
+  }
+
+  @Test public void testSuffixIndex_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.SUFFIX_INDEX);
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.properties"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.class"),
+      JRRuleConclusion.DENY,
+      true);
+    jpb.addResourceRule(
+      Pattern.compile("META-INF/services/.*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile("META-INF/secret\\.properties"),
+      JRRuleConclusion.DENY,
+      false);
+    jpb.addResourceRule(
+      Pattern.compile("images/[a-z]+\\.png"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertEquals(JRPolicyEngine.SUFFIX_INDEX, jp.getEvaluationEngine());
+    Assert.assertTrue(jp.policyAllowsResource("com/example/x.properties"));
+    Assert.assertTrue(jp.policyAllowsResource("x.properties"));
+    Assert.assertFalse(jp.policyAllowsResource("x.properties.bak"));
+    Assert.assertFalse(jp.policyAllowsResource("com/example/X.class"));
+    Assert.assertFalse(jp.policyAllowsResource("META-INF/services/a.class"));
+    Assert.assertTrue(jp.policyAllowsResource("META-INF/services/a.b.C"));
+    Assert.assertFalse(jp.policyAllowsResource("META-INF/MANIFEST.MF"));
+    Assert.assertFalse(
+      jp.policyAllowsResource("META-INF/secret.properties"));
+    Assert.assertTrue(jp.policyAllowsResource("images/logo.png"));
+    Assert.assertFalse(jp.policyAllowsResource("images/Logo.png"));
+    Assert.assertFalse(jp.policyAllowsResource("x.properties\n"));
+
+    final JRSequentialPolicy derived =
+      jp.withResourceRuleAppended(
+        Pattern.compile(".*\\.MF"),
+        JRRuleConclusion.ALLOW,
+        false);
+    Assert.assertEquals(
+      JRPolicyEngine.SUFFIX_INDEX,
+      derived.getEvaluationEngine());
+    Assert.assertTrue(derived.policyAllowsResource("META-INF/MANIFEST.MF"));
+  }
+
+  @Test public void testSuffixIndexEquivalent_0()
+  {
+    final String[] patterns =
+      {
+        ".*\\.a",
+        ".*\\.ab",
+        ".*\\.",
+        ".*\\./a",
+        ".*\\.a\\.b",
+        "^.*\\.b$",
+        ".*?\\.b",
+        ".*+\\.a",
+        "(?i).*\\.a",
+        "a/.*",
+        "a/b",
+        "/.*",
+        "a/b.*",
+        "a.*",
+        ".*b",
+        "[ab/]*",
+        "(?i)[^a]*",
+        "(?i)[^a-z]*",
+        "(?i)[^b/]*\\.a",
+        "(?i:[^A])*\\.b",
+        "[^a]*\\.a",
+        ".*\\Q.a\\E",
+        "" };
+    final int[] flags = { 0, Pattern.DOTALL, Pattern.UNIX_LINES };
+
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.resourceNames("", 4, names);
+    names.add("a.a\n");
+    names.add("a/\r");
+    names.add("a\u2028.a");
+
+    final Random random = new Random(45L);
+    for (int policy = 0; policy < 200; ++policy) {
+      final JRRuleConclusion d =
+        random.nextBoolean() ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY;
+      final JRSequentialPolicyBuilderType sb =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      final JRSequentialPolicyBuilderType ib =
+        JRSequentialPolicy.newPolicyBuilder(d, d);
+      ib.setEvaluationEngine(JRPolicyEngine.SUFFIX_INDEX);
+
+      final int count = random.nextInt(12);
+      for (int index = 0; index < count; ++index) {
+        final Pattern p =
+          Pattern.compile(
+            patterns[random.nextInt(patterns.length)],
+            flags[random.nextInt(flags.length)]);
+        final JRRuleConclusion c =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        final boolean q = random.nextInt(3) == 0;
+        sb.addResourceRule(p, c, q);
+        ib.addResourceRule(p, c, q);
+      }
+
+      final JRSequentialPolicy sp = sb.build();
+      final JRSequentialPolicy ip = ib.build();
+      for (final String name : names) {
+        Assert.assertEquals(
+          name,
+          sp.policyAllowsResource(name),
+          ip.policyAllowsResource(name));
+      }
+    }
+  }
+
+  private static void resourceNames(
+    final String prefix,
+    final int length,
+    final List<String> out)
+  {
+    out.add(prefix);
+    if (length > 0) {
+      for (final char c : "ab./".toCharArray()) {
+        JRSequentialPolicyTest.resourceNames(prefix + c, length - 1, out);
+      }
+    }
+  }
+
+  @Test public void testAdaptiveEquivalent_0()
+  {
+    JRSequentialPolicyTest.checkEquivalentEngine(JRPolicyEngine.ADAPTIVE, 40L);
+  }
+
+  @Test public void testAdaptiveEquivalent_1()
+  {
+    final String[] inexact =
+      { "(?i)[^a]*", "(?i)[^a-z]*", "(?i)[^b].*", "(?i:[^A])*", "(?i).*\\.Z" };
+    final String[] names =
+      { "a", "A", "b", "B", "0", "", "com.vendor7.A", "x.z", "x.Z", "ab" };
+
+    for (final String source : inexact) {
+      final JRSequentialPolicyBuilderType sb =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.DENY,
+          JRRuleConclusion.DENY);
+      final JRSequentialPolicyBuilderType ab =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.DENY,
+          JRRuleConclusion.DENY);
+      ab.setEvaluationEngine(JRPolicyEngine.ADAPTIVE);
+
+      for (final JRSequentialPolicyBuilderType b : Arrays.asList(sb, ab)) {
+        for (int index = 0; index < 200; ++index) {
+          final Pattern p = Pattern.compile("com\\.vendor" + index + "\\..*");
+          b.addClassRule(p, JRRuleConclusion.DENY, false);
+          b.addResourceRule(
+            Pattern.compile(".*\\.e" + index),
+            JRRuleConclusion.DENY,
+            false);
+        }
+        final Pattern p = Pattern.compile(source);
+        b.addClassRule(p, JRRuleConclusion.ALLOW, false);
+        b.addResourceRule(p, JRRuleConclusion.ALLOW, false);
+      }
+
+      final JRSequentialPolicy sp = sb.build();
+      final JRSequentialPolicy ap = ab.build();
+      final JRSequentialPolicy sd = sp.withClassRuleRemoved(0);
+      final JRSequentialPolicy ad = ap.withClassRuleRemoved(0);
+      for (final String name : names) {
+        final String m = source + " " + name;
+        Assert.assertEquals(
+          m,
+          sp.policyAllowsClass(name),
+          ap.policyAllowsClass(name));
+        Assert.assertEquals(
+          m,
+          sp.policyAllowsResource(name),
+          ap.policyAllowsResource(name));
+        Assert.assertEquals(
+          m,
+          sd.policyAllowsClass(name),
+          ad.policyAllowsClass(name));
+      }
+    }
+  }
+
+  @Test public void testAdaptive_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setEvaluationEngine(JRPolicyEngine.ADAPTIVE);
+    for (int index = 0; index < 200; ++index) {
+      jpb.addClassRule(
+        Pattern.compile("com\\.vendor" + index + "\\..*"),
+        JRRuleConclusion.ALLOW,
+        false);
+    }
+    jpb.addResourceRule(
+      Pattern.compile(".*\\.txt"),
+      JRRuleConclusion.ALLOW,
+      false);
+
+    final JRSequentialPolicy jp = jpb.build();
+    Assert.assertEquals(JRPolicyEngine.ADAPTIVE, jp.getEvaluationEngine());
+    Assert.assertTrue(jp.policyAllowsClass("com.vendor199.Main"));
+    Assert.assertFalse(jp.policyAllowsClass("com.vendor200.Main"));
+    Assert.assertTrue(jp.policyAllowsResource("a/b.txt"));
+
+    final List<JREngineChoice> choices = jp.getEngineChoices();
+    Assert.assertEquals(2, choices.size());
+
+    final JREngineChoice c = choices.get(0);
+    Assert.assertEquals("class", c.getRuleKind());
+    Assert.assertEquals(200, c.getRuleCount());
+    Assert.assertEquals(JRPolicyEngine.PREFIX_INDEX, c.getEngine());
+    Assert.assertTrue(c.getEstimatedCosts().containsKey(
+      JRPolicyEngine.SEQUENTIAL));
+    Assert.assertTrue(c.getEstimatedCosts().containsKey(
+      JRPolicyEngine.PREFIX_INDEX));
+
+    final JREngineChoice r = choices.get(1);
+    Assert.assertEquals("resource", r.getRuleKind());
+    Assert.assertEquals(1, r.getRuleCount());
+    Assert.assertEquals(JRPolicyEngine.SEQUENTIAL, r.getEngine());
+
+    final JRSequentialPolicy derived = jp.withClassRuleRemoved(0);
+    Assert.assertEquals(
+      JRPolicyEngine.PREFIX_INDEX,
+      derived.getEngineChoices().get(0).getEngine());
+    Assert.assertFalse(derived.policyAllowsClass("com.vendor0.Main"));
+  }
+
+  @Test public void testParallelEquivalent_0()
+  {
+    final String[] patterns =
+      { "a.*", ".*b", "a\\.b", "[ab]*", "((a+)+)+b", "(?i)ab", "" };
+
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.names("", 3, names);
+    names.add(JRSequentialPolicyTest.repeat("a", 16));
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final Random random = new Random(42L);
+      for (int policy = 0; policy < 20; ++policy) {
+        final JRRuleConclusion d =
+          random.nextBoolean()
+            ? JRRuleConclusion.ALLOW
+            : JRRuleConclusion.DENY;
+        final JRSequentialPolicyBuilderType sb =
+          JRSequentialPolicy.newPolicyBuilder(d, d);
+        final JRSequentialPolicyBuilderType pb =
+          JRSequentialPolicy.newPolicyBuilder(d, d);
+        pb.setEvaluationEngine(JRPolicyEngine.PARALLEL);
+        pb.setParallelEvaluation(pool, 1);
+        for (final JRSequentialPolicyBuilderType b : Arrays.asList(sb, pb)) {
+          b.setPatternSafety(JRPatternSafety.PERMIT);
+          b.setEvaluationStepBudget(50L);
+        }
+
+        for (int index = 0; index < 1500; ++index) {
+          final Pattern p;
+          if (random.nextInt(100) == 0) {
+            p = Pattern.compile(patterns[random.nextInt(patterns.length)]);
+          } else {
+            p = Pattern.compile("z" + index);
+          }
+          final JRRuleConclusion c =
+            random.nextBoolean()
+              ? JRRuleConclusion.ALLOW
+              : JRRuleConclusion.DENY;
+          final boolean q = random.nextInt(3) == 0;
+          sb.addClassRule(p, c, q);
+          pb.addClassRule(p, c, q);
+        }
+
+        final JRSequentialPolicy sp = sb.build();
+        final JRSequentialPolicy pp = pb.build();
+        for (final String name : names) {
+          Assert.assertEquals(
+            name,
+            sp.policyAllowsClass(name),
+            pp.policyAllowsClass(name));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test public void testParallelAdaptive_0()
+  {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final JRSequentialPolicyBuilderType jpb =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.DENY,
+          JRRuleConclusion.DENY);
+      jpb.setEvaluationEngine(JRPolicyEngine.ADAPTIVE);
+      jpb.setParallelEvaluation(pool, 8000);
+      for (int index = 0; index < 8000; ++index) {
+        jpb.addClassRule(
+          Pattern.compile("com\\.vendor" + index + "\\.[a-z]+\\.Main"),
+          JRRuleConclusion.ALLOW,
+          false);
+      }
+      jpb.addResourceRule(
+        Pattern.compile(".*\\.txt"),
+        JRRuleConclusion.ALLOW,
+        false);
+
+      final JRSequentialPolicy jp = jpb.build();
+      final List<JREngineChoice> choices = jp.getEngineChoices();
+      Assert.assertEquals(JRPolicyEngine.PARALLEL, choices.get(0).getEngine());
+      Assert.assertEquals(
+        JRPolicyEngine.SEQUENTIAL,
+        choices.get(1).getEngine());
+
+      Assert.assertTrue(jp.policyAllowsClass("com.vendor7999.x.Main"));
+      Assert.assertFalse(jp.policyAllowsClass("com.vendor8000.x.Main"));
+
+      final JRSequentialPolicy derived = jp.withClassRuleRemoved(0);
+      Assert.assertEquals(
+        JRPolicyEngine.SEQUENTIAL,
+        derived.getEngineChoices().get(0).getEngine());
+      Assert.assertFalse(derived.policyAllowsClass("com.vendor0.x.Main"));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class) public
+    void
+    testParallelThresholdInvalid()
+  {
+    JRSequentialPolicy.newPolicyBuilder(
+      JRRuleConclusion.DENY,
+      JRRuleConclusion.DENY).setParallelEvaluation(
+      ForkJoinPool.commonPool(),
+      0);
+  }
+
+  @Test public void testEngineChoiceFixed_0()
+  {
+    final JRSequentialPolicy jp =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY).build();
+    for (final JREngineChoice c : jp.getEngineChoices()) {
+      Assert.assertEquals(JRPolicyEngine.SEQUENTIAL, c.getEngine());
+      Assert.assertEquals(0, c.getRuleCount());
+      Assert.assertTrue(c.getEstimatedCosts().isEmpty());
+    }
+  }
+
+  @Test public void testExplain_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("java\\.lang\\.Runtime"),
+      JRRuleConclusion.DENY,
+      true);
+    jpb.addClassRule(
+      Pattern.compile("java\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRSequentialPolicy jp = jpb.build();
+
+    {
+      final JRDecisionTrace t = jp.explainClass("java.lang.Runtime");
+      Assert.assertEquals("class", t.getKind());
+      Assert.assertEquals("java.lang.Runtime", t.getName());
+      Assert.assertEquals(JRRuleConclusion.DENY, t.getConclusion());
+      Assert.assertEquals(JRDecisionReason.QUICK_RULE, t.getReason());
+      Assert.assertEquals(1, t.getDecidingRuleIndex());
+
+      final List<JRDecisionTraceStep> steps = t.getSteps();
+      Assert.assertEquals(2, steps.size());
+      Assert.assertEquals(0, steps.get(0).getRuleIndex());
+      Assert.assertTrue(steps.get(0).isMatched());
+      Assert.assertFalse(steps.get(0).isQuick());
+      Assert.assertEquals(1, steps.get(1).getRuleIndex());
+      Assert.assertTrue(steps.get(1).isMatched());
+      Assert.assertTrue(steps.get(1).isQuick());
+    }
+
+    {
+      final JRDecisionTrace t = jp.explainClass("java.util.List");
+      Assert.assertEquals(JRRuleConclusion.ALLOW, t.getConclusion());
+      Assert.assertEquals(JRDecisionReason.LAST_MATCHING_RULE, t.getReason());
+      Assert.assertEquals(2, t.getDecidingRuleIndex());
+      Assert.assertEquals(3, t.getSteps().size());
+      Assert.assertFalse(t.getSteps().get(0).isMatched());
+      Assert.assertFalse(t.getSteps().get(1).isMatched());
+      Assert.assertTrue(t.getSteps().get(2).isMatched());
+    }
+
+    {
+      final JRDecisionTrace t = jp.explainClass("com.example.Main");
+      Assert.assertEquals(JRRuleConclusion.DENY, t.getConclusion());
+      Assert.assertEquals(JRDecisionReason.DEFAULT, t.getReason());
+      Assert.assertEquals(-1, t.getDecidingRuleIndex());
+      Assert.assertEquals(3, t.getSteps().size());
+    }
+
+    {
+      final JRDecisionTrace t = jp.explainResource("file.txt");
+      Assert.assertEquals("resource", t.getKind());
+      Assert.assertEquals(JRDecisionReason.DEFAULT, t.getReason());
+      Assert.assertEquals(0, t.getSteps().size());
+    }
+  }
+
+  @Test public void testExplainBudget_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.ALLOW,
+        JRRuleConclusion.ALLOW);
+    jpb.setPatternSafety(JRPatternSafety.PERMIT);
+    jpb.setEvaluationStepBudget(10000);
+    jpb.addClassRule(
+      Pattern.compile("a*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    jpb.addClassRule(
+      Pattern.compile("((a+)+)+b"),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRSequentialPolicy jp = jpb.build();
+
+    final JRDecisionTrace t =
+      jp.explainClass(JRSequentialPolicyTest.repeat("a", 40));
+    Assert.assertEquals(JRRuleConclusion.DENY, t.getConclusion());
+    Assert.assertEquals(JRDecisionReason.STEP_BUDGET_EXCEEDED, t.getReason());
+    Assert.assertEquals(1, t.getDecidingRuleIndex());
+    Assert.assertEquals(2, t.getSteps().size());
+    Assert.assertTrue(t.getSteps().get(0).isMatched());
+    Assert.assertFalse(t.getSteps().get(0).isBudgetExceeded());
+    Assert.assertTrue(t.getSteps().get(1).isBudgetExceeded());
+  }
+
+  @Test public void testTraceFilter_0()
+  {
+    final JRSequentialPolicyBuilderType jpb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    jpb.setTraceFilter(Pattern.compile("com\\.example\\..*"));
+    jpb.addClassRule(
+      Pattern.compile("com\\..*"),
+      JRRuleConclusion.ALLOW,
+      false);
+    final JRSequentialPolicy jp = jpb.build();
+
+    final Logger logger =
+      (Logger) LoggerFactory.getLogger(JRSequentialPolicy.class);
+    final ListAppender<ILoggingEvent> appender =
+      new ListAppender<ILoggingEvent>();
+    appender.start();
+    final Level level = logger.getLevel();
+    logger.setLevel(Level.INFO);
+    logger.addAppender(appender);
+    try {
+      Assert.assertTrue(jp.policyAllowsClass("com.io7m.Main"));
+      Assert.assertEquals(0, appender.list.size());
+      Assert.assertTrue(jp.policyAllowsClass("com.example.Main"));
+      Assert.assertEquals(1, appender.list.size());
+      Assert.assertEquals(
+        jp.explainClass("com.example.Main").toString(),
+        appender.list.get(0).getFormattedMessage());
+
+      final JRSequentialPolicy derived =
+        jp.withClassRuleAppended(
+          Pattern.compile("com\\.example\\.Main"),
+          JRRuleConclusion.DENY,
+          false);
+      Assert.assertFalse(derived.policyAllowsClass("com.example.Main"));
+      Assert.assertEquals(2, appender.list.size());
+    } finally {
+      logger.detachAppender(appender);
+      logger.setLevel(level);
+    }
+  }
+
+  @Test public void testSourceRules_0()
+  {
+    final String[] patterns =
+      { "a.*", ".*b", "a\\.b", "[ab]*", "(?i)ab", "", "com\\..*" };
+
+    final List<String> names = new ArrayList<String>();
+    JRSequentialPolicyTest.names("", 3, names);
+    names.add("com.io7m.Main");
+
+    final JRSequentialPolicyBuilderType pb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    final JRSequentialPolicyBuilderType sb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    for (int index = 0; index < patterns.length; ++index) {
+      final JRRuleConclusion c =
+        index % 2 == 0 ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY;
+      pb.addClassRule(Pattern.compile(patterns[index]), c, false);
+      pb.addResourceRule(Pattern.compile(patterns[index]), c, false);
+      sb.addClassRule(patterns[index], c, false);
+      sb.addResourceRule(patterns[index], c, false);
+    }
+
+    final JRSequentialPolicy pp = pb.build();
+    final JRSequentialPolicy sp = sb.build();
+    for (final String name : names) {
+      Assert.assertEquals(
+        name,
+        pp.policyAllowsClass(name),
+        sp.policyAllowsClass(name));
+      Assert.assertEquals(
+        name,
+        pp.policyAllowsResource(name),
+        sp.policyAllowsResource(name));
+    }
+  }
+
+  @Test public void testSourceRulesParallel_0()
+  {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final JRSequentialPolicyBuilderType sb =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.DENY,
+          JRRuleConclusion.DENY);
+      sb.setParallelEvaluation(pool, 1000000);
+      for (int index = 0; index < 500; ++index) {
+        sb.addClassRule(
+          "com\\.example" + index + "\\..*",
+          index % 2 == 0 ? JRRuleConclusion.ALLOW : JRRuleConclusion.DENY,
+          false);
+      }
+
+      final JRSequentialPolicy sp = sb.build();
+      Assert.assertFalse(sp.policyAllowsClass("com.example500.Main"));
+      for (int index = 0; index < 500; ++index) {
+        Assert.assertEquals(
+          Boolean.valueOf(index % 2 == 0),
+          Boolean.valueOf(
+            sp.policyAllowsClass("com.example" + index + ".Main")));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test public void testSourceRulesPoolShutdown_0()
+  {
+    /**
+     * The evaluation pool is not used to compile the rules, so a policy
+     * can be built even if the caller has already shut the pool down.
+     */
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    pool.shutdown();
+
+    final JRSequentialPolicyBuilderType sb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    sb.setParallelEvaluation(pool, 1000000);
+    for (int index = 0; index < 500; ++index) {
+      sb.addClassRule(
+        "com\\.example" + index + "\\..*",
+        JRRuleConclusion.ALLOW,
+        false);
+    }
+
+    final JRSequentialPolicy sp = sb.build();
+    Assert.assertTrue(sp.policyAllowsClass("com.example499.Main"));
+    Assert.assertFalse(sp.policyAllowsClass("com.example500.Main"));
+  }
+
+  @Test(expected = PatternSyntaxException.class) public
+    void
+    testSourceRulesInvalid()
+  {
+    final JRSequentialPolicyBuilderType sb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    sb.addClassRule("com\\.(", JRRuleConclusion.ALLOW, false);
+    sb.build();
+  }
+
+  @Test public void testSourceRulesRejected_0()
+  {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final JRSequentialPolicyBuilderType sb =
+        JRSequentialPolicy.newPolicyBuilder(
+          JRRuleConclusion.DENY,
+          JRRuleConclusion.DENY);
+      sb.setPatternSafety(JRPatternSafety.REJECT);
+      sb.setParallelEvaluation(pool, 1000000);
+      for (int index = 0; index < 200; ++index) {
+        if (index == 70 || index == 150) {
+          sb.addClassRule("((a+)+)+b", JRRuleConclusion.ALLOW, false);
+        } else {
+          sb.addClassRule("z" + index, JRRuleConclusion.ALLOW, false);
+        }
+      }
+
+      try {
+        sb.build();
+        Assert.fail();
+      } catch (final JRPatternRejectedException e) {
+        Assert.assertEquals(70, e.getRuleIndex());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test public void testPatternPool_0()
+  {
+    final JRPatternPool pool = JRPatternPool.get();
+    final String source = "com\\.pooled\\..*";
+
+    final JRSequentialPolicyBuilderType sb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    sb.addClassRule(source, JRRuleConclusion.ALLOW, false);
+    final JRSequentialPolicy p0 = sb.build();
+    Assert.assertTrue(pool.getSize() > 0);
+    final long hits = pool.getHits();
+
+    final JRSequentialPolicyBuilderType tb =
+      JRSequentialPolicy.newPolicyBuilder(
+        JRRuleConclusion.DENY,
+        JRRuleConclusion.DENY);
+    tb.addClassRule(Pattern.compile(source), JRRuleConclusion.ALLOW, false);
+    final JRSequentialPolicy p1 = tb.build();
+
+    Assert.assertTrue(pool.getHits() > hits);
+    Assert.assertTrue(p0.policyAllowsClass("com.pooled.Main"));
+    Assert.assertTrue(p1.policyAllowsClass("com.pooled.Main"));
+  }
 }